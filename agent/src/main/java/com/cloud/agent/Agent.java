@@ -61,12 +61,15 @@ import com.cloud.agent.api.Command;
 import com.cloud.agent.api.CronCommand;
 import com.cloud.agent.api.MaintainAnswer;
 import com.cloud.agent.api.MaintainCommand;
+import com.cloud.agent.api.PingAnswer;
 import com.cloud.agent.api.PingCommand;
+import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.ReadyCommand;
 import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartupAnswer;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
 import com.cloud.host.Host;
@@ -137,6 +140,12 @@ public class Agent implements HandlerFactory, IAgentControl {
     long _lastPingResponseTime = 0;
     long _pingInterval = 0;
     AtomicInteger _inProgress = new AtomicInteger();
+    // set once the management server on the current link has advertised it can decode binary requests
+    volatile boolean _binaryCodecSupported = false;
+    // pings carry VM power state deltas, with a full report every FULL_VM_STATE_REPORT_INTERVAL pings
+    static final int FULL_VM_STATE_REPORT_INTERVAL = 10;
+    final VmStateReportTracker _vmStateReportTracker = new VmStateReportTracker(FULL_VM_STATE_REPORT_INTERVAL);
+    final Object _pingLock = new Object();
 
     StartupTask _startup = null;
     long _startupWaitDefault = 180000;
@@ -498,6 +507,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         setLink(null);
         cancelTasks();
+        _vmStateReportTracker.reset();
 
         _resource.disconnected();
 
@@ -560,6 +570,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         setId(startup.getHostId());
         _pingInterval = (long)startup.getPingInterval() * 1000; // change to ms.
+        _vmStateReportTracker.reset();
 
         setLastPingResponseTime();
         scheduleWatch(link, response, _pingInterval, _pingInterval);
@@ -804,6 +815,9 @@ public class Agent implements HandlerFactory, IAgentControl {
                 }
             }
         } else {
+            if (answer instanceof PingAnswer) {
+                _vmStateReportTracker.setDeltaAccepted(((PingAnswer)answer).isVmStateDeltaAccepted());
+            }
             setLastPingResponseTime();
         }
     }
@@ -834,19 +848,27 @@ public class Agent implements HandlerFactory, IAgentControl {
                 return;
             }
 
-            final PingCommand ping = _resource.getCurrentStatus(getId());
-            final Request request = new Request(_id, -1, ping, false);
-            request.setSequence(getNextSequence());
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Sending ping: " + request.toString());
-            }
+            // pings sent by sendPing() may run along with the scheduled ones,
+            // the vm state reports have to reach the management server in order
+            synchronized (_pingLock) {
+                final PingCommand ping = _resource.getCurrentStatus(getId());
+                if (ping instanceof PingRoutingCommand) {
+                    _vmStateReportTracker.track((PingRoutingCommand)ping);
+                }
+                final Request request = new Request(_id, -1, ping, false);
+                request.setSequence(getNextSequence());
+                setupRequestVersion(request);
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Sending ping: " + request.toString());
+                }
 
-            try {
-                task.getLink().send(request.toBytes());
-                //if i can send pingcommand out, means the link is ok
-                setLastPingResponseTime();
-            } catch (final ClosedChannelException e) {
-                s_logger.warn("Unable to send request: " + request.toString());
+                try {
+                    task.getLink().send(request.toBytes());
+                    //if i can send pingcommand out, means the link is ok
+                    setLastPingResponseTime();
+                } catch (final ClosedChannelException e) {
+                    s_logger.warn("Unable to send request: " + request.toString());
+                }
             }
 
         } else if (obj instanceof Request) {
@@ -932,7 +954,31 @@ public class Agent implements HandlerFactory, IAgentControl {
         postRequest(request);
     }
 
+    @Override
+    public void sendPing() {
+        final List<WatchTask> watchList = _watchList;
+        final ThreadPoolExecutor ugentTaskPool = _ugentTaskPool;
+        if (watchList == null || ugentTaskPool == null) {
+            return;
+        }
+        synchronized (watchList) {
+            for (final WatchTask task : watchList) {
+                if (task._request instanceof Response) {
+                    ugentTaskPool.submit(new ServerHandler(Task.Type.OTHER, task._link, task._request));
+                    return;
+                }
+            }
+        }
+    }
+
+    private void setupRequestVersion(final Request request) {
+        if (_binaryCodecSupported) {
+            request.setVersion(Version.v4);
+        }
+    }
+
     private void postRequest(final Request request) throws AgentControlChannelException {
+        setupRequestVersion(request);
         if (_link != null) {
             try {
                 _link.send(request.toBytes());
@@ -1078,12 +1124,14 @@ public class Agent implements HandlerFactory, IAgentControl {
         public void doTask(final Task task) throws TaskExecutionException {
             if (task.getType() == Task.Type.CONNECT) {
                 _shell.getBackoffAlgorithm().reset();
+                _binaryCodecSupported = false;
                 setLink(task.getLink());
                 sendStartup(task.getLink());
             } else if (task.getType() == Task.Type.DATA) {
                 Request request;
                 try {
                     request = Request.parse(task.getData());
+                    _binaryCodecSupported = request.isBinaryCodecSupported();
                     if (request instanceof Response) {
                         //It's for pinganswer etc, should be processed immediately.
                         processResponse((Response)request, task.getLink());
@@ -0,0 +1,104 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
+
+/**
+ * VmStateReportTracker remembers the last VM power state report sent to the
+ * management server and turns the full report of every following ping into a
+ * delta.  A full report is sent every fullReportInterval pings, after a
+ * reset and whenever the management server did not accept the last delta.
+ */
+public class VmStateReportTracker {
+    private static final SecureRandom s_random = new SecureRandom();
+
+    private final int _fullReportInterval;
+
+    private Map<String, HostVmStateReportEntry> _lastReport;
+    private long _epoch;
+    private long _sequence;
+    private int _pingsSinceFullReport;
+    private boolean _deltaAccepted;
+
+    public VmStateReportTracker(final int fullReportInterval) {
+        _fullReportInterval = fullReportInterval;
+        reset();
+    }
+
+    /**
+     * Forgets the last report and starts a new epoch, the next ping carries a full report.
+     */
+    public synchronized void reset() {
+        _lastReport = null;
+        _epoch = s_random.nextLong();
+        _sequence = 0;
+        _pingsSinceFullReport = 0;
+        _deltaAccepted = false;
+    }
+
+    public synchronized void setDeltaAccepted(final boolean deltaAccepted) {
+        _deltaAccepted = deltaAccepted;
+    }
+
+    /**
+     * Replaces the full report of the ping by a delta against the previous ping when possible.
+     */
+    public synchronized void track(final PingRoutingCommand ping) {
+        final Map<String, HostVmStateReportEntry> report = ping.getHostVmStateReport();
+        if (report == null) {
+            return;
+        }
+
+        long checksum = 0;
+        for (final Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+            checksum += PingRoutingCommand.getVmStateChecksum(entry.getKey(), entry.getValue().getState());
+        }
+
+        final Map<String, HostVmStateReportEntry> lastReport = _lastReport;
+        _lastReport = new HashMap<String, HostVmStateReportEntry>(report);
+        _sequence++;
+
+        if (lastReport == null || !_deltaAccepted || ++_pingsSinceFullReport >= _fullReportInterval) {
+            _pingsSinceFullReport = 0;
+            ping.setVmStateFullReport(_epoch, _sequence, checksum);
+            return;
+        }
+
+        final Map<String, HostVmStateReportEntry> changed = new HashMap<String, HostVmStateReportEntry>();
+        for (final Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+            final HostVmStateReportEntry last = lastReport.get(entry.getKey());
+            if (last == null || last.getState() != entry.getValue().getState()) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final List<String> removed = new ArrayList<String>();
+        for (final String vmName : lastReport.keySet()) {
+            if (!report.containsKey(vmName)) {
+                removed.add(vmName);
+            }
+        }
+        ping.setVmStateDeltaReport(changed, removed, _epoch, _sequence, checksum);
+    }
+}
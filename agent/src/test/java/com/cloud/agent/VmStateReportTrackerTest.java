@@ -0,0 +1,126 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.host.Host;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class VmStateReportTrackerTest {
+
+    private Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+
+    private PingRoutingCommand ping(VmStateReportTracker tracker) {
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 1L, new HashMap<String, HostVmStateReportEntry>(report));
+        tracker.track(ping);
+        return ping;
+    }
+
+    private long checksum() {
+        long checksum = 0;
+        for (Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+            checksum += PingRoutingCommand.getVmStateChecksum(entry.getKey(), entry.getValue().getState());
+        }
+        return checksum;
+    }
+
+    @Test
+    public void firstPingCarriesFullReport() {
+        VmStateReportTracker tracker = new VmStateReportTracker(10);
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+
+        PingRoutingCommand ping = ping(tracker);
+        Assert.assertFalse(ping.isVmStateDelta());
+        Assert.assertEquals(1, ping.getHostVmStateReport().size());
+        Assert.assertEquals(1L, ping.getVmStateSequence());
+        Assert.assertEquals(checksum(), ping.getVmStateChecksum());
+    }
+
+    @Test
+    public void deltaCarriesChangedAndRemovedVms() {
+        VmStateReportTracker tracker = new VmStateReportTracker(10);
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        report.put("i-2-4-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        report.put("i-2-5-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        PingRoutingCommand first = ping(tracker);
+        tracker.setDeltaAccepted(true);
+
+        report.remove("i-2-4-VM");
+        report.put("i-2-5-VM", new HostVmStateReportEntry(PowerState.PowerOff, "host"));
+        report.put("i-2-6-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        PingRoutingCommand ping = ping(tracker);
+
+        Assert.assertTrue(ping.isVmStateDelta());
+        Assert.assertEquals(first.getVmStateEpoch(), ping.getVmStateEpoch());
+        Assert.assertEquals(first.getVmStateSequence() + 1, ping.getVmStateSequence());
+        Assert.assertEquals(2, ping.getHostVmStateReport().size());
+        Assert.assertEquals(PowerState.PowerOff, ping.getHostVmStateReport().get("i-2-5-VM").getState());
+        Assert.assertTrue(ping.getHostVmStateReport().containsKey("i-2-6-VM"));
+        Assert.assertEquals(Collections.singletonList("i-2-4-VM"), ping.getRemovedVms());
+        Assert.assertEquals(checksum(), ping.getVmStateChecksum());
+    }
+
+    @Test
+    public void fullReportWhenDeltaNotAccepted() {
+        VmStateReportTracker tracker = new VmStateReportTracker(10);
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        ping(tracker);
+
+        Assert.assertFalse(ping(tracker).isVmStateDelta());
+        tracker.setDeltaAccepted(true);
+        Assert.assertTrue(ping(tracker).isVmStateDelta());
+        tracker.setDeltaAccepted(false);
+        Assert.assertFalse(ping(tracker).isVmStateDelta());
+    }
+
+    @Test
+    public void periodicFullReport() {
+        VmStateReportTracker tracker = new VmStateReportTracker(3);
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        ping(tracker);
+        tracker.setDeltaAccepted(true);
+
+        Assert.assertTrue(ping(tracker).isVmStateDelta());
+        Assert.assertTrue(ping(tracker).isVmStateDelta());
+        PingRoutingCommand full = ping(tracker);
+        Assert.assertFalse(full.isVmStateDelta());
+        Assert.assertEquals(1, full.getHostVmStateReport().size());
+        Assert.assertTrue(ping(tracker).isVmStateDelta());
+    }
+
+    @Test
+    public void resetStartsNewEpoch() {
+        VmStateReportTracker tracker = new VmStateReportTracker(10);
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        PingRoutingCommand first = ping(tracker);
+        tracker.setDeltaAccepted(true);
+
+        tracker.reset();
+        PingRoutingCommand ping = ping(tracker);
+        Assert.assertFalse(ping.isVmStateDelta());
+        Assert.assertEquals(1L, ping.getVmStateSequence());
+        Assert.assertNotEquals(first.getVmStateEpoch(), ping.getVmStateEpoch());
+    }
+}
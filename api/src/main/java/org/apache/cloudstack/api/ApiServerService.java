@@ -16,6 +16,8 @@
 // under the License.
 package org.apache.cloudstack.api;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.util.Map;
 
@@ -24,6 +26,13 @@ import javax.servlet.http.HttpSession;
 import com.cloud.exception.CloudAuthenticationException;
 
 public interface ApiServerService {
+    /**
+     * Opens the output the response of a synchronous command is streamed to.
+     */
+    public interface ResponseOutput {
+        Writer open() throws IOException;
+    }
+
     public boolean verifyRequest(Map<String, Object[]> requestParameters, Long userId, InetAddress remoteAddress) throws ServerApiException;
 
     public Long fetchDomainId(String domainUUID);
@@ -41,6 +50,12 @@ public interface ApiServerService {
 
     public String handleRequest(Map<String, Object[]> params, String responseType, StringBuilder auditTrailSb) throws ServerApiException;
 
+    /**
+     * Same as handleRequest() but the response of a synchronous command is written to
+     * output while it is being serialized, in which case null is returned.
+     */
+    public String handleRequest(Map<String, Object[]> params, String responseType, StringBuilder auditTrailSb, ResponseOutput output) throws ServerApiException;
+
     public Class<?> getCmdClass(String cmdName);
 
     public boolean isValidApiName(String apiName);
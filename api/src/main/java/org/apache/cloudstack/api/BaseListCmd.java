@@ -117,6 +117,31 @@ public abstract class BaseListCmd extends BaseCmd implements IBaseListCmd {
         return startIndex;
     }
 
+    /**
+     * List commands that can page by keyset override this and expose the
+     * nextpagetoken parameter through getNextPageToken().
+     */
+    public boolean supportsKeysetPagination() {
+        return false;
+    }
+
+    public String getNextPageToken() {
+        return null;
+    }
+
+    /**
+     * @return true if the caller asked for keyset pagination, either by passing
+     * nextpagetoken or by passing pagesize without page.  Keyset pages are
+     * returned without the total count, their count is the number of items
+     * in the page.
+     */
+    public boolean isKeysetPagination() {
+        if (!supportsKeysetPagination()) {
+            return false;
+        }
+        return getNextPageToken() != null || (page == null && pageSize != null && pageSize.longValue() != s_pageSizeUnlimited);
+    }
+
     @Override
     public ApiCommandJobType getInstanceType() {
         return ApiCommandJobType.None;
@@ -132,9 +157,19 @@ public abstract class BaseListCmd extends BaseCmd implements IBaseListCmd {
             pageSize = Long.valueOf((String)pageSizeObj);
         }
 
+        if (params.get(ApiConstants.NEXT_PAGE_TOKEN) != null) {
+            if (!supportsKeysetPagination()) {
+                throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"nextpagetoken\" parameter is not supported by this API");
+            }
+            if (params.get(ApiConstants.PAGE) != null) {
+                throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter can't be specified together with \"nextpagetoken\"");
+            }
+        }
+
         if (params.get(ApiConstants.PAGE) == null &&
                 pageSize != null &&
-                !pageSize.equals(BaseListCmd.s_pageSizeUnlimited)) {
+                !pageSize.equals(BaseListCmd.s_pageSizeUnlimited) &&
+                !supportsKeysetPagination()) {
             final ServerApiException ex = new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter is required when \"pagesize\" is specified");
             ex.setCSErrorCode(CSExceptionErrorCode.getCSErrCode(ex.getClass().getName()));
             throw ex;
@@ -0,0 +1,97 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * PageToken is the opaque cursor handed out by list APIs that support keyset
+ * pagination.  It carries the id of the last row of the previous page so the
+ * next page can be fetched with a "id > last" condition instead of an OFFSET
+ * scan.  The id is encrypted with a key shared by the management servers and
+ * authenticated along with the name of the API, so the token neither discloses
+ * the internal id nor can be forged or replayed against another API.
+ */
+public final class PageToken {
+    private static final byte VERSION = 2;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int TOKEN_LENGTH = 1 + IV_LENGTH + Long.BYTES + TAG_LENGTH;
+    private static final SecureRandom s_random = new SecureRandom();
+
+    private PageToken() {
+    }
+
+    /**
+     * @param api name of the API the token is issued by, only that API accepts it back.
+     * @param key secret of the management servers the token is encrypted with.
+     */
+    public static String encode(final long lastId, final String api, final String key) {
+        final byte[] iv = new byte[IV_LENGTH];
+        s_random.nextBytes(iv);
+        try {
+            final Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, getKey(key), new GCMParameterSpec(TAG_LENGTH * 8, iv));
+            cipher.updateAAD(api.getBytes(StandardCharsets.UTF_8));
+            final byte[] encrypted = cipher.doFinal(ByteBuffer.allocate(Long.BYTES).putLong(lastId).array());
+            final byte[] token = ByteBuffer.allocate(1 + IV_LENGTH + encrypted.length).put(VERSION).put(iv).put(encrypted).array();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+        } catch (final GeneralSecurityException e) {
+            throw new CloudRuntimeException("Unable to issue a page token", e);
+        }
+    }
+
+    /**
+     * @return the id of the last row of the previous page.
+     * @throws InvalidParameterValueException if the token was not issued by encode() for the API with the key.
+     */
+    public static long decode(final String token, final String api, final String key) {
+        try {
+            final byte[] decoded = Base64.getUrlDecoder().decode(token);
+            if (decoded.length == TOKEN_LENGTH && decoded[0] == VERSION) {
+                final Cipher cipher = Cipher.getInstance(CIPHER);
+                cipher.init(Cipher.DECRYPT_MODE, getKey(key), new GCMParameterSpec(TAG_LENGTH * 8, decoded, 1, IV_LENGTH));
+                cipher.updateAAD(api.getBytes(StandardCharsets.UTF_8));
+                final long lastId = ByteBuffer.wrap(cipher.doFinal(decoded, 1 + IV_LENGTH, decoded.length - 1 - IV_LENGTH)).getLong();
+                if (lastId >= 0) {
+                    return lastId;
+                }
+            }
+        } catch (final IllegalArgumentException | GeneralSecurityException e) {
+            // falls through to the error below, a token altered or issued with another key or API included
+        }
+        throw new InvalidParameterValueException("Invalid value provided for API arg: " + ApiConstants.NEXT_PAGE_TOKEN);
+    }
+
+    private static SecretKeySpec getKey(final String key) throws GeneralSecurityException {
+        final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(digest, "AES");
+    }
+}
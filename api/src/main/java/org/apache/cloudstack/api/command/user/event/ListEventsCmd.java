@@ -68,6 +68,10 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
     @Parameter(name = ApiConstants.START_ID, type = CommandType.UUID, entityType = EventResponse.class, description = "the parent/start ID of the event, when provided this will list all the events with the start/parent ID including the parent event")
     private Long startId;
 
+    @Parameter(name = ApiConstants.NEXT_PAGE_TOKEN, type = CommandType.STRING, description = "the token returned by the previous page of a keyset listing. "
+            + "Keyset listing is started by passing pagesize without page, the count of the pages is then the number of items in the page, not the total count", since = "4.15.0")
+    private String nextPageToken;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -104,6 +108,16 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
         return startId;
     }
 
+    @Override
+    public boolean supportsKeysetPagination() {
+        return true;
+    }
+
+    @Override
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
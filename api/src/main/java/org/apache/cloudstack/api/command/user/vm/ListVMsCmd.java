@@ -134,6 +134,10 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd implements UserCmd {
     @Parameter(name = ApiConstants.USER_ID, type = CommandType.UUID, entityType = UserResponse.class, required = false, description = "the user ID that created the VM and is under the account that owns the VM")
     private Long userId;
 
+    @Parameter(name = ApiConstants.NEXT_PAGE_TOKEN, type = CommandType.STRING, description = "the token returned by the previous page of a keyset listing. "
+            + "Keyset listing is started by passing pagesize without page, the count of the pages is then the number of items in the page, not the total count", since = "4.15.0")
+    private String nextPageToken;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -237,6 +241,16 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd implements UserCmd {
         }
         return super.getDisplay();
     }
+    @Override
+    public boolean supportsKeysetPagination() {
+        return true;
+    }
+
+    @Override
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
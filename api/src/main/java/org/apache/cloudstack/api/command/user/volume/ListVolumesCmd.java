@@ -92,6 +92,10 @@ public class ListVolumesCmd extends BaseListTaggedResourcesCmd implements UserCm
     @Parameter(name = ApiConstants.STATE, type = CommandType.STRING, description = "state of the volume. Possible values are: Ready, Allocated, Destroy, Expunging, Expunged.")
     private String state;
 
+    @Parameter(name = ApiConstants.NEXT_PAGE_TOKEN, type = CommandType.STRING, description = "the token returned by the previous page of a keyset listing. "
+            + "Keyset listing is started by passing pagesize without page, the count of the pages is then the number of items in the page, not the total count", since = "4.15.0")
+    private String nextPageToken;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -147,6 +151,16 @@ public class ListVolumesCmd extends BaseListTaggedResourcesCmd implements UserCm
     public String getState() {
         return state;
     }
+    @Override
+    public boolean supportsKeysetPagination() {
+        return true;
+    }
+
+    @Override
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
@@ -24,6 +24,7 @@ import org.apache.cloudstack.api.ResponseObject;
 public class ListResponse<T extends ResponseObject> extends BaseResponse {
     List<T> responses;
     private transient Integer count;
+    private transient String nextPageToken;
 
     public List<T> getResponses() {
         return responses;
@@ -38,6 +39,23 @@ public class ListResponse<T extends ResponseObject> extends BaseResponse {
         this.count = count;
     }
 
+    /**
+     * Sets the responses of a keyset page, nextPageToken is null on the last page.
+     */
+    public void setResponses(List<T> responses, String nextPageToken) {
+        this.responses = responses;
+        this.nextPageToken = nextPageToken;
+    }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    /**
+     * @return the total count of the items listed, or the number of items of
+     * the page if it was not set, as for keyset pages which are returned
+     * without the total count.
+     */
     public Integer getCount() {
         if (count != null) {
             return count;
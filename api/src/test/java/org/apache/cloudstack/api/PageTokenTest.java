@@ -0,0 +1,76 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.exception.InvalidParameterValueException;
+
+public class PageTokenTest {
+    private static final String API = "listvirtualmachinesresponse";
+    private static final String KEY = "hash key";
+
+    @Test
+    public void testRoundTrip() {
+        Assert.assertEquals(0L, PageToken.decode(PageToken.encode(0L, API, KEY), API, KEY));
+        Assert.assertEquals(12345L, PageToken.decode(PageToken.encode(12345L, API, KEY), API, KEY));
+        Assert.assertEquals(Long.MAX_VALUE, PageToken.decode(PageToken.encode(Long.MAX_VALUE, API, KEY), API, KEY));
+    }
+
+    @Test
+    public void testTokenIsOpaque() {
+        final String token = PageToken.encode(12345L, API, KEY);
+        Assert.assertFalse(token.contains("12345"));
+        Assert.assertFalse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.ISO_8859_1).contains("12345"));
+    }
+
+    @Test(expected = InvalidParameterValueException.class)
+    public void testDecodeGarbage() {
+        PageToken.decode("not a token", API, KEY);
+    }
+
+    @Test(expected = InvalidParameterValueException.class)
+    public void testDecodeNegativeId() {
+        PageToken.decode(PageToken.encode(-1L, API, KEY), API, KEY);
+    }
+
+    @Test(expected = InvalidParameterValueException.class)
+    public void testDecodeAlteredToken() {
+        final byte[] token = Base64.getUrlDecoder().decode(PageToken.encode(12345L, API, KEY));
+        token[token.length - 20] ^= 1;
+        PageToken.decode(Base64.getUrlEncoder().withoutPadding().encodeToString(token), API, KEY);
+    }
+
+    @Test(expected = InvalidParameterValueException.class)
+    public void testDecodeWithAnotherKey() {
+        PageToken.decode(PageToken.encode(12345L, API, KEY), API, "another key");
+    }
+
+    @Test(expected = InvalidParameterValueException.class)
+    public void testDecodeForAnotherApi() {
+        PageToken.decode(PageToken.encode(12345L, API, KEY), "listvolumesresponse", KEY);
+    }
+
+    @Test(expected = InvalidParameterValueException.class)
+    public void testDecodeFirstVersionToken() {
+        PageToken.decode(Base64.getUrlEncoder().withoutPadding().encodeToString("1:12345".getBytes(StandardCharsets.UTF_8)), API, KEY);
+    }
+}
@@ -31,4 +31,10 @@ public interface IAgentControl {
     AgentControlAnswer sendRequest(AgentControlCommand cmd, int timeoutInMilliseconds) throws AgentControlChannelException;
 
     void postRequest(AgentControlCommand cmd) throws AgentControlChannelException;
+
+    /**
+     * Has the agent send a ping now instead of at the next ping interval,
+     * for the management server to learn about a change of the vm states.
+     */
+    void sendPing();
 }
@@ -0,0 +1,54 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Broadcast to MS peers when entities kept in the DAO entity caches have been changed, so that
+ * they drop their cached copies. Changes are batched, entityIds holds the ids of the changed
+ * entities by table and tables the tables of which every cached entity must be dropped.
+ */
+public class InvalidateEntityCacheCommand extends Command {
+    Map<String, List<String>> entityIds;
+    List<String> tables;
+
+    protected InvalidateEntityCacheCommand() {
+    }
+
+    public InvalidateEntityCacheCommand(Map<String, List<String>> entityIds, List<String> tables) {
+        this.entityIds = entityIds;
+        this.tables = tables;
+    }
+
+    public Map<String, List<String>> getEntityIds() {
+        return entityIds;
+    }
+
+    public List<String> getTables() {
+        return tables;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
@@ -21,6 +21,8 @@ package com.cloud.agent.api;
 
 public class PingAnswer extends Answer {
     private PingCommand _command = null;
+    // tells the agent that the management server keeps its VM power state and accepts deltas
+    private boolean _vmStateDeltaAccepted = false;
 
     protected PingAnswer() {
     }
@@ -33,4 +35,12 @@ public class PingAnswer extends Answer {
     public PingCommand getCommand() {
         return _command;
     }
+
+    public boolean isVmStateDeltaAccepted() {
+        return _vmStateDeltaAccepted;
+    }
+
+    public void setVmStateDeltaAccepted(boolean vmStateDeltaAccepted) {
+        _vmStateDeltaAccepted = vmStateDeltaAccepted;
+    }
 }
@@ -19,9 +19,11 @@
 
 package com.cloud.agent.api;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.host.Host;
+import com.cloud.vm.VirtualMachine.PowerState;
 
 public class PingRoutingCommand extends PingCommand {
 
@@ -30,6 +32,14 @@ public class PingRoutingCommand extends PingCommand {
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
 
+    // when set, _hostVmStateReport only carries the VMs whose power state changed since the
+    // previous ping of the same epoch and _removedVms the ones that are gone from the host
+    boolean _vmStateDelta;
+    long _vmStateEpoch;
+    long _vmStateSequence;
+    long _vmStateChecksum;
+    List<String> _removedVms;
+
     protected PingRoutingCommand() {
     }
 
@@ -57,4 +67,55 @@ public class PingRoutingCommand extends PingCommand {
     public void setVnetAccessible(boolean vnetAccessible) {
         _vnetAccessible = vnetAccessible;
     }
+
+    public boolean isVmStateDelta() {
+        return _vmStateDelta;
+    }
+
+    public long getVmStateEpoch() {
+        return _vmStateEpoch;
+    }
+
+    public long getVmStateSequence() {
+        return _vmStateSequence;
+    }
+
+    public long getVmStateChecksum() {
+        return _vmStateChecksum;
+    }
+
+    public List<String> getRemovedVms() {
+        return _removedVms;
+    }
+
+    public void setVmStateFullReport(long epoch, long sequence, long checksum) {
+        _vmStateDelta = false;
+        _vmStateEpoch = epoch;
+        _vmStateSequence = sequence;
+        _vmStateChecksum = checksum;
+        _removedVms = null;
+    }
+
+    public void setVmStateDeltaReport(Map<String, HostVmStateReportEntry> changedVms, List<String> removedVms, long epoch, long sequence, long checksum) {
+        _hostVmStateReport = changedVms;
+        _vmStateDelta = true;
+        _vmStateEpoch = epoch;
+        _vmStateSequence = sequence;
+        _vmStateChecksum = checksum;
+        _removedVms = removedVms;
+    }
+
+    /**
+     * Checksum of a single VM power state, the checksum of a report is the sum over its VMs so that
+     * both the agent and the management server can compute it regardless of the map ordering.
+     */
+    public static long getVmStateChecksum(String vmName, PowerState state) {
+        long h = vmName.hashCode() * 31L + (state == null ? 0 : state.name().hashCode());
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
 }
@@ -0,0 +1,44 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+/*
+ * Sent to the MS peer keeping a lease on a cluster lock another MS is waiting for,
+ * so that it gives the lock up as soon as none of its threads is holding it.
+ */
+public class RevokeLockLeaseCommand extends Command {
+    String lockName;
+
+    protected RevokeLockLeaseCommand() {
+    }
+
+    public RevokeLockLeaseCommand(String lockName) {
+        this.lockName = lockName;
+    }
+
+    public String getLockName() {
+        return lockName;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
@@ -0,0 +1,274 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+
+import com.cloud.agent.api.Command;
+
+/**
+ * BinaryPayloadCodec encodes the commands and answers of a Request in a compact
+ * binary form instead of JSON text. The object mapping is still done by Gson,
+ * so every type adaptor registered in GsonHelper keeps working, only the
+ * text layer is replaced:
+ *   - numbers and booleans are written as tagged varints/doubles instead of text.
+ *   - strings are written as length prefixed UTF-8 without escaping.
+ *   - member names (field names and the class names written by ArrayTypeAdaptor)
+ *     are written once per payload and then referenced by index.
+ *
+ * The payload looks as follows:
+ * 1. Codec version - 1 byte;
+ * 2. Root element, where each element is a 1 byte tag followed by its value.
+ */
+public class BinaryPayloadCodec {
+    protected static final byte CODEC_VERSION = 1;
+
+    protected static final byte TAG_NULL = 0;
+    protected static final byte TAG_FALSE = 1;
+    protected static final byte TAG_TRUE = 2;
+    protected static final byte TAG_LONG = 3;
+    protected static final byte TAG_DOUBLE = 4;
+    protected static final byte TAG_STRING = 5;
+    protected static final byte TAG_DECIMAL = 6;
+    protected static final byte TAG_ARRAY = 7;
+    protected static final byte TAG_OBJECT = 8;
+
+    private final Gson _gson;
+
+    public BinaryPayloadCodec(Gson gson) {
+        _gson = gson;
+    }
+
+    public byte[] encode(Command[] cmds) {
+        final JsonElement tree = _gson.toJsonTree(cmds, cmds.getClass());
+        final Encoder encoder = new Encoder();
+        encoder.out.write(CODEC_VERSION);
+        encoder.writeElement(tree);
+        return encoder.out.toByteArray();
+    }
+
+    public <T extends Command[]> T decode(byte[] data, int offset, int length, Class<T> type) throws JsonParseException {
+        final Decoder decoder = new Decoder(data, offset, offset + length);
+        final byte version = decoder.readByte();
+        if (version != CODEC_VERSION) {
+            throw new JsonParseException("Unsupported binary payload version: " + version);
+        }
+        final JsonElement tree = decoder.readElement();
+        return _gson.fromJson(tree, type);
+    }
+
+    protected static class Encoder {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        final Map<String, Integer> names = new HashMap<String, Integer>();
+
+        void writeElement(JsonElement element) {
+            if (element == null || element.isJsonNull()) {
+                out.write(TAG_NULL);
+            } else if (element.isJsonPrimitive()) {
+                writePrimitive(element.getAsJsonPrimitive());
+            } else if (element.isJsonArray()) {
+                final JsonArray array = element.getAsJsonArray();
+                out.write(TAG_ARRAY);
+                writeVarLong(array.size());
+                for (JsonElement item : array) {
+                    writeElement(item);
+                }
+            } else {
+                final JsonObject object = element.getAsJsonObject();
+                // null members are skipped the same way the JSON writer does it
+                int count = 0;
+                for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                    if (entry.getValue() != null && !entry.getValue().isJsonNull()) {
+                        count++;
+                    }
+                }
+                out.write(TAG_OBJECT);
+                writeVarLong(count);
+                for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                    if (entry.getValue() != null && !entry.getValue().isJsonNull()) {
+                        writeName(entry.getKey());
+                        writeElement(entry.getValue());
+                    }
+                }
+            }
+        }
+
+        void writePrimitive(JsonPrimitive primitive) {
+            if (primitive.isBoolean()) {
+                out.write(primitive.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+            } else if (primitive.isNumber()) {
+                final Number number = primitive.getAsNumber();
+                if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+                    out.write(TAG_LONG);
+                    final long value = number.longValue();
+                    writeVarLong((value << 1) ^ (value >> 63));
+                } else if (number instanceof Double || number instanceof Float) {
+                    out.write(TAG_DOUBLE);
+                    final long bits = Double.doubleToLongBits(number.doubleValue());
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        out.write((int)(bits >>> shift));
+                    }
+                } else {
+                    out.write(TAG_DECIMAL);
+                    writeString(number.toString());
+                }
+            } else {
+                out.write(TAG_STRING);
+                writeString(primitive.getAsString());
+            }
+        }
+
+        void writeName(String name) {
+            final Integer index = names.get(name);
+            if (index != null) {
+                writeVarLong(index + 1);
+            } else {
+                names.put(name, names.size());
+                writeVarLong(0);
+                writeString(name);
+            }
+        }
+
+        void writeString(String value) {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int)value);
+        }
+    }
+
+    protected static class Decoder {
+        final byte[] data;
+        final int limit;
+        int position;
+        final List<String> names = new ArrayList<String>();
+
+        Decoder(byte[] data, int offset, int limit) {
+            this.data = data;
+            this.position = offset;
+            this.limit = limit;
+        }
+
+        JsonElement readElement() {
+            final byte tag = readByte();
+            switch (tag) {
+            case TAG_NULL:
+                return new JsonNull();
+            case TAG_FALSE:
+                return new JsonPrimitive(Boolean.FALSE);
+            case TAG_TRUE:
+                return new JsonPrimitive(Boolean.TRUE);
+            case TAG_LONG:
+                final long zigzag = readVarLong();
+                return new JsonPrimitive((zigzag >>> 1) ^ -(zigzag & 1));
+            case TAG_DOUBLE:
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (readByte() & 0xFF);
+                }
+                return new JsonPrimitive(Double.longBitsToDouble(bits));
+            case TAG_STRING:
+                return new JsonPrimitive(readString());
+            case TAG_DECIMAL:
+                return new JsonPrimitive(new BigDecimal(readString()));
+            case TAG_ARRAY:
+                final long size = readVarLong();
+                final JsonArray array = new JsonArray();
+                for (long i = 0; i < size; i++) {
+                    array.add(readElement());
+                }
+                return array;
+            case TAG_OBJECT:
+                final long members = readVarLong();
+                final JsonObject object = new JsonObject();
+                for (long i = 0; i < members; i++) {
+                    final String name = readName();
+                    object.add(name, readElement());
+                }
+                return object;
+            default:
+                throw new JsonParseException("Unknown tag " + tag + " at position " + (position - 1));
+            }
+        }
+
+        String readName() {
+            final long index = readVarLong();
+            if (index == 0) {
+                final String name = readString();
+                names.add(name);
+                return name;
+            }
+            if (index > names.size()) {
+                throw new JsonParseException("Unknown name reference " + index + " at position " + position);
+            }
+            return names.get((int)index - 1);
+        }
+
+        String readString() {
+            final int length = (int)readVarLong();
+            if (length < 0 || position + length > limit) {
+                throw new JsonParseException("Truncated binary payload at position " + position);
+            }
+            final String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = readByte();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new JsonParseException("Malformed varint at position " + position);
+        }
+
+        byte readByte() {
+            if (position >= limit) {
+                throw new JsonParseException("Truncated binary payload at position " + position);
+            }
+            return data[position++];
+        }
+    }
+}
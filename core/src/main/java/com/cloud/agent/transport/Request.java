@@ -74,6 +74,11 @@ import com.cloud.utils.exception.CloudRuntimeException;
  * 6. AgentId - 8 bytes;
  * 7. Data Package.
  *
+ * Starting with v4 the data package is encoded by BinaryPayloadCodec instead
+ * of being JSON text. A peer advertises that it can decode v4 by setting
+ * FLAG_BINARY_CODEC on what it sends, so each side only switches to v4 after
+ * it has seen that flag from the other end of the link.
+ *
  */
 public class Request {
     private static final Logger s_logger = Logger.getLogger(Request.class);
@@ -81,11 +86,15 @@ public class Request {
     protected static final Gson s_gson = GsonHelper.getGson();
     protected static final Gson s_gogger = GsonHelper.getGsonLogger();
     protected static final Logger s_gsonLogger = GsonHelper.getLogger();
+    protected static final BinaryPayloadCodec s_binaryCodec = new BinaryPayloadCodec(s_gson);
+
+    private static volatile boolean s_binaryCodecEnabled = true;
 
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // Binary encoded data package, see BinaryPayloadCodec.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -104,6 +113,7 @@ public class Request {
     protected static final short FLAG_FROM_SERVER = 0x20;
     protected static final short FLAG_CONTROL = 0x40;
     protected static final short FLAG_COMPRESSED = 0x80;
+    protected static final short FLAG_BINARY_CODEC = 0x100;
 
     protected Version _ver;
     protected long _session;
@@ -114,6 +124,7 @@ public class Request {
     protected long _agentId;
     protected Command[] _cmds;
     protected String _content;
+    protected byte[] _binaryContent;
     protected String _agentName;
 
     protected Request() {
@@ -139,6 +150,11 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final byte[] binaryContent) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _binaryContent = binaryContent;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] {command}, true, fromServer);
     }
@@ -219,6 +235,40 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Changes the wire format used by toBytes(), the commands are decoded
+     * first if they were only available in the previous format.
+     */
+    public void setVersion(Version ver) {
+        if (ver == _ver) {
+            return;
+        }
+        if (_cmds == null) {
+            _cmds = deserialize(this instanceof Response ? Answer[].class : Command[].class);
+        }
+        _content = null;
+        _binaryContent = null;
+        _ver = ver;
+    }
+
+    /**
+     * @return true if the sender of this request is able to decode v4 (binary) data packages.
+     */
+    public boolean isBinaryCodecSupported() {
+        return (_flags & FLAG_BINARY_CODEC) > 0;
+    }
+
+    /**
+     * Controls whether this process advertises support for v4 data packages to its peers.
+     */
+    public static void setBinaryCodecEnabled(boolean enabled) {
+        s_binaryCodecEnabled = enabled;
+    }
+
+    public static boolean isBinaryCodecEnabled() {
+        return s_binaryCodecEnabled;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -245,7 +295,13 @@ public class Request {
     }
 
     public Command[] getCommands() {
-        if (_cmds == null) {
+        if (_cmds == null && _binaryContent != null) {
+            try {
+                _cmds = s_binaryCodec.decode(_binaryContent, 0, _binaryContent.length, Command[].class);
+            } catch (JsonParseException e) {
+                _cmds = new Command[] { new BadCommand() };
+            }
+        } else if (_cmds == null) {
             try {
                 StringReader reader = new StringReader(_content);
                 JsonReader jsonReader = new JsonReader(reader);
@@ -261,13 +317,20 @@ public class Request {
         return _cmds;
     }
 
+    protected Command[] deserialize(Class<? extends Command[]> type) {
+        if (_binaryContent != null) {
+            return s_binaryCodec.decode(_binaryContent, 0, _binaryContent.length, type);
+        }
+        return s_gson.fromJson(_content, type);
+    }
+
     protected String getType() {
         return "Cmd ";
     }
 
-    protected ByteBuffer serializeHeader(final int contentSize) {
+    protected ByteBuffer serializeHeader(final Version ver, final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
-        buffer.put(getVersionInByte());
+        buffer.put((byte)ver.ordinal());
         buffer.put((byte)0);
         buffer.putShort(getFlags());
         buffer.putLong(_seq);
@@ -327,13 +390,29 @@ public class Request {
     }
 
     public ByteBuffer[] toBytes() {
+        return toBytes(_ver);
+    }
+
+    /**
+     * Serializes the request in the given wire format without changing the version of the
+     * request itself, so that a request shared by retries and forwarding keeps its own format.
+     */
+    public ByteBuffer[] toBytes(final Version ver) {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
 
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        if (ver == Version.v4) {
+            if (_binaryContent == null) {
+                _binaryContent = s_binaryCodec.encode(getCommandsToEncode());
+            }
+            tmp = ByteBuffer.wrap(_binaryContent);
+        } else {
+            if (_content == null) {
+                final Command[] cmds = getCommandsToEncode();
+                _content = s_gson.toJson(cmds, cmds.getClass());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
         int capacity = tmp.capacity();
         /* Check if we need to compress the data */
         if (capacity >= 8192) {
@@ -341,11 +420,18 @@ public class Request {
             _flags |= FLAG_COMPRESSED;
         }
         buffers[1] = tmp;
-        buffers[0] = serializeHeader(capacity);
+        buffers[0] = serializeHeader(ver, capacity);
 
         return buffers;
     }
 
+    private Command[] getCommandsToEncode() {
+        if (_cmds == null) {
+            _cmds = deserialize(this instanceof Response ? Answer[].class : Command[].class);
+        }
+        return _cmds;
+    }
+
     public byte[] getBytes() {
         final ByteBuffer[] buffers = toBytes();
         final int len1 = buffers[0].remaining();
@@ -361,7 +447,8 @@ public class Request {
     }
 
     protected short getFlags() {
-        return (short)(((this instanceof Response) ? FLAG_RESPONSE : FLAG_REQUEST) | _flags);
+        final short flags = (short)(((this instanceof Response) ? FLAG_RESPONSE : FLAG_REQUEST) | _flags);
+        return (short)(s_binaryCodecEnabled ? flags | FLAG_BINARY_CODEC : flags & ~FLAG_BINARY_CODEC);
     }
 
     public void logD(String msg) {
@@ -401,7 +488,7 @@ public class Request {
         if (logContent) {
             if (_cmds == null) {
                 try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                    _cmds = deserialize(this instanceof Response ? Answer[].class : Command[].class);
                 } catch (RuntimeException e) {
                     s_logger.error("Unable to deserialize from json: " + _content);
                     throw e;
@@ -424,7 +511,7 @@ public class Request {
             }
         } else {
             if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                _cmds = deserialize(this instanceof Response ? Answer[].class : Command[].class);
             }
             content.append("{ ");
             for (Command cmd : _cmds) {
@@ -491,7 +578,7 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
         buff.get();
@@ -505,7 +592,7 @@ public class Request {
         final long agentId = buff.getLong();
 
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
@@ -526,6 +613,16 @@ public class Request {
             offset = 0;
         }
 
+        if (version == Version.v4) {
+            final byte[] binaryContent = new byte[command.length - offset];
+            System.arraycopy(command, offset, binaryContent, 0, binaryContent.length);
+            if (isRequest) {
+                return new Request(version, seq, agentId, mgmtId, via, flags, binaryContent);
+            } else {
+                return new Response(version, seq, agentId, mgmtId, via, flags, binaryContent);
+            }
+        }
+
         final String content = new String(command, offset, command.length - offset);
 
         if (isRequest) {
@@ -583,6 +680,10 @@ public class Request {
         return (bytes[3] & FLAG_CONTROL) > 0;
     }
 
+    public static boolean isBinaryCodecSupported(final byte[] bytes) {
+        return (bytes[2] & (FLAG_BINARY_CODEC >> 8)) > 0;
+    }
+
     public static class NwGroupsCommandTypeAdaptor implements JsonDeserializer<Pair<Long, Long>>, JsonSerializer<Pair<Long, Long>> {
 
         public NwGroupsCommandTypeAdaptor() {
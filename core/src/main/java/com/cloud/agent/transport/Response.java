@@ -51,6 +51,10 @@ public class Response extends Request {
         super(ver, seq, agentId, mgmtId, via, flags, ans);
     }
 
+    protected Response(Version ver, long seq, long agentId, long mgmtId, long via, short flags, byte[] ans) {
+        super(ver, seq, agentId, mgmtId, via, flags, ans);
+    }
+
     public Answer getAnswer() {
         Answer[] answers = getAnswers();
         return answers[0];
@@ -58,7 +62,7 @@ public class Response extends Request {
 
     public Answer[] getAnswers() {
         if (_cmds == null) {
-            _cmds = s_gson.fromJson(_content, Answer[].class);
+            _cmds = deserialize(Answer[].class);
         }
         return (Answer[])_cmds;
     }
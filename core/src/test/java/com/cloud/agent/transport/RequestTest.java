@@ -20,6 +20,7 @@
 package com.cloud.agent.transport;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import junit.framework.TestCase;
 
 import org.apache.log4j.Level;
@@ -137,6 +138,62 @@ public class RequestTest extends TestCase {
         compareRequest(cresp, sresp);
     }
 
+    public void testBinarySerDeser() throws Exception {
+        s_logger.info("Testing serializing and deserializing with the binary codec works as expected");
+
+        SecStorageFirewallCfgCommand cmd1 = new SecStorageFirewallCfgCommand();
+        cmd1.addPortConfig("abc", "24", true, "eth0");
+        cmd1.addPortConfig("127.0.0.1", "44", false, "eth1");
+        GetHostStatsCommand cmd2 = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request sreq = new Request(2, 3, new Command[] {cmd1, cmd2}, true, true);
+        sreq.setSequence(892403719);
+        int jsonLength = sreq.getBytes().length;
+
+        sreq.setVersion(Version.v4);
+        byte[] bytes = sreq.getBytes();
+
+        assertTrue(bytes.length < jsonLength);
+        assertEquals(Version.v4, Request.getVersion(bytes));
+        assertTrue(Request.isBinaryCodecSupported(bytes));
+        assertEquals(892403719, Request.getSequence(bytes));
+        assertEquals(2, Request.getViaAgentId(bytes));
+
+        Request creq = Request.parse(bytes);
+        compareRequest(creq, sreq);
+        assertTrue(creq.isBinaryCodecSupported());
+        assertEquals(2, ((SecStorageFirewallCfgCommand)creq.getCommands()[0]).getPortConfigs().size());
+        assertEquals("hostguid", ((GetHostStatsCommand)creq.getCommands()[1]).getHostGuid());
+        assertEquals(101, ((GetHostStatsCommand)creq.getCommands()[1]).getHostId());
+
+        Response cresp = new Response(creq, new Answer(cmd2, true, "No Problem"));
+        Response sresp = Response.parse(cresp.getBytes());
+
+        compareRequest(cresp, sresp);
+        assertEquals(Version.v4, sresp.getVersion());
+        assertEquals("No Problem", sresp.getAnswer().getDetails());
+    }
+
+    public void testBinaryEncodingKeepsRequestVersion() throws Exception {
+        s_logger.info("Testing encoding a request in the binary format leaves its own version alone");
+
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request sreq = new Request(2, 3, new Command[] {cmd}, true, true);
+        sreq.setSequence(892403720);
+        Version ver = sreq.getVersion();
+        byte[] json = sreq.getBytes();
+
+        ByteBuffer[] buffers = sreq.toBytes(Version.v4);
+        byte[] bytes = new byte[buffers[0].remaining() + buffers[1].remaining()];
+        int len = buffers[0].remaining();
+        buffers[0].get(bytes, 0, len);
+        buffers[1].get(bytes, len, bytes.length - len);
+
+        assertEquals(Version.v4, Request.getVersion(bytes));
+        assertEquals("hostguid", ((GetHostStatsCommand)Request.parse(bytes).getCommands()[0]).getHostGuid());
+        assertEquals(ver, sreq.getVersion());
+        assertTrue(Arrays.equals(json, sreq.getBytes()));
+    }
+
     public void testSerDeserTO() {
         s_logger.info("Testing serializing and deserializing interface TO works as expected");
 
@@ -16,7 +16,9 @@
 // under the License.
 package com.cloud.agent;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.apache.cloudstack.framework.config.ConfigKey;
 
@@ -101,6 +103,33 @@ public interface AgentManager {
      */
     long send(Long hostId, Commands cmds, Listener listener) throws AgentUnavailableException;
 
+    /**
+     * Pipelined sending of a command to the agent.  Independent commands sent to the same agent within
+     * a short latency budget are coalesced into a single request that does not stop on error.
+     *
+     * @param hostId
+     *            id of the agent on the host.
+     * @param cmd
+     *            command to send.
+     * @return the answer of the command, getting it throws an ExecutionException caused by an
+     *         AgentUnavailableException or an OperationTimedoutException if the request carrying
+     *         the command did not complete.
+     */
+    Future<Answer> sendPipelined(Long hostId, Command cmd) throws AgentUnavailableException;
+
+    /**
+     * Pipelined sending of several commands to the agent, coalesced with the commands sent to it by others but
+     * kept together and in order in the same request.  The request does not stop on error, so the commands
+     * must not rely on the previous ones having succeeded.
+     *
+     * @param hostId
+     *            id of the agent on the host.
+     * @param cmds
+     *            commands to send.
+     * @return the answers of the commands in the same order, see sendPipelined(Long, Command).
+     */
+    List<Future<Answer>> sendPipelined(Long hostId, Commands cmds) throws AgentUnavailableException;
+
     /**
      * Register to listen for host events. These are mostly connection and disconnection events.
      *
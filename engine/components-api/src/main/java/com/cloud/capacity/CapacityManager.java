@@ -16,11 +16,15 @@
 // under the License.
 package com.cloud.capacity;
 
+import java.util.List;
+import java.util.Map;
+
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
 import com.cloud.host.Host;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.utils.Pair;
 import com.cloud.vm.VirtualMachine;
 
 /**
@@ -83,6 +87,14 @@ public interface CapacityManager {
                     true,
                     ConfigKey.Scope.ImageStore,
                     null);
+    static final ConfigKey<Integer> HostCapacityIndexRefreshInterval =
+            new ConfigKey<Integer>(
+                    "Advanced",
+                    Integer.class,
+                    "host.capacity.index.refresh.interval",
+                    "60",
+                    "Interval in seconds after which the in-memory host capacity of a zone, used by the planners to find clusters and pods with enough capacity, is reloaded from the database. 0 disables it and the planners query the database instead",
+                    true);
 
     public boolean releaseVmCapacity(VirtualMachine vm, boolean moveFromReserved, boolean moveToReservered, Long hostId);
 
@@ -136,4 +148,19 @@ public interface CapacityManager {
     long getUsedBytes(StoragePoolVO pool);
 
     long getUsedIops(StoragePoolVO pool);
+
+    /**
+     * Orders the clusters of a zone or pod by aggregate capacity from the in-memory host capacity, which may lag behind
+     * op_host_capacity: it is only meant to order the clusters found to have enough capacity in the database
+     * @param id the zone or pod id
+     * @param capacityTypeForOrdering Capacity.CAPACITY_TYPE_CPU or Capacity.CAPACITY_TYPE_MEMORY
+     * @return the ordered clusters and the aggregate capacity of each cluster, or null if the in-memory host capacity is not enabled
+     */
+    Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityTypeForOrdering, boolean isZone);
+
+    /**
+     * Orders the pods of a zone by aggregate capacity from the in-memory host capacity
+     * @return the ordered pods and the aggregate capacity of each pod, or null if the in-memory host capacity is not enabled
+     */
+    Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityTypeForOrdering);
 }
@@ -38,6 +38,12 @@ public interface HighAvailabilityManager extends Manager {
     ConfigKey<Integer> HAWorkers = new ConfigKey<>("Advanced", Integer.class, "ha.workers", "5",
         "The number of High-Availability worker threads.", true, Cluster);
 
+    ConfigKey<Integer> HAWorkersPerCluster = new ConfigKey<>("Advanced", Integer.class, "ha.workers.per.cluster", "0",
+        "The number of High-Availability work items processed at the same time for the vms of a cluster, 0 for no limit.", true, Cluster);
+
+    ConfigKey<Integer> InvestigationCacheTtl = new ConfigKey<>("Advanced", Integer.class, "ha.investigation.cache.ttl", "10",
+        "Time in seconds the status a host has been investigated to be in is reused for, 0 to investigate the host every time.", true, Cluster);
+
     ConfigKey<Integer> InvestigateRetryInterval = new ConfigKey<>("Advanced", Integer.class, "investigate.retry.interval",
         "60", "The time (in seconds) between VM pings when the agent is disconnected.", true, Cluster);
 
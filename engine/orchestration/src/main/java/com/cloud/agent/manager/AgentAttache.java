@@ -18,18 +18,17 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.cloud.agent.api.ModifySshKeysCommand;
 import com.cloud.agent.api.ModifyStoragePoolCommand;
@@ -71,46 +70,25 @@ public abstract class AgentAttache {
     private static final Logger s_logger = Logger.getLogger(AgentAttache.class);
 
     private static final ScheduledExecutorService s_listenerExecutor = Executors.newScheduledThreadPool(10, new NamedThreadFactory("ListenerTimer"));
+    // one slot per second, listeners time out within a second of their timeout
+    private static final int TIMEOUT_WHEEL_SIZE = 4096;
+    private static final long TIMEOUT_TICK = 1000;
+    private static final TimeoutWheel<Alarm> s_timeouts = new TimeoutWheel<Alarm>(TIMEOUT_WHEEL_SIZE, TIMEOUT_TICK);
     private static final Random s_rand = new Random(System.currentTimeMillis());
 
-    protected static final Comparator<Request> s_reqComparator = new Comparator<Request>() {
-        @Override
-        public int compare(final Request o1, final Request o2) {
-            long seq1 = o1.getSequence();
-            long seq2 = o2.getSequence();
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
-    protected static final Comparator<Object> s_seqComparator = new Comparator<Object>() {
-        @Override
-        public int compare(final Object o1, final Object o2) {
-            long seq1 = ((Request)o1).getSequence();
-            long seq2 = (Long)o2;
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
     protected final long _id;
     protected String _name = null;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
-    protected final LinkedList<Request> _requests;
-    protected Long _currentSequence;
+    // requests waiting for the current sequence to be answered, ordered by sequence
+    protected final ConcurrentSkipListMap<Long, Request> _requests;
+    protected volatile Long _currentSequence;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
-    protected long _nextSequence;
+    protected final AtomicLong _nextSequence;
+    protected volatile boolean _binaryCodecSupported;
+    protected final ConcurrentHashMap<Long, Long> _sentAt = new ConcurrentHashMap<Long, Long>();
+    protected final RoundTripHistogram _roundTrips = new RoundTripHistogram();
+    protected final CommandPipeline _pipeline;
 
     protected AgentManagerImpl _agentMgr;
 
@@ -123,6 +101,7 @@ public abstract class AgentAttache {
     static {
         Arrays.sort(s_commandsAllowedInMaintenanceMode);
         Arrays.sort(s_commandsNotAllowedInConnectingMode);
+        s_listenerExecutor.scheduleAtFixedRate(new TimeoutTask(), TIMEOUT_TICK, TIMEOUT_TICK, TimeUnit.MILLISECONDS);
     }
 
     protected AgentAttache(final AgentManagerImpl agentMgr, final long id, final String name, final boolean maintenance) {
@@ -131,13 +110,48 @@ public abstract class AgentAttache {
         _waitForList = new ConcurrentHashMap<Long, Listener>();
         _currentSequence = null;
         _maintenance = maintenance;
-        _requests = new LinkedList<Request>();
+        _requests = new ConcurrentSkipListMap<Long, Request>();
         _agentMgr = agentMgr;
-        _nextSequence = new Long(s_rand.nextInt(Short.MAX_VALUE)).longValue() << 48;
+        _nextSequence = new AtomicLong(new Long(s_rand.nextInt(Short.MAX_VALUE)).longValue() << 48);
+        _pipeline = new CommandPipeline(id, new CommandPipeline.Sender() {
+            @Override
+            public long send(final Command[] cmds, final Listener listener) throws AgentUnavailableException {
+                return _agentMgr.send(AgentAttache.this, cmds, listener);
+            }
+        }, s_listenerExecutor);
     }
 
-    public synchronized long getNextSequence() {
-        return ++_nextSequence;
+    public long getNextSequence() {
+        return _nextSequence.incrementAndGet();
+    }
+
+    /**
+     * Records whether the agent has advertised that it can decode binary (v4) requests.
+     */
+    public void setBinaryCodecSupported(final boolean supported) {
+        _binaryCodecSupported = supported;
+    }
+
+    public boolean isBinaryCodecSupported() {
+        return _binaryCodecSupported;
+    }
+
+    /**
+     * @return pipeline coalescing the commands sent to the agent through AgentManager.sendPipelined().
+     */
+    public CommandPipeline getPipeline() {
+        return _pipeline;
+    }
+
+    /**
+     * @return time between sending the requests to the agent and receiving their answers.
+     */
+    public RoundTripHistogram getRoundTripHistogram() {
+        return _roundTrips;
+    }
+
+    protected void markSent(final long seq) {
+        _sentAt.put(seq, System.currentTimeMillis());
     }
 
     public synchronized void setMaintenanceMode(final boolean value) {
@@ -182,10 +196,9 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void addRequest(final Request req) {
-        int index = findRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _requests.add(-index - 1, req);
+    protected void addRequest(final Request req) {
+        final Request previous = _requests.put(req.getSequence(), req);
+        assert (previous == null) : "How can we get the sequence again? " + req.toString();
     }
 
     protected void cancel(final Request req) {
@@ -193,26 +206,16 @@ public abstract class AgentAttache {
         cancel(seq);
     }
 
-    protected synchronized void cancel(final long seq) {
+    protected void cancel(final long seq) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(seq, "Cancelling."));
         }
+        _sentAt.remove(seq);
         final Listener listener = _waitForList.remove(seq);
         if (listener != null) {
             listener.processDisconnect(_id, Status.Disconnected);
         }
-        int index = findRequest(seq);
-        if (index >= 0) {
-            _requests.remove(index);
-        }
-    }
-
-    protected synchronized int findRequest(final Request req) {
-        return Collections.binarySearch(_requests, req, s_reqComparator);
-    }
-
-    protected synchronized int findRequest(final long seq) {
-        return Collections.binarySearch(_requests, seq, s_seqComparator);
+        _requests.remove(seq);
     }
 
     protected String log(final long seq, final String msg) {
@@ -223,10 +226,10 @@ public abstract class AgentAttache {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace(log(seq, "Registering listener"));
         }
+        _waitForList.put(seq, listener);
         if (listener.getTimeout() != -1) {
-            s_listenerExecutor.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS);
+            s_timeouts.schedule(new Alarm(seq), currentTime() + TimeUnit.SECONDS.toMillis(listener.getTimeout()));
         }
-        _waitForList.put(seq, listener);
     }
 
     protected Listener unregisterListener(final long sequence) {
@@ -278,6 +281,11 @@ public abstract class AgentAttache {
 
         final Answer[] answers = resp.getAnswers();
 
+        final Long sentAt = _sentAt.remove(seq);
+        if (sentAt != null) {
+            _roundTrips.record(System.currentTimeMillis() - sentAt);
+        }
+
         boolean processed = false;
 
         try {
@@ -330,8 +338,10 @@ public abstract class AgentAttache {
     }
 
     public void cleanup(final Status state) {
+        _pipeline.cancel(state);
         cancelAllCommands(state, true);
         _requests.clear();
+        _sentAt.clear();
     }
 
     @Override
@@ -358,39 +368,46 @@ public abstract class AgentAttache {
             s_logger.debug(log(seq, "Routed from " + req.getManagementServerId()));
         }
 
-        synchronized (this) {
-            try {
+        try {
+            if (!req.executeInSequence()) {
+                // nothing to be ordered against, so the monitor of the attache is left to the requests in sequence
                 if (isClosed()) {
                     throw new AgentUnavailableException("The link to the agent " + _name + " has been closed", _id);
                 }
+                req.logD("Sending ", true);
+                markSent(seq);
+                send(req);
+                return;
+            }
 
-                if (req.executeInSequence() && _currentSequence != null) {
+            synchronized (this) {
+                if (isClosed()) {
+                    throw new AgentUnavailableException("The link to the agent " + _name + " has been closed", _id);
+                }
+
+                if (_currentSequence != null) {
                     req.logD("Waiting for Seq " + _currentSequence + " Scheduling: ", true);
                     addRequest(req);
                     return;
                 }
 
-                // If we got to here either we're not suppose to set
-                // the _currentSequence or it is null already.
-
                 req.logD("Sending ", true);
+                markSent(seq);
                 send(req);
 
-                if (req.executeInSequence() && _currentSequence == null) {
-                    _currentSequence = seq;
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace(log(seq, " is current sequence"));
-                    }
+                _currentSequence = seq;
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace(log(seq, " is current sequence"));
                 }
-            } catch (AgentUnavailableException e) {
-                s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
-                cancel(seq);
-                throw e;
-            } catch (Exception e) {
-                s_logger.warn(log(seq, "Unable to send due to "), e);
-                cancel(seq);
-                throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
             }
+        } catch (AgentUnavailableException e) {
+            s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
+            cancel(seq);
+            throw e;
+        } catch (Exception e) {
+            s_logger.warn(log(seq, "Unable to send due to "), e);
+            cancel(seq);
+            throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
         }
     }
 
@@ -463,18 +480,19 @@ public abstract class AgentAttache {
 
     protected synchronized void sendNext(final long seq) {
         _currentSequence = null;
-        if (_requests.isEmpty()) {
+        final Map.Entry<Long, Request> next = _requests.pollFirstEntry();
+        if (next == null) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(log(seq, "No more commands found"));
             }
             return;
         }
-
-        Request req = _requests.pop();
+        Request req = next.getValue();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(req.getSequence(), "Sending now.  is current sequence."));
         }
         try {
+            markSent(req.getSequence());
             send(req);
         } catch (AgentUnavailableException e) {
             if (s_logger.isDebugEnabled()) {
@@ -509,6 +527,26 @@ public abstract class AgentAttache {
      */
     protected abstract boolean isClosed();
 
+    protected static long currentTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Runs the alarms of the listeners that have timed out.
+     */
+    protected static class TimeoutTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                for (final Alarm alarm : s_timeouts.expire(currentTime())) {
+                    s_listenerExecutor.execute(alarm);
+                }
+            } catch (Exception e) {
+                s_logger.warn("Exception ", e);
+            }
+        }
+    }
+
     protected class Alarm extends ManagedContextRunnable {
         long _seq;
 
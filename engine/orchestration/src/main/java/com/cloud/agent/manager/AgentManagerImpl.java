@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -34,6 +35,7 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -119,6 +121,7 @@ import com.cloud.utils.nio.Link;
 import com.cloud.utils.nio.NioServer;
 import com.cloud.utils.nio.Task;
 import com.cloud.utils.time.InaccurateClock;
+import com.cloud.vm.VirtualMachinePowerStateSync;
 import com.google.common.base.Strings;
 
 /**
@@ -169,6 +172,9 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     @Inject
     protected IndirectAgentLB indirectAgentLB;
 
+    @Inject
+    protected VirtualMachinePowerStateSync _powerStateSync;
+
     protected int _retry = 2;
 
     protected long _nodeId = -1;
@@ -182,7 +188,9 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     private int _directAgentThreadCap;
 
     protected StateMachine2<Status, Status.Event, Host> _statusStateMachine = Status.getStateMachine();
-    private final ConcurrentHashMap<Long, Long> _pingMap = new ConcurrentHashMap<Long, Long>(10007);
+    // one slot per second, larger than any sensible ping timeout so that deadlines rarely wrap around
+    private static final int PING_WHEEL_SIZE = 1024;
+    private final PingTracker _pingTracker = new PingTracker(PING_WHEEL_SIZE);
 
     @Inject
     ResourceManager _resourceMgr;
@@ -200,6 +208,18 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             "Default size for DirectAgentPool", false);
     protected final ConfigKey<Float> DirectAgentThreadCap = new ConfigKey<Float>("Advanced", Float.class, "direct.agent.thread.cap", "1",
             "Percentage (as a value between 0 and 1) of direct.agent.pool.size to be used as upper thread cap for a single direct agent to process requests", false);
+    protected final ConfigKey<Integer> EventLoops = new ConfigKey<Integer>("Advanced", Integer.class, "agent.nio.event.loops", "4",
+            "Number of selector threads servicing reads and writes of remote agent connections, 0 services them on the accepting thread.", false);
+    protected final ConfigKey<Integer> SslHandshakeWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "agent.ssl.handshake.workers", "50",
+            "Maximum number of SSL handshakes with remote agents running concurrently.", false);
+    protected final ConfigKey<Integer> SslHandshakeQueueSize = new ConfigKey<Integer>("Advanced", Integer.class, "agent.ssl.handshake.queue.size", "1000",
+            "Number of remote agent connections allowed to wait for an SSL handshake worker, further connections are closed and retried by the agents.", false);
+    protected final ConfigKey<Boolean> BinaryCodecEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "agent.binary.codec.enabled", "true",
+            "Use the binary wire format for commands and answers exchanged with agents that support it, instead of JSON.", false);
+    protected final ConfigKey<Integer> PipelineLatencyBudget = new ConfigKey<Integer>("Advanced", Integer.class, "agent.pipeline.latency.budget", "20",
+            "Milliseconds a pipelined command waits for other commands to the same agent to be sent along in one request, 0 sends it right away.", true);
+    protected final ConfigKey<Integer> PipelineMaxBatchSize = new ConfigKey<Integer>("Advanced", Integer.class, "agent.pipeline.max.batch.size", "50",
+            "Maximum number of pipelined commands sent to an agent in one request.", true);
     protected final ConfigKey<Boolean> CheckTxnBeforeSending = new ConfigKey<Boolean>("Developer", Boolean.class, "check.txn.before.sending.agent.commands", "false",
             "This parameter allows developers to enable a check to see if a transaction wraps commands that are sent to the resource.  This is not to be enabled on production systems.", true);
 
@@ -226,8 +246,9 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         // allow core threads to time out even when there are no items in the queue
         _connectExecutor.allowCoreThreadTimeOut(true);
 
-        _connection = new NioServer("AgentManager", Port.value(), Workers.value() + 10, this, caService);
-        s_logger.info("Listening on " + Port.value() + " with " + Workers.value() + " workers");
+        _connection = new NioServer("AgentManager", Port.value(), Workers.value() + 10, EventLoops.value(), SslHandshakeWorkers.value(), SslHandshakeQueueSize.value(),
+                this, caService);
+        s_logger.info("Listening on " + Port.value() + " with " + Workers.value() + " workers and " + EventLoops.value() + " event loops");
 
         // executes all agent commands other than cron and ping
         _directAgentExecutor = new ScheduledThreadPoolExecutor(DirectAgentPoolSize.value(), new NamedThreadFactory("DirectAgent"));
@@ -238,6 +259,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         _monitorExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("AgentMonitor"));
 
+        Request.setBinaryCodecEnabled(BinaryCodecEnabled.value());
+
         return true;
     }
 
@@ -458,6 +481,52 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         return answers;
     }
 
+    @Override
+    public Future<Answer> sendPipelined(final Long hostId, final Command cmd) throws AgentUnavailableException {
+        final AgentAttache agent = getAttache(hostId);
+        if (agent == null || agent.isClosed()) {
+            throw new AgentUnavailableException("agent not logged into this management server", hostId);
+        }
+        tagCommand(cmd);
+        final int timeout = cmd.getWait() > 0 ? cmd.getWait() : Wait.value();
+        return agent.getPipeline().submit(cmd, PipelineLatencyBudget.value(), PipelineMaxBatchSize.value(), timeout);
+    }
+
+    @Override
+    public List<Future<Answer>> sendPipelined(final Long hostId, final Commands commands) throws AgentUnavailableException {
+        final AgentAttache agent = getAttache(hostId);
+        if (agent == null || agent.isClosed()) {
+            throw new AgentUnavailableException("agent not logged into this management server", hostId);
+        }
+        final Command[] cmds = checkForCommandsAndTag(commands);
+        int timeout = 0;
+        for (final Command cmd : cmds) {
+            timeout = Math.max(timeout, cmd.getWait() > 0 ? cmd.getWait() : Wait.value());
+        }
+        return new ArrayList<Future<Answer>>(agent.getPipeline().submit(cmds, PipelineLatencyBudget.value(), PipelineMaxBatchSize.value(), timeout));
+    }
+
+    /**
+     * Sends the commands coalesced by the pipeline of the agent as one request that does not stop on error.
+     */
+    protected long send(final AgentAttache agent, final Command[] cmds, final Listener listener) throws AgentUnavailableException {
+        if (agent.isClosed()) {
+            throw new AgentUnavailableException("Agent " + agent.getId() + " is closed", agent.getId());
+        }
+        final Request req = new Request(agent.getId(), agent.getName(), _nodeId, cmds, false, true);
+        req.setSequence(agent.getNextSequence());
+        agent.send(req, listener);
+        return req.getSequence();
+    }
+
+    /**
+     * @return round trip times of the requests sent to the agent, null if it is not connected to this management server.
+     */
+    public RoundTripHistogram getRoundTripHistogram(final long hostId) {
+        final AgentAttache agent = findAttache(hostId);
+        return agent == null ? null : agent.getRoundTripHistogram();
+    }
+
     protected Status investigate(final AgentAttache agent) {
         final Long hostId = agent.getId();
         final HostVO host = _hostDao.findById(hostId);
@@ -694,17 +763,29 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     public void rescan() {
     }
 
+    protected ServerResource loadResource(final HostVO host) {
+        // load the respective discoverer
+        final Discoverer discoverer = _resourceMgr.getMatchingDiscover(host.getHypervisorType());
+        if (discoverer == null) {
+            s_logger.info("Could not to find a Discoverer to load the resource: " + host.getId() + " for hypervisor type: " + host.getHypervisorType());
+            return loadResourcesWithoutHypervisor(host);
+        }
+        return discoverer.reloadResource(host);
+    }
+
     protected boolean loadDirectlyConnectedHost(final HostVO host, final boolean forRebalance) {
+        return loadDirectlyConnectedHost(host, forRebalance, null);
+    }
+
+    /**
+     * @param loadedResource resource already loaded for the host, null to load it.
+     */
+    protected boolean loadDirectlyConnectedHost(final HostVO host, final boolean forRebalance, final ServerResource loadedResource) {
         boolean initialized = false;
-        ServerResource resource = null;
+        ServerResource resource = loadedResource;
         try {
-            // load the respective discoverer
-            final Discoverer discoverer = _resourceMgr.getMatchingDiscover(host.getHypervisorType());
-            if (discoverer == null) {
-                s_logger.info("Could not to find a Discoverer to load the resource: " + host.getId() + " for hypervisor type: " + host.getHypervisorType());
-                resource = loadResourcesWithoutHypervisor(host);
-            } else {
-                resource = discoverer.reloadResource(host);
+            if (resource == null) {
+                resource = loadResource(host);
             }
 
             if (resource == null) {
@@ -1314,6 +1395,11 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                                 }
                             }
                             answer = new PingAnswer((PingCommand)cmd);
+                            if (cmd instanceof PingRoutingCommand) {
+                                // the VM power state report of this ping has been processed by now, the agent may
+                                // keep sending deltas as long as we hold the state they apply to
+                                ((PingAnswer)answer).setVmStateDeltaAccepted(_powerStateSync.isVmStateDeltaAccepted(cmdHostId));
+                            }
                         } else if (cmd instanceof ReadyAnswer) {
                             final HostVO host = _hostDao.findById(attache.getId());
                             if (host == null) {
@@ -1366,6 +1452,10 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                     final byte[] data = task.getData();
                     try {
                         final Request event = Request.parse(data);
+                        final AgentAttache attache = (AgentAttache)task.getLink().attachment();
+                        if (attache != null && event.isBinaryCodecSupported() != attache.isBinaryCodecSupported()) {
+                            attache.setBinaryCodecSupported(event.isBinaryCodecSupported());
+                        }
                         if (event instanceof Response) {
                             processResponse(task.getLink(), (Response)event);
                         } else {
@@ -1562,29 +1652,67 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     }
 
     public Long getAgentPingTime(final long agentId) {
-        return _pingMap.get(agentId);
+        return _pingTracker.getLastPing(agentId);
     }
 
     public void pingBy(final long agentId) {
-        // Update PingMap with the latest time if agent entry exists in the PingMap
-        if (_pingMap.replace(agentId, InaccurateClock.getTimeInSeconds()) == null) {
-            s_logger.info("PingMap for agent: " + agentId + " will not be updated because agent is no longer in the PingMap");
+        // Update the ping tracker with the latest time if the agent is still tracked
+        if (!_pingTracker.ping(agentId, InaccurateClock.getTimeInSeconds(), mgmtServiceConf.getTimeout())) {
+            s_logger.info("Ping time for agent: " + agentId + " will not be updated because agent is no longer tracked");
+        }
+    }
+
+    /**
+     * Persists last_ping of the agents that pinged with a single update, the value written is the time of
+     * the run so it is at most one ping interval ahead of the actual ping.
+     *
+     * last_ping is read by the scans looking for hosts to take over, with the ping timeout as cutoff. An
+     * agent is therefore only written once its persisted last_ping is older than the ping timeout less one
+     * monitor run, which keeps it within the timeout. With the default ping.interval and ping.timeout that
+     * is every other run of the monitor, so a run updates about half of the agents connected to this
+     * management server in one statement.
+     */
+    protected void persistLastPings() {
+        final long persistInterval = Math.max(mgmtServiceConf.getTimeout() - mgmtServiceConf.getPingInterval(), mgmtServiceConf.getPingInterval());
+        final List<Long> hostIds = _pingTracker.drainPinged(InaccurateClock.getTimeInSeconds(), persistInterval);
+        if (hostIds.isEmpty()) {
+            return;
+        }
+        // status transitions compare last_ping, keep them from interleaving with the update; transitions run by
+        // other management servers are kept out by the row lock HostDao.updateState() holds while comparing
+        _agentStatusLock.lock();
+        try {
+            final int updated = _hostDao.updateLastPinged(hostIds, _nodeId, System.currentTimeMillis() >> 10);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Persisted last ping of " + updated + " out of " + hostIds.size() + " agents");
+            }
+        } finally {
+            _agentStatusLock.unlock();
         }
     }
 
+    /**
+     * Tells the hosts the monitor of this management server takes care of, meant to be used for a single run
+     * of the monitor. Hosts are looked after by the management server they are connected to, in a single
+     * server setup that is all of them.
+     */
+    protected Predicate<HostVO> getHostsMonitoredByThisManagementServer() {
+        return host -> host.getManagementServerId() == null || host.getManagementServerId() == _nodeId;
+    }
+
     protected class MonitorTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
             s_logger.trace("Agent Monitor is started.");
 
             try {
+                persistLastPings();
+
                 final List<Long> behindAgents = findAgentsBehindOnPing();
                 for (final Long agentId : behindAgents) {
-                    final QueryBuilder<HostVO> sc = QueryBuilder.create(HostVO.class);
-                    sc.and(sc.entity().getId(), Op.EQ, agentId);
-                    final HostVO h = sc.find();
-                    if (h != null) {
-                        final ResourceState resourceState = h.getResourceState();
+                    final HostVO host = _hostDao.findById(agentId);
+                    if (host != null) {
+                        final ResourceState resourceState = host.getResourceState();
                         if (resourceState == ResourceState.Disabled || resourceState == ResourceState.Maintenance) {
                             /*
                              * Host is in non-operation state, so no investigation and direct put agent to Disconnected
@@ -1592,9 +1720,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                             s_logger.debug("Ping timeout but agent " + agentId + " is in resource state of " + resourceState + ", so no investigation");
                             disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
                         } else {
-                            final HostVO host = _hostDao.findById(agentId);
-                            if (host != null
-                                    && (host.getType() == Host.Type.ConsoleProxy || host.getType() == Host.Type.SecondaryStorageVM || host.getType() == Host.Type.SecondaryStorageCmdExecutor)) {
+                            if (host.getType() == Host.Type.ConsoleProxy || host.getType() == Host.Type.SecondaryStorageVM || host.getType() == Host.Type.SecondaryStorageCmdExecutor) {
 
                                 s_logger.warn("Disconnect agent for CPVM/SSVM due to physical connection close. host: " + host.getId());
                                 disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
@@ -1612,7 +1738,11 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                         ResourceState.ErrorInPrepareForMaintenance);
                 final List<HostVO> hosts = sc.list();
 
+                final Predicate<HostVO> monitored = hosts.isEmpty() ? null : getHostsMonitoredByThisManagementServer();
                 for (final HostVO host : hosts) {
+                    if (!monitored.test(host)) {
+                        continue;
+                    }
                     if (_resourceMgr.checkAndMaintain(host.getId())) {
                         final DataCenterVO dcVO = _dcDao.findById(host.getDataCenterId());
                         final HostPodVO podVO = _podDao.findById(host.getPodId());
@@ -1629,13 +1759,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         }
 
         protected List<Long> findAgentsBehindOnPing() {
-            final List<Long> agentsBehind = new ArrayList<Long>();
-            final long cutoffTime = InaccurateClock.getTimeInSeconds() - mgmtServiceConf.getTimeout();
-            for (final Map.Entry<Long, Long> entry : _pingMap.entrySet()) {
-                if (entry.getValue() < cutoffTime) {
-                    agentsBehind.add(entry.getKey());
-                }
-            }
+            // agents still behind are reported again on the next run, as long as they do not ping
+            final List<Long> agentsBehind = _pingTracker.expire(InaccurateClock.getTimeInSeconds(), mgmtServiceConf.getPingInterval());
 
             if (agentsBehind.size() > 0) {
                 s_logger.info("Found the following agents behind on ping: " + agentsBehind);
@@ -1683,12 +1808,12 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             }
 
             // NOTE: We don't use pingBy here because we're initiating.
-            _pingMap.put(host.getId(), InaccurateClock.getTimeInSeconds());
+            _pingTracker.track(host.getId(), InaccurateClock.getTimeInSeconds(), mgmtServiceConf.getTimeout());
         }
 
         @Override
         public boolean processDisconnect(final long agentId, final Status state) {
-            _pingMap.remove(agentId);
+            _pingTracker.remove(agentId);
             return true;
         }
 
@@ -1720,7 +1845,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] { CheckTxnBeforeSending, Workers, Port, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize,
-            DirectAgentThreadCap };
+            DirectAgentThreadCap, BinaryCodecEnabled, EventLoops, SslHandshakeWorkers, SslHandshakeQueueSize, PipelineLatencyBudget, PipelineMaxBatchSize };
     }
 
     protected class SetHostParamsListener implements Listener {
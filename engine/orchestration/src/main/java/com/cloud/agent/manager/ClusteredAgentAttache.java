@@ -20,8 +20,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import javax.net.ssl.SSLEngine;
 
@@ -39,7 +39,7 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
     private static ClusteredAgentManagerImpl s_clusteredAgentMgr;
     protected ByteBuffer _buffer = ByteBuffer.allocate(2048);
     private boolean _forward = false;
-    protected final LinkedList<Request> _transferRequests;
+    protected final ConcurrentSkipListMap<Long, Request> _transferRequests;
     protected boolean _transferMode = false;
 
     static public void initialize(final ClusteredAgentManagerImpl agentMgr) {
@@ -49,13 +49,13 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
     public ClusteredAgentAttache(final AgentManagerImpl agentMgr, final long id, final String name) {
         super(agentMgr, id, name, null, false);
         _forward = true;
-        _transferRequests = new LinkedList<Request>();
+        _transferRequests = new ConcurrentSkipListMap<Long, Request>();
     }
 
     public ClusteredAgentAttache(final AgentManagerImpl agentMgr, final long id, final String name, final Link link, final boolean maintenance) {
         super(agentMgr, id, name, link, maintenance);
         _forward = link == null;
-        _transferRequests = new LinkedList<Request>();
+        _transferRequests = new ConcurrentSkipListMap<Long, Request>();
     }
 
     @Override
@@ -195,6 +195,7 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
                         SynchronousListener synchronous = (SynchronousListener)listener;
                         synchronous.setPeer(peerName);
                     }
+                    markSent(seq);
                     Link.write(ch, req.toBytes(), sslEngine);
                     error = false;
                     return;
@@ -211,6 +212,7 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
         } finally {
             if (error) {
                 unregisterListener(seq);
+                _sentAt.remove(seq);
             }
         }
         throw new AgentUnavailableException("Unable to reach the peer that the agent is connected", _id);
@@ -225,21 +227,13 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
     }
 
     public Request getRequestToTransfer() {
-        if (_transferRequests.isEmpty()) {
-            return null;
-        } else {
-            return _transferRequests.pop();
-        }
-    }
-
-    protected synchronized void addRequestToTransfer(final Request req) {
-        int index = findTransferRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _transferRequests.add(-index - 1, req);
+        final Map.Entry<Long, Request> next = _transferRequests.pollFirstEntry();
+        return next == null ? null : next.getValue();
     }
 
-    protected synchronized int findTransferRequest(final Request req) {
-        return Collections.binarySearch(_transferRequests, req, s_reqComparator);
+    protected void addRequestToTransfer(final Request req) {
+        final Request previous = _transferRequests.put(req.getSequence(), req);
+        assert (previous == null) : "How can we get the sequence again? " + req.toString();
     }
 
     @Override
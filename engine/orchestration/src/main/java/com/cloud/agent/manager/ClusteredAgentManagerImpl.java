@@ -24,6 +24,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -32,10 +34,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -46,6 +52,10 @@ import org.apache.cloudstack.ca.CAManager;
 import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.jobs.AsyncJob;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.ha.dao.HAConfigDao;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
@@ -59,7 +69,12 @@ import com.cloud.agent.api.CancelCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateConfigCacheCommand;
+import com.cloud.agent.api.InvalidateEntityCacheCommand;
+import com.cloud.agent.api.PropagateJobStateCommand;
+import com.cloud.agent.api.PropagateQueueWakeupCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
+import com.cloud.agent.api.RevokeLockLeaseCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
 import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.agent.transport.Request;
@@ -72,6 +87,7 @@ import com.cloud.cluster.ClusteredAgentRebalanceService;
 import org.apache.cloudstack.management.ManagementServerHost;
 import com.cloud.cluster.ManagementServerHostVO;
 import com.cloud.cluster.agentlb.AgentLoadBalancerPlanner;
+import com.cloud.cluster.agentlb.ConsistentHashAgentLoadBalancerPlanner;
 import com.cloud.cluster.agentlb.HostTransferMapVO;
 import com.cloud.cluster.agentlb.HostTransferMapVO.HostTransferState;
 import com.cloud.cluster.agentlb.dao.HostTransferMapDao;
@@ -85,8 +101,14 @@ import com.cloud.host.Status;
 import com.cloud.host.Status.Event;
 import com.cloud.resource.ServerResource;
 import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.ConsistentHashRing;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.EntityCacheListener;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.LockMaster;
+import com.cloud.utils.db.Merovingian2;
 import com.cloud.utils.db.QueryBuilder;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
@@ -99,7 +121,19 @@ import com.google.gson.Gson;
 public class ClusteredAgentManagerImpl extends AgentManagerImpl implements ClusterManagerListener, ClusteredAgentRebalanceService {
     final static Logger s_logger = Logger.getLogger(ClusteredAgentManagerImpl.class);
     private static final ScheduledExecutorService s_transferExecutor = Executors.newScheduledThreadPool(2, new NamedThreadFactory("Cluster-AgentRebalancingExecutor"));
+    private final ScheduledExecutorService _entityCacheExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-EntityCacheInvalidation"));
+    private static final long ENTITY_CACHE_INVALIDATION_INTERVAL = 100;
+
+    // entity cache invalidations waiting to be broadcast, by table
+    private final Map<String, List<String>> _pendingEntityInvalidations = new HashMap<String, List<String>>();
+    private final Set<String> _pendingTableInvalidations = new HashSet<String>();
     private final long rebalanceTimeOut = 300000; // 5 mins - after this time remove the agent from the transfer list
+    private final ExecutorService _rebalanceExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("Cluster-AgentRebalanceTask"));
+    private final AtomicInteger _rebalancesInProgress = new AtomicInteger();
+    // resources loaded ahead for the hosts being transferred to this management server, with the time they were loaded at
+    private final Map<Long, Pair<ServerResource, Long>> _prewarmedResources = new ConcurrentHashMap<Long, Pair<ServerResource, Long>>();
+    // clusters seen without owner that belong to another management server, with the time they were first seen at
+    private final Map<Long, Long> _unownedClusters = new ConcurrentHashMap<Long, Long>();
 
     public final static long STARTUP_DELAY = 5000;
     public final static long SCAN_INTERVAL = 90000; // 90 seconds, it takes 60 sec for xenserver to fail login
@@ -120,6 +154,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     @Inject
     protected List<AgentLoadBalancerPlanner> _lbPlanners;
     @Inject
+    protected ConsistentHashAgentLoadBalancerPlanner _hashPlanner;
+    @Inject
     ConfigurationDao _configDao;
     @Inject
     ConfigDepot _configDepot;
@@ -129,6 +165,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     private HAConfigDao haConfigDao;
     @Inject
     private CAManager caService;
+    @Inject
+    private MessageBus _messageBus;
 
     protected ClusteredAgentManagerImpl() {
         super();
@@ -140,6 +178,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     protected final ConfigKey<Integer> LoadSize = new ConfigKey<Integer>(Integer.class, "direct.agent.load.size", "Advanced", "16", "How many agents to connect to in each round", true);
     protected final ConfigKey<Integer> ScanInterval = new ConfigKey<Integer>(Integer.class, "direct.agent.scan.interval", "Advanced", "90", "Interval between scans to load agents", false,
             ConfigKey.Scope.Global, 1000);
+    protected final ConfigKey<Integer> RebalancesInProgress = new ConfigKey<Integer>(Integer.class, "agent.lb.transfers.in.progress", "Advanced", "5",
+            "How many agents a management server hands over to other management servers at the same time when rebalancing", true);
 
     @Override
     public boolean configure(final String name, final Map<String, Object> xmlParams) throws ConfigurationException {
@@ -156,6 +196,28 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
         _gson = GsonHelper.getGson();
 
+        GenericDaoBase.setEntityCacheListener(new EntityCacheListener() {
+            @Override
+            public void onEntityCacheInvalidated(final Collection<String> tables, final Object id) {
+                queueEntityCacheInvalidation(tables, id);
+            }
+        });
+
+        _messageBus.subscribe(AsyncJob.Topics.JOB_STATE_REMOTE, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(final String senderAddress, final String subject, final Object args) {
+                final Command[] cmds = new Command[] {new PropagateJobStateCommand((Long)args)};
+                _clusterMgr.broadcast(0, _gson.toJson(cmds));
+            }
+        });
+        _messageBus.subscribe(AsyncJob.Topics.JOB_QUEUE_WAKEUP_REMOTE, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(final String senderAddress, final String subject, final Object args) {
+                final Command[] cmds = new Command[] {new PropagateQueueWakeupCommand((long[])args)};
+                _clusterMgr.broadcast(0, _gson.toJson(cmds));
+            }
+        });
+
         return super.configure(name, xmlParams);
     }
 
@@ -165,6 +227,12 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             return false;
         }
         _timer.schedule(new DirectAgentScanTimerTask(), STARTUP_DELAY, ScanInterval.value());
+        _entityCacheExecutor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                broadcastEntityCacheInvalidations();
+            }
+        }, ENTITY_CACHE_INVALIDATION_INTERVAL, ENTITY_CACHE_INVALIDATION_INTERVAL, TimeUnit.MILLISECONDS);
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled direct agent scan task to run at an interval of " + ScanInterval.value() + " seconds");
         }
@@ -179,6 +247,47 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         return true;
     }
 
+    private void queueEntityCacheInvalidation(final Collection<String> tables, final Object id) {
+        synchronized (_pendingEntityInvalidations) {
+            for (final String table : tables) {
+                if (id == null) {
+                    _pendingTableInvalidations.add(table);
+                } else if (!_pendingTableInvalidations.contains(table)) {
+                    List<String> ids = _pendingEntityInvalidations.get(table);
+                    if (ids == null) {
+                        ids = new ArrayList<String>();
+                        _pendingEntityInvalidations.put(table, ids);
+                    }
+                    ids.add(id.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the entity cache invalidations queued since the last run to the peers in a single command.
+     */
+    private void broadcastEntityCacheInvalidations() {
+        final Map<String, List<String>> entityIds;
+        final List<String> tables;
+        synchronized (_pendingEntityInvalidations) {
+            if (_pendingEntityInvalidations.isEmpty() && _pendingTableInvalidations.isEmpty()) {
+                return;
+            }
+            tables = new ArrayList<String>(_pendingTableInvalidations);
+            entityIds = new HashMap<String, List<String>>(_pendingEntityInvalidations);
+            entityIds.keySet().removeAll(_pendingTableInvalidations);
+            _pendingEntityInvalidations.clear();
+            _pendingTableInvalidations.clear();
+        }
+        try {
+            final Command[] cmds = new Command[] {new InvalidateEntityCacheCommand(entityIds, tables)};
+            _clusterMgr.broadcast(0, _gson.toJson(cmds));
+        } catch (final Exception e) {
+            s_logger.warn("Unable to broadcast entity cache invalidations", e);
+        }
+    }
+
     public void scheduleHostScanTask() {
         _timer.schedule(new DirectAgentScanTimerTask(), 0);
         if (s_logger.isDebugEnabled()) {
@@ -197,7 +306,12 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
         // for agents that are self-managed, threshold to be considered as disconnected after pingtimeout
         final long cutSeconds = (System.currentTimeMillis() >> 10) - mgmtServiceConf.getTimeout();
-        final List<HostVO> hosts = _hostDao.findAndUpdateDirectAgentToLoad(cutSeconds, LoadSize.value().longValue(), _nodeId);
+        final List<HostVO> hosts = _hostDao.findAndUpdateDirectAgentToLoad(cutSeconds, LoadSize.value().longValue(), _nodeId, new Predicate<Long>() {
+            @Override
+            public boolean test(final Long clusterId) {
+                return canLoadCluster(clusterId);
+            }
+        });
         final List<HostVO> appliances = _hostDao.findAndUpdateApplianceToLoad(cutSeconds, _nodeId);
 
         if (hosts != null) {
@@ -234,6 +348,27 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         }
     }
 
+    /**
+     * Clusters without owner are loaded by the management server they belong
+     * to on the hash ring.  The others only load them once they have been left
+     * without owner for two scans, in case their management server can't.
+     */
+    protected boolean canLoadCluster(final long clusterId) {
+        final Long owner = _hashPlanner.getOwner(clusterId);
+        if (owner == null || owner == _nodeId) {
+            _unownedClusters.remove(clusterId);
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        for (final Iterator<Map.Entry<Long, Long>> it = _unownedClusters.entrySet().iterator(); it.hasNext();) {
+            if (now - it.next().getValue() > 10L * ScanInterval.value()) {
+                it.remove();
+            }
+        }
+        final Long firstSeen = _unownedClusters.putIfAbsent(clusterId, now);
+        return firstSeen != null && now - firstSeen > 2L * ScanInterval.value();
+    }
+
     private class DirectAgentScanTimerTask extends ManagedContextTimerTask {
         @Override
         protected void runInContext() {
@@ -592,9 +727,11 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             }
         }
         _timer.cancel();
+        _entityCacheExecutor.shutdown();
 
         // cancel all transfer tasks
         s_transferExecutor.shutdownNow();
+        _rebalanceExecutor.shutdownNow();
         cleanupTransferMap(_nodeId);
 
         return super.stop();
@@ -623,7 +760,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
                 final byte[] data = task.getData();
                 final Version ver = Request.getVersion(data);
-                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal()) {
+                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal() && ver.ordinal() != Version.v4.ordinal()) {
                     s_logger.warn("Wrong version for clustered agent request");
                     super.doTask(task);
                     return;
@@ -812,6 +949,20 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         }
     }
 
+    @Override
+    protected Predicate<HostVO> getHostsMonitoredByThisManagementServer() {
+        // the ring is read once so that the whole run sees the same management servers
+        final ConsistentHashRing ring = _hashPlanner.getRing();
+        return host -> {
+            if (host.getManagementServerId() != null) {
+                return host.getManagementServerId() == _nodeId;
+            }
+            // hosts not connected to any management server are monitored by the one their cluster belongs to
+            final Long owner = ring.getNode(host.getClusterId() != null ? host.getClusterId() : host.getId());
+            return owner == null || owner == _nodeId;
+        };
+    }
+
     public void startRebalanceAgents() {
         s_logger.debug("Management server " + _nodeId + " is asking other peers to rebalance their agents");
         final List<ManagementServerHostVO> allMS = _mshostDao.listBy(ManagementServerHost.State.Up);
@@ -842,8 +993,13 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         for (final ManagementServerHostVO node : allMS) {
             if (node.getMsid() != _nodeId) {
 
-                List<HostVO> hostsToRebalance = new ArrayList<HostVO>();
+                // the hash planner decides alone unless it can't, so that other planners don't undo what it did
+                List<HostVO> hostsToRebalance = _hashPlanner.getHostsToRebalance(node.getMsid(), avLoad);
+                final boolean hashPlanned = hostsToRebalance != null;
                 for (final AgentLoadBalancerPlanner lbPlanner : _lbPlanners) {
+                    if (hashPlanned || lbPlanner == _hashPlanner) {
+                        continue;
+                    }
                     hostsToRebalance = lbPlanner.getHostsToRebalance(node.getMsid(), avLoad);
                     if (hostsToRebalance != null && !hostsToRebalance.isEmpty()) {
                         break;
@@ -871,6 +1027,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                             if (answer == null) {
                                 s_logger.warn("Failed to get host id=" + hostId + " from management server " + node.getMsid());
                                 result = false;
+                            } else {
+                                prewarmResource(host);
                             }
                         } catch (final Exception ex) {
                             s_logger.warn("Failed to get host id=" + hostId + " from management server " + node.getMsid(), ex);
@@ -896,6 +1054,22 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         }
     }
 
+    /**
+     * Loads the resource of a host about to be transferred to this management
+     * server while its current owner still serves it, so that the host
+     * reconnects faster once handed over.
+     */
+    private void prewarmResource(final HostVO host) {
+        try {
+            final ServerResource resource = loadResource(host);
+            if (resource != null) {
+                _prewarmedResources.put(host.getId(), new Pair<ServerResource, Long>(resource, System.currentTimeMillis()));
+            }
+        } catch (final Exception e) {
+            s_logger.debug("Unable to load the resource of host id=" + host.getId() + " ahead of its transfer, it will be loaded on transfer: " + e.getMessage());
+        }
+    }
+
     private Answer[] sendRebalanceCommand(final long peer, final long agentId, final long currentOwnerId, final long futureOwnerId, final Event event) {
         final TransferAgentCommand transfer = new TransferAgentCommand(agentId, currentOwnerId, futureOwnerId, event);
         final Commands commands = new Commands(Command.OnError.Stop);
@@ -965,6 +1139,13 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Clustered agent transfer scan check, management server id:" + _nodeId);
                     }
+                    final long now = System.currentTimeMillis();
+                    for (final Iterator<Pair<ServerResource, Long>> it = _prewarmedResources.values().iterator(); it.hasNext();) {
+                        if (now - it.next().second() > rebalanceTimeOut) {
+                            it.remove();
+                        }
+                    }
+
                     synchronized (_agentToTransferIds) {
                         if (_agentToTransferIds.size() > 0) {
                             s_logger.debug("Found " + _agentToTransferIds.size() + " agents to transfer");
@@ -1004,11 +1185,19 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                                     continue;
                                 }
 
+                                if (_rebalancesInProgress.get() >= RebalancesInProgress.value()) {
+                                    s_logger.debug("Already transferring " + _rebalancesInProgress.get() + " agents, postponing the transfer of the remaining ones");
+                                    break;
+                                }
+
                                 if (attache.getQueueSize() == 0 && attache.getNonRecurringListenersSize() == 0) {
                                     iterator.remove();
                                     try {
-                                        _executor.execute(new RebalanceTask(hostId, transferMap.getInitialOwner(), transferMap.getFutureOwner()));
+                                        // not on the agent task pool, which handles the disconnects of the agents that stopped pinging
+                                        _rebalancesInProgress.incrementAndGet();
+                                        _rebalanceExecutor.execute(new RebalanceTask(hostId, transferMap.getInitialOwner(), transferMap.getFutureOwner()));
                                     } catch (final RejectedExecutionException ex) {
+                                        _rebalancesInProgress.decrementAndGet();
                                         s_logger.warn("Failed to submit rebalance task for host id=" + hostId + "; postponing the execution");
                                         continue;
                                     }
@@ -1083,7 +1272,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                     if (s_logger.isDebugEnabled()) {
                         s_logger.debug("Loading directly connected host " + host.getId() + "(" + host.getName() + ") to the management server " + _nodeId + " as a part of rebalance process");
                     }
-                    result = loadDirectlyConnectedHost(host, true);
+                    final Pair<ServerResource, Long> prewarmed = _prewarmedResources.remove(hostId);
+                    result = loadDirectlyConnectedHost(host, true, prewarmed != null ? prewarmed.first() : null);
                 } else {
                     s_logger.warn("Failed to disconnect " + host.getId() + "(" + host.getName() + " as a part of rebalance process without notification");
                 }
@@ -1224,6 +1414,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 rebalanceHost(hostId, currentOwnerId, futureOwnerId);
             } catch (final Exception e) {
                 s_logger.warn("Unable to rebalance host id=" + hostId, e);
+            } finally {
+                _rebalancesInProgress.decrementAndGet();
             }
         }
     }
@@ -1343,6 +1535,78 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 final ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand)cmds[0];
                 final String response = handleScheduleHostScanTaskCommand(cmd);
                 return response;
+            } else if (cmds.length == 1 && cmds[0] instanceof InvalidateConfigCacheCommand) {
+                final InvalidateConfigCacheCommand cmd = (InvalidateConfigCacheCommand)cmds[0];
+
+                s_logger.debug("Intercepting command to invalidate cached configuration " + cmd.getConfigName());
+
+                if (cmd.getConfigName() == null) {
+                    _configDepot.invalidateAllCachedValues();
+                } else {
+                    _configDepot.invalidateCachedValues(cmd.getConfigName());
+                }
+
+                final Answer[] answers = new Answer[1];
+                answers[0] = new Answer(cmd, true, null);
+                return _gson.toJson(answers);
+            } else if (cmds.length == 1 && cmds[0] instanceof PropagateJobStateCommand) {
+                final PropagateJobStateCommand cmd = (PropagateJobStateCommand)cmds[0];
+
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Intercepting command to propagate state of job-" + cmd.getJobId());
+                }
+                _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.LOCAL, cmd.getJobId());
+
+                final Answer[] answers = new Answer[1];
+                answers[0] = new Answer(cmd, true, null);
+                return _gson.toJson(answers);
+            } else if (cmds.length == 1 && cmds[0] instanceof PropagateQueueWakeupCommand) {
+                final PropagateQueueWakeupCommand cmd = (PropagateQueueWakeupCommand)cmds[0];
+
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Intercepting command to wake up sync queues " + Arrays.toString(cmd.getQueueIds()));
+                }
+                for (final long queueId : cmd.getQueueIds()) {
+                    _messageBus.publish(null, AsyncJob.Topics.JOB_QUEUE_WAKEUP, PublishScope.LOCAL, queueId);
+                }
+
+                final Answer[] answers = new Answer[1];
+                answers[0] = new Answer(cmd, true, null);
+                return _gson.toJson(answers);
+            } else if (cmds.length == 1 && cmds[0] instanceof InvalidateEntityCacheCommand) {
+                final InvalidateEntityCacheCommand cmd = (InvalidateEntityCacheCommand)cmds[0];
+
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Intercepting command to invalidate cached entities from " + pdu.getSourcePeer());
+                }
+                if (cmd.getTables() != null) {
+                    for (final String table : cmd.getTables()) {
+                        GenericDaoBase.invalidateEntityCaches(Collections.singletonList(table), null);
+                    }
+                }
+                if (cmd.getEntityIds() != null) {
+                    for (final Map.Entry<String, List<String>> entry : cmd.getEntityIds().entrySet()) {
+                        for (final String id : entry.getValue()) {
+                            GenericDaoBase.invalidateEntityCaches(Collections.singletonList(entry.getKey()), id);
+                        }
+                    }
+                }
+
+                final Answer[] answers = new Answer[1];
+                answers[0] = new Answer(cmd, true, null);
+                return _gson.toJson(answers);
+            } else if (cmds.length == 1 && cmds[0] instanceof RevokeLockLeaseCommand) {
+                final RevokeLockLeaseCommand cmd = (RevokeLockLeaseCommand)cmds[0];
+
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Intercepting command to revoke the lease on lock " + cmd.getLockName() + " from " + pdu.getSourcePeer());
+                }
+                final LockMaster lockMaster = Merovingian2.getActiveLockMaster();
+                final boolean revoked = lockMaster == null || lockMaster.revokeLease(cmd.getLockName());
+
+                final Answer[] answers = new Answer[1];
+                answers[0] = new Answer(cmd, revoked, null);
+                return _gson.toJson(answers);
             }
 
             try {
@@ -1452,6 +1716,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         keysLst.add(ConnectedAgentThreshold);
         keysLst.add(LoadSize);
         keysLst.add(ScanInterval);
+        keysLst.add(RebalancesInProgress);
         return keysLst.toArray(new ConfigKey<?>[keysLst.size()]);
     }
 }
@@ -0,0 +1,346 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.AgentControlAnswer;
+import com.cloud.agent.api.AgentControlCommand;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.exception.OperationTimedoutException;
+import com.cloud.host.Host;
+import com.cloud.host.Status;
+
+/**
+ * CommandPipeline coalesces the independent commands sent to an agent within a
+ * latency budget into a single request.  The request does not stop on error so
+ * every command gets its own answer and a failing command does not prevent the
+ * others from being executed.  Commands that must execute in sequence are
+ * coalesced separately from the ones that do not, so that the latter are never
+ * held in the sequence of the agent.
+ */
+public class CommandPipeline {
+    private static final Logger s_logger = Logger.getLogger(CommandPipeline.class);
+
+    public interface Sender {
+        /**
+         * Sends the commands as one request that does not stop on error.
+         * @return sequence of the request.
+         */
+        long send(Command[] cmds, Listener listener) throws AgentUnavailableException;
+    }
+
+    /**
+     * Answer of a pipelined command.  get() throws an ExecutionException caused
+     * by an AgentUnavailableException or an OperationTimedoutException if the
+     * request carrying the command did not complete.
+     */
+    public static class PipelinedAnswer implements Future<Answer> {
+        private Answer _answer;
+        private Exception _failure;
+        private boolean _done;
+
+        synchronized void complete(final Answer answer, final Exception failure) {
+            if (_done) {
+                return;
+            }
+            _answer = answer;
+            _failure = failure;
+            _done = true;
+            notifyAll();
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return _done;
+        }
+
+        @Override
+        public synchronized Answer get() throws InterruptedException, ExecutionException {
+            while (!_done) {
+                wait();
+            }
+            return getResult();
+        }
+
+        @Override
+        public synchronized Answer get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!_done) {
+                final long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return getResult();
+        }
+
+        private Answer getResult() throws ExecutionException {
+            if (_failure != null) {
+                throw new ExecutionException(_failure);
+            }
+            return _answer;
+        }
+    }
+
+    protected class Batch extends ManagedContextRunnable implements Listener {
+        final List<Command> _cmds = new ArrayList<Command>();
+        final List<PipelinedAnswer> _answers = new ArrayList<PipelinedAnswer>();
+        final boolean _inSequence;
+        int _timeout;
+        long _seq = -1;
+
+        Batch(final boolean inSequence) {
+            _inSequence = inSequence;
+        }
+
+        @Override
+        protected void runInContext() {
+            flush(this);
+        }
+
+        void fail(final Exception failure) {
+            for (final PipelinedAnswer answer : _answers) {
+                answer.complete(null, failure);
+            }
+        }
+
+        @Override
+        public boolean processAnswers(final long agentId, final long seq, final Answer[] answers) {
+            for (int i = 0; i < _answers.size(); i++) {
+                if (answers != null && i < answers.length) {
+                    _answers.get(i).complete(answers[i], null);
+                } else {
+                    _answers.get(i).complete(null, new OperationTimedoutException(new Command[] {_cmds.get(i)}, agentId, seq, _timeout, false));
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean processDisconnect(final long agentId, final Status state) {
+            fail(new AgentUnavailableException("Agent disconnected while waiting for the answers of pipelined commands, state: " + state, agentId));
+            return true;
+        }
+
+        @Override
+        public boolean processTimeout(final long agentId, final long seq) {
+            fail(new OperationTimedoutException(_cmds.toArray(new Command[_cmds.size()]), agentId, seq, _timeout, false));
+            return true;
+        }
+
+        @Override
+        public int getTimeout() {
+            return _timeout;
+        }
+
+        @Override
+        public boolean isRecurring() {
+            return false;
+        }
+
+        @Override
+        public boolean processCommands(final long agentId, final long seq, final Command[] commands) {
+            return false;
+        }
+
+        @Override
+        public AgentControlAnswer processControlCommand(final long agentId, final AgentControlCommand cmd) {
+            return null;
+        }
+
+        @Override
+        public void processHostAdded(final long hostId) {
+        }
+
+        @Override
+        public void processConnect(final Host host, final StartupCommand cmd, final boolean forRebalance) {
+        }
+
+        @Override
+        public void processHostAboutToBeRemoved(final long hostId) {
+        }
+
+        @Override
+        public void processHostRemoved(final long hostId, final long clusterId) {
+        }
+    }
+
+    private final long _hostId;
+    private final Sender _sender;
+    private final ScheduledExecutorService _timer;
+    private Batch _pending;
+    private Batch _pendingInSequence;
+
+    public CommandPipeline(final long hostId, final Sender sender, final ScheduledExecutorService timer) {
+        _hostId = hostId;
+        _sender = sender;
+        _timer = timer;
+    }
+
+    /**
+     * Adds the command to the request being coalesced for the agent.  The
+     * request is sent once latencyBudget ms have passed since its first command
+     * was added, or as soon as it holds maxBatchSize commands.
+     * @param timeout seconds to wait for the answer of the command, the request
+     * waits for the longest timeout of its commands.
+     */
+    public PipelinedAnswer submit(final Command cmd, final long latencyBudget, final int maxBatchSize, final int timeout) {
+        return submit(new Command[] {cmd}, latencyBudget, maxBatchSize, timeout).get(0);
+    }
+
+    /**
+     * Adds the commands to the request being coalesced for the agent, all of
+     * them to the same request and in order, so that they are executed one
+     * after the other like the commands of a single request.  The request may
+     * then hold more than maxBatchSize commands.
+     * @return the answers of the commands, in the same order.
+     */
+    public List<PipelinedAnswer> submit(final Command[] cmds, final long latencyBudget, final int maxBatchSize, final int timeout) {
+        final List<PipelinedAnswer> answers = new ArrayList<PipelinedAnswer>(cmds.length);
+        boolean inSequence = false;
+        for (final Command cmd : cmds) {
+            answers.add(new PipelinedAnswer());
+            inSequence = inSequence || cmd.executeInSequence();
+        }
+        Batch full = null;
+        Batch scheduled = null;
+        synchronized (this) {
+            Batch batch = inSequence ? _pendingInSequence : _pending;
+            if (batch == null) {
+                batch = new Batch(inSequence);
+                setPending(inSequence, batch);
+                scheduled = batch;
+            }
+            for (int i = 0; i < cmds.length; i++) {
+                batch._cmds.add(cmds[i]);
+                batch._answers.add(answers.get(i));
+            }
+            batch._timeout = Math.max(batch._timeout, timeout);
+            if (batch._cmds.size() >= maxBatchSize || latencyBudget <= 0) {
+                setPending(inSequence, null);
+                full = batch;
+                scheduled = null;
+            }
+        }
+        if (full != null) {
+            send(full);
+        } else if (scheduled != null) {
+            _timer.schedule(scheduled, latencyBudget, TimeUnit.MILLISECONDS);
+        }
+        return answers;
+    }
+
+    private void setPending(final boolean inSequence, final Batch batch) {
+        if (inSequence) {
+            _pendingInSequence = batch;
+        } else {
+            _pending = batch;
+        }
+    }
+
+    protected void flush(final Batch batch) {
+        synchronized (this) {
+            final Batch pending = batch._inSequence ? _pendingInSequence : _pending;
+            if (pending != batch) {
+                // already sent because it got full
+                return;
+            }
+            setPending(batch._inSequence, null);
+        }
+        send(batch);
+    }
+
+    /**
+     * Sends what is being coalesced right away.
+     */
+    public void flush() {
+        final Batch pending;
+        final Batch pendingInSequence;
+        synchronized (this) {
+            pending = _pending;
+            pendingInSequence = _pendingInSequence;
+            _pending = null;
+            _pendingInSequence = null;
+        }
+        if (pending != null) {
+            send(pending);
+        }
+        if (pendingInSequence != null) {
+            send(pendingInSequence);
+        }
+    }
+
+    protected void send(final Batch batch) {
+        try {
+            batch._seq = _sender.send(batch._cmds.toArray(new Command[batch._cmds.size()]), batch);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Seq " + _hostId + "-" + batch._seq + ": Sent " + batch._cmds.size() + " pipelined commands");
+            }
+        } catch (final AgentUnavailableException e) {
+            s_logger.info("Unable to send " + batch._cmds.size() + " pipelined commands to " + _hostId + " due to " + e.getMessage());
+            batch.fail(e);
+        } catch (final RuntimeException e) {
+            s_logger.warn("Unable to send " + batch._cmds.size() + " pipelined commands to " + _hostId, e);
+            batch.fail(new AgentUnavailableException("Unable to send pipelined commands due to " + e.getMessage(), _hostId));
+        }
+    }
+
+    /**
+     * Fails what is being coalesced, called once the agent is gone.
+     */
+    public void cancel(final Status state) {
+        final Batch pending;
+        final Batch pendingInSequence;
+        synchronized (this) {
+            pending = _pending;
+            pendingInSequence = _pendingInSequence;
+            _pending = null;
+            _pendingInSequence = null;
+        }
+        if (pending != null) {
+            pending.processDisconnect(_hostId, state);
+        }
+        if (pendingInSequence != null) {
+            pendingInSequence.processDisconnect(_hostId, state);
+        }
+    }
+}
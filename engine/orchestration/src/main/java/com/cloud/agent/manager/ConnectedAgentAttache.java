@@ -16,11 +16,13 @@
 // under the License.
 package com.cloud.agent.manager;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.host.Status;
 import com.cloud.utils.nio.Link;
@@ -39,9 +41,20 @@ public class ConnectedAgentAttache extends AgentAttache {
     }
 
     @Override
-    public synchronized void send(final Request req) throws AgentUnavailableException {
+    public void send(final Request req) throws AgentUnavailableException {
+        // the request may be retried or forwarded to another management server, so it keeps its own version
+        final Version ver = _binaryCodecSupported && Request.isBinaryCodecEnabled() ? Version.v4 : req.getVersion();
+        // serialized outside of the monitor, the link queues the packets on its own
+        final ByteBuffer[] bytes = req.toBytes(ver);
+        final Link link;
+        synchronized (this) {
+            link = _link;
+        }
         try {
-            _link.send(req.toBytes());
+            if (link == null) {
+                throw new ClosedChannelException();
+            }
+            link.send(bytes);
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
         }
@@ -0,0 +1,172 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * PingTracker keeps the last ping time of the connected agents in a hashed
+ * timing wheel with one slot per second.  Recording a ping and finding the
+ * agents behind on ping only touch the slots involved, so the monitor no
+ * longer walks every agent.  It also collects the agents pinged since their
+ * last_ping was last persisted so that it can be refreshed with one update.
+ * All times are in seconds.
+ */
+public class PingTracker {
+    private final Set<Entry>[] _wheel;
+    private final Map<Long, Entry> _entries = new HashMap<Long, Entry>();
+    private final Set<Long> _pinged = new LinkedHashSet<Long>();
+    // last second whose slot has been expired
+    private long _currentTick = -1;
+
+    private static class Entry {
+        final long _hostId;
+        long _lastPing;
+        // last_ping as last persisted, set by the status transition on connect and then by drainPinged()
+        long _persisted;
+        long _deadline;
+        int _slot = -1;
+
+        Entry(final long hostId) {
+            _hostId = hostId;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public PingTracker(final int wheelSize) {
+        _wheel = new Set[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            _wheel[i] = new HashSet<Entry>();
+        }
+    }
+
+    /**
+     * Starts tracking the agent, or restarts it if it is already tracked.
+     */
+    public synchronized void track(final long hostId, final long now, final long timeout) {
+        if (_currentTick < 0) {
+            _currentTick = now - 1;
+        }
+        Entry entry = _entries.get(hostId);
+        if (entry == null) {
+            entry = new Entry(hostId);
+            _entries.put(hostId, entry);
+        }
+        entry._lastPing = now;
+        entry._persisted = now;
+        schedule(entry, now + timeout);
+    }
+
+    /**
+     * @return false if the agent is not tracked.
+     */
+    public synchronized boolean ping(final long hostId, final long now, final long timeout) {
+        final Entry entry = _entries.get(hostId);
+        if (entry == null) {
+            return false;
+        }
+        entry._lastPing = now;
+        schedule(entry, now + timeout);
+        _pinged.add(hostId);
+        return true;
+    }
+
+    public synchronized void remove(final long hostId) {
+        final Entry entry = _entries.remove(hostId);
+        if (entry != null) {
+            _wheel[entry._slot].remove(entry);
+        }
+        _pinged.remove(hostId);
+    }
+
+    public synchronized Long getLastPing(final long hostId) {
+        final Entry entry = _entries.get(hostId);
+        return entry == null ? null : entry._lastPing;
+    }
+
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Finds the agents that have not pinged before their deadline.  They stay
+     * tracked and are reported again after recheck seconds unless they ping.
+     */
+    public synchronized List<Long> expire(final long now, final long recheck) {
+        final List<Entry> expired = new ArrayList<Entry>();
+        if (_currentTick < 0) {
+            _currentTick = now - 1;
+        }
+        // each slot needs to be looked at once at most, however late we are
+        final long from = Math.max(_currentTick + 1, now - _wheel.length + 1);
+        for (long tick = from; tick <= now; tick++) {
+            for (final Entry entry : _wheel[slotOf(tick)]) {
+                if (entry._deadline <= now) {
+                    expired.add(entry);
+                }
+            }
+        }
+        _currentTick = Math.max(_currentTick, now);
+
+        final List<Long> hostIds = new ArrayList<Long>(expired.size());
+        for (final Entry entry : expired) {
+            schedule(entry, now + Math.max(recheck, 1));
+            hostIds.add(entry._hostId);
+        }
+        return hostIds;
+    }
+
+    /**
+     * @return the agents pinged since their last_ping was persisted, if that was at least
+     * persistInterval seconds ago.  They are taken as persisted at now, the others are kept
+     * for a later call.
+     */
+    public synchronized List<Long> drainPinged(final long now, final long persistInterval) {
+        final List<Long> hostIds = new ArrayList<Long>();
+        final Iterator<Long> it = _pinged.iterator();
+        while (it.hasNext()) {
+            final Entry entry = _entries.get(it.next());
+            if (now - entry._persisted >= persistInterval) {
+                entry._persisted = now;
+                hostIds.add(entry._hostId);
+                it.remove();
+            }
+        }
+        return hostIds;
+    }
+
+    private void schedule(final Entry entry, final long deadline) {
+        if (entry._slot >= 0) {
+            _wheel[entry._slot].remove(entry);
+        }
+        entry._deadline = deadline;
+        // a deadline in a slot that has already been expired is looked at on the next tick
+        entry._slot = slotOf(Math.max(deadline, _currentTick + 1));
+        _wheel[entry._slot].add(entry);
+    }
+
+    private int slotOf(final long tick) {
+        return (int)(tick % _wheel.length);
+    }
+}
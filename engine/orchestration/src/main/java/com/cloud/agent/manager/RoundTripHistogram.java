@@ -0,0 +1,101 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * RoundTripHistogram counts the time between sending a request to an agent and
+ * receiving its answer in power of two millisecond buckets: bucket 0 holds the
+ * round trips under 1ms, bucket i the ones in [2^(i-1), 2^i) ms and the last
+ * bucket everything above.
+ */
+public class RoundTripHistogram {
+    public static final int BUCKETS = 24;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _max = new AtomicLong();
+
+    public void record(final long ms) {
+        _counts.incrementAndGet(bucket(ms));
+        long max = _max.get();
+        while (ms > max && !_max.compareAndSet(max, ms)) {
+            max = _max.get();
+        }
+    }
+
+    protected static int bucket(final long ms) {
+        if (ms < 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+    }
+
+    /**
+     * @return exclusive upper bound in ms of the given bucket.
+     */
+    public static long getUpperBound(final int bucket) {
+        return 1L << bucket;
+    }
+
+    public long getCount(final int bucket) {
+        return _counts.get(bucket);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += _counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return upper bound in ms of the bucket holding the percentile, 0 if nothing has been recorded.
+     */
+    public long getPercentile(final double percentile) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = _counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? getMax() : getUpperBound(i);
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", 50th<" + getPercentile(50) + "ms, 90th<" + getPercentile(90) + "ms, 99th<" + getPercentile(99) + "ms, max=" + getMax() + "ms";
+    }
+}
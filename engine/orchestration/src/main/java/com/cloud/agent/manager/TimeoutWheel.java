@@ -0,0 +1,129 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TimeoutWheel is a hashed timing wheel holding the items to time out in one
+ * slot per tick.  Scheduling only appends the item to the slot of its deadline
+ * without taking a lock, and expiring only looks at the slots of the ticks
+ * passed, instead of keeping every pending timeout in the heap of a scheduled
+ * executor.  Deadlines further away than the wheel are kept until their round
+ * comes.  Items are not removed once their timeout is no longer needed, the
+ * caller ignores them when they expire.  All times are in milliseconds.
+ */
+public class TimeoutWheel<T> {
+    private static class Timeout<T> {
+        final T _item;
+        final long _deadline;
+
+        Timeout(final T item, final long deadline) {
+            _item = item;
+            _deadline = deadline;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Timeout<T>>[] _wheel;
+    // scheduled in a slot that has already been expired
+    private final ConcurrentLinkedQueue<Timeout<T>> _overdue = new ConcurrentLinkedQueue<Timeout<T>>();
+    private final long _tickDuration;
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+    // last tick whose slot has been expired
+    private final AtomicLong _currentTick = new AtomicLong(NOT_STARTED);
+
+    @SuppressWarnings("unchecked")
+    public TimeoutWheel(final int wheelSize, final long tickDuration) {
+        _wheel = new ConcurrentLinkedQueue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            _wheel[i] = new ConcurrentLinkedQueue<Timeout<T>>();
+        }
+        _tickDuration = tickDuration;
+    }
+
+    public void schedule(final T item, final long deadline) {
+        add(new Timeout<T>(item, deadline));
+    }
+
+    private void add(final Timeout<T> timeout) {
+        final long current = _currentTick.get();
+        final long tick = current == NOT_STARTED ? tickOf(timeout._deadline) : Math.max(tickOf(timeout._deadline), current + 1);
+        final ConcurrentLinkedQueue<Timeout<T>> slot = _wheel[slotOf(tick)];
+        slot.add(timeout);
+        // the slot may have been expired while adding, unless expire() took it the timeout goes with the overdue ones
+        if (_currentTick.get() >= tick && slot.remove(timeout)) {
+            _overdue.add(timeout);
+        }
+    }
+
+    /**
+     * @return the items whose deadline is at or before now, each one is returned once.
+     */
+    public synchronized List<T> expire(final long now) {
+        final List<T> expired = new ArrayList<T>();
+        final List<Timeout<T>> notDue = new ArrayList<Timeout<T>>();
+        drain(_overdue, now, expired, notDue);
+
+        final long nowTick = tickOf(now);
+        final long current = _currentTick.get();
+        // each slot needs to be looked at once at most, however late we are
+        final long from = current == NOT_STARTED ? nowTick - _wheel.length + 1 : Math.max(current + 1, nowTick - _wheel.length + 1);
+        for (long tick = from; tick <= nowTick; tick++) {
+            // moved first so that the timeouts scheduled in the slot from now on go with the overdue ones
+            _currentTick.set(tick);
+            drain(_wheel[slotOf(tick)], now, expired, notDue);
+        }
+        if (_currentTick.get() < nowTick) {
+            _currentTick.set(nowTick);
+        }
+
+        for (final Timeout<T> timeout : notDue) {
+            add(timeout);
+        }
+        return expired;
+    }
+
+    private static <T> void drain(final ConcurrentLinkedQueue<Timeout<T>> slot, final long now, final List<T> expired, final List<Timeout<T>> notDue) {
+        Timeout<T> timeout;
+        while ((timeout = slot.poll()) != null) {
+            if (timeout._deadline <= now) {
+                expired.add(timeout._item);
+            } else {
+                notDue.add(timeout);
+            }
+        }
+    }
+
+    public int size() {
+        int size = _overdue.size();
+        for (final ConcurrentLinkedQueue<Timeout<T>> slot : _wheel) {
+            size += slot.size();
+        }
+        return size;
+    }
+
+    private long tickOf(final long time) {
+        return Math.floorDiv(time, _tickDuration);
+    }
+
+    private int slotOf(final long tick) {
+        return (int)Math.floorMod(tick, (long)_wheel.length);
+    }
+}
@@ -0,0 +1,167 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster.agentlb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.management.ManagementServerHost;
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ClusterManagerListener;
+import com.cloud.cluster.ManagementServerHostVO;
+import com.cloud.cluster.dao.ManagementServerHostDao;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.utils.ConsistentHashRing;
+import com.cloud.utils.component.AdapterBase;
+import com.cloud.utils.db.QueryBuilder;
+import com.cloud.utils.db.SearchCriteria.Op;
+
+/**
+ * Assigns the clusters of direct agents to the management servers that are up
+ * through a consistent hash ring, the whole cluster going to the same
+ * management server.  A management server joining only takes the clusters
+ * that hash to it, about 1/N of them, and one leaving only has its own
+ * clusters spread over the others.  The ring is kept until a management
+ * server joins or leaves the cluster.
+ */
+@Component
+public class ConsistentHashAgentLoadBalancerPlanner extends AdapterBase implements AgentLoadBalancerPlanner, Configurable, ClusterManagerListener {
+    private static final Logger s_logger = Logger.getLogger(ConsistentHashAgentLoadBalancerPlanner.class);
+
+    static final ConfigKey<Integer> VirtualNodes = new ConfigKey<Integer>(Integer.class, "agent.lb.virtual.nodes", "Advanced", "128",
+            "Number of places each management server takes on the hash ring clusters of direct agents are assigned by", false);
+
+    @Inject
+    ManagementServerHostDao _mshostDao;
+    @Inject
+    ClusterManager _clusterMgr;
+
+    private volatile ConsistentHashRing _ring;
+    private volatile long _ringVersion;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+        _clusterMgr.registerListener(this);
+        return true;
+    }
+
+    /**
+     * @return the ring of the management servers that are up, built from the
+     * database the first time after a management server joined or left.
+     */
+    public ConsistentHashRing getRing() {
+        ConsistentHashRing ring = _ring;
+        if (ring != null) {
+            return ring;
+        }
+        final long version = _ringVersion;
+        final Set<Long> msIds = new TreeSet<Long>();
+        for (final ManagementServerHostVO ms : _mshostDao.listBy(ManagementServerHost.State.Up)) {
+            msIds.add(ms.getMsid());
+        }
+        ring = new ConsistentHashRing(msIds, VirtualNodes.value());
+        // until this management server is up and its own join is seen, the ring is built on every call
+        if (msIds.contains(ManagementServerNode.getManagementServerId())) {
+            synchronized (this) {
+                if (_ringVersion == version) {
+                    _ring = ring;
+                }
+            }
+        }
+        return ring;
+    }
+
+    private synchronized void invalidateRing() {
+        _ringVersion++;
+        _ring = null;
+    }
+
+    @Override
+    public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        invalidateRing();
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        invalidateRing();
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+        invalidateRing();
+    }
+
+    /**
+     * @return the management server the direct agents of the cluster belong to, null if none is up.
+     */
+    public Long getOwner(long clusterId) {
+        return getRing().getNode(clusterId);
+    }
+
+    /**
+     * Returns the hosts of msId whose cluster belongs to this management
+     * server, whatever the agent load is.
+     * @return null if this management server is not up.
+     */
+    @Override
+    public List<HostVO> getHostsToRebalance(long msId, int avLoad) {
+        final long self = ManagementServerNode.getManagementServerId();
+        final ConsistentHashRing ring = getRing();
+        if (!ring.getNodes().contains(self)) {
+            return null;
+        }
+
+        final QueryBuilder<HostVO> sc = QueryBuilder.create(HostVO.class);
+        sc.and(sc.entity().getManagementServerId(), Op.EQ, msId);
+        sc.and(sc.entity().getType(), Op.EQ, Host.Type.Routing);
+        sc.and(sc.entity().getStatus(), Op.EQ, Status.Up);
+
+        final List<HostVO> hostsToReturn = new ArrayList<HostVO>();
+        for (final HostVO host : sc.list()) {
+            if (host.getClusterId() != null && Long.valueOf(self).equals(ring.getNode(host.getClusterId()))) {
+                hostsToReturn.add(host);
+            }
+        }
+        s_logger.debug("Management server " + msId + " has " + hostsToReturn.size() + " hosts of clusters belonging to management server " + self);
+        return hostsToReturn;
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return ConsistentHashAgentLoadBalancerPlanner.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {VirtualNodes};
+    }
+}
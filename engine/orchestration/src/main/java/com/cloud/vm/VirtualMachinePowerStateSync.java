@@ -19,6 +19,7 @@ package com.cloud.vm;
 import java.util.Map;
 
 import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
 
 public interface VirtualMachinePowerStateSync {
 
@@ -29,5 +30,11 @@ public interface VirtualMachinePowerStateSync {
     // to adapt legacy ping report
     void processHostVmStatePingReport(long hostId, Map<String, HostVmStateReportEntry> report);
 
+    // full or delta report carried by a ping, see PingRoutingCommand.isVmStateDelta()
+    void processHostVmStatePingReport(long hostId, PingRoutingCommand ping);
+
+    // whether the next ping of the host may carry a delta instead of a full report
+    boolean isVmStateDeltaAccepted(long hostId);
+
     Map<Long, VirtualMachine.PowerState> convertVmStateReport(Map<String, HostVmStateReportEntry> states);
 }
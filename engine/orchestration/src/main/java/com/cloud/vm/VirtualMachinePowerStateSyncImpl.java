@@ -17,10 +17,12 @@
 package com.cloud.vm;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -29,9 +31,9 @@ import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.configuration.ManagementServiceConfiguration;
 import com.cloud.utils.DateUtil;
-import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.dao.VMInstanceDao;
 
 public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStateSync {
@@ -41,12 +43,18 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     @Inject VMInstanceDao _instanceDao;
     @Inject ManagementServiceConfiguration mgmtServiceConf;
 
+    // VM power states of each host as rebuilt from its last full report and the deltas that followed
+    private final Map<Long, HostVmStates> _hostVmStates = new ConcurrentHashMap<Long, HostVmStates>();
+    // instance names of the reported VMs, dropped once the VM is no longer reported by the host
+    private final Map<String, Long> _vmIdsByName = new ConcurrentHashMap<String, Long>();
+
     public VirtualMachinePowerStateSyncImpl() {
     }
 
     @Override
     public void resetHostSyncState(long hostId) {
         s_logger.info("Reset VM power state sync for host: " + hostId);
+        _hostVmStates.remove(hostId);
         _instanceDao.resetHostPowerStateTracking(hostId);
     }
 
@@ -55,7 +63,7 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             s_logger.debug("Process host VM state report. host: " + hostId);
 
         Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processReport(hostId, translatedInfo, true);
     }
 
     @Override
@@ -64,31 +72,110 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             s_logger.debug("Process host VM state report from ping process. host: " + hostId);
 
         Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processReport(hostId, translatedInfo, true);
     }
 
-    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
+    @Override
+    public void processHostVmStatePingReport(long hostId, PingRoutingCommand ping) {
+        if (s_logger.isDebugEnabled())
+            s_logger.debug("Process host VM state " + (ping.isVmStateDelta() ? "delta" : "full") + " report from ping process. host: " + hostId
+                    + ", sequence: " + ping.getVmStateSequence());
 
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
+        Map<String, VirtualMachine.PowerState> states = applyPingReport(hostId, ping);
+        if (states == null) {
+            // the delta does not apply to what we know of the host, record the changes it carries but leave the
+            // missing VM detection to the full report the ping answer asks for
+            processReport(hostId, convertVmStateReport(ping.getHostVmStateReport()), false);
+            return;
         }
+        processReport(hostId, translateVmStates(states), true);
+    }
 
-        for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
-
-            if (s_logger.isDebugEnabled())
-                s_logger.debug("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+    @Override
+    public boolean isVmStateDeltaAccepted(long hostId) {
+        return _hostVmStates.containsKey(hostId);
+    }
 
-            if (_instanceDao.updatePowerState(entry.getKey(), hostId, entry.getValue(), DateUtil.currentGMTTime())) {
-                if (s_logger.isInfoEnabled()) {
-                    s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+    /**
+     * Applies the report of the ping to the VM power states kept for the host.
+     * @return all the VM power states of the host, or null if the ping carries a delta that does not follow the
+     * last report received from the host.
+     */
+    protected Map<String, VirtualMachine.PowerState> applyPingReport(long hostId, PingRoutingCommand ping) {
+        Map<String, HostVmStateReportEntry> report = ping.getHostVmStateReport();
+
+        if (!ping.isVmStateDelta()) {
+            HostVmStates states = new HostVmStates(ping.getVmStateEpoch(), ping.getVmStateSequence());
+            if (report != null) {
+                for (Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+                    states.put(entry.getKey(), entry.getValue().getState());
+                }
+            }
+            HostVmStates previous = _hostVmStates.put(hostId, states);
+            if (previous != null) {
+                synchronized (previous) {
+                    for (String vmName : previous._states.keySet()) {
+                        if (!states._states.containsKey(vmName)) {
+                            _vmIdsByName.remove(vmName);
+                        }
+                    }
                 }
+            }
+            return new HashMap<String, VirtualMachine.PowerState>(states._states);
+        }
 
-                _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, entry.getKey());
-            } else {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
+        HostVmStates states = _hostVmStates.get(hostId);
+        if (states == null) {
+            s_logger.info("Received VM state delta without a full report to apply it to, host: " + hostId);
+            return null;
+        }
+
+        synchronized (states) {
+            if (states._epoch != ping.getVmStateEpoch() || states._sequence + 1 != ping.getVmStateSequence()) {
+                s_logger.info("VM state delta of host " + hostId + " is out of sequence, expected " + (states._sequence + 1) + " got " + ping.getVmStateSequence()
+                        + ", asking for a full report");
+                _hostVmStates.remove(hostId);
+                return null;
+            }
+
+            if (report != null) {
+                for (Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+                    states.put(entry.getKey(), entry.getValue().getState());
+                }
+            }
+            if (ping.getRemovedVms() != null) {
+                for (String vmName : ping.getRemovedVms()) {
+                    states.remove(vmName);
+                    _vmIdsByName.remove(vmName);
                 }
             }
+
+            if (states._checksum != ping.getVmStateChecksum()) {
+                s_logger.info("VM state checksum of host " + hostId + " does not match after applying delta " + ping.getVmStateSequence() + ", asking for a full report");
+                _hostVmStates.remove(hostId);
+                return null;
+            }
+            states._sequence = ping.getVmStateSequence();
+            return new HashMap<String, VirtualMachine.PowerState>(states._states);
+        }
+    }
+
+    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo, boolean checkMissing) {
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
+        }
+
+        for (Long vmId : _instanceDao.updatePowerStates(hostId, translatedInfo, DateUtil.currentGMTTime())) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + vmId + ", power state: " + translatedInfo.get(vmId));
+            }
+
+            _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, vmId);
+        }
+
+        if (!checkMissing) {
+            return;
         }
 
         // any state outdates should be checked against the time before this list was retrieved
@@ -113,17 +200,13 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             // 2 times of sync-update interval for graceful period
             long milliSecondsGracefullPeriod = mgmtServiceConf.getPingInterval() * 2000L;
 
+            Map<Long, VirtualMachine.PowerState> missingInfo = new HashMap<Long, VirtualMachine.PowerState>();
             for (VMInstanceVO instance : vmsThatAreMissingReport) {
 
-                // Make sure powerState is up to date for missing VMs
-                try {
-                    if (!_instanceDao.isPowerStateUpToDate(instance.getId())) {
-                        s_logger.warn("Detected missing VM but power state is outdated, wait for another process report run for VM id: " + instance.getId());
-                        _instanceDao.resetVmPowerStateTracking(instance.getId());
-                        continue;
-                    }
-                } catch (CloudRuntimeException e) {
-                    s_logger.warn("Checked for missing powerstate of a none existing vm", e);
+                // Make sure powerState is up to date for missing VMs, the instance has just been read
+                if (!_instanceDao.isPowerStateUpToDate(instance)) {
+                    s_logger.warn("Detected missing VM but power state is outdated, wait for another process report run for VM id: " + instance.getId());
+                    _instanceDao.resetVmPowerStateTracking(instance.getId());
                     continue;
                 }
 
@@ -152,25 +235,22 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
 
                 if (milliSecondsSinceLastStateUpdate > milliSecondsGracefullPeriod) {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has passed graceful period");
-
-                    // this is were a race condition might have happened if we don't re-fetch the instance;
-                    // between the startime of this job and the currentTime of this missing-branch
-                    // an update might have occurred that we should not override in case of out of band migration
-                    if (_instanceDao.updatePowerState(instance.getId(), hostId, VirtualMachine.PowerState.PowerReportMissing, startTime)) {
-                        if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + instance.getId() + ", power state: PowerReportMissing ");
-                        }
-
-                        _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, instance.getId());
-                    } else {
-                        if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("VM power state does not change, skip DB writing. vm id: " + instance.getId());
-                        }
-                    }
+                    missingInfo.put(instance.getId(), VirtualMachine.PowerState.PowerReportMissing);
                 } else {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has not passed graceful period yet");
                 }
             }
+
+            // this is were a race condition might have happened if we don't re-fetch the instances;
+            // between the startime of this job and the currentTime of this missing-branch
+            // an update might have occurred that we should not override in case of out of band migration
+            for (Long vmId : _instanceDao.updatePowerStates(hostId, missingInfo, startTime)) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + vmId + ", power state: PowerReportMissing ");
+                }
+
+                _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, vmId);
+            }
         }
 
         if (s_logger.isDebugEnabled())
@@ -179,24 +259,69 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
 
     @Override
     public Map<Long, VirtualMachine.PowerState> convertVmStateReport(Map<String, HostVmStateReportEntry> states) {
-        final HashMap<Long, VirtualMachine.PowerState> map = new HashMap<Long, VirtualMachine.PowerState>();
+        final HashMap<String, VirtualMachine.PowerState> map = new HashMap<String, VirtualMachine.PowerState>();
         if (states == null) {
-            return map;
+            return new HashMap<Long, VirtualMachine.PowerState>();
         }
 
         for (Map.Entry<String, HostVmStateReportEntry> entry : states.entrySet()) {
-            VMInstanceVO vm = findVM(entry.getKey());
-            if (vm != null) {
-                map.put(vm.getId(), entry.getValue().getState());
+            map.put(entry.getKey(), entry.getValue().getState());
+        }
+        return translateVmStates(map);
+    }
+
+    /**
+     * Maps the instance names of the report to VM ids, the names not seen before are looked up with a single query.
+     */
+    protected Map<Long, VirtualMachine.PowerState> translateVmStates(Map<String, VirtualMachine.PowerState> states) {
+        final HashMap<Long, VirtualMachine.PowerState> map = new HashMap<Long, VirtualMachine.PowerState>();
+        final List<String> unknownNames = new ArrayList<String>();
+        for (Map.Entry<String, VirtualMachine.PowerState> entry : states.entrySet()) {
+            Long vmId = _vmIdsByName.get(entry.getKey());
+            if (vmId != null) {
+                map.put(vmId, entry.getValue());
             } else {
-                s_logger.debug("Unable to find matched VM in CloudStack DB. name: " + entry.getKey());
+                unknownNames.add(entry.getKey());
+            }
+        }
+
+        if (!unknownNames.isEmpty()) {
+            for (VMInstanceVO vm : _instanceDao.listByInstanceNames(unknownNames)) {
+                _vmIdsByName.put(vm.getInstanceName(), vm.getId());
+                map.put(vm.getId(), states.get(vm.getInstanceName()));
+                unknownNames.remove(vm.getInstanceName());
+            }
+            if (s_logger.isDebugEnabled()) {
+                for (String vmName : unknownNames) {
+                    s_logger.debug("Unable to find matched VM in CloudStack DB. name: " + vmName);
+                }
             }
         }
 
         return map;
     }
 
-    private VMInstanceVO findVM(String vmName) {
-        return _instanceDao.findVMByInstanceName(vmName);
+    private static class HostVmStates {
+        final long _epoch;
+        long _sequence;
+        long _checksum;
+        final Map<String, VirtualMachine.PowerState> _states = new HashMap<String, VirtualMachine.PowerState>();
+
+        HostVmStates(long epoch, long sequence) {
+            _epoch = epoch;
+            _sequence = sequence;
+        }
+
+        void put(String vmName, VirtualMachine.PowerState state) {
+            remove(vmName);
+            _states.put(vmName, state);
+            _checksum += PingRoutingCommand.getVmStateChecksum(vmName, state);
+        }
+
+        void remove(String vmName) {
+            if (_states.containsKey(vmName)) {
+                _checksum -= PingRoutingCommand.getVmStateChecksum(vmName, _states.remove(vmName));
+            }
+        }
     }
 }
@@ -0,0 +1,122 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.agent.api.CheckHealthCommand;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.MaintainCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.host.Status;
+
+public class AgentAttacheTest {
+
+    private static class RecordingAttache extends AgentAttache {
+        final ConcurrentLinkedQueue<Request> sent = new ConcurrentLinkedQueue<Request>();
+
+        RecordingAttache() {
+            super(null, 1L, "host", false);
+        }
+
+        @Override
+        public void send(Request req) throws AgentUnavailableException {
+            sent.add(req);
+        }
+
+        @Override
+        public void disconnect(Status state) {
+        }
+
+        @Override
+        protected boolean isClosed() {
+            return false;
+        }
+    }
+
+    private Request request(RecordingAttache attache, Command cmd) {
+        Request req = new Request(1L, "host", 1L, new Command[] {cmd}, true, true);
+        req.setSequence(attache.getNextSequence());
+        return req;
+    }
+
+    @Test
+    public void thousandsOfInFlightRequests() throws Exception {
+        final RecordingAttache attache = new RecordingAttache();
+        final int count = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < count; i++) {
+            final Request req = request(attache, i % 2 == 0 ? new MaintainCommand() : new CheckHealthCommand());
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    attache.send(req, null);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // the requests not in sequence went right away, only one of the others did
+        Assert.assertEquals(count / 2 + 1, attache.sent.size());
+        Assert.assertEquals(count / 2 - 1, attache.getQueueSize());
+
+        // answering the current sequence sends the queued requests one at a time in order of sequence
+        long current = attache._currentSequence;
+        long previous = -1;
+        for (int i = 0; i < count / 2 - 1; i++) {
+            attache.sendNext(current);
+            current = attache._currentSequence;
+            Assert.assertTrue(current > previous);
+            previous = current;
+        }
+        Assert.assertEquals(count, attache.sent.size());
+        Assert.assertEquals(0, attache.getQueueSize());
+
+        attache.sendNext(current);
+        Assert.assertNull(attache._currentSequence);
+    }
+
+    @Test
+    public void cancelRemovesQueuedRequest() throws Exception {
+        RecordingAttache attache = new RecordingAttache();
+        Request first = request(attache, new MaintainCommand());
+        Request second = request(attache, new MaintainCommand());
+        attache.send(first, null);
+        attache.send(second, null);
+        Assert.assertEquals(1, attache.getQueueSize());
+
+        attache.cancel(second.getSequence());
+        Assert.assertEquals(0, attache.getQueueSize());
+        attache.sendNext(first.getSequence());
+        Assert.assertEquals(1, attache.sent.size());
+    }
+}
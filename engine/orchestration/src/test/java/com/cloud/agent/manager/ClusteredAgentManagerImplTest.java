@@ -0,0 +1,86 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
+import com.cloud.agent.transport.Response;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.Task;
+
+public class ClusteredAgentManagerImplTest {
+    private static final long THIS_MS = 1L;
+    private static final long PEER_MS = 2L;
+    private static final long HOST_ID = 10L;
+
+    private ClusteredAgentManagerImpl mgr;
+    private Link link;
+    private GetHostStatsCommand cmd;
+
+    @Before
+    public void setUp() {
+        mgr = Mockito.spy(new ClusteredAgentManagerImpl());
+        mgr._nodeId = THIS_MS;
+        link = Mockito.mock(Link.class);
+        cmd = new GetHostStatsCommand("host-guid", "host", HOST_ID);
+    }
+
+    private void handle(byte[] data) throws Exception {
+        final ClusteredAgentManagerImpl.ClusteredAgentHandler handler = mgr.new ClusteredAgentHandler(Task.Type.DATA, link, data);
+        handler.doTask(handler);
+    }
+
+    @Test
+    public void binaryAnswerForPeerIsRoutedToPeer() throws Exception {
+        final Request request = new Request(HOST_ID, PEER_MS, cmd, true);
+        request.setSequence(5);
+        request.setVersion(Version.v4);
+        final byte[] data = new Response(request, new Answer(cmd, true, "ok")).getBytes();
+        Assert.assertEquals(Version.v4, Request.getVersion(data));
+        Mockito.doReturn(true).when(mgr).routeToPeer(Mockito.anyString(), Mockito.any(byte[].class));
+
+        handle(data);
+
+        Mockito.verify(mgr).routeToPeer(Long.toString(PEER_MS), data);
+    }
+
+    @Test
+    public void binaryRequestFromPeerIsRoutedToAgent() throws Exception {
+        final Request request = new Request(HOST_ID, PEER_MS, cmd, true);
+        request.setSequence(6);
+        request.setVersion(Version.v4);
+        final byte[] data = request.getBytes();
+        final AgentAttache attache = Mockito.mock(AgentAttache.class);
+        Mockito.doReturn(attache).when(mgr).findAttache(HOST_ID);
+
+        handle(data);
+
+        final ArgumentCaptor<Request> sent = ArgumentCaptor.forClass(Request.class);
+        Mockito.verify(attache).send(sent.capture());
+        Assert.assertEquals(Version.v4, sent.getValue().getVersion());
+        Assert.assertEquals(6, sent.getValue().getSequence());
+        Mockito.verify(mgr, Mockito.never()).routeToPeer(Mockito.anyString(), Mockito.any(byte[].class));
+    }
+}
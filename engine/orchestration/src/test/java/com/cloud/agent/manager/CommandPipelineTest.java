@@ -0,0 +1,160 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.exception.OperationTimedoutException;
+import com.cloud.host.Status;
+
+public class CommandPipelineTest {
+    private final List<Command[]> sent = new ArrayList<Command[]>();
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private boolean unavailable;
+    private CommandPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        pipeline = new CommandPipeline(1L, new CommandPipeline.Sender() {
+            @Override
+            public long send(Command[] cmds, Listener listener) throws AgentUnavailableException {
+                if (unavailable) {
+                    throw new AgentUnavailableException("unavailable", 1L);
+                }
+                sent.add(cmds);
+                listeners.add(listener);
+                return sent.size();
+            }
+        }, mock(ScheduledExecutorService.class));
+    }
+
+    private Command command(boolean inSequence) {
+        Command cmd = mock(Command.class);
+        when(cmd.executeInSequence()).thenReturn(inSequence);
+        return cmd;
+    }
+
+    @Test
+    public void commandsAreCoalescedWithinTheBudget() throws Exception {
+        Command cmd1 = command(false);
+        Command cmd2 = command(false);
+        Future<Answer> answer1 = pipeline.submit(cmd1, 20L, 10, 60);
+        Future<Answer> answer2 = pipeline.submit(cmd2, 20L, 10, 60);
+        Assert.assertTrue(sent.isEmpty());
+
+        pipeline.flush();
+        Assert.assertEquals(1, sent.size());
+        Assert.assertArrayEquals(new Command[] {cmd1, cmd2}, sent.get(0));
+        Assert.assertFalse(answer1.isDone());
+
+        // every command gets its own answer, a failed one does not affect the other
+        Answer failed = new Answer(cmd1, false, "failed");
+        Answer succeeded = new Answer(cmd2, true, null);
+        listeners.get(0).processAnswers(1L, 1L, new Answer[] {failed, succeeded});
+        Assert.assertSame(failed, answer1.get());
+        Assert.assertSame(succeeded, answer2.get());
+    }
+
+    @Test
+    public void fullBatchIsSentRightAway() {
+        pipeline.submit(command(false), 20L, 2, 60);
+        pipeline.submit(command(false), 20L, 2, 60);
+        pipeline.submit(command(false), 20L, 2, 60);
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(2, sent.get(0).length);
+    }
+
+    @Test
+    public void commandsSubmittedTogetherStayInTheSameRequest() {
+        Command cmd1 = command(false);
+        Command cmd2 = command(false);
+        Command cmd3 = command(false);
+        pipeline.submit(cmd1, 20L, 2, 60);
+        List<CommandPipeline.PipelinedAnswer> answers = pipeline.submit(new Command[] {cmd2, cmd3}, 20L, 2, 60);
+        Assert.assertEquals(2, answers.size());
+        Assert.assertEquals(1, sent.size());
+        Assert.assertArrayEquals(new Command[] {cmd1, cmd2, cmd3}, sent.get(0));
+    }
+
+    @Test
+    public void commandsInSequenceAreCoalescedSeparately() {
+        pipeline.submit(command(false), 20L, 10, 60);
+        pipeline.submit(command(true), 20L, 10, 60);
+        pipeline.flush();
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(1, sent.get(0).length);
+        Assert.assertEquals(1, sent.get(1).length);
+    }
+
+    @Test
+    public void requestTimeoutIsTheLongestOfItsCommands() {
+        pipeline.submit(command(false), 20L, 10, 60);
+        pipeline.submit(command(false), 20L, 10, 600);
+        pipeline.submit(command(false), 20L, 10, 30);
+        pipeline.flush();
+        Assert.assertEquals(600, listeners.get(0).getTimeout());
+    }
+
+    @Test
+    public void failuresOfTheRequestAreReportedToEveryCommand() throws Exception {
+        Future<Answer> answer1 = pipeline.submit(command(false), 0L, 10, 60);
+        Future<Answer> answer2 = pipeline.submit(command(false), 0L, 10, 60);
+        listeners.get(0).processTimeout(1L, 1L);
+        listeners.get(1).processDisconnect(1L, Status.Disconnected);
+        assertFailure(answer1, OperationTimedoutException.class);
+        assertFailure(answer2, AgentUnavailableException.class);
+
+        unavailable = true;
+        assertFailure(pipeline.submit(command(false), 0L, 10, 60), AgentUnavailableException.class);
+    }
+
+    @Test
+    public void cancelFailsPendingCommands() {
+        Future<Answer> answer = pipeline.submit(command(false), 20L, 10, 60);
+        pipeline.cancel(Status.Disconnected);
+        assertFailure(answer, AgentUnavailableException.class);
+        pipeline.flush();
+        Assert.assertTrue(sent.isEmpty());
+    }
+
+    private void assertFailure(Future<Answer> answer, Class<? extends Exception> expected) {
+        Assert.assertTrue(answer.isDone());
+        try {
+            answer.get();
+            Assert.fail("Expected " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            Assert.assertTrue(expected.isInstance(e.getCause()));
+        } catch (InterruptedException e) {
+            Assert.fail();
+        }
+    }
+}
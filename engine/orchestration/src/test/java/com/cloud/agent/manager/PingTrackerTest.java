@@ -0,0 +1,127 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PingTrackerTest {
+
+    @Test
+    public void agentPingingInTimeIsNotBehind() {
+        PingTracker tracker = new PingTracker(16);
+        tracker.track(1L, 100L, 10L);
+        tracker.ping(1L, 105L, 10L);
+
+        Assert.assertTrue(tracker.expire(110L, 5L).isEmpty());
+        Assert.assertEquals(Long.valueOf(105L), tracker.getLastPing(1L));
+    }
+
+    @Test
+    public void agentMissingPingIsBehindUntilItPings() {
+        PingTracker tracker = new PingTracker(16);
+        tracker.track(1L, 100L, 10L);
+        tracker.track(2L, 100L, 10L);
+        tracker.ping(2L, 108L, 10L);
+
+        Assert.assertEquals(Collections.singletonList(1L), tracker.expire(110L, 5L));
+        Assert.assertTrue(tracker.expire(112L, 5L).isEmpty());
+        // reported again once the recheck delay is over
+        Assert.assertEquals(Collections.singletonList(1L), tracker.expire(115L, 5L));
+        Assert.assertEquals(Collections.singletonList(2L), tracker.expire(118L, 5L));
+
+        tracker.ping(1L, 119L, 10L);
+        Assert.assertFalse(tracker.expire(125L, 5L).contains(1L));
+    }
+
+    @Test
+    public void deadlinesBeyondTheWheelAreNotExpiredEarly() {
+        PingTracker tracker = new PingTracker(8);
+        tracker.expire(100L, 1L);
+        tracker.track(1L, 100L, 20L);
+
+        for (long now = 101L; now < 120L; now++) {
+            Assert.assertTrue(tracker.expire(now, 1L).isEmpty());
+        }
+        Assert.assertEquals(Collections.singletonList(1L), tracker.expire(120L, 1L));
+    }
+
+    @Test
+    public void lateMonitorRunFindsEveryAgentBehind() {
+        PingTracker tracker = new PingTracker(8);
+        tracker.expire(100L, 1L);
+        tracker.track(1L, 100L, 2L);
+        tracker.track(2L, 100L, 5L);
+
+        Assert.assertEquals(2, tracker.expire(200L, 1L).size());
+    }
+
+    @Test
+    public void firstMonitorRunFindsAgentsBehind() {
+        PingTracker tracker = new PingTracker(8);
+        tracker.track(1L, 100L, 10L);
+
+        Assert.assertEquals(Collections.singletonList(1L), tracker.expire(150L, 1L));
+    }
+
+    @Test
+    public void removedAgentIsNoLongerTracked() {
+        PingTracker tracker = new PingTracker(16);
+        tracker.track(1L, 100L, 10L);
+        tracker.ping(1L, 101L, 10L);
+        tracker.remove(1L);
+
+        Assert.assertFalse(tracker.ping(1L, 102L, 10L));
+        Assert.assertNull(tracker.getLastPing(1L));
+        Assert.assertTrue(tracker.expire(200L, 5L).isEmpty());
+        Assert.assertTrue(tracker.drainPinged(200L, 0L).isEmpty());
+    }
+
+    @Test
+    public void drainPingedReturnsAgentsPingedSinceLastDrain() {
+        PingTracker tracker = new PingTracker(16);
+        tracker.track(1L, 100L, 10L);
+        tracker.track(2L, 100L, 10L);
+        tracker.ping(2L, 101L, 10L);
+        tracker.ping(1L, 102L, 10L);
+        tracker.ping(2L, 103L, 10L);
+
+        Assert.assertEquals(Arrays.asList(2L, 1L), tracker.drainPinged(103L, 0L));
+        Assert.assertTrue(tracker.drainPinged(103L, 0L).isEmpty());
+    }
+
+    @Test
+    public void drainPingedSkipsAgentsPersistedWithinInterval() {
+        PingTracker tracker = new PingTracker(16);
+        tracker.track(1L, 100L, 10L);
+        tracker.track(2L, 105L, 10L);
+        tracker.ping(1L, 108L, 10L);
+        tracker.ping(2L, 108L, 10L);
+
+        // the last ping of 2 was persisted when it connected, not long ago
+        Assert.assertEquals(Arrays.asList(1L), tracker.drainPinged(110L, 10L));
+        Assert.assertTrue(tracker.drainPinged(114L, 10L).isEmpty());
+        Assert.assertEquals(Arrays.asList(2L), tracker.drainPinged(115L, 10L));
+
+        tracker.ping(1L, 118L, 10L);
+        Assert.assertTrue(tracker.drainPinged(119L, 10L).isEmpty());
+        Assert.assertEquals(Arrays.asList(1L), tracker.drainPinged(120L, 10L));
+    }
+}
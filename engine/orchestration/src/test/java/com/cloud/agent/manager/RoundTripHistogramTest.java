@@ -0,0 +1,59 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RoundTripHistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        RoundTripHistogram histogram = new RoundTripHistogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        RoundTripHistogram histogram = new RoundTripHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(100);
+        }
+        histogram.record(5000);
+
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(4, histogram.getPercentile(50));
+        Assert.assertEquals(4, histogram.getPercentile(90));
+        Assert.assertEquals(128, histogram.getPercentile(99));
+        Assert.assertEquals(8192, histogram.getPercentile(100));
+        Assert.assertEquals(5000, histogram.getMax());
+    }
+
+    @Test
+    public void longRoundTripsGoToTheLastBucket() {
+        RoundTripHistogram histogram = new RoundTripHistogram();
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE / 2);
+        Assert.assertEquals(1, histogram.getCount(0));
+        Assert.assertEquals(1, histogram.getCount(RoundTripHistogram.BUCKETS - 1));
+        Assert.assertEquals(Long.MAX_VALUE / 2, histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,115 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeoutWheelTest {
+
+    @Test
+    public void itemsExpireOnTheFirstTickAfterTheirDeadline() {
+        TimeoutWheel<String> wheel = new TimeoutWheel<String>(8, 1000L);
+        wheel.schedule("a", 1500L);
+        wheel.schedule("b", 3200L);
+
+        Assert.assertTrue(wheel.expire(1000L).isEmpty());
+        Assert.assertEquals(Arrays.asList("a"), wheel.expire(2000L));
+        Assert.assertTrue(wheel.expire(3000L).isEmpty());
+        Assert.assertEquals(Arrays.asList("b"), wheel.expire(4000L));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void deadlinesBeyondTheWheelAreNotExpiredEarly() {
+        TimeoutWheel<String> wheel = new TimeoutWheel<String>(8, 1000L);
+        wheel.expire(0L);
+        wheel.schedule("a", 20000L);
+
+        for (long now = 1000L; now < 20000L; now += 1000L) {
+            Assert.assertTrue(wheel.expire(now).isEmpty());
+        }
+        Assert.assertEquals(Arrays.asList("a"), wheel.expire(20000L));
+    }
+
+    @Test
+    public void lateExpireFindsEveryItem() {
+        TimeoutWheel<String> wheel = new TimeoutWheel<String>(8, 1000L);
+        wheel.expire(0L);
+        wheel.schedule("a", 1000L);
+        wheel.schedule("b", 5000L);
+        wheel.schedule("c", 50000L);
+
+        List<String> expired = wheel.expire(100000L);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")), new HashSet<String>(expired));
+    }
+
+    @Test
+    public void deadlineInAnExpiredSlotExpiresOnTheNextTick() {
+        TimeoutWheel<String> wheel = new TimeoutWheel<String>(8, 1000L);
+        wheel.expire(5000L);
+        wheel.schedule("a", 3000L);
+
+        Assert.assertTrue(wheel.expire(5000L).isEmpty());
+        Assert.assertEquals(Arrays.asList("a"), wheel.expire(6000L));
+    }
+
+    @Test
+    public void concurrentSchedulingExpiresEveryItemOnce() throws Exception {
+        final TimeoutWheel<Integer> wheel = new TimeoutWheel<Integer>(64, 10L);
+        final int threads = 8;
+        final int perThread = 5000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final List<Integer> expired = new ArrayList<Integer>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        // deadlines spread over several rounds of the wheel around the ticks being expired
+                        wheel.schedule(base + i, (base + i) % 2000);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        long now = 0;
+        while (!done.await(1, TimeUnit.MILLISECONDS)) {
+            expired.addAll(wheel.expire(now));
+            now += 10;
+        }
+        executor.shutdown();
+        expired.addAll(wheel.expire(now + 2000));
+
+        Assert.assertEquals(threads * perThread, expired.size());
+        Set<Integer> unique = new HashSet<Integer>(expired);
+        Assert.assertEquals(threads * perThread, unique.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,91 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster.agentlb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.cloudstack.management.ManagementServerHost;
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.cluster.ManagementServerHostVO;
+import com.cloud.cluster.dao.ManagementServerHostDao;
+
+public class ConsistentHashAgentLoadBalancerPlannerTest {
+
+    private static final long SELF = ManagementServerNode.getManagementServerId();
+    private static final long PEER = SELF + 1;
+
+    private ConsistentHashAgentLoadBalancerPlanner planner;
+    private ManagementServerHostDao mshostDao;
+    private final List<ManagementServerHostVO> up = new ArrayList<ManagementServerHostVO>();
+
+    private static ManagementServerHostVO ms(long msid) {
+        final ManagementServerHostVO ms = Mockito.mock(ManagementServerHostVO.class);
+        Mockito.when(ms.getMsid()).thenReturn(msid);
+        return ms;
+    }
+
+    @Before
+    public void setUp() {
+        mshostDao = Mockito.mock(ManagementServerHostDao.class);
+        Mockito.when(mshostDao.listBy(ManagementServerHost.State.Up)).thenAnswer(i -> new ArrayList<ManagementServerHostVO>(up));
+        planner = new ConsistentHashAgentLoadBalancerPlanner();
+        planner._mshostDao = mshostDao;
+    }
+
+    @Test
+    public void ringIsKeptUntilNodeJoins() {
+        up.add(ms(SELF));
+        Assert.assertEquals(Collections.singleton(SELF), planner.getRing().getNodes());
+        planner.getOwner(1L);
+        planner.getOwner(2L);
+        Mockito.verify(mshostDao, Mockito.times(1)).listBy(ManagementServerHost.State.Up);
+
+        final ManagementServerHostVO peer = ms(PEER);
+        up.add(peer);
+        planner.onManagementNodeJoined(Arrays.asList(peer), SELF);
+        Assert.assertTrue(planner.getRing().getNodes().contains(PEER));
+        Mockito.verify(mshostDao, Mockito.times(2)).listBy(ManagementServerHost.State.Up);
+    }
+
+    @Test
+    public void ringIsBuiltAgainWhenNodeLeaves() {
+        final ManagementServerHostVO peer = ms(PEER);
+        up.add(ms(SELF));
+        up.add(peer);
+        Assert.assertTrue(planner.getRing().getNodes().contains(PEER));
+
+        up.remove(peer);
+        planner.onManagementNodeLeft(Arrays.asList(peer), SELF);
+        Assert.assertEquals(Collections.singleton(SELF), planner.getRing().getNodes());
+    }
+
+    @Test
+    public void ringWithoutSelfIsNotKept() {
+        up.add(ms(PEER));
+        planner.getRing();
+        planner.getRing();
+        Mockito.verify(mshostDao, Mockito.times(2)).listBy(ManagementServerHost.State.Up);
+    }
+}
@@ -0,0 +1,142 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.host.Host;
+import com.cloud.vm.VirtualMachine.PowerState;
+import com.cloud.vm.dao.VMInstanceDao;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VirtualMachinePowerStateSyncImplTest {
+
+    @Mock
+    VMInstanceDao instanceDao;
+
+    @InjectMocks
+    VirtualMachinePowerStateSyncImpl powerStateSync = new VirtualMachinePowerStateSyncImpl();
+
+    private static final long HOST_ID = 1L;
+    private static final long EPOCH = 42L;
+
+    private final Map<String, PowerState> hostStates = new HashMap<String, PowerState>();
+
+    private long checksum() {
+        long checksum = 0;
+        for (Map.Entry<String, PowerState> entry : hostStates.entrySet()) {
+            checksum += PingRoutingCommand.getVmStateChecksum(entry.getKey(), entry.getValue());
+        }
+        return checksum;
+    }
+
+    private PingRoutingCommand fullPing(long sequence) {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        for (Map.Entry<String, PowerState> entry : hostStates.entrySet()) {
+            report.put(entry.getKey(), new HostVmStateReportEntry(entry.getValue(), "host"));
+        }
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, HOST_ID, report);
+        ping.setVmStateFullReport(EPOCH, sequence, checksum());
+        return ping;
+    }
+
+    private PingRoutingCommand deltaPing(long sequence, Map<String, PowerState> changed, String... removed) {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        for (Map.Entry<String, PowerState> entry : changed.entrySet()) {
+            report.put(entry.getKey(), new HostVmStateReportEntry(entry.getValue(), "host"));
+            hostStates.put(entry.getKey(), entry.getValue());
+        }
+        for (String vmName : removed) {
+            hostStates.remove(vmName);
+        }
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, HOST_ID, report);
+        ping.setVmStateDeltaReport(report, Arrays.asList(removed), EPOCH, sequence, checksum());
+        return ping;
+    }
+
+    @Test
+    public void deltaIsAppliedToLastFullReport() {
+        hostStates.put("i-2-3-VM", PowerState.PowerOn);
+        hostStates.put("i-2-4-VM", PowerState.PowerOn);
+        Assert.assertFalse(powerStateSync.isVmStateDeltaAccepted(HOST_ID));
+        Assert.assertEquals(hostStates, powerStateSync.applyPingReport(HOST_ID, fullPing(1)));
+        Assert.assertTrue(powerStateSync.isVmStateDeltaAccepted(HOST_ID));
+
+        Map<String, PowerState> result = powerStateSync.applyPingReport(HOST_ID,
+                deltaPing(2, Collections.singletonMap("i-2-5-VM", PowerState.PowerOff), "i-2-4-VM"));
+        Assert.assertEquals(hostStates, result);
+        Assert.assertEquals(2, result.size());
+        Assert.assertTrue(powerStateSync.isVmStateDeltaAccepted(HOST_ID));
+    }
+
+    @Test
+    public void deltaOutOfSequenceAsksForFullReport() {
+        hostStates.put("i-2-3-VM", PowerState.PowerOn);
+        powerStateSync.applyPingReport(HOST_ID, fullPing(1));
+
+        Assert.assertNull(powerStateSync.applyPingReport(HOST_ID, deltaPing(3, Collections.singletonMap("i-2-3-VM", PowerState.PowerOff))));
+        Assert.assertFalse(powerStateSync.isVmStateDeltaAccepted(HOST_ID));
+    }
+
+    @Test
+    public void deltaWithWrongChecksumAsksForFullReport() {
+        hostStates.put("i-2-3-VM", PowerState.PowerOn);
+        powerStateSync.applyPingReport(HOST_ID, fullPing(1));
+
+        PingRoutingCommand ping = deltaPing(2, Collections.singletonMap("i-2-4-VM", PowerState.PowerOn));
+        ping.setVmStateDeltaReport(ping.getHostVmStateReport(), null, EPOCH, 2, ping.getVmStateChecksum() + 1);
+        Assert.assertNull(powerStateSync.applyPingReport(HOST_ID, ping));
+        Assert.assertFalse(powerStateSync.isVmStateDeltaAccepted(HOST_ID));
+    }
+
+    @Test
+    public void deltaWithoutFullReportIsRejected() {
+        Assert.assertNull(powerStateSync.applyPingReport(HOST_ID, deltaPing(2, Collections.singletonMap("i-2-3-VM", PowerState.PowerOn))));
+    }
+
+    @Test
+    public void instanceNamesAreLookedUpOnce() {
+        VMInstanceVO vm = new VMInstanceVO(3L, 1L, "vm", "i-2-3-VM", VirtualMachine.Type.User, 1L, null, 1L, 2L, 2L, 1L, false);
+        when(instanceDao.listByInstanceNames(anyCollection())).thenReturn(Collections.singletonList(vm));
+
+        Map<String, PowerState> states = new HashMap<String, PowerState>();
+        states.put("i-2-3-VM", PowerState.PowerOn);
+        states.put("foreign-vm", PowerState.PowerOn);
+        Assert.assertEquals(Collections.singletonMap(3L, PowerState.PowerOn), powerStateSync.translateVmStates(states));
+
+        states.remove("foreign-vm");
+        Assert.assertEquals(Collections.singletonMap(3L, PowerState.PowerOn), powerStateSync.translateVmStates(states));
+        verify(instanceDao, times(1)).listByInstanceNames(anyCollection());
+    }
+}
@@ -29,6 +29,7 @@ import org.springframework.stereotype.Component;
 
 import com.cloud.dc.HostPodVO;
 import com.cloud.org.Grouping;
+import com.cloud.utils.db.EntityCache;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
@@ -37,6 +38,7 @@ import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
 
 @Component
+@EntityCache
 public class HostPodDaoImpl extends GenericDaoBase<HostPodVO, Long> implements HostPodDao {
     private static final Logger s_logger = Logger.getLogger(HostPodDaoImpl.class);
 
@@ -18,6 +18,7 @@ package com.cloud.host.dao;
 
 import java.util.Date;
 import java.util.List;
+import java.util.function.Predicate;
 
 import com.cloud.host.Host;
 import com.cloud.host.Host.Type;
@@ -47,10 +48,24 @@ public interface HostDao extends GenericDao<HostVO, Long>, StateDao<Status, Stat
      */
     void markHostsAsDisconnected(long msId, long lastPing);
 
+    /**
+     * Sets last_ping of the hosts still connected to the management server with a single update.
+     *
+     * @return number of hosts updated.
+     */
+    int updateLastPinged(List<Long> hostIds, long msId, long lastPing);
+
     List<HostVO> findLostHosts(long timeout);
 
     List<HostVO> findAndUpdateDirectAgentToLoad(long lastPingSecondsAfter, Long limit, long managementServerId);
 
+    /**
+     * Same as findAndUpdateDirectAgentToLoad(long, Long, long) except that the
+     * clusters not owned by any management server are only acquired when
+     * clusterFilter accepts them.
+     */
+    List<HostVO> findAndUpdateDirectAgentToLoad(long lastPingSecondsAfter, Long limit, long managementServerId, Predicate<Long> clusterFilter);
+
     List<RunningHostCountInfo> getRunningHostCounts(Date cutTime);
 
     long getNextSequence(long hostId);
@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TimeZone;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
@@ -87,6 +88,7 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
     protected SearchBuilder<HostVO> TypeDcStatusSearch;
     protected SearchBuilder<HostVO> TypeClusterStatusSearch;
     protected SearchBuilder<HostVO> MsStatusSearch;
+    protected SearchBuilder<HostVO> IdsMsSearch;
     protected SearchBuilder<HostVO> DcPrivateIpAddressSearch;
     protected SearchBuilder<HostVO> DcStorageIpAddressSearch;
     protected SearchBuilder<HostVO> PublicIpAddressSearch;
@@ -183,6 +185,11 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
         MsStatusSearch.and("resourceState", MsStatusSearch.entity().getResourceState(), SearchCriteria.Op.NIN);
         MsStatusSearch.done();
 
+        IdsMsSearch = createSearchBuilder();
+        IdsMsSearch.and("ids", IdsMsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsMsSearch.and("ms", IdsMsSearch.entity().getManagementServerId(), SearchCriteria.Op.EQ);
+        IdsMsSearch.done();
+
         TypeDcSearch = createSearchBuilder();
         TypeDcSearch.and("type", TypeDcSearch.entity().getType(), SearchCriteria.Op.EQ);
         TypeDcSearch.and("dc", TypeDcSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
@@ -560,6 +567,12 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
     @Override
     @DB
     public List<HostVO> findAndUpdateDirectAgentToLoad(long lastPingSecondsAfter, Long limit, long managementServerId) {
+        return findAndUpdateDirectAgentToLoad(lastPingSecondsAfter, limit, managementServerId, null);
+    }
+
+    @Override
+    @DB
+    public List<HostVO> findAndUpdateDirectAgentToLoad(long lastPingSecondsAfter, Long limit, long managementServerId, Predicate<Long> clusterFilter) {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
 
         if (s_logger.isDebugEnabled()) {
@@ -607,6 +620,15 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
             }
             // for remaining hosts not owned by any MS check if they can be owned (by owning full cluster)
             clusters = findClustersForHostsNotOwnedByAnyManagementServer();
+            if (clusterFilter != null) {
+                List<Long> acceptedClusters = new ArrayList<Long>(clusters.size());
+                for (Long clusterId : clusters) {
+                    if (clusterFilter.test(clusterId)) {
+                        acceptedClusters.add(clusterId);
+                    }
+                }
+                clusters = acceptedClusters;
+            }
             List<Long> updatedClusters = clusters;
             if (clusters.size() > limit) {
                 updatedClusters = clusters.subList(0, limit.intValue());
@@ -678,6 +700,20 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
         return hosts;
     }
 
+    @Override
+    public int updateLastPinged(List<Long> hostIds, long msId, long lastPing) {
+        if (hostIds.isEmpty()) {
+            return 0;
+        }
+        SearchCriteria<HostVO> sc = IdsMsSearch.create();
+        sc.setParameters("ids", hostIds.toArray());
+        sc.setParameters("ms", msId);
+
+        HostVO host = createForUpdate();
+        host.setLastPinged(lastPing);
+        return update(host, sc);
+    }
+
     @Override
     public void markHostsAsDisconnected(long msId, long lastPing) {
         SearchCriteria<HostVO> sc = MsStatusSearch.create();
@@ -938,7 +974,18 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
     }
 
     @Override
+    @DB
     public boolean updateState(Status oldStatus, Event event, Status newStatus, Host vo, Object data) {
+        // the row stays locked from the read of last_ping to the compare-and-set on it, so the batched
+        // last_ping updates of the agent monitors can't get in between
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        txn.start();
+        boolean updated = updateLockedState(oldStatus, event, newStatus, vo);
+        txn.commit();
+        return updated;
+    }
+
+    protected boolean updateLockedState(Status oldStatus, Event event, Status newStatus, Host vo) {
         // lock target row from beginning to avoid lock-promotion caused deadlock
         HostVO host = lockRow(vo.getId(), true);
         if (host == null) {
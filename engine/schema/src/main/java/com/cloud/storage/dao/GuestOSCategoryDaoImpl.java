@@ -20,9 +20,11 @@ package com.cloud.storage.dao;
 import org.springframework.stereotype.Component;
 
 import com.cloud.storage.GuestOSCategoryVO;
+import com.cloud.utils.db.EntityCache;
 import com.cloud.utils.db.GenericDaoBase;
 
 @Component
+@EntityCache
 public class GuestOSCategoryDaoImpl extends GenericDaoBase<GuestOSCategoryVO, Long> implements GuestOSCategoryDao {
 
     protected GuestOSCategoryDaoImpl() {
@@ -20,11 +20,13 @@ package com.cloud.storage.dao;
 import org.springframework.stereotype.Component;
 
 import com.cloud.storage.GuestOSVO;
+import com.cloud.utils.db.EntityCache;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 
 @Component
+@EntityCache
 public class GuestOSDaoImpl extends GenericDaoBase<GuestOSVO, Long> implements GuestOSDao {
 
     protected final SearchBuilder<GuestOSVO> Search;
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.user.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -29,7 +30,16 @@ public interface UserStatisticsDao extends GenericDao<UserStatisticsVO, Long> {
 
     List<UserStatisticsVO> listBy(long accountId);
 
+    List<UserStatisticsVO> listBy(Collection<Long> accountIds, Collection<Long> deviceIds, String deviceType);
+
     List<UserStatisticsVO> listActiveAndRecentlyDeleted(Date minRemovedDate, int startIndex, int limit);
 
     List<UserStatisticsVO> listUpdatedStats();
+
+    /**
+     * Updates the rows in one batch, see VmDiskStatisticsDao.updateCurrentStats().
+     * @param stats rows whose current counters are set to the ones reported by the hypervisor.
+     * @param updateAggregate true to also set the aggregate counters.
+     */
+    void updateCurrentStats(List<UserStatisticsVO> stats, boolean updateAggregate);
 }
@@ -19,6 +19,7 @@ package com.cloud.user.dao;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
@@ -33,6 +34,7 @@ import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long> implements UserStatisticsDao {
@@ -43,8 +45,13 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
     private static final String UPDATED_STATS_SEARCH =
         "SELECT id, current_bytes_received, current_bytes_sent, net_bytes_received, net_bytes_sent, agg_bytes_received, agg_bytes_sent from  user_statistics "
             + "where (agg_bytes_received < net_bytes_received + current_bytes_received) OR (agg_bytes_sent < net_bytes_sent + current_bytes_sent)";
+    private static final String UPDATE_CURRENT_STATS = "UPDATE user_statistics SET "
+        + "net_bytes_received = IF(current_bytes_received > ?, net_bytes_received + current_bytes_received, net_bytes_received), current_bytes_received = ?, "
+        + "net_bytes_sent = IF(current_bytes_sent > ?, net_bytes_sent + current_bytes_sent, net_bytes_sent), current_bytes_sent = ?";
+    private static final String UPDATE_AGGREGATE_STATS = ", agg_bytes_received = net_bytes_received + current_bytes_received, agg_bytes_sent = net_bytes_sent + current_bytes_sent";
     private final SearchBuilder<UserStatisticsVO> AllFieldsSearch;
     private final SearchBuilder<UserStatisticsVO> AccountSearch;
+    private final SearchBuilder<UserStatisticsVO> DeviceSearch;
 
     public UserStatisticsDaoImpl() {
         AccountSearch = createSearchBuilder();
@@ -59,6 +66,12 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
         AllFieldsSearch.and("device", AllFieldsSearch.entity().getDeviceId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("deviceType", AllFieldsSearch.entity().getDeviceType(), SearchCriteria.Op.EQ);
         AllFieldsSearch.done();
+
+        DeviceSearch = createSearchBuilder();
+        DeviceSearch.and("accounts", DeviceSearch.entity().getAccountId(), SearchCriteria.Op.IN);
+        DeviceSearch.and("devices", DeviceSearch.entity().getDeviceId(), SearchCriteria.Op.IN);
+        DeviceSearch.and("deviceType", DeviceSearch.entity().getDeviceType(), SearchCriteria.Op.EQ);
+        DeviceSearch.done();
     }
 
     @Override
@@ -92,6 +105,18 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
         return search(sc, null);
     }
 
+    @Override
+    public List<UserStatisticsVO> listBy(Collection<Long> accountIds, Collection<Long> deviceIds, String deviceType) {
+        if (accountIds.isEmpty() || deviceIds.isEmpty()) {
+            return new ArrayList<UserStatisticsVO>();
+        }
+        SearchCriteria<UserStatisticsVO> sc = DeviceSearch.create();
+        sc.setParameters("accounts", accountIds.toArray());
+        sc.setParameters("devices", deviceIds.toArray());
+        sc.setParameters("deviceType", deviceType);
+        return search(sc, null);
+    }
+
     @Override
     public List<UserStatisticsVO> listActiveAndRecentlyDeleted(Date minRemovedDate, int startIndex, int limit) {
         List<UserStatisticsVO> userStats = new ArrayList<UserStatisticsVO>();
@@ -132,4 +157,30 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
         return userStats;
     }
 
+    @Override
+    public void updateCurrentStats(List<UserStatisticsVO> stats, boolean updateAggregate) {
+        if (stats.isEmpty()) {
+            return;
+        }
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            txn.start();
+            String sql = UPDATE_CURRENT_STATS + (updateAggregate ? UPDATE_AGGREGATE_STATS : "") + " WHERE id = ?";
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            for (UserStatisticsVO stat : stats) {
+                pstmt.setLong(1, stat.getCurrentBytesReceived());
+                pstmt.setLong(2, stat.getCurrentBytesReceived());
+                pstmt.setLong(3, stat.getCurrentBytesSent());
+                pstmt.setLong(4, stat.getCurrentBytesSent());
+                pstmt.setLong(5, stat.getId());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            s_logger.error("error updating user stats", ex);
+            throw new CloudRuntimeException(ex.getMessage());
+        }
+    }
 }
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.user.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -29,7 +30,18 @@ public interface VmDiskStatisticsDao extends GenericDao<VmDiskStatisticsVO, Long
 
     List<VmDiskStatisticsVO> listBy(long accountId);
 
+    List<VmDiskStatisticsVO> listBy(Collection<Long> accountIds, Collection<Long> vmIds);
+
     List<VmDiskStatisticsVO> listActiveAndRecentlyDeleted(Date minRemovedDate, int startIndex, int limit);
 
     List<VmDiskStatisticsVO> listUpdatedStats();
+
+    /**
+     * Updates the rows in one batch.  The net counters are computed against
+     * the stored current counters by the database, the same way StatsCollector
+     * does it, so that no row needs to be locked beforehand.
+     * @param stats rows whose current counters are set to the ones reported by the hypervisor.
+     * @param updateAggregate true to also set the aggregate counters.
+     */
+    void updateCurrentStats(List<VmDiskStatisticsVO> stats, boolean updateAggregate);
 }
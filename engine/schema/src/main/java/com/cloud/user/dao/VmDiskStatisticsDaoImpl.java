@@ -19,6 +19,7 @@ package com.cloud.user.dao;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
@@ -33,6 +34,7 @@ import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 public class VmDiskStatisticsDaoImpl extends GenericDaoBase<VmDiskStatisticsVO, Long> implements VmDiskStatisticsDao {
@@ -44,8 +46,16 @@ public class VmDiskStatisticsDaoImpl extends GenericDaoBase<VmDiskStatisticsVO,
         + "current_bytes_read, current_bytes_write, net_bytes_read, net_bytes_write, agg_bytes_read, agg_bytes_write " + "from  vm_disk_statistics "
         + "where (agg_io_read < net_io_read + current_io_read) OR (agg_io_write < net_io_write + current_io_write) OR "
         + "(agg_bytes_read < net_bytes_read + current_bytes_read) OR (agg_bytes_write < net_bytes_write + current_bytes_write)";
+    private static final String UPDATE_CURRENT_STATS = "UPDATE vm_disk_statistics SET "
+        + "net_io_read = IF(current_io_read > ?, net_io_read + current_io_read, net_io_read), current_io_read = ?, "
+        + "net_io_write = IF(current_io_write > ?, net_io_write + current_io_write, net_io_write), current_io_write = ?, "
+        + "net_bytes_read = IF(current_bytes_read > ?, net_bytes_read + current_bytes_read, net_bytes_read), current_bytes_read = ?, "
+        + "net_bytes_write = IF(current_bytes_write > ?, net_bytes_write + current_bytes_write, net_bytes_write), current_bytes_write = ?";
+    private static final String UPDATE_AGGREGATE_STATS = ", agg_io_read = net_io_read + current_io_read, agg_io_write = net_io_write + current_io_write, "
+        + "agg_bytes_read = net_bytes_read + current_bytes_read, agg_bytes_write = net_bytes_write + current_bytes_write";
     private final SearchBuilder<VmDiskStatisticsVO> AllFieldsSearch;
     private final SearchBuilder<VmDiskStatisticsVO> AccountSearch;
+    private final SearchBuilder<VmDiskStatisticsVO> VmSearch;
 
     public VmDiskStatisticsDaoImpl() {
         AccountSearch = createSearchBuilder();
@@ -58,6 +68,11 @@ public class VmDiskStatisticsDaoImpl extends GenericDaoBase<VmDiskStatisticsVO,
         AllFieldsSearch.and("volume", AllFieldsSearch.entity().getVolumeId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("vm", AllFieldsSearch.entity().getVmId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.done();
+
+        VmSearch = createSearchBuilder();
+        VmSearch.and("accounts", VmSearch.entity().getAccountId(), SearchCriteria.Op.IN);
+        VmSearch.and("vms", VmSearch.entity().getVmId(), SearchCriteria.Op.IN);
+        VmSearch.done();
     }
 
     @Override
@@ -87,6 +102,17 @@ public class VmDiskStatisticsDaoImpl extends GenericDaoBase<VmDiskStatisticsVO,
         return search(sc, null);
     }
 
+    @Override
+    public List<VmDiskStatisticsVO> listBy(Collection<Long> accountIds, Collection<Long> vmIds) {
+        if (accountIds.isEmpty() || vmIds.isEmpty()) {
+            return new ArrayList<VmDiskStatisticsVO>();
+        }
+        SearchCriteria<VmDiskStatisticsVO> sc = VmSearch.create();
+        sc.setParameters("accounts", accountIds.toArray());
+        sc.setParameters("vms", vmIds.toArray());
+        return search(sc, null);
+    }
+
     @Override
     public List<VmDiskStatisticsVO> listActiveAndRecentlyDeleted(Date minRemovedDate, int startIndex, int limit) {
         List<VmDiskStatisticsVO> vmDiskStats = new ArrayList<VmDiskStatisticsVO>();
@@ -127,4 +153,34 @@ public class VmDiskStatisticsDaoImpl extends GenericDaoBase<VmDiskStatisticsVO,
         return vmDiskStats;
     }
 
+    @Override
+    public void updateCurrentStats(List<VmDiskStatisticsVO> stats, boolean updateAggregate) {
+        if (stats.isEmpty()) {
+            return;
+        }
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            txn.start();
+            String sql = UPDATE_CURRENT_STATS + (updateAggregate ? UPDATE_AGGREGATE_STATS : "") + " WHERE id = ?";
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            for (VmDiskStatisticsVO stat : stats) {
+                pstmt.setLong(1, stat.getCurrentIORead());
+                pstmt.setLong(2, stat.getCurrentIORead());
+                pstmt.setLong(3, stat.getCurrentIOWrite());
+                pstmt.setLong(4, stat.getCurrentIOWrite());
+                pstmt.setLong(5, stat.getCurrentBytesRead());
+                pstmt.setLong(6, stat.getCurrentBytesRead());
+                pstmt.setLong(7, stat.getCurrentBytesWrite());
+                pstmt.setLong(8, stat.getCurrentBytesWrite());
+                pstmt.setLong(9, stat.getId());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            s_logger.error("error updating vm disk stats", ex);
+            throw new CloudRuntimeException(ex.getMessage());
+        }
+    }
 }
@@ -165,4 +165,22 @@ public interface DomainRouterDao extends GenericDao<DomainRouterVO, Long> {
     List<DomainRouterVO> listStopped(long networkId);
 
     List<DomainRouterVO> listIncludingRemovedByVpcId(long vpcId);
+
+    /**
+     * @return the generation of the configuration of the router, which every
+     * management server bumps when it applies configuration to the router and
+     * when the router changes state, as long as router.config.diff.enabled is set.
+     */
+    long getConfigGeneration(long routerId);
+
+    /**
+     * Bumps the generation of the configuration of the router if it is still
+     * the given one.
+     * @return true if the generation was bumped, false if another change got in first.
+     */
+    boolean updateConfigGeneration(long routerId, long generation);
+
+    void bumpConfigGeneration(long routerId);
+
+    void bumpAllConfigGenerations();
 }
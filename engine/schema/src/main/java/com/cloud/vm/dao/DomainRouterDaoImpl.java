@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.vm.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -45,6 +48,7 @@ import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.UpdateBuilder;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.DomainRouterVO;
 import com.cloud.vm.VirtualMachine.State;
 
@@ -52,6 +56,11 @@ import com.cloud.vm.VirtualMachine.State;
 @DB
 public class DomainRouterDaoImpl extends GenericDaoBase<DomainRouterVO, Long> implements DomainRouterDao {
 
+    private static final String GET_CONFIG_GENERATION = "SELECT config_generation FROM domain_router WHERE id = ?";
+    private static final String UPDATE_CONFIG_GENERATION = "UPDATE domain_router SET config_generation = config_generation + 1 WHERE id = ? AND config_generation = ?";
+    private static final String BUMP_CONFIG_GENERATION = "UPDATE domain_router SET config_generation = config_generation + 1 WHERE id = ?";
+    private static final String BUMP_ALL_CONFIG_GENERATIONS = "UPDATE domain_router SET config_generation = config_generation + 1";
+
     protected SearchBuilder<DomainRouterVO> AllFieldsSearch;
     protected SearchBuilder<DomainRouterVO> RunningSearch;
     protected SearchBuilder<DomainRouterVO> IdNetworkIdStatesSearch;
@@ -448,4 +457,53 @@ public class DomainRouterDaoImpl extends GenericDaoBase<DomainRouterVO, Long> im
         sc.setParameters("role", Role.VIRTUAL_ROUTER);
         return listIncludingRemovedBy(sc);
     }
+
+    @Override
+    public long getConfigGeneration(final long routerId) {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            final PreparedStatement pstmt = txn.prepareAutoCloseStatement(GET_CONFIG_GENERATION);
+            pstmt.setLong(1, routerId);
+            final ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + GET_CONFIG_GENERATION, e);
+        }
+    }
+
+    @Override
+    public boolean updateConfigGeneration(final long routerId, final long generation) {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            final PreparedStatement pstmt = txn.prepareAutoCloseStatement(UPDATE_CONFIG_GENERATION);
+            pstmt.setLong(1, routerId);
+            pstmt.setLong(2, generation);
+            return pstmt.executeUpdate() > 0;
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + UPDATE_CONFIG_GENERATION, e);
+        }
+    }
+
+    @Override
+    public void bumpConfigGeneration(final long routerId) {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            final PreparedStatement pstmt = txn.prepareAutoCloseStatement(BUMP_CONFIG_GENERATION);
+            pstmt.setLong(1, routerId);
+            pstmt.executeUpdate();
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + BUMP_CONFIG_GENERATION, e);
+        }
+    }
+
+    @Override
+    public void bumpAllConfigGenerations() {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            final PreparedStatement pstmt = txn.prepareAutoCloseStatement(BUMP_ALL_CONFIG_GENERATIONS);
+            pstmt.executeUpdate();
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + BUMP_ALL_CONFIG_GENERATIONS, e);
+        }
+    }
 }
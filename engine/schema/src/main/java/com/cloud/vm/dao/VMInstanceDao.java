@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.vm.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -88,6 +89,8 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     VMInstanceVO findVMByInstanceNameIncludingRemoved(String name);
 
+    List<VMInstanceVO> listByInstanceNames(Collection<String> names);
+
     VMInstanceVO findVMByHostName(String hostName);
 
     void updateProxyId(long id, Long proxyId, Date time);
@@ -147,6 +150,13 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     boolean updatePowerState(long instanceId, long powerHostId, VirtualMachine.PowerState powerState, Date wisdomEra);
 
+    /**
+     * Bulk version of updatePowerState, reads all the instances at once and applies the updates
+     * with one compare-and-set statement per kind of change.
+     * @return ids of the instances whose power state record was updated.
+     */
+    List<Long> updatePowerStates(long powerHostId, Map<Long, VirtualMachine.PowerState> powerStates, Date wisdomEra);
+
     void resetVmPowerStateTracking(long instanceId);
 
     void resetHostPowerStateTracking(long hostId);
@@ -157,5 +167,7 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     boolean isPowerStateUpToDate(long instanceId);
 
+    boolean isPowerStateUpToDate(VMInstanceVO instance);
+
     List<VMInstanceVO> listNonMigratingVmsByHostEqualsLastHost(long hostId);
 }
@@ -20,6 +20,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -83,6 +85,10 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected SearchBuilder<VMInstanceVO> HostIdUpTypesSearch;
     protected SearchBuilder<VMInstanceVO> HostUpSearch;
     protected SearchBuilder<VMInstanceVO> InstanceNameSearch;
+    protected SearchBuilder<VMInstanceVO> InstanceNamesSearch;
+    protected SearchBuilder<VMInstanceVO> IdsSearch;
+    protected SearchBuilder<VMInstanceVO> PowerStateChangeSearch;
+    protected SearchBuilder<VMInstanceVO> PowerStateCountSearch;
     protected SearchBuilder<VMInstanceVO> HostNameSearch;
     protected SearchBuilder<VMInstanceVO> HostNameAndZoneSearch;
     protected GenericSearchBuilder<VMInstanceVO, Long> FindIdsOfVirtualRoutersByAccount;
@@ -225,6 +231,31 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         InstanceNameSearch.and("instanceName", InstanceNameSearch.entity().getInstanceName(), Op.EQ);
         InstanceNameSearch.done();
 
+        InstanceNamesSearch = createSearchBuilder();
+        InstanceNamesSearch.and("instanceNames", InstanceNamesSearch.entity().getInstanceName(), Op.IN);
+        InstanceNamesSearch.done();
+
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), Op.IN);
+        IdsSearch.done();
+
+        PowerStateChangeSearch = createSearchBuilder();
+        PowerStateChangeSearch.and("ids", PowerStateChangeSearch.entity().getId(), Op.IN);
+        PowerStateChangeSearch.and().op("updateTimeNull", PowerStateChangeSearch.entity().getPowerStateUpdateTime(), Op.NULL);
+        PowerStateChangeSearch.or("updateTime", PowerStateChangeSearch.entity().getPowerStateUpdateTime(), Op.LT);
+        PowerStateChangeSearch.cp();
+        PowerStateChangeSearch.done();
+
+        PowerStateCountSearch = createSearchBuilder();
+        PowerStateCountSearch.and("ids", PowerStateCountSearch.entity().getId(), Op.IN);
+        PowerStateCountSearch.and("powerState", PowerStateCountSearch.entity().getPowerState(), Op.EQ);
+        PowerStateCountSearch.and("powerHostId", PowerStateCountSearch.entity().getPowerHostId(), Op.EQ);
+        PowerStateCountSearch.and("updateCount", PowerStateCountSearch.entity().getPowerStateUpdateCount(), Op.EQ);
+        PowerStateCountSearch.and().op("updateTimeNull", PowerStateCountSearch.entity().getPowerStateUpdateTime(), Op.NULL);
+        PowerStateCountSearch.or("updateTime", PowerStateCountSearch.entity().getPowerStateUpdateTime(), Op.LT);
+        PowerStateCountSearch.cp();
+        PowerStateCountSearch.done();
+
         HostNameSearch = createSearchBuilder();
         HostNameSearch.and("hostName", HostNameSearch.entity().getHostName(), Op.EQ);
         HostNameSearch.done();
@@ -463,6 +494,16 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return findOneBy(sc);
     }
 
+    @Override
+    public List<VMInstanceVO> listByInstanceNames(Collection<String> names) {
+        if (names == null || names.isEmpty()) {
+            return Collections.emptyList();
+        }
+        SearchCriteria<VMInstanceVO> sc = InstanceNamesSearch.create();
+        sc.setParameters("instanceNames", names.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public VMInstanceVO findVMByInstanceNameIncludingRemoved(String name) {
         SearchCriteria<VMInstanceVO> sc = InstanceNameSearch.create();
@@ -899,12 +940,110 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         });
     }
 
+    @Override
+    public List<Long> updatePowerStates(final long powerHostId, final Map<Long, VirtualMachine.PowerState> powerStates, final Date wisdomEra) {
+        if (powerStates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Transaction.execute(new TransactionCallback<List<Long>>() {
+            @Override
+            public List<Long> doInTransaction(TransactionStatus status) {
+                SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+                sc.setParameters("ids", powerStates.keySet().toArray());
+                List<VMInstanceVO> instances = listBy(sc);
+
+                // same decision as updatePowerState, grouped so that each group is a single statement
+                Map<VirtualMachine.PowerState, List<Long>> changed = new HashMap<VirtualMachine.PowerState, List<Long>>();
+                Map<Pair<VirtualMachine.PowerState, Integer>, List<Long>> sameState = new HashMap<Pair<VirtualMachine.PowerState, Integer>, List<Long>>();
+                for (VMInstanceVO instance : instances) {
+                    if (instance.getPowerStateUpdateTime() != null && !instance.getPowerStateUpdateTime().before(wisdomEra)) {
+                        continue;
+                    }
+                    VirtualMachine.PowerState powerState = powerStates.get(instance.getId());
+                    Long savedPowerHostId = instance.getPowerHostId();
+                    if (instance.getPowerState() != powerState || savedPowerHostId == null || savedPowerHostId.longValue() != powerHostId) {
+                        List<Long> ids = changed.get(powerState);
+                        if (ids == null) {
+                            ids = new ArrayList<Long>();
+                            changed.put(powerState, ids);
+                        }
+                        ids.add(instance.getId());
+                    } else if (instance.getPowerStateUpdateCount() < MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT) {
+                        Pair<VirtualMachine.PowerState, Integer> key = new Pair<VirtualMachine.PowerState, Integer>(powerState, instance.getPowerStateUpdateCount());
+                        List<Long> ids = sameState.get(key);
+                        if (ids == null) {
+                            ids = new ArrayList<Long>();
+                            sameState.put(key, ids);
+                        }
+                        ids.add(instance.getId());
+                    }
+                }
+
+                // the where clauses repeat the conditions checked above, so a row changed by someone else
+                // in the meantime is left alone
+                List<Long> updated = new ArrayList<Long>();
+                for (Map.Entry<VirtualMachine.PowerState, List<Long>> entry : changed.entrySet()) {
+                    SearchCriteria<VMInstanceVO> changeSc = PowerStateChangeSearch.create();
+                    changeSc.setParameters("ids", entry.getValue().toArray());
+                    changeSc.setParameters("updateTime", wisdomEra);
+
+                    VMInstanceVO instance = createForUpdate();
+                    instance.setPowerState(entry.getKey());
+                    instance.setPowerHostId(powerHostId);
+                    instance.setPowerStateUpdateCount(1);
+                    instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
+                    int rows = update(instance, changeSc);
+                    updated.addAll(rows == entry.getValue().size() ? entry.getValue() : listPowerStateUpdated(entry.getValue(), entry.getKey(), powerHostId, 1));
+                }
+                for (Map.Entry<Pair<VirtualMachine.PowerState, Integer>, List<Long>> entry : sameState.entrySet()) {
+                    SearchCriteria<VMInstanceVO> countSc = PowerStateCountSearch.create();
+                    countSc.setParameters("ids", entry.getValue().toArray());
+                    countSc.setParameters("powerState", entry.getKey().first());
+                    countSc.setParameters("powerHostId", powerHostId);
+                    countSc.setParameters("updateCount", entry.getKey().second());
+                    countSc.setParameters("updateTime", wisdomEra);
+
+                    VMInstanceVO instance = createForUpdate();
+                    instance.setPowerStateUpdateCount(entry.getKey().second() + 1);
+                    instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
+                    int rows = update(instance, countSc);
+                    updated.addAll(rows == entry.getValue().size() ? entry.getValue()
+                            : listPowerStateUpdated(entry.getValue(), entry.getKey().first(), powerHostId, entry.getKey().second() + 1));
+                }
+                return updated;
+            }
+        });
+    }
+
+    /**
+     * Re-reads the vms of a conditional power state update some rows of which were left alone, having
+     * been changed by someone else in the meantime.
+     * @return the ids of the vms holding the values written by the update.
+     */
+    private List<Long> listPowerStateUpdated(List<Long> ids, VirtualMachine.PowerState powerState, long powerHostId, int updateCount) {
+        SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+        sc.setParameters("ids", ids.toArray());
+        List<Long> updated = new ArrayList<Long>();
+        for (VMInstanceVO instance : listBy(sc)) {
+            if (instance.getPowerState() == powerState && instance.getPowerHostId() != null && instance.getPowerHostId().longValue() == powerHostId
+                    && instance.getPowerStateUpdateCount() == updateCount) {
+                updated.add(instance.getId());
+            }
+        }
+        return updated;
+    }
+
     @Override
     public boolean isPowerStateUpToDate(final long instanceId) {
         VMInstanceVO instance = findById(instanceId);
         if(instance == null) {
             throw new CloudRuntimeException("checking power state update count on non existing instance " + instanceId);
         }
+        return isPowerStateUpToDate(instance);
+    }
+
+    @Override
+    public boolean isPowerStateUpToDate(final VMInstanceVO instance) {
         return instance.getPowerStateUpdateCount() < MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT;
     }
 
@@ -194,3 +194,6 @@ INSERT IGNORE INTO `cloud`.`hypervisor_capabilities`(uuid, hypervisor_type, hype
 
 -- Copy XenServer 8.0 hypervisor guest OS mappings to XenServer8.1
 INSERT IGNORE INTO `cloud`.`guest_os_hypervisor` (uuid,hypervisor_type, hypervisor_version, guest_os_name, guest_os_id, created, is_user_defined) SELECT UUID(),'Xenserver', '8.1.0', guest_os_name, guest_os_id, utc_timestamp(), 0 FROM `cloud`.`guest_os_hypervisor` WHERE hypervisor_type='Xenserver' AND hypervisor_version='8.0.0';
+
+-- Generation of the configuration applied on a router, shared by all management servers
+ALTER TABLE `cloud`.`domain_router` ADD COLUMN `config_generation` bigint unsigned NOT NULL DEFAULT 0 COMMENT 'bumped whenever configuration is applied to the router or its state changes';
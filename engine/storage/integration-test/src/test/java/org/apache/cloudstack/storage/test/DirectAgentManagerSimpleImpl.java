@@ -21,7 +21,9 @@ package org.apache.cloudstack.storage.test;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -212,6 +214,18 @@ public class DirectAgentManagerSimpleImpl extends ManagerBase implements AgentMa
         return 0;
     }
 
+    @Override
+    public Future<Answer> sendPipelined(Long hostId, Command cmd) throws AgentUnavailableException {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
+    @Override
+    public List<Future<Answer>> sendPipelined(Long hostId, Commands cmds) throws AgentUnavailableException {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     @Override
     public int registerForHostEvents(Listener listener, boolean connections, boolean commands, boolean priority) {
         // TODO Auto-generated method stub
@@ -375,6 +375,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
     }
 
+    @Override
     public void executeAsync(final String strPeer, final long agentId, final String cmds, final boolean stopOnError) {
         final ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(getSelfPeerName());
@@ -31,4 +31,12 @@ public interface ConfigDepot {
     <T> void set(ConfigKey<T> key, T value);
 
     <T> void createOrUpdateConfigObject(String componentName, ConfigKey<T> key, String value);
+
+    /**
+     * Drops the cached global and scoped values of the given key, the next read goes to the database.
+     * @param key name of the configuration
+     */
+    void invalidateCachedValues(String key);
+
+    void invalidateAllCachedValues();
 }
@@ -137,29 +137,41 @@ public class ConfigKey<T> {
         throw new CloudRuntimeException("Comparing ConfigKey to " + obj.toString());
     }
 
+    @SuppressWarnings("unchecked")
     public T value() {
         if (_value == null || isDynamic()) {
-            ConfigurationVO vo = s_depot != null ? s_depot.global().findById(key()) : null;
-            final String value = (vo != null && vo.getValue() != null) ? vo.getValue() : defaultValue();
-            _value = ((value == null) ? (T)defaultValue() : valueOf(value));
+            _value = s_depot != null ? (T)s_depot.getCachedValue(this, null, this::loadGlobalValue) : loadGlobalValue();
         }
 
         return _value;
     }
 
+    @SuppressWarnings("unchecked")
     public T valueIn(Long id) {
         if (id == null) {
             return value();
         }
 
-        String value = s_depot != null ? s_depot.findScopedConfigStorage(this).getConfigValue(id, this) : null;
+        T value = s_depot != null ? (T)s_depot.getCachedValue(this, id, () -> loadScopedValue(id)) : null;
         if (value == null) {
             return value();
         } else {
-            return valueOf(value);
+            return value;
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private T loadGlobalValue() {
+        ConfigurationVO vo = s_depot != null ? s_depot.global().findById(key()) : null;
+        final String value = (vo != null && vo.getValue() != null) ? vo.getValue() : defaultValue();
+        return ((value == null) ? (T)defaultValue() : valueOf(value));
+    }
+
+    private T loadScopedValue(long id) {
+        String value = s_depot.findScopedConfigStorage(this).getConfigValue(id, this);
+        return value == null ? null : valueOf(value);
+    }
+
     @SuppressWarnings("unchecked")
     protected T valueOf(String value) {
         Number multiplier = 1;
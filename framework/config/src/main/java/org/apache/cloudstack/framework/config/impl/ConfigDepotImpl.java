@@ -22,7 +22,11 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -38,6 +42,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.utils.Pair;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 
 /**
  * ConfigDepotImpl implements the ConfigDepot and ConfigDepotAdmin interface.
@@ -68,6 +73,21 @@ import com.cloud.utils.exception.CloudRuntimeException;
  */
 public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
     private final static Logger s_logger = Logger.getLogger(ConfigDepotImpl.class);
+
+    /**
+     * Upper bound on how long a cached value is served without going back to the database.
+     * Values changed through updateConfiguration are invalidated immediately on every
+     * management server; the expiry only covers rows changed behind our back.
+     */
+    protected static final long CONFIG_CACHE_EXPIRE_MS = 30000L;
+    /**
+     * Upper bound on the number of scopes a value is cached for per key.  The keys are a fixed
+     * set, the scopes (accounts in particular) are not.
+     */
+    protected static final int CONFIG_CACHE_MAX_SCOPES = 1000;
+    private static final Object NULL_VALUE = new Object();
+    private static final Long GLOBAL_SCOPE_ID = -1L;
+
     @Inject
     ConfigurationDao _configDao;
     List<Configurable> _configurables;
@@ -78,9 +98,32 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
 
     HashMap<ConfigKey.Scope, Set<ConfigKey<?>>> _scopeLevelConfigsMap = new HashMap<ConfigKey.Scope, Set<ConfigKey<?>>>();
 
+    // config key name -> scope id (GLOBAL_SCOPE_ID for global values) -> parsed value
+    private final Map<String, Map<Long, CachedValue>> _valueCache = new ConcurrentHashMap<String, Map<Long, CachedValue>>();
+    private final AtomicLong _cacheHits = new AtomicLong();
+    private final AtomicLong _cacheMisses = new AtomicLong();
+    // bumped by every invalidation, so that a value loaded before the invalidation is not cached after it
+    private final AtomicLong _cacheGeneration = new AtomicLong();
+
+    private static class CachedValue {
+        final Object value;
+        final long expireAt;
+
+        CachedValue(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
     public ConfigDepotImpl() {
         ConfigKey.init(this);
         createEmptyScopeLevelMappings();
+
+        try {
+            JmxUtil.registerMBean("ConfigDepot", "ValueCache", new ConfigDepotMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the configuration value cache for JMX", e);
+        }
     }
 
     /**
@@ -212,11 +255,81 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
     @Override
     public <T> void set(ConfigKey<T> key, T value) {
         _configDao.update(key.key(), value.toString());
+        invalidateCachedValues(key.key());
+    }
+
+    /**
+     * Returns the cached parsed value of the key for the given scope, loading and caching it
+     * on a miss.
+     * @param key config key being read
+     * @param scopeId id of the zone/cluster/account/... the value is scoped to, or null for the global value
+     * @param loader reads and parses the value from the backing storage, may return null
+     */
+    public Object getCachedValue(ConfigKey<?> key, Long scopeId, Supplier<?> loader) {
+        final Long cacheScopeId = scopeId == null ? GLOBAL_SCOPE_ID : scopeId;
+        final Map<Long, CachedValue> scopedValues = _valueCache.computeIfAbsent(key.key(), k -> new ConcurrentHashMap<Long, CachedValue>());
+
+        final long now = System.currentTimeMillis();
+        final CachedValue cached = scopedValues.get(cacheScopeId);
+        if (cached != null && cached.expireAt > now) {
+            _cacheHits.incrementAndGet();
+            return cached.value == NULL_VALUE ? null : cached.value;
+        }
+
+        _cacheMisses.incrementAndGet();
+        final long generation = _cacheGeneration.get();
+        final Object value = loader.get();
+        if (_cacheGeneration.get() == generation && hasRoomFor(scopedValues, cacheScopeId, now)) {
+            scopedValues.put(cacheScopeId, new CachedValue(value == null ? NULL_VALUE : value, now + CONFIG_CACHE_EXPIRE_MS));
+        }
+        return value;
+    }
+
+    /**
+     * Tells whether a value of the scope can be cached, dropping the expired values of the key once
+     * it holds CONFIG_CACHE_MAX_SCOPES of them
+     */
+    private boolean hasRoomFor(Map<Long, CachedValue> scopedValues, Long cacheScopeId, long now) {
+        if (scopedValues.size() < CONFIG_CACHE_MAX_SCOPES || scopedValues.containsKey(cacheScopeId)) {
+            return true;
+        }
+        scopedValues.values().removeIf(cached -> cached.expireAt <= now);
+        return scopedValues.size() < CONFIG_CACHE_MAX_SCOPES;
+    }
+
+    @Override
+    public void invalidateCachedValues(String key) {
+        _cacheGeneration.incrementAndGet();
+        if (_valueCache.remove(key) != null && s_logger.isDebugEnabled()) {
+            s_logger.debug("Invalidated cached values of configuration " + key);
+        }
+    }
+
+    @Override
+    public void invalidateAllCachedValues() {
+        _cacheGeneration.incrementAndGet();
+        _valueCache.clear();
+    }
+
+    public int getCacheSize() {
+        int size = 0;
+        for (Map<Long, CachedValue> scopedValues : _valueCache.values()) {
+            size += scopedValues.size();
+        }
+        return size;
+    }
+
+    public long getCacheHits() {
+        return _cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return _cacheMisses.get();
     }
 
     @Override
     public <T> void createOrUpdateConfigObject(String componentName, ConfigKey<T> key, String value) {
         createOrupdateConfigObject(new Date(), componentName, key, value);
-
+        invalidateCachedValues(key.key());
     }
 }
@@ -18,6 +18,8 @@
 //
 package org.apache.cloudstack.framework.config.impl;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.junit.Assert;
 import org.junit.Test;
@@ -40,4 +42,78 @@ public class ConfigDepotImplTest {
         }
     }
 
+    @Test
+    public void getCachedValueTest() {
+        ConfigKey<Integer> key = new ConfigKey<Integer>("Advanced", Integer.class, "cache.test.key", "10", "test key", true, ConfigKey.Scope.Zone);
+        AtomicInteger loads = new AtomicInteger();
+        long hits = configDepotImpl.getCacheHits();
+        long misses = configDepotImpl.getCacheMisses();
+
+        Assert.assertEquals(10, configDepotImpl.getCachedValue(key, null, () -> 10 + loads.getAndIncrement()));
+        Assert.assertEquals(10, configDepotImpl.getCachedValue(key, null, () -> 10 + loads.getAndIncrement()));
+        Assert.assertNull(configDepotImpl.getCachedValue(key, 1L, () -> { loads.getAndIncrement(); return null; }));
+        Assert.assertNull(configDepotImpl.getCachedValue(key, 1L, () -> { loads.getAndIncrement(); return null; }));
+
+        Assert.assertEquals(2, loads.get());
+        Assert.assertEquals(hits + 2, configDepotImpl.getCacheHits());
+        Assert.assertEquals(misses + 2, configDepotImpl.getCacheMisses());
+    }
+
+    @Test
+    public void invalidateCachedValuesTest() {
+        ConfigKey<Integer> key = new ConfigKey<Integer>("Advanced", Integer.class, "cache.invalidate.key", "10", "test key", true, ConfigKey.Scope.Zone);
+        configDepotImpl.getCachedValue(key, null, () -> 10);
+        configDepotImpl.getCachedValue(key, 1L, () -> 20);
+
+        configDepotImpl.invalidateCachedValues(key.key());
+
+        Assert.assertEquals(11, configDepotImpl.getCachedValue(key, null, () -> 11));
+        Assert.assertEquals(21, configDepotImpl.getCachedValue(key, 1L, () -> 21));
+    }
+
+    @Test
+    public void configDepotMBeanTest() {
+        ConfigDepotMBeanImpl mbean = new ConfigDepotMBeanImpl(configDepotImpl);
+        ConfigKey<Integer> key = new ConfigKey<Integer>("Advanced", Integer.class, "cache.mbean.key", "10", "test key", true, ConfigKey.Scope.Zone);
+        configDepotImpl.invalidateAllCachedValues();
+        long hits = mbean.getHitCount();
+        long misses = mbean.getMissCount();
+
+        configDepotImpl.getCachedValue(key, null, () -> 10);
+        configDepotImpl.getCachedValue(key, 1L, () -> 20);
+        configDepotImpl.getCachedValue(key, 1L, () -> 20);
+
+        Assert.assertEquals(2, mbean.getSize());
+        Assert.assertEquals(hits + 1, mbean.getHitCount());
+        Assert.assertEquals(misses + 2, mbean.getMissCount());
+
+        mbean.clear();
+        Assert.assertEquals(0, mbean.getSize());
+    }
+
+    @Test
+    public void getCachedValueLoadRacingInvalidationTest() {
+        ConfigKey<Integer> key = new ConfigKey<Integer>("Advanced", Integer.class, "cache.race.key", "10", "test key", true, ConfigKey.Scope.Zone);
+
+        // the value is changed and invalidated while the old one is being loaded
+        Assert.assertEquals(10, configDepotImpl.getCachedValue(key, null, () -> {
+            configDepotImpl.invalidateCachedValues(key.key());
+            return 10;
+        }));
+
+        Assert.assertEquals(11, configDepotImpl.getCachedValue(key, null, () -> 11));
+    }
+
+    @Test
+    public void getCachedValueBoundedScopesTest() {
+        ConfigKey<Integer> key = new ConfigKey<Integer>("Advanced", Integer.class, "cache.bounded.key", "10", "test key", true, ConfigKey.Scope.Account);
+        configDepotImpl.invalidateAllCachedValues();
+        for (long scopeId = 0; scopeId < ConfigDepotImpl.CONFIG_CACHE_MAX_SCOPES + 10; scopeId++) {
+            configDepotImpl.getCachedValue(key, scopeId, () -> 10);
+        }
+
+        Assert.assertEquals(ConfigDepotImpl.CONFIG_CACHE_MAX_SCOPES, configDepotImpl.getCacheSize());
+        Assert.assertEquals(20, configDepotImpl.getCachedValue(key, ConfigDepotImpl.CONFIG_CACHE_MAX_SCOPES + 5L, () -> 20));
+    }
+
 }
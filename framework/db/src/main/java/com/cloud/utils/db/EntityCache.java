@@ -0,0 +1,52 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * EntityCache turns on the entity cache of a GenericDaoBase subclass, so
+ * findById() is served from memory.  Entities are dropped from the cache when
+ * they are updated, removed or expunged through any DAO over the same tables,
+ * on this management server and, through the EntityCacheListener, on its
+ * peers.  Only meant for read mostly tables whose rows are not changed by
+ * hand written SQL, since such changes only show up once the entry expires.
+ */
+@Target(TYPE)
+@Retention(RUNTIME)
+@Inherited
+public @interface EntityCache {
+    /**
+     * @return maximum number of entities kept.
+     */
+    int size() default 1000;
+
+    /**
+     * @return seconds an entity is kept after it was loaded, -1 to keep it until it is evicted.
+     */
+    int timeToLive() default 300;
+
+    /**
+     * @return seconds an entity is kept after it was last read.
+     */
+    int timeToIdle() default 300;
+}
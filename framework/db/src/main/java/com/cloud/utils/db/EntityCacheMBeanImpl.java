@@ -0,0 +1,66 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import javax.management.StandardMBean;
+
+public class EntityCacheMBeanImpl extends StandardMBean implements EntityCacheMBean {
+
+    private final GenericDaoBase<?, ?> _dao;
+
+    public EntityCacheMBeanImpl(GenericDaoBase<?, ?> dao) {
+        super(EntityCacheMBean.class, false);
+        _dao = dao;
+    }
+
+    @Override
+    public String getName() {
+        return _dao.getName();
+    }
+
+    @Override
+    public int getSize() {
+        return _dao._cache != null ? _dao._cache.getSize() : 0;
+    }
+
+    @Override
+    public long getHitCount() {
+        return _dao._cacheHits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return _dao._cacheMisses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return _dao._cacheInvalidations.get();
+    }
+
+    @Override
+    public void clear() {
+        _dao.dropFromCache(null);
+    }
+}
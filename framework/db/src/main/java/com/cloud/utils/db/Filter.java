@@ -19,6 +19,7 @@ package com.cloud.utils.db;
 import java.lang.reflect.Field;
 
 import javax.persistence.Column;
+import javax.persistence.Table;
 
 import com.cloud.utils.Pair;
 import com.cloud.utils.ReflectUtil;
@@ -72,7 +73,10 @@ public class Filter {
         Field f;
         Pair<Class<?>, Field> pair = ReflectUtil.getAnyField(clazz, field);
         assert (pair != null) : "Can't find field " + field + " in " + clazz.getName();
-        clazz = pair.first();
+        // fields inherited from a mapped superclass belong to the table of the VO itself
+        if (pair.first().isAnnotationPresent(Table.class)) {
+            clazz = pair.first();
+        }
         f = pair.second();
 
         Column column = f.getAnnotation(Column.class);
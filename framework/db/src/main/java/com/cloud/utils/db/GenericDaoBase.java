@@ -40,11 +40,15 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.ConfigurationException;
 import javax.persistence.AttributeOverride;
@@ -68,6 +72,7 @@ import com.cloud.utils.component.ComponentMethodInterceptable;
 import com.cloud.utils.crypt.DBEncryptionUtil;
 import com.cloud.utils.db.SearchCriteria.SelectType;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 import com.google.common.base.Strings;
@@ -809,14 +814,23 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Unable to persist element collection", e);
         }
 
-        int rowsUpdated = update(ub, sc, null);
+        int rowsUpdated = updateRows(ub, sc, null);
 
         txn.commit();
+        invalidateCachedEntity(id);
 
         return rowsUpdated;
     }
 
     public int update(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
+        int rowsUpdated = updateRows(ub, sc, rows);
+        if (rowsUpdated > 0) {
+            invalidateCachedEntity(null);
+        }
+        return rowsUpdated;
+    }
+
+    private int updateRows(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
         StringBuilder sql = null;
         PreparedStatement pstmt = null;
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
@@ -960,13 +974,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     public T findById(final ID id) {
         T result = null;
         if (_cache != null) {
-            final Element element = _cache.get(id);
-            if (element == null) {
-                result = lockRow(id, null);
-            } else {
-                result = (T)element.getObjectValue();
-            }
-        } else {
+            result = getCachedEntity(id, false);
+        }
+        if (result == null) {
             result = lockRow(id, null);
         }
         return result;
@@ -993,13 +1003,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     public T findByIdIncludingRemoved(final ID id) {
         T result = null;
         if (_cache != null) {
-            final Element element = _cache.get(id);
-            if (element == null) {
-                result = findById(id, true, null);
-            } else {
-                result = (T)element.getObjectValue();
-            }
-        } else {
+            result = getCachedEntity(id, true);
+        }
+        if (result == null) {
             result = findById(id, true, null);
         }
         return result;
@@ -1012,9 +1018,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             return findById(id);
         }
 
-        if (_cache != null) {
-            _cache.remove(id);
-        }
+        dropFromCache(id);
         return lockRow(id, null);
     }
 
@@ -1205,9 +1209,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCachedEntity(id);
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1239,7 +1241,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            final int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateCachedEntity(null);
+            }
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1659,9 +1665,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
         toEntityBean(result, entity);
 
-        if (cache && _cache != null) {
+        if (cache && _cache != null && isCacheFillable()) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(new Element(_idField.get(entity), copyOf(entity)));
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1681,9 +1687,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Illegal Access", e1);
         }
         toEntityBean(result, entity);
-        if (cache && _cache != null) {
+        if (cache && _cache != null && isCacheFillable()) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(new Element(_idField.get(entity), copyOf(entity)));
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1814,9 +1820,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
             final int result = pstmt.executeUpdate();
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCachedEntity(id);
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1857,9 +1861,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
             final int result = pstmt.executeUpdate();
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCachedEntity(id);
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1880,24 +1882,210 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     protected Cache _cache;
+    final AtomicLong _cacheHits = new AtomicLong();
+    final AtomicLong _cacheMisses = new AtomicLong();
+    final AtomicLong _cacheInvalidations = new AtomicLong();
+
+    // DAOs with an entity cache, by the tables their entities are stored in
+    private static final Map<String, List<GenericDaoBase<?, ?>>> s_cachedDaos = new ConcurrentHashMap<String, List<GenericDaoBase<?, ?>>>();
+    private static volatile EntityCacheListener s_entityCacheListener;
 
     @DB()
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
+        final EntityCache annotation = getClass().getAnnotation(EntityCache.class);
 
-        if (value != null) {
+        if (value != null || annotation != null) {
             final CacheManager cm = CacheManager.create();
-            final int maxElements = NumbersUtil.parseInt(value, 0);
-            final int live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
-            final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
+            final int maxElements;
+            final int live;
+            final int idle;
+            if (value != null) {
+                maxElements = NumbersUtil.parseInt(value, 0);
+                live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
+                idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
+            } else {
+                maxElements = annotation.size();
+                live = annotation.timeToLive();
+                idle = annotation.timeToIdle();
+            }
             _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
             cm.addCache(_cache);
             s_logger.info("Cache created: " + _cache.toString());
+
+            for (final String table : _idAttributes.keySet()) {
+                List<GenericDaoBase<?, ?>> daos = s_cachedDaos.get(table);
+                if (daos == null) {
+                    s_cachedDaos.putIfAbsent(table, new CopyOnWriteArrayList<GenericDaoBase<?, ?>>());
+                    daos = s_cachedDaos.get(table);
+                }
+                daos.add(this);
+            }
+
+            try {
+                JmxUtil.registerMBean("EntityCache", getName(), new EntityCacheMBeanImpl(this));
+            } catch (final Exception e) {
+                s_logger.warn("Unable to register entity cache of " + getName() + " for JMX", e);
+            }
         } else {
             _cache = null;
         }
     }
 
+    public static void setEntityCacheListener(final EntityCacheListener listener) {
+        s_entityCacheListener = listener;
+    }
+
+    /**
+     * Drops an entity from the caches of every DAO over the tables, on this management server only.
+     * @param id id of the entity, null to drop every entity of the tables.
+     * @return true if a DAO caches entities of the tables.
+     */
+    public static boolean invalidateEntityCaches(final Collection<String> tables, final Object id) {
+        final Set<GenericDaoBase<?, ?>> daos = new HashSet<GenericDaoBase<?, ?>>();
+        for (final String table : tables) {
+            final List<GenericDaoBase<?, ?>> cached = s_cachedDaos.get(table);
+            if (cached != null) {
+                daos.addAll(cached);
+            }
+        }
+        for (final GenericDaoBase<?, ?> dao : daos) {
+            dao.dropFromCache(id);
+        }
+        return !daos.isEmpty();
+    }
+
+    /**
+     * Drops an entity of this DAO from the entity caches here and on the peer management servers.
+     * @param id id of the entity, null to drop every entity of the tables of this DAO.
+     */
+    protected void invalidateCachedEntity(final Object id) {
+        invalidateEntityCachesInCluster(_idAttributes.keySet(), id);
+    }
+
+    /**
+     * Drops an entity from the caches of every DAO over the tables here and on the peer management servers,
+     * for changes made without going through the DAO.
+     */
+    public static void invalidateEntityCachesInCluster(final Collection<String> tables, final Object id) {
+        // right away so that the transaction making the change doesn't read the cached entity
+        if (!invalidateEntityCaches(tables, id)) {
+            return;
+        }
+        final Runnable invalidation = new Runnable() {
+            @Override
+            public void run() {
+                // again, as the entity may have been read and cached by others before the change was committed
+                invalidateEntityCaches(tables, id);
+                final EntityCacheListener listener = s_entityCacheListener;
+                if (listener != null) {
+                    listener.onEntityCacheInvalidated(tables, id);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "entity cache invalidation of " + tables + " " + id;
+            }
+        };
+        TransactionLegacy.afterCommit(invalidation);
+    }
+
+    /**
+     * Entities read within a transaction may hold changes that are not committed yet, they are not cached.
+     */
+    private static boolean isCacheFillable() {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn(false);
+        return txn == null || !txn.dbTxnStarted();
+    }
+
+    /**
+     * A transaction that changed cached entities reads them from the database, as others may have cached them meanwhile.
+     */
+    private static boolean isCacheReadable() {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn(false);
+        return txn == null || !txn.hasAfterCommitActions();
+    }
+
+    void dropFromCache(final Object id) {
+        if (_cache == null) {
+            return;
+        }
+        _cacheInvalidations.incrementAndGet();
+        if (id == null) {
+            _cache.removeAll();
+        } else {
+            _cache.remove(toCacheKey(id));
+        }
+    }
+
+    /**
+     * Ids coming from the peers are strings, turns them back into the type of the id field.
+     */
+    private Object toCacheKey(final Object id) {
+        if (!(id instanceof String) || _idField == null) {
+            return id;
+        }
+        final Class<?> type = _idField.getType();
+        if (type == Long.class || type == long.class) {
+            return Long.valueOf((String)id);
+        } else if (type == Integer.class || type == int.class) {
+            return Integer.valueOf((String)id);
+        }
+        return id;
+    }
+
+    /**
+     * @return a copy of the cached entity, so callers can't change the cached one, or null if it isn't cached.
+     */
+    @SuppressWarnings("unchecked")
+    protected T getCachedEntity(final ID id, final boolean includingRemoved) {
+        if (!isCacheReadable()) {
+            _cacheMisses.incrementAndGet();
+            return null;
+        }
+        final Element element = _cache.get(id);
+        if (element == null) {
+            _cacheMisses.incrementAndGet();
+            return null;
+        }
+        final T entity = (T)element.getObjectValue();
+        try {
+            if (!includingRemoved && _removed != null && _removed.second().field.get(entity) != null) {
+                // only cached because it was read including removed ones
+                _cacheMisses.incrementAndGet();
+                return null;
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to read " + _removed.second().field.getName() + " of " + entity, e);
+        }
+        _cacheHits.incrementAndGet();
+        return copyOf(entity);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected T copyOf(final T entity) {
+        final T copy = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+        try {
+            for (final Attribute attr : _allAttributes.values()) {
+                if (attr.field != null && attr.field.getDeclaringClass().isInstance(copy)) {
+                    attr.field.set(copy, attr.field.get(entity));
+                }
+            }
+            for (final Attribute attr : _ecAttributes) {
+                final Object value = attr.field.get(entity);
+                if (value instanceof List) {
+                    attr.field.set(copy, new ArrayList<Object>((List<?>)value));
+                } else if (value instanceof Set) {
+                    attr.field.set(copy, new HashSet<Object>((Set<?>)value));
+                }
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to copy " + entity, e);
+        }
+        return copy;
+    }
+
     @Override
     @DB()
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
@@ -0,0 +1,152 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LocalLockTable keeps an in-process lock per lock name so that threads of
+ * the same management server contending for a cluster lock queue up in memory
+ * instead of polling op_lock.  Only the thread winning the local lock talks
+ * to the cluster wide lock, and reentrant acquisitions never leave the
+ * process.  The table is striped by name hash so unrelated names don't
+ * contend on the same monitor, entries are reference counted and dropped
+ * once nobody holds or waits for them.
+ */
+public class LocalLockTable {
+    private static final int STRIPES = 64;
+
+    private final Map<String, LocalLock>[] _stripes;
+
+    @SuppressWarnings("unchecked")
+    public LocalLockTable() {
+        _stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            _stripes[i] = new HashMap<String, LocalLock>();
+        }
+    }
+
+    private Map<String, LocalLock> stripe(final String key) {
+        return _stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * @return the lock for the name with an extra reference, which must be given back with unref().
+     */
+    public LocalLock ref(final String key) {
+        final Map<String, LocalLock> stripe = stripe(key);
+        synchronized (stripe) {
+            LocalLock lock = stripe.get(key);
+            if (lock == null) {
+                lock = new LocalLock(key);
+                stripe.put(key, lock);
+            }
+            lock._refs++;
+            return lock;
+        }
+    }
+
+    public void unref(final LocalLock lock) {
+        final Map<String, LocalLock> stripe = stripe(lock.getKey());
+        synchronized (stripe) {
+            if (--lock._refs <= 0) {
+                stripe.remove(lock.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return the lock for the name if somebody holds or waits for it, null otherwise.
+     */
+    public LocalLock get(final String key) {
+        final Map<String, LocalLock> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Map<String, LocalLock> stripe : _stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public static class LocalLock {
+        private final String _key;
+        private final ReentrantLock _lock = new ReentrantLock();
+        private int _refs;
+        private long _acquiredAt;
+
+        protected LocalLock(final String key) {
+            _key = key;
+        }
+
+        public String getKey() {
+            return _key;
+        }
+
+        /**
+         * Waits at most timeoutMillis for the lock, an interrupt is remembered and ends the wait.
+         */
+        public boolean lock(final long timeoutMillis) {
+            try {
+                return _lock.tryLock(Math.max(timeoutMillis, 0), TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Takes the lock only if no thread holds it.
+         */
+        public boolean tryLock() {
+            return _lock.tryLock();
+        }
+
+        public void unlock() {
+            _lock.unlock();
+        }
+
+        public boolean isHeldByCurrentThread() {
+            return _lock.isHeldByCurrentThread();
+        }
+
+        public int getHoldCount() {
+            return _lock.getHoldCount();
+        }
+
+        public boolean isLocked() {
+            return _lock.isLocked();
+        }
+
+        public long getAcquiredAt() {
+            return _acquiredAt;
+        }
+
+        public void setAcquiredAt(final long acquiredAt) {
+            _acquiredAt = acquiredAt;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+/**
+ * LockMaster is the SPI behind the named cluster wide locks taken through
+ * TransactionLegacy.lock()/release().  Merovingian2 is the database backed
+ * implementation and stays the default, other implementations are installed
+ * with Merovingian2.setActiveLockMaster().
+ */
+public interface LockMaster {
+
+    /**
+     * Acquires the lock on behalf of the current thread.  Locks are reentrant.
+     * @return true if acquired within timeInSeconds.
+     */
+    boolean acquire(String key, int timeInSeconds);
+
+    /**
+     * Releases one hold of the lock by the current thread.
+     */
+    boolean release(String key);
+
+    /**
+     * @return the number of holds the current thread has on the lock, 0 if nobody holds it and -1 if somebody else does.
+     */
+    int owns(String key);
+
+    /**
+     * Releases every lock still held by the current thread, called when its transaction ends.
+     */
+    void cleanupThread();
+
+    /**
+     * Releases every lock held by the given management server.
+     */
+    void cleanupForServer(long msId);
+
+    /**
+     * Asks this management server to give up a lock it keeps cached for a peer that wants it.
+     * @return true if the lock is not held by this management server anymore.
+     */
+    boolean revokeLease(String key);
+}
@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LockStatistics collects how long threads wait for and hold cluster locks,
+ * as histograms with power of two millisecond buckets, and how many
+ * acquisitions were served without a database round trip.
+ */
+public class LockStatistics {
+    private static final int BUCKETS = 18;
+
+    private final AtomicLongArray _waits = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray _holds = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _localAcquires = new AtomicLong();
+    private final AtomicLong _remoteAcquires = new AtomicLong();
+    private final AtomicLong _timeouts = new AtomicLong();
+
+    public void recordWait(final long millis) {
+        _waits.incrementAndGet(bucket(millis));
+    }
+
+    public void recordHold(final long millis) {
+        _holds.incrementAndGet(bucket(millis));
+    }
+
+    /**
+     * Counts an acquisition served in process, either reentrant or under a cached lease.
+     */
+    public void recordLocalAcquire() {
+        _localAcquires.incrementAndGet();
+    }
+
+    /**
+     * Counts an acquisition that had to go to the database.
+     */
+    public void recordRemoteAcquire() {
+        _remoteAcquires.incrementAndGet();
+    }
+
+    public void recordTimeout() {
+        _timeouts.incrementAndGet();
+    }
+
+    public long getLocalAcquireCount() {
+        return _localAcquires.get();
+    }
+
+    public long getRemoteAcquireCount() {
+        return _remoteAcquires.get();
+    }
+
+    public long getTimeoutCount() {
+        return _timeouts.get();
+    }
+
+    public Map<String, Long> getWaitHistogram() {
+        return toMap(_waits);
+    }
+
+    public Map<String, Long> getHoldHistogram() {
+        return toMap(_holds);
+    }
+
+    private static int bucket(final long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+    }
+
+    /**
+     * Bucket i > 0 counts durations in [2^(i-1), 2^i) ms, the last one everything above.
+     */
+    private static Map<String, Long> toMap(final AtomicLongArray buckets) {
+        final Map<String, Long> map = new LinkedHashMap<String, Long>();
+        map.put("<1ms", buckets.get(0));
+        for (int i = 1; i < BUCKETS - 1; i++) {
+            map.put("<" + (1L << i) + "ms", buckets.get(i));
+        }
+        map.put(">=" + (1L << (BUCKETS - 2)) + "ms", buckets.get(BUCKETS - 1));
+        return map;
+    }
+}
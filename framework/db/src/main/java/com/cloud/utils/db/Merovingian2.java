@@ -20,11 +20,14 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 import javax.management.StandardMBean;
@@ -32,11 +35,12 @@ import javax.management.StandardMBean;
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.db.LocalLockTable.LocalLock;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
 
-public class Merovingian2 extends StandardMBean implements MerovingianMBean {
+public class Merovingian2 extends StandardMBean implements MerovingianMBean, LockMaster {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
     private static final String ACQUIRE_SQL =
@@ -51,6 +55,17 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_MGMT_LOCKS_SQL = SELECT_SQL + " WHERE mac=?";
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
+    private static final String RELEASE_OWNER_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
+
+    // owner recorded in op_lock for locks kept by the management server rather than by one of its threads,
+    // the thread column then holds the fencing token of the lease
+    private static final String LEASE_OWNER = "lease";
+    private static final String SELECT_LEASES_SQL = "SELECT op_lock.key, thread FROM op_lock WHERE mac=? AND ip='" + LEASE_OWNER + "'";
+
+    // a thread waiting for a lock held by another management server keeps a row under the key of the lock with
+    // this suffix, so a server keeping the lock as a lease knows to give it up
+    private static final String WAITER_SUFFIX = "#waiter";
+    private static final String SELECT_WAITED_FOR_SQL = "SELECT op_lock.key FROM op_lock WHERE op_lock.key LIKE '%" + WAITER_SUFFIX + "' AND op_lock.mac <> ?";
 
     TimeZone _gmtTimeZone = TimeZone.getTimeZone("GMT");
 
@@ -59,6 +74,12 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static Merovingian2 s_instance = null;
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
+    private static volatile LockMaster s_activeLockMaster = null;
+
+    private final LocalLockTable _localLocks = new LocalLockTable();
+    private final LockStatistics _statistics = new LockStatistics();
+    // waiter rows are only looked for by servers keeping locks as leases
+    private volatile boolean _trackWaiters = false;
 
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
@@ -99,7 +120,28 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
-    protected void incrCount() {
+    /**
+     * @return the lock master TransactionLegacy locks go through, the database one unless another one was installed.
+     */
+    public static LockMaster getActiveLockMaster() {
+        LockMaster lockMaster = s_activeLockMaster;
+        return lockMaster != null ? lockMaster : s_instance;
+    }
+
+    public static void setActiveLockMaster(LockMaster lockMaster) {
+        s_logger.info("Cluster locks are now served by " + (lockMaster != null ? lockMaster.getClass().getSimpleName() : Merovingian2.class.getSimpleName()));
+        s_activeLockMaster = lockMaster;
+    }
+
+    public LocalLockTable getLocalLocks() {
+        return _localLocks;
+    }
+
+    public LockStatistics getStatistics() {
+        return _statistics;
+    }
+
+    protected void incrCount(LocalLock lock) {
         Count count = s_tls.get();
         if (count == null) {
             count = new Count();
@@ -107,17 +149,20 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
 
         count.count++;
+        count.locks.add(lock);
     }
 
-    protected void decrCount() {
+    protected void decrCount(LocalLock lock) {
         Count count = s_tls.get();
         if (count == null) {
             return;
         }
 
         count.count--;
+        count.locks.remove(lock);
     }
 
+    @Override
     public boolean acquire(String key, int timeInSeconds) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
@@ -127,24 +172,64 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
         long startTime = InaccurateClock.getTime();
+        long waitStart = System.currentTimeMillis();
+
+        // threads of this server queue up in memory, only the one owning the local lock goes to op_lock
+        LocalLock local = _localLocks.ref(key);
+        if (!local.lock(timeInSeconds * 1000l)) {
+            _localLocks.unref(local);
+            _statistics.recordTimeout();
+            s_logger.warn("Timed out on acquiring lock " + key + " held by another thread of this server.  Waited for " + timeInSeconds + " seconds");
+            return false;
+        }
+
+        if (local.getHoldCount() > 1) {
+            // reentrant, the row is already ours
+            incrCount(local);
+            _statistics.recordLocalAcquire();
+            return true;
+        }
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000l)) {
-            int count = owns(key);
+        if (acquireInDb(key, threadName, threadId, startTime, timeInSeconds)) {
+            long now = System.currentTimeMillis();
+            local.setAcquiredAt(now);
+            incrCount(local);
+            _statistics.recordRemoteAcquire();
+            _statistics.recordWait(now - waitStart);
+            return true;
+        }
+
+        local.unlock();
+        _localLocks.unref(local);
+        _statistics.recordTimeout();
+        return false;
+    }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
+    protected boolean acquireInDb(String key, String threadName, int threadId, long startTime, int timeInSeconds) {
+        boolean waiting = false;
+        try {
+            while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000l)) {
                 if (doAcquire(key, threadName, threadId)) {
                     return true;
                 }
-            }
-            try {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                if (ownsInDb(key, threadId) >= 1) {
+                    return increment(key, threadName, threadId);
+                }
+                if (!waiting && _trackWaiters) {
+                    waiting = markWaiting(key);
+                }
+                try {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                    }
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    s_logger.debug("[ignored] interupted while aquiring " + key);
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-                s_logger.debug("[ignored] interupted while aquiring " + key);
+            }
+        } finally {
+            if (waiting) {
+                unmarkWaiting(key);
             }
         }
         String msg = "Timed out on acquiring lock " + key + " .  Waited for " + ((InaccurateClock.getTime() - startTime)/1000) +  "seconds";
@@ -164,24 +249,20 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("lck-" + key + (rows == 1 ? " acquired again" : " failed to acquire again"));
             }
-            if (rows == 1) {
-                incrCount();
-                return true;
-            }
-            return false;
+            return rows == 1;
         } catch (Exception e) {
             s_logger.error("increment:Exception:"+e.getMessage());
             throw new CloudRuntimeException("increment:Exception:"+e.getMessage(), e);
         }
     }
 
-    protected boolean doAcquire(String key, String threadName, int threadId) {
+    protected boolean doAcquire(String key, String threadName, long threadId) {
         long startTime = InaccurateClock.getTime();
         try(PreparedStatement pstmt = _concierge.conn().prepareStatement(ACQUIRE_SQL);) {
             pstmt.setString(1, key);
             pstmt.setLong(2, _msId);
             pstmt.setString(3, threadName);
-            pstmt.setInt(4, threadId);
+            pstmt.setLong(4, threadId);
             pstmt.setString(5, DateUtil.getDateDisplayString(_gmtTimeZone, new Date()));
             try {
                 int rows = pstmt.executeUpdate();
@@ -189,7 +270,6 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Acquired for lck-" + key);
                     }
-                    incrCount();
                     return true;
                 }
             } catch (SQLException e) {
@@ -249,7 +329,34 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
     }
 
+    @Override
     public boolean release(String key) {
+        LocalLock local = _localLocks.get(key);
+        if (local == null || !local.isHeldByCurrentThread()) {
+            String msg = ("Was unable to find lock for the key " + key + " and thread " + Thread.currentThread().getName());
+            Exception e = new CloudRuntimeException(msg);
+            s_logger.warn(msg, e);
+            return false;
+        }
+
+        if (local.getHoldCount() > 1) {
+            decrCount(local);
+            local.unlock();
+            _localLocks.unref(local);
+            return true;
+        }
+
+        try {
+            _statistics.recordHold(System.currentTimeMillis() - local.getAcquiredAt());
+            return releaseInDb(key);
+        } finally {
+            decrCount(local);
+            local.unlock();
+            _localLocks.unref(local);
+        }
+    }
+
+    protected boolean releaseInDb(String key) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
@@ -273,7 +380,6 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     if (result == 1 && s_logger.isTraceEnabled()) {
                         s_logger.trace("lck-" + key + " removed");
                     }
-                    decrCount();
                 }catch (Exception e) {
                     s_logger.error("release:Exception:"+ e.getMessage());
                     throw new CloudRuntimeException("release:Exception:"+ e.getMessage(), e);
@@ -339,9 +445,16 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return getLocks(SELECT_MGMT_LOCKS_SQL, _msId);
     }
 
+    @Override
     public int owns(String key) {
-        Thread th = Thread.currentThread();
-        int threadId = System.identityHashCode(th);
+        LocalLock local = _localLocks.get(key);
+        if (local != null && local.isHeldByCurrentThread()) {
+            return local.getHoldCount();
+        }
+        return ownsInDb(key, System.identityHashCode(Thread.currentThread()));
+    }
+
+    protected int ownsInDb(String key, int threadId) {
         Map<String, String> owner = isLocked(key);
         if (owner == null) {
             return 0;
@@ -369,6 +482,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
     }
 
+    @Override
     public void cleanupThread() {
 
         Count count = s_tls.get();
@@ -377,6 +491,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
         int c = count.count;
         count.count = 0;
+        for (LocalLock local : count.locks) {
+            local.unlock();
+            _localLocks.unref(local);
+        }
+        count.locks.clear();
 
         Thread th = Thread.currentThread();
         String threadName = th.getName();
@@ -409,7 +528,176 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
     }
 
+    @Override
+    public boolean revokeLease(String key) {
+        // this implementation never keeps a lock beyond its release
+        return isLocked(key) == null;
+    }
+
+    /**
+     * Makes threads waiting for a lock held by another management server record themselves in op_lock,
+     * see markWaiting().
+     */
+    public void setTrackWaiters(boolean trackWaiters) {
+        _trackWaiters = trackWaiters;
+    }
+
+    /**
+     * Takes the lock on behalf of this management server instead of the current thread, so any of its
+     * threads can give it back later with releaseLease().  Doesn't wait if somebody else holds it.
+     * @param token fencing token of the lease, recorded with the lock.
+     */
+    public boolean acquireLease(String key, long token) {
+        boolean acquired = doAcquire(key, LEASE_OWNER, token);
+        if (acquired) {
+            _statistics.recordRemoteAcquire();
+        }
+        return acquired;
+    }
+
+    /**
+     * Gives the lock back unless it is no longer held under the lease with the given fencing token.
+     */
+    public boolean releaseLease(String key, long token) {
+        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(RELEASE_OWNER_SQL);) {
+            pstmt.setString(1, key);
+            pstmt.setLong(2, _msId);
+            pstmt.setString(3, LEASE_OWNER);
+            pstmt.setLong(4, token);
+            int rows = pstmt.executeUpdate();
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("lease on lck-" + key + (rows == 1 ? " released" : " was already gone"));
+            }
+            return rows == 1;
+        } catch (Exception e) {
+            s_logger.error("releaseLease:Exception:" + e.getMessage());
+            throw new CloudRuntimeException("releaseLease:Exception:" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the locks held as leases of this management server, with their fencing tokens.
+     */
+    public Map<String, Long> getLeases() {
+        Map<String, Long> leases = new HashMap<String, Long>();
+        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(SELECT_LEASES_SQL);) {
+            pstmt.setLong(1, _msId);
+            try (ResultSet rs = pstmt.executeQuery();) {
+                while (rs.next()) {
+                    leases.put(rs.getString(1), Long.parseLong(rs.getString(2)));
+                }
+            }
+            return leases;
+        } catch (Exception e) {
+            s_logger.error("getLeases:Exception:" + e.getMessage());
+            throw new CloudRuntimeException("getLeases:Exception:" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Records that the current thread is waiting for the lock, unless another thread already did.
+     * @return true if the current thread has to take the record back with unmarkWaiting().
+     */
+    public boolean markWaiting(String key) {
+        Thread th = Thread.currentThread();
+        try {
+            return doAcquire(key + WAITER_SUFFIX, th.getName(), System.identityHashCode(th));
+        } catch (CloudRuntimeException e) {
+            s_logger.debug("Unable to record a waiter for lck-" + key + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void unmarkWaiting(String key) {
+        Thread th = Thread.currentThread();
+        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(RELEASE_OWNER_SQL);) {
+            pstmt.setString(1, key + WAITER_SUFFIX);
+            pstmt.setLong(2, _msId);
+            pstmt.setString(3, th.getName());
+            pstmt.setInt(4, System.identityHashCode(th));
+            pstmt.executeUpdate();
+        } catch (Exception e) {
+            s_logger.error("unmarkWaiting:Exception:" + e.getMessage());
+            throw new CloudRuntimeException("unmarkWaiting:Exception:" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return true if a thread of another management server is waiting for the lock.
+     */
+    public boolean isWaitedForByOthers(String key) {
+        Map<String, String> waiter = isLocked(key + WAITER_SUFFIX);
+        return waiter != null && !waiter.get("mgmt").equals(Long.toString(_msId));
+    }
+
+    /**
+     * @return the locks threads of other management servers are waiting for.
+     */
+    public Set<String> getLocksWaitedForByOthers() {
+        Set<String> keys = new HashSet<String>();
+        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(SELECT_WAITED_FOR_SQL);) {
+            pstmt.setLong(1, _msId);
+            try (ResultSet rs = pstmt.executeQuery();) {
+                while (rs.next()) {
+                    String key = rs.getString(1);
+                    keys.add(key.substring(0, key.length() - WAITER_SUFFIX.length()));
+                }
+            }
+            return keys;
+        } catch (Exception e) {
+            s_logger.error("getLocksWaitedForByOthers:Exception:" + e.getMessage());
+            throw new CloudRuntimeException("getLocksWaitedForByOthers:Exception:" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the id of the management server holding the lock, null if nobody holds it.
+     */
+    public Long getLockOwner(String key) {
+        Map<String, String> owner = isLocked(key);
+        if (owner == null) {
+            return null;
+        }
+        return Long.parseLong(owner.get("mgmt"));
+    }
+
+    @Override
+    public Map<String, Long> getLockWaitHistogram() {
+        return _statistics.getWaitHistogram();
+    }
+
+    @Override
+    public Map<String, Long> getLockHoldHistogram() {
+        return _statistics.getHoldHistogram();
+    }
+
+    @Override
+    public long getLocalAcquireCount() {
+        return _statistics.getLocalAcquireCount();
+    }
+
+    @Override
+    public long getRemoteAcquireCount() {
+        return _statistics.getRemoteAcquireCount();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return _statistics.getTimeoutCount();
+    }
+
+    @Override
+    public int getLocalLockCount() {
+        return _localLocks.size();
+    }
+
+    @Override
+    public String getActiveLockMasterName() {
+        return getActiveLockMaster().getClass().getSimpleName();
+    }
+
     protected static class Count {
         public int count = 0;
+        public List<LocalLock> locks = new ArrayList<LocalLock>();
     }
 }
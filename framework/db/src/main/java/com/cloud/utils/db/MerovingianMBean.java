@@ -28,4 +28,18 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
 
     void cleanupForServer(long msId);
+
+    Map<String, Long> getLockWaitHistogram();
+
+    Map<String, Long> getLockHoldHistogram();
+
+    long getLocalAcquireCount();
+
+    long getRemoteAcquireCount();
+
+    long getTimeoutCount();
+
+    int getLocalLockCount();
+
+    String getActiveLockMasterName();
 }
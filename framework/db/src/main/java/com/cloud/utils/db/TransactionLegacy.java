@@ -25,6 +25,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -96,6 +97,7 @@ public class TransactionLegacy implements Closeable {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    private final List<Runnable> _afterCommit = new ArrayList<Runnable>();
 
     private String _name;
     private Connection _conn;
@@ -207,6 +209,53 @@ public class TransactionLegacy implements Closeable {
         return _txn;
     }
 
+    /**
+     * Runs the action once the outermost transaction has committed, or right
+     * away if there is no transaction.  The action is dropped on rollback.
+     */
+    public void runAfterCommit(final Runnable action) {
+        if (!_txn) {
+            action.run();
+            return;
+        }
+        _afterCommit.add(action);
+    }
+
+    /**
+     * Runs the action once the outermost transaction of the current thread has
+     * committed, or right away if the thread is not within a transaction.
+     */
+    public static void afterCommit(final Runnable action) {
+        final TransactionLegacy txn = currentTxn(false);
+        if (txn == null) {
+            action.run();
+        } else {
+            txn.runAfterCommit(action);
+        }
+    }
+
+    /**
+     * @return true if actions are waiting for the transaction to commit.
+     */
+    public boolean hasAfterCommitActions() {
+        return !_afterCommit.isEmpty();
+    }
+
+    private void runAfterCommitActions() {
+        if (_afterCommit.isEmpty()) {
+            return;
+        }
+        final List<Runnable> actions = new ArrayList<Runnable>(_afterCommit);
+        _afterCommit.clear();
+        for (final Runnable action : actions) {
+            try {
+                action.run();
+            } catch (final Exception e) {
+                s_logger.warn("Unable to run " + action + " after commit", e);
+            }
+        }
+    }
+
     public static Connection getStandaloneConnectionWithException() throws SQLException {
         Connection conn = s_ds.getConnection();
         if (s_connLogger.isTraceEnabled()) {
@@ -377,7 +426,7 @@ public class TransactionLegacy implements Closeable {
     }
 
     public boolean lock(final String name, final int timeoutSeconds) {
-        Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        LockMaster lockMaster = Merovingian2.getActiveLockMaster();
         if (lockMaster == null) {
             throw new CloudRuntimeException("There's no support for locking yet");
         }
@@ -385,7 +434,7 @@ public class TransactionLegacy implements Closeable {
     }
 
     public boolean release(final String name) {
-        Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        LockMaster lockMaster = Merovingian2.getActiveLockMaster();
         if (lockMaster == null) {
             throw new CloudRuntimeException("There's no support for locking yet");
         }
@@ -640,6 +689,7 @@ public class TransactionLegacy implements Closeable {
         }
         _txn = false;
         _name = null;
+        _afterCommit.clear();
 
         closeConnection();
 
@@ -648,6 +698,10 @@ public class TransactionLegacy implements Closeable {
         if (lockMaster != null) {
             lockMaster.cleanupThread();
         }
+        LockMaster activeLockMaster = Merovingian2.getActiveLockMaster();
+        if (activeLockMaster != lockMaster) {
+            activeLockMaster.cleanupThread();
+        }
     }
 
     @Override
@@ -733,6 +787,7 @@ public class TransactionLegacy implements Closeable {
                 clearLockTimes();
                 closeConnection();
             }
+            runAfterCommitActions();
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
@@ -842,6 +897,7 @@ public class TransactionLegacy implements Closeable {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        _afterCommit.clear();
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -867,6 +923,7 @@ public class TransactionLegacy implements Closeable {
 
         if (!hasTxnInStack()) {
             _txn = false;
+            _afterCommit.clear();
             closeConnection();
         }
     }
@@ -919,6 +976,7 @@ public class TransactionLegacy implements Closeable {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runAfterCommitActions();
         }
     }
 
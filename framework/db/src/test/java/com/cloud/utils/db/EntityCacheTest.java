@@ -0,0 +1,144 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import net.sf.ehcache.Element;
+
+public class EntityCacheTest {
+
+    private final List<Object> invalidated = new ArrayList<Object>();
+
+    @After
+    public void tearDown() {
+        GenericDaoBase.setEntityCacheListener(null);
+    }
+
+    private TransactionLegacy openTxn() {
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.CLOUD_DB);
+        txn.setConnection(Mockito.mock(Connection.class));
+        GenericDaoBase.setEntityCacheListener(new EntityCacheListener() {
+            @Override
+            public void onEntityCacheInvalidated(Collection<String> tables, Object id) {
+                invalidated.add(id);
+            }
+        });
+        return txn;
+    }
+
+    private DbTestDao createCachedDao(String name) throws Exception {
+        DbTestDao dao = new DbTestDao();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("cache.size", "10");
+        dao.configure(name, params);
+        return dao;
+    }
+
+    private DbTestVO cache(DbTestDao dao, long id, String value) {
+        DbTestVO vo = new DbTestVO();
+        vo.id = id;
+        vo.fieldString = value;
+        dao._cache.put(new Element(id, vo));
+        return vo;
+    }
+
+    @Test
+    public void testCachedEntityIsCopied() throws Exception {
+        DbTestDao dao = createCachedDao("EntityCacheTest-copy");
+        DbTestVO cached = cache(dao, 1L, "cached");
+
+        DbTestVO found = dao.findById(1L);
+        Assert.assertNotSame(cached, found);
+        Assert.assertEquals("cached", found.getFieldString());
+        Assert.assertEquals(1, dao._cacheHits.get());
+
+        found.fieldString = "changed";
+        Assert.assertEquals("cached", dao.findById(1L).getFieldString());
+    }
+
+    @Test
+    public void testInvalidationByTable() throws Exception {
+        DbTestDao dao = createCachedDao("EntityCacheTest-invalidate");
+        cache(dao, 1L, "one");
+        cache(dao, 2L, "two");
+
+        // ids coming from the peers are strings
+        Assert.assertTrue(GenericDaoBase.invalidateEntityCaches(Collections.singletonList("test"), "1"));
+        Assert.assertNull(dao._cache.get(1L));
+        Assert.assertNotNull(dao._cache.get(2L));
+
+        GenericDaoBase.invalidateEntityCaches(Collections.singletonList("test"), null);
+        Assert.assertEquals(0, dao._cache.getSize());
+
+        Assert.assertFalse(GenericDaoBase.invalidateEntityCaches(Collections.singletonList("not_cached"), 1L));
+    }
+
+    @Test
+    public void testPeersInvalidatedAfterOutermostCommit() throws Exception {
+        DbTestDao dao = createCachedDao("EntityCacheTest-commit");
+        cache(dao, 1L, "one");
+        TransactionLegacy txn = openTxn();
+        try {
+            txn.start();
+            txn.start();
+            dao.invalidateCachedEntity(1L);
+            Assert.assertNull(dao._cache.get(1L));
+            txn.commit();
+            Assert.assertTrue(invalidated.isEmpty());
+
+            // read by others before the change is committed
+            cache(dao, 1L, "one");
+            Assert.assertNull(dao.getCachedEntity(1L, false));
+            txn.commit();
+            Assert.assertEquals(Collections.<Object>singletonList(1L), invalidated);
+            Assert.assertNull(dao._cache.get(1L));
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testPeersNotInvalidatedOnRollback() throws Exception {
+        DbTestDao dao = createCachedDao("EntityCacheTest-rollback");
+        cache(dao, 1L, "one");
+        TransactionLegacy txn = openTxn();
+        try {
+            txn.start();
+            dao.invalidateCachedEntity(1L);
+            txn.rollback();
+            Assert.assertTrue(invalidated.isEmpty());
+
+            txn.start();
+            txn.commit();
+            Assert.assertTrue(invalidated.isEmpty());
+        } finally {
+            txn.close();
+        }
+    }
+}
@@ -16,6 +16,10 @@
 // under the License.
 package com.cloud.utils.db;
 
+import javax.persistence.Column;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.Table;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -41,4 +45,21 @@ public class FilterTest {
         Assert.assertTrue(filter.getOrderBy().split(",").length == 3);
         Assert.assertTrue(filter.getOrderBy().split(",")[2].trim().toLowerCase().equals("test.fld_int asc"));
     }
+
+    @MappedSuperclass
+    static class BaseTestViewVO {
+        @Column(name = "id")
+        private long id;
+    }
+
+    @Table(name = "test_view")
+    static class TestViewVO extends BaseTestViewVO {
+    }
+
+    @Test
+    public void testAddOrderByInheritedField() {
+        Filter filter = new Filter(TestViewVO.class, "id", false, 0L, 10L);
+
+        Assert.assertEquals("order by test_view.id desc", filter.getOrderBy().trim().toLowerCase());
+    }
 }
@@ -0,0 +1,87 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.cloud.utils.db.LocalLockTable.LocalLock;
+
+public class LocalLockTableTest {
+
+    @Test
+    public void testEntryIsDroppedWhenUnreferenced() {
+        LocalLockTable table = new LocalLockTable();
+        LocalLock first = table.ref("vm-1");
+        LocalLock second = table.ref("vm-1");
+        assertSame(first, second);
+        assertEquals(1, table.size());
+
+        table.unref(first);
+        assertSame(second, table.get("vm-1"));
+        table.unref(second);
+        assertNull(table.get("vm-1"));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testLockIsReentrantAndExclusive() throws Exception {
+        LocalLockTable table = new LocalLockTable();
+        final LocalLock lock = table.ref("host-1");
+        assertTrue(lock.lock(0));
+        assertTrue(lock.lock(0));
+        assertEquals(2, lock.getHoldCount());
+
+        final AtomicBoolean acquiredByOther = new AtomicBoolean(true);
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acquiredByOther.set(lock.lock(50));
+            }
+        });
+        other.start();
+        other.join();
+        assertFalse(acquiredByOther.get());
+
+        lock.unlock();
+        lock.unlock();
+        assertFalse(lock.isLocked());
+        table.unref(lock);
+    }
+
+    @Test
+    public void testStatisticsBuckets() {
+        LockStatistics statistics = new LockStatistics();
+        statistics.recordWait(0);
+        statistics.recordWait(3);
+        statistics.recordWait(3);
+        statistics.recordHold(Long.MAX_VALUE);
+
+        Map<String, Long> waits = statistics.getWaitHistogram();
+        assertEquals(Long.valueOf(1), waits.get("<1ms"));
+        assertEquals(Long.valueOf(2), waits.get("<4ms"));
+        assertEquals(Long.valueOf(1), statistics.getHoldHistogram().get(">=65536ms"));
+    }
+}
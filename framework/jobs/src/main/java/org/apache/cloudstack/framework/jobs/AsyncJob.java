@@ -31,6 +31,12 @@ public interface AsyncJob extends JobInfo {
         public static final String JOB_HEARTBEAT = "job.heartbeat";
         public static final String JOB_STATE = "job.state";
         public static final String JOB_EVENT_PUBLISH = "job.eventpublish";
+        // published with the id of a sync queue which may have an item ready for execution
+        public static final String JOB_QUEUE_WAKEUP = "job.queue.wakeup";
+        // published with the ids of sync queues which may have items ready for execution on any management server
+        public static final String JOB_QUEUE_WAKEUP_REMOTE = "job.queue.wakeup.remote";
+        // published with the id of a completed job that may be waited for on another management server
+        public static final String JOB_STATE_REMOTE = "job.state.remote";
     }
 
     public static interface Constants {
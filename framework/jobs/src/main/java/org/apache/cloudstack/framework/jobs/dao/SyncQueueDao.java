@@ -16,6 +16,9 @@
 // under the License.
 package org.apache.cloudstack.framework.jobs.dao;
 
+import java.util.Date;
+import java.util.List;
+
 import org.apache.cloudstack.framework.jobs.impl.SyncQueueVO;
 
 import com.cloud.utils.db.GenericDao;
@@ -24,4 +27,14 @@ public interface SyncQueueDao extends GenericDao<SyncQueueVO, Long> {
     public void ensureQueue(String syncObjType, long syncObjId);
 
     public SyncQueueVO find(String syncObjType, long syncObjId);
+
+    /**
+     * Locks the given queues for update, in id order.
+     */
+    public List<SyncQueueVO> lockQueues(List<Long> queueIds);
+
+    /**
+     * Stores the process numbers of the given queues and increments their sizes, in a single batch.
+     */
+    public void updateProcessNumbers(List<SyncQueueVO> queues, Date lastUpdated);
 }
@@ -20,6 +20,7 @@ package org.apache.cloudstack.framework.jobs.dao;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
 
 import org.apache.log4j.Logger;
@@ -27,15 +28,18 @@ import org.apache.log4j.Logger;
 import org.apache.cloudstack.framework.jobs.impl.SyncQueueVO;
 
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 public class SyncQueueDaoImpl extends GenericDaoBase<SyncQueueVO, Long> implements SyncQueueDao {
     private static final Logger s_logger = Logger.getLogger(SyncQueueDaoImpl.class.getName());
 
     SearchBuilder<SyncQueueVO> TypeIdSearch = createSearchBuilder();
+    SearchBuilder<SyncQueueVO> IdsSearch;
 
     public SyncQueueDaoImpl() {
         super();
@@ -43,6 +47,10 @@ public class SyncQueueDaoImpl extends GenericDaoBase<SyncQueueVO, Long> implemen
         TypeIdSearch.and("syncObjType", TypeIdSearch.entity().getSyncObjType(), SearchCriteria.Op.EQ);
         TypeIdSearch.and("syncObjId", TypeIdSearch.entity().getSyncObjId(), SearchCriteria.Op.EQ);
         TypeIdSearch.done();
+
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
     }
 
     @Override
@@ -74,4 +82,30 @@ public class SyncQueueDaoImpl extends GenericDaoBase<SyncQueueVO, Long> implemen
         return findOneBy(sc);
     }
 
+    @Override
+    public List<SyncQueueVO> lockQueues(List<Long> queueIds) {
+        SearchCriteria<SyncQueueVO> sc = IdsSearch.create();
+        sc.setParameters("ids", queueIds.toArray());
+        return lockRows(sc, new Filter(SyncQueueVO.class, "id", true, null, null), true);
+    }
+
+    @Override
+    public void updateProcessNumbers(List<SyncQueueVO> queues, Date lastUpdated) {
+        String sql = "UPDATE sync_queue SET queue_proc_number=?, last_updated=?, queue_size=queue_size+1 WHERE id=?";
+
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            for (SyncQueueVO queue : queues) {
+                pstmt.setLong(1, queue.getLastProcessNumber());
+                pstmt.setString(2, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), lastUpdated));
+                pstmt.setLong(3, queue.getId());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to update process numbers of sync queues", e);
+        }
+    }
+
 }
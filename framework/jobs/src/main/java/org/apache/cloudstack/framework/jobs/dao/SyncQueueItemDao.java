@@ -16,7 +16,9 @@
 // under the License.
 package org.apache.cloudstack.framework.jobs.dao;
 
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.cloudstack.framework.jobs.impl.SyncQueueItemVO;
 
@@ -33,4 +35,19 @@ public interface SyncQueueItemDao extends GenericDao<SyncQueueItemVO, Long> {
     public List<SyncQueueItemVO> getBlockedQueueItems(long thresholdMs, boolean exclusive);
 
     public Long getQueueItemIdByContentIdAndType(long contentId, String contentType);
+
+    /**
+     * @return number of items in process for each of the given queues, queues without any are left out.
+     */
+    public Map<Long, Integer> getActiveQueueItemCounts(List<Long> queueIds);
+
+    /**
+     * Locks the given items for update if they are not in process yet, in id order.
+     */
+    public List<SyncQueueItemVO> lockPendingItems(List<Long> itemIds);
+
+    /**
+     * Stores the process information of the given items in a single batch.
+     */
+    public void updateProcessInfo(List<SyncQueueItemVO> items, Long msid, Date processTime);
 }
@@ -22,7 +22,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.apache.log4j.Logger;
@@ -39,12 +41,14 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @DB
 public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long> implements SyncQueueItemDao {
     private static final Logger s_logger = Logger.getLogger(SyncQueueItemDaoImpl.class);
     final GenericSearchBuilder<SyncQueueItemVO, Long> queueIdSearch;
     final GenericSearchBuilder<SyncQueueItemVO, Integer> queueActiveItemSearch;
+    final SearchBuilder<SyncQueueItemVO> pendingItemsSearch;
 
     public SyncQueueItemDaoImpl() {
         super();
@@ -59,6 +63,11 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
         queueActiveItemSearch.and("processNumber", queueActiveItemSearch.entity().getLastProcessNumber(), Op.NNULL);
         queueActiveItemSearch.select(null, Func.COUNT, queueActiveItemSearch.entity().getId());
         queueActiveItemSearch.done();
+
+        pendingItemsSearch = createSearchBuilder();
+        pendingItemsSearch.and("ids", pendingItemsSearch.entity().getId(), Op.IN);
+        pendingItemsSearch.and("processNumber", pendingItemsSearch.entity().getLastProcessNumber(), Op.NULL);
+        pendingItemsSearch.done();
     }
 
     @Override
@@ -169,4 +178,60 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
 
         return id.size() == 0 ? null : id.get(0);
     }
+
+    @Override
+    public Map<Long, Integer> getActiveQueueItemCounts(List<Long> queueIds) {
+        Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        if (queueIds.isEmpty()) {
+            return counts;
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT queue_id, COUNT(*) FROM sync_queue_item WHERE queue_proc_number IS NOT NULL AND queue_id IN (");
+        for (int i = 0; i < queueIds.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") GROUP BY queue_id");
+
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            for (int i = 0; i < queueIds.size(); i++) {
+                pstmt.setLong(i + 1, queueIds.get(i));
+            }
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                counts.put(rs.getLong(1), rs.getInt(2));
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to count active sync queue items", e);
+        }
+        return counts;
+    }
+
+    @Override
+    public List<SyncQueueItemVO> lockPendingItems(List<Long> itemIds) {
+        SearchCriteria<SyncQueueItemVO> sc = pendingItemsSearch.create();
+        sc.setParameters("ids", itemIds.toArray());
+        return lockRows(sc, new Filter(SyncQueueItemVO.class, "id", true, null, null), true);
+    }
+
+    @Override
+    public void updateProcessInfo(List<SyncQueueItemVO> items, Long msid, Date processTime) {
+        String sql = "UPDATE sync_queue_item SET queue_proc_msid=?, queue_proc_number=?, queue_proc_time=? WHERE id=?";
+
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            for (SyncQueueItemVO item : items) {
+                pstmt.setLong(1, msid);
+                pstmt.setLong(2, item.getLastProcessNumber());
+                pstmt.setString(3, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), processTime));
+                pstmt.setLong(4, item.getId());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to update process information of sync queue items", e);
+        }
+    }
 }
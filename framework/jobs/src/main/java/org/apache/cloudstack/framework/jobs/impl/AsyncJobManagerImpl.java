@@ -18,12 +18,18 @@
 package org.apache.cloudstack.framework.jobs.impl;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -55,6 +61,7 @@ import org.apache.cloudstack.framework.jobs.dao.AsyncJobJournalDao;
 import org.apache.cloudstack.framework.jobs.dao.SyncQueueItemDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.MessageDetector;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.jobs.JobInfo;
 import org.apache.cloudstack.jobs.JobInfo.Status;
@@ -88,6 +95,7 @@ import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExceptionUtil;
@@ -106,14 +114,18 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private static final ConfigKey<Integer> VmJobLockTimeout = new ConfigKey<Integer>("Advanced",
             Integer.class, "vm.job.lock.timeout", "1800",
             "Time in seconds to wait in acquiring lock to submit a vm worker job", false);
+    private static final ConfigKey<Integer> JobQueueScanInterval = new ConfigKey<Integer>("Advanced", Integer.class, "job.queue.scan.interval", "10",
+            "Interval (in seconds) to scan sync queues for items missed by the event driven queue wakeup", false);
+    private static final ConfigKey<Integer> JobQueueDequeueBatchSize = new ConfigKey<Integer>("Advanced", Integer.class, "job.queue.dequeue.batch.size", "200",
+            "Maximum number of sync queue items dequeued by a single pass of the sync queue scan", false);
+    private static final ConfigKey<Integer> JobQueueDispatchWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "job.queue.dispatch.workers", "8",
+            "Number of threads dispatching the sync queue items dequeued by the sync queue scan", false);
     private static final ConfigKey<Boolean> HidePassword = new ConfigKey<Boolean>("Advanced", Boolean.class, "log.hide.password", "true", "If set to true, the password is hidden", true, ConfigKey.Scope.Global);
 
     private static final Logger s_logger = Logger.getLogger(AsyncJobManagerImpl.class);
 
     private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 3;     // 3 seconds
 
-    private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
-    private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;                // 10 seconds
 
     @Inject
@@ -152,6 +164,10 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private volatile long _executionRunNumber = 1;
 
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
+    private final ExecutorService _queueWakeupExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("AsyncJobMgr-QueueWakeup"));
+    private final Set<Long> _pendingQueueWakeups = ConcurrentHashMap.newKeySet();
+    private final SyncQueueMBeanImpl _syncQueueStats = new SyncQueueMBeanImpl();
+    private ExecutorService _queueDispatchExecutor;
     private ExecutorService _apiJobExecutor;
     private ExecutorService _workerJobExecutor;
 
@@ -162,7 +178,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, VmJobLockTimeout, HidePassword};
+        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, VmJobLockTimeout, JobQueueScanInterval, JobQueueDequeueBatchSize,
+            JobQueueDispatchWorkers, HidePassword};
     }
 
     @Override
@@ -232,21 +249,24 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 throw new CloudRuntimeException("Failed to acquire lock in submitting async job: " + job.getCmd() + " with timeout value = " + VmJobLockTimeout.value());
             }
 
+            final long queueId;
             try {
                 // lock is acquired
-                return Transaction.execute(new TransactionCallback<Long>() {
+                queueId = Transaction.execute(new TransactionCallback<Long>() {
                     @Override
                     public Long doInTransaction(TransactionStatus status) {
                         job.setInitMsid(getMsid());
                         dao.persist(job);
 
-                        syncAsyncJobExecution(job, syncObjType, syncObjId, 1);
-                        return job.getId();
+                        return queueAsyncJob(job, syncObjType, syncObjId, 1).getId();
                     }
                 });
             } finally {
                 _vmInstanceDao.unlockFromLockTable(String.valueOf(syncObjId));
             }
+
+            wakeupQueue(queueId);
+            return job.getId();
         } catch (Exception e) {
             String errMsg = "Unable to schedule async job for command " + job.getCmd() + ", unexpected exception.";
             s_logger.warn(errMsg, e);
@@ -271,7 +291,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     resultObject);
             }
             // still purge item from queue to avoid any blocking
-            _queueMgr.purgeAsyncJobQueueItemId(jobId);
+            wakeupQueue(_queueMgr.purgeAsyncJobQueueItemId(jobId));
             return;
         }
 
@@ -280,7 +300,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 s_logger.debug("job-" + jobId + " is already completed.");
             }
             // still purge item from queue to avoid any blocking
-            _queueMgr.purgeAsyncJobQueueItemId(jobId);
+            wakeupQueue(_queueMgr.purgeAsyncJobQueueItemId(jobId));
             return;
         }
 
@@ -295,9 +315,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Wake up jobs related to job-" + jobId);
         }
-        final List<Long> wakeupList = Transaction.execute(new TransactionCallback<List<Long>>() {
+        final Pair<List<Long>, Long> wakeupInfo = Transaction.execute(new TransactionCallback<Pair<List<Long>, Long>>() {
             @Override
-            public List<Long> doInTransaction(final TransactionStatus status) {
+            public Pair<List<Long>, Long> doInTransaction(final TransactionStatus status) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Update db status for job-" + jobId);
                 }
@@ -324,11 +344,12 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 _joinMapDao.disjoinAllJobs(jobId);
 
                 // purge the job sync item from queue
-                _queueMgr.purgeAsyncJobQueueItemId(jobId);
+                final Long queueId = _queueMgr.purgeAsyncJobQueueItemId(jobId);
 
-                return wakeupList;
+                return new Pair<List<Long>, Long>(wakeupList, queueId);
             }
         });
+        wakeupQueue(wakeupInfo.second());
 
         publishOnEventBus(job, "complete"); // publish before the instance type and ID are wiped out
 
@@ -343,7 +364,72 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                         scheduleExecution(jobToWakeup, false);
                 }
         */
-        _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.GLOBAL, jobId);
+        final Long initMsid = job.getInitMsid();
+        TransactionLegacy.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.GLOBAL, jobId);
+                if (initMsid != null && initMsid != getMsid()) {
+                    // the submitter may be waiting for the job on its own management server
+                    _messageBus.publish(null, AsyncJob.Topics.JOB_STATE_REMOTE, PublishScope.LOCAL, jobId);
+                }
+            }
+        });
+    }
+
+    private void wakeupQueue(Long queueId) {
+        if (queueId != null) {
+            wakeupQueues(Collections.singleton(queueId));
+        }
+    }
+
+    /**
+     * Lets the queue wakeup threads of this and the peer management servers try to dequeue from the given queues
+     * instead of waiting for the next scan. The wakeup is published once the outermost transaction has committed,
+     * so that the items made ready for execution by it can be seen.
+     */
+    private void wakeupQueues(final Collection<Long> queueIds) {
+        if (queueIds.isEmpty()) {
+            return;
+        }
+        final long[] ids = new long[queueIds.size()];
+        int i = 0;
+        for (Long queueId : queueIds) {
+            ids[i++] = queueId;
+        }
+        TransactionLegacy.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                for (long queueId : ids) {
+                    _messageBus.publish(null, AsyncJob.Topics.JOB_QUEUE_WAKEUP, PublishScope.LOCAL, queueId);
+                }
+                _messageBus.publish(null, AsyncJob.Topics.JOB_QUEUE_WAKEUP_REMOTE, PublishScope.LOCAL, ids);
+            }
+
+            @Override
+            public String toString() {
+                return "wakeup of sync queues " + Arrays.toString(ids);
+            }
+        });
+    }
+
+    private void onQueueWakeup(final long queueId) {
+        _syncQueueStats.recordWakeup();
+        if (!_pendingQueueWakeups.add(queueId)) {
+            return; // a wakeup of this queue is already pending
+        }
+        try {
+            _queueWakeupExecutor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    _pendingQueueWakeups.remove(queueId);
+                    checkQueue(queueId, true);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _pendingQueueWakeups.remove(queueId);
+            s_logger.debug("Queue wakeup is rejected, queue-" + queueId + " will be picked up by the next scan");
+        }
     }
 
     private String convertHumanReadableJson(String resultObj) {
@@ -454,6 +540,10 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public void syncAsyncJobExecution(AsyncJob job, String syncObjType, long syncObjId, long queueSizeLimit) {
+        queueAsyncJob(job, syncObjType, syncObjId, queueSizeLimit);
+    }
+
+    private SyncQueueVO queueAsyncJob(AsyncJob job, String syncObjType, long syncObjId, long queueSizeLimit) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Sync job-" + job.getId() + " execution on object " + syncObjType + "." + syncObjId);
         }
@@ -462,6 +552,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         queue = _queueMgr.queue(syncObjType, syncObjId, SyncQueueItem.AsyncJobContentType, job.getId(), queueSizeLimit);
         if (queue == null)
             throw new CloudRuntimeException("Unable to insert queue item into database, DB is full?");
+        return queue;
     }
 
     @Override
@@ -734,7 +825,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             }
 
             _queueMgr.purgeItem(executionContext.getSyncSource().getId());
-            checkQueue(executionContext.getSyncSource().getQueueId());
+            checkQueue(executionContext.getSyncSource().getQueueId(), false);
         }
     }
 
@@ -781,7 +872,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         return null;
     }
 
-    private void checkQueue(long queueId) {
+    private void checkQueue(long queueId, boolean fromWakeup) {
         while (true) {
             try {
                 SyncQueueItemVO item = _queueMgr.dequeueFromOne(queueId, getMsid());
@@ -789,6 +880,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     if (s_logger.isDebugEnabled()) {
                         s_logger.debug("Executing sync queue item: " + item.toString());
                     }
+                    _syncQueueStats.recordPickup(item, fromWakeup);
 
                     executeQueueItem(item, false);
                 } else {
@@ -801,6 +893,14 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         }
     }
 
+    private void executeQueueItemSafely(SyncQueueItemVO item) {
+        try {
+            executeQueueItem(item, false);
+        } catch (Throwable e) {
+            s_logger.error("Unexpected exception when trying to execute queue item " + item.toString(), e);
+        }
+    }
+
     private Runnable getHeartbeatTask() {
         return new ManagedContextRunnable() {
 
@@ -822,16 +922,18 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
             protected void reallyRun() {
                 try {
-                    List<SyncQueueItemVO> l = _queueMgr.dequeueFromAny(getMsid(), MAX_ONETIME_SCHEDULE_SIZE);
-                    if (l != null && l.size() > 0) {
-                        for (SyncQueueItemVO item : l) {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Execute sync-queue item: " + item.toString());
-                            }
-                            executeQueueItem(item, false);
+                    final int batchSize = JobQueueDequeueBatchSize.value();
+                    List<SyncQueueItemVO> l;
+                    do {
+                        // keep draining as long as full batches come back
+                        l = _queueMgr.dequeueFromAny(getMsid(), batchSize);
+                        if (l != null && l.size() > 0) {
+                            dispatchQueueItems(l);
                         }
-                    }
+                    } while (l != null && l.size() >= batchSize);
 
+                    // join waiters have their queues woken up as soon as the joined job completes, the scan is
+                    // only needed for timed wakeups (async_job_join_map.wakeup_interval)
                     List<Long> standaloneWakeupJobs = wakeupScan();
                     for (Long jobId : standaloneWakeupJobs) {
                         // TODO, we assume that all jobs in this category is API job only
@@ -846,6 +948,34 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         };
     }
 
+    private void dispatchQueueItems(List<SyncQueueItemVO> items) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(items.size());
+        for (final SyncQueueItemVO item : items) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Execute sync-queue item: " + item.toString());
+            }
+            _syncQueueStats.recordPickup(item, false);
+            tasks.add(Executors.callable(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    executeQueueItemSafely(item);
+                }
+            }));
+        }
+
+        if (tasks.size() == 1) {
+            // not worth a hand-off, the heartbeat thread already runs in a managed context
+            executeQueueItemSafely(items.get(0));
+            return;
+        }
+        try {
+            _queueDispatchExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            s_logger.warn("Interrupted while dispatching sync queue items");
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @DB
     private Runnable getGCTask() {
         return new ManagedContextRunnable() {
@@ -883,6 +1013,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
                                 // purge the item and resume queue processing
                                 _queueMgr.purgeItem(item.getId());
+                                wakeupQueue(item.getQueueId());
                             } catch (Throwable e) {
                                 s_logger.error("Unexpected exception when trying to remove job from sync queue, ", e);
                             }
@@ -964,11 +1095,23 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             item.setLastProcessNumber(null);
             item.setLastProcessMsid(null);
             _queueItemDao.update(item, queueItemsSC);
+            wakeupQueuesOf(queueItemsSC);
         }
 
         return _joinMapDao.findJobsToWake(joinedJobId);
     }
 
+    /**
+     * Wakes up the queues holding the items of the join waiters that have just been made ready for execution again
+     */
+    private void wakeupQueuesOf(SearchCriteria<SyncQueueItemVO> queueItemsSC) {
+        final Set<Long> queueIds = new HashSet<Long>();
+        for (SyncQueueItemVO item : _queueItemDao.search(queueItemsSC, null)) {
+            queueIds.add(item.getQueueId());
+        }
+        wakeupQueues(queueIds);
+    }
+
     @DB
     protected List<Long> wakeupScan() {
         final Date cutDate = DateUtil.currentGMTTime();
@@ -998,6 +1141,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     item.setLastProcessNumber(null);
                     item.setLastProcessMsid(null);
                     _queueItemDao.update(item, queueItemsSC);
+                    wakeupQueuesOf(queueItemsSC);
                 }
 
                 return _joinMapDao.findJobsToWakeBetween(cutDate);
@@ -1023,6 +1167,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             throw new ConfigurationException("Unable to load db.properties to configure AsyncJobManagerImpl");
         }
 
+        _queueDispatchExecutor = Executors.newFixedThreadPool(Math.max(1, JobQueueDispatchWorkers.value()), new NamedThreadFactory("AsyncJobMgr-QueueDispatch"));
+
         JoinJobSearch = _joinMapDao.createSearchBuilder(Long.class);
         JoinJobSearch.and(JoinJobSearch.entity().getJoinJobId(), Op.EQ, "joinJobId");
         JoinJobSearch.selectFields(JoinJobSearch.entity().getJobId());
@@ -1051,6 +1197,13 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         AsyncJobExecutionContext.init(this, _joinMapDao);
         OutcomeImpl.init(this);
 
+        _messageBus.subscribe(AsyncJob.Topics.JOB_QUEUE_WAKEUP, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                onQueueWakeup((Long)args);
+            }
+        });
+
         return true;
     }
 
@@ -1121,7 +1274,15 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     public boolean start() {
         cleanupLeftOverJobs(getMsid());
 
-        _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        // queues are normally woken up as soon as an item becomes ready, the scan only picks up what has been missed
+        final long scanInterval = JobQueueScanInterval.value() * 1000L;
+        _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), scanInterval, scanInterval, TimeUnit.MILLISECONDS);
+
+        try {
+            JmxUtil.registerMBean("AsyncJobManager", "SyncQueue", _syncQueueStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register sync queue statistics to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+        }
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
 
         return true;
@@ -1130,6 +1291,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     @Override
     public boolean stop() {
         _heartbeatScheduler.shutdown();
+        _queueWakeupExecutor.shutdown();
+        _queueDispatchExecutor.shutdown();
         _apiJobExecutor.shutdown();
         _workerJobExecutor.shutdown();
         return true;
@@ -0,0 +1,96 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.cloudstack.framework.jobs.SyncQueueMBean;
+
+import com.cloud.utils.DateUtil;
+
+/**
+ * Keeps track of how long sync queue items wait between being queued and being
+ * picked up, separately for items picked up on a queue wakeup and by the scan.
+ */
+public class SyncQueueMBeanImpl extends StandardMBean implements SyncQueueMBean {
+    private final AtomicLong _wakeups = new AtomicLong();
+    private final AtomicLong _wakeupPickups = new AtomicLong();
+    private final AtomicLong _wakeupPickupMillis = new AtomicLong();
+    private final AtomicLong _scanPickups = new AtomicLong();
+    private final AtomicLong _scanPickupMillis = new AtomicLong();
+    private final AtomicLong _pickupMaxMillis = new AtomicLong();
+
+    public SyncQueueMBeanImpl() {
+        super(SyncQueueMBean.class, false);
+    }
+
+    public void recordWakeup() {
+        _wakeups.incrementAndGet();
+    }
+
+    public void recordPickup(SyncQueueItemVO item, boolean fromWakeup) {
+        if (item.getCreated() == null) {
+            return;
+        }
+        long millis = Math.max(0, DateUtil.currentGMTTime().getTime() - item.getCreated().getTime());
+        if (fromWakeup) {
+            _wakeupPickups.incrementAndGet();
+            _wakeupPickupMillis.addAndGet(millis);
+        } else {
+            _scanPickups.incrementAndGet();
+            _scanPickupMillis.addAndGet(millis);
+        }
+        long max = _pickupMaxMillis.get();
+        while (millis > max && !_pickupMaxMillis.compareAndSet(max, millis)) {
+            max = _pickupMaxMillis.get();
+        }
+    }
+
+    @Override
+    public long getWakeupCount() {
+        return _wakeups.get();
+    }
+
+    @Override
+    public long getWakeupPickupCount() {
+        return _wakeupPickups.get();
+    }
+
+    @Override
+    public long getWakeupPickupAverageMillis() {
+        long count = _wakeupPickups.get();
+        return count == 0 ? 0 : _wakeupPickupMillis.get() / count;
+    }
+
+    @Override
+    public long getScanPickupCount() {
+        return _scanPickups.get();
+    }
+
+    @Override
+    public long getScanPickupAverageMillis() {
+        long count = _scanPickups.get();
+        return count == 0 ? 0 : _scanPickupMillis.get() / count;
+    }
+
+    @Override
+    public long getPickupMaxMillis() {
+        return _pickupMaxMillis.get();
+    }
+}
@@ -35,7 +35,10 @@ public interface SyncQueueManager extends Manager {
 
     public List<SyncQueueItemVO> getBlockedQueueItems(long thresholdMs, boolean exclusive);
 
-    void purgeAsyncJobQueueItemId(long asyncJobId);
+    /**
+     * @return id of the queue the purged item belonged to, null if the job had no queue item.
+     */
+    Long purgeAsyncJobQueueItemId(long asyncJobId);
 
     public void cleanupActiveQueueItems(Long msid, boolean exclusive);
 }
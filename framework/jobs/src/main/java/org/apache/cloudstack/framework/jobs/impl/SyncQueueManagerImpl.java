@@ -18,7 +18,9 @@ package org.apache.cloudstack.framework.jobs.impl;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
@@ -127,6 +129,11 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
         return null;
     }
 
+    /**
+     * Dequeues the next item of up to maxItems queues in one pass.  The queues and items are locked and
+     * refreshed with a single query each, and their process information is written back in batches, so
+     * the cost of a pass no longer grows by several round trips per item.
+     */
     @Override
     @DB
     public List<SyncQueueItemVO> dequeueFromAny(final Long msid, final int maxItems) {
@@ -138,31 +145,61 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
                 @Override
                 public void doInTransactionWithoutResult(TransactionStatus status) {
                     List<SyncQueueItemVO> l = _syncQueueItemDao.getNextQueueItems(maxItems);
-                    if(l != null && l.size() > 0) {
-                        for(SyncQueueItemVO item : l) {
-                            SyncQueueVO queueVO = _syncQueueDao.findById(item.getQueueId());
-                            SyncQueueItemVO itemVO = _syncQueueItemDao.findById(item.getId());
-                            if(queueReadyToProcess(queueVO) && itemVO != null && itemVO.getLastProcessNumber() == null) {
-                                Long processNumber = queueVO.getLastProcessNumber();
-                                if (processNumber == null)
-                                    processNumber = new Long(1);
-                                else
-                                    processNumber = processNumber + 1;
-
-                                Date dt = DateUtil.currentGMTTime();
-                                queueVO.setLastProcessNumber(processNumber);
-                                queueVO.setLastUpdated(dt);
-                                queueVO.setQueueSize(queueVO.getQueueSize() + 1);
-                                _syncQueueDao.update(queueVO.getId(), queueVO);
-
-                                itemVO.setLastProcessMsid(msid);
-                                itemVO.setLastProcessNumber(processNumber);
-                                itemVO.setLastProcessTime(dt);
-                                _syncQueueItemDao.update(item.getId(), itemVO);
-
-                                resultList.add(itemVO);
+                    if (l == null || l.isEmpty()) {
+                        return;
+                    }
+
+                    List<Long> queueIds = new ArrayList<Long>(l.size());
+                    List<Long> itemIds = new ArrayList<Long>(l.size());
+                    for (SyncQueueItemVO item : l) {
+                        queueIds.add(item.getQueueId());
+                        itemIds.add(item.getId());
+                    }
+
+                    // lock queues before items, the same order dequeueFromOne() updates them in
+                    Map<Long, SyncQueueVO> queues = new HashMap<Long, SyncQueueVO>();
+                    for (SyncQueueVO queueVO : _syncQueueDao.lockQueues(queueIds)) {
+                        queues.put(queueVO.getId(), queueVO);
+                    }
+                    List<SyncQueueItemVO> items = _syncQueueItemDao.lockPendingItems(itemIds);
+                    Map<Long, Integer> activeCounts = _syncQueueItemDao.getActiveQueueItemCounts(queueIds);
+
+                    Date dt = DateUtil.currentGMTTime();
+                    List<SyncQueueVO> processingQueues = new ArrayList<SyncQueueVO>();
+                    for (SyncQueueItemVO itemVO : items) {
+                        SyncQueueVO queueVO = queues.get(itemVO.getQueueId());
+                        if (queueVO == null || processingQueues.contains(queueVO)) {
+                            continue;
+                        }
+                        Integer activeCount = activeCounts.get(queueVO.getId());
+                        if (activeCount != null && activeCount >= queueVO.getQueueSizeLimit()) {
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("Queue (queue id, sync type, sync id) - (" + queueVO.getId() + "," + queueVO.getSyncObjType() + ", " +
+                                        queueVO.getSyncObjId() + ") is reaching concurrency limit " + queueVO.getQueueSizeLimit());
                             }
+                            continue;
                         }
+
+                        Long processNumber = queueVO.getLastProcessNumber();
+                        if (processNumber == null)
+                            processNumber = new Long(1);
+                        else
+                            processNumber = processNumber + 1;
+
+                        queueVO.setLastProcessNumber(processNumber);
+                        queueVO.setLastUpdated(dt);
+                        queueVO.setQueueSize(queueVO.getQueueSize() + 1);
+                        processingQueues.add(queueVO);
+
+                        itemVO.setLastProcessMsid(msid);
+                        itemVO.setLastProcessNumber(processNumber);
+                        itemVO.setLastProcessTime(dt);
+                        resultList.add(itemVO);
+                    }
+
+                    if (!resultList.isEmpty()) {
+                        _syncQueueDao.updateProcessNumbers(processingQueues, dt);
+                        _syncQueueItemDao.updateProcessInfo(resultList, msid, dt);
                     }
                 }
             });
@@ -255,11 +292,14 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
     }
 
     @Override
-    public void purgeAsyncJobQueueItemId(long asyncJobId) {
+    public Long purgeAsyncJobQueueItemId(long asyncJobId) {
         Long itemId = _syncQueueItemDao.getQueueItemIdByContentIdAndType(asyncJobId, SyncQueueItem.AsyncJobContentType);
         if (itemId != null) {
+            SyncQueueItemVO itemVO = _syncQueueItemDao.findById(itemId);
             purgeItem(itemId);
+            return itemVO != null ? itemVO.getQueueId() : null;
         }
+        return null;
     }
 
     @Override
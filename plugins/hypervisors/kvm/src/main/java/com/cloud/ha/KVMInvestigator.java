@@ -36,10 +36,13 @@ import org.apache.log4j.Logger;
 
 import javax.inject.Inject;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 public class KVMInvestigator extends AdapterBase implements Investigator {
     private final static Logger s_logger = Logger.getLogger(KVMInvestigator.class);
     @Inject
+    private HostInvestigationCache _hostInvestigations;
+    @Inject
     private HostDao _hostDao;
     @Inject
     private AgentManager _agentMgr;
@@ -51,11 +54,20 @@ public class KVMInvestigator extends AdapterBase implements Investigator {
     private HAManager haManager;
 
     @Override
-    public boolean isVmAlive(com.cloud.vm.VirtualMachine vm, Host host) throws UnknownVM {
+    public boolean isVmAlive(com.cloud.vm.VirtualMachine vm, final Host host) throws UnknownVM {
         if (haManager.isHAEligible(host)) {
             return haManager.isVMAliveOnHost(host);
         }
-        Status status = isAgentAlive(host);
+        if (host.getHypervisorType() != Hypervisor.HypervisorType.KVM && host.getHypervisorType() != Hypervisor.HypervisorType.LXC) {
+            throw new UnknownVM();
+        }
+        // the vms of a host are investigated one after another, the host only needs to be investigated once
+        Status status = _hostInvestigations.get(host.getId(), HighAvailabilityManager.InvestigationCacheTtl.value() * 1000L, new Callable<Status>() {
+            @Override
+            public Status call() {
+                return isAgentAlive(host);
+            }
+        });
         s_logger.debug("HA: HOST is ineligible legacy state " + status + " for host " + host.getId());
         if (status == null) {
             throw new UnknownVM();
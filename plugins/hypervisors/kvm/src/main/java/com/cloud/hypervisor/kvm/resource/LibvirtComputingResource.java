@@ -27,7 +27,6 @@ import java.net.URISyntaxException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -38,6 +37,10 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -75,7 +78,9 @@ import org.libvirt.DomainSnapshot;
 import org.libvirt.LibvirtException;
 import org.libvirt.MemoryStatistic;
 import org.libvirt.Network;
-import org.libvirt.NodeInfo;
+import org.libvirt.event.DomainEvent;
+import org.libvirt.event.DomainEventType;
+import org.libvirt.event.LifecycleListener;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -83,6 +88,7 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import com.cloud.agent.IAgentControl;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.HostVmStateReportEntry;
@@ -171,6 +177,7 @@ import com.cloud.utils.Pair;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.Ternary;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
@@ -230,6 +237,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     private long _hvVersion;
     private Duration _timeout;
     private static final int NUMMEMSTATS =2;
+    private static final long DOMAIN_DEVICES_MAX_AGE = 10 * 60 * 1000L;
+    private static final long DOMAIN_EVENT_PING_DELAY = 500L;
 
     private KVMHAMonitor _monitor;
     public static final String SSHKEYSPATH = "/root/.ssh";
@@ -309,6 +318,16 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, VmStats> _vmStats = new ConcurrentHashMap<String, VmStats>();
+    private final Map<String, LibvirtDomainStats> _domainStats = new ConcurrentHashMap<String, LibvirtDomainStats>();
+    private final LibvirtDomainDeviceCache _domainDevices = new LibvirtDomainDeviceCache(DOMAIN_DEVICES_MAX_AGE);
+    private volatile int _hostCpus;
+    protected long _vmStatsMaxAge = 30 * 1000L;
+    private volatile LibvirtDomainStateTracker _domainStateTracker;
+    private volatile Connect _domainEventConnection;
+    private final Object _domainEventLock = new Object();
+    private volatile String _domainEventHostName;
+    private ScheduledExecutorService _domainEventExecutor;
+    private final AtomicBoolean _domainEventPingScheduled = new AtomicBoolean();
 
     protected static final HashMap<DomainState, PowerState> s_powerStatesTable;
     static {
@@ -923,6 +942,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             _noMemBalloon = true;
         }
 
+        value = (String) params.get("vm.stats.max.age");
+        _vmStatsMaxAge = NumbersUtil.parseLong(value, 30) * 1000;
+
         _videoHw = (String) params.get("vm.video.hardware");
         value = (String) params.get("vm.video.ram");
         _videoRam = NumbersUtil.parseInt(value, 0);
@@ -972,7 +994,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             _watchDogAction = WatchDogAction.valueOf(value.toUpperCase());
         }
 
+        value = (String) params.get("libvirt.events.enabled");
+        final boolean domainEventsEnabled = value == null || Boolean.parseBoolean(value);
+        value = (String) params.get("libvirt.events.sync.interval");
+        final long domainEventsSyncInterval = NumbersUtil.parseLong(value, 600) * 1000;
+
         LibvirtConnection.initialize(_hypervisorURI);
+        // the event loop has to be registered before the connections are opened
+        if (domainEventsEnabled && _hypervisorType == HypervisorType.KVM && LibvirtConnection.initializeEventLoop()) {
+            _domainStateTracker = new LibvirtDomainStateTracker(domainEventsSyncInterval);
+            _domainEventExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("LibvirtDomainEvents"));
+        }
         Connect conn = null;
         try {
             conn = LibvirtConnection.getConnection();
@@ -1618,6 +1650,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public boolean stop() {
+        if (_domainEventExecutor != null) {
+            _domainEventExecutor.shutdownNow();
+        }
         try {
             final Connect conn = LibvirtConnection.getConnection();
             conn.close();
@@ -1833,6 +1868,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
         final Domain vm = getDomain(conn, vmName);
         vm.attachDevice(getVifDriver(nicTO.getType()).plug(nicTO, "Other PV", "", null).toString());
+        invalidateDomainDevices(vmName);
     }
 
 
@@ -1844,6 +1880,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         for (final InterfaceDef pluggedNic : pluggedNics) {
             if (pluggedNic.getMacAddress().equalsIgnoreCase(macAddr)) {
                 vm.detachDevice(pluggedNic.toString());
+                invalidateDomainDevices(vmName);
                 // We don't know which "traffic type" is associated with
                 // each interface at this point, so inform all vif drivers
                 for (final VifDriver vifDriver : getAllVifDrivers()) {
@@ -2040,6 +2077,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public PowerState getVmState(final Connect conn, final String vmName) {
+        final LibvirtDomainStateTracker tracker = _domainStateTracker;
+        if (tracker != null && conn == _domainEventConnection) {
+            final PowerState state = tracker.getState(vmName, System.currentTimeMillis());
+            if (state != null) {
+                return state;
+            }
+        }
         int retry = 3;
         Domain vms = null;
         while (retry-- > 0) {
@@ -2899,6 +2943,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 s_logger.debug("Detaching device: " + xml);
                 dm.detachDevice(xml);
             }
+            invalidateDomainDevices(vmName);
         } catch (final LibvirtException e) {
             if (attach) {
                 s_logger.warn("Failed to attach device to " + vmName + ": " + e.getMessage());
@@ -3086,7 +3131,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         if (_hypervisorType == HypervisorType.KVM) {
             try {
                 conn = LibvirtConnection.getConnectionByType(HypervisorType.KVM.toString());
-                vmStates.putAll(getHostVmStateReport(conn));
+                final HashMap<String, HostVmStateReportEntry> trackedVmStates = getTrackedHostVmStateReport(conn);
+                vmStates.putAll(trackedVmStates != null ? trackedVmStates : getHostVmStateReport(conn));
             } catch (final LibvirtException e) {
                 s_logger.debug("Failed to get connection: " + e.getMessage());
             }
@@ -3096,7 +3142,141 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     private HashMap<String, HostVmStateReportEntry> getHostVmStateReport(final Connect conn) {
+        final Map<String, PowerState> states = getDomainStates(conn);
+        if (states == null) {
+            return null;
+        }
+        final HashMap<String, HostVmStateReportEntry> vmStates = new HashMap<String, HostVmStateReportEntry>();
+        String hostName = null;
+        for (final Map.Entry<String, PowerState> entry : states.entrySet()) {
+            // TODO : for XS/KVM (host-based resource), we require to remove
+            // VM completely from host, for some reason, KVM seems to still keep
+            // Stopped VM around, to work-around that, reporting only powered-on VM
+            //
+            if (entry.getValue() == PowerState.PowerOn) {
+                try {
+                    if (hostName == null) {
+                        hostName = conn.getHostName();
+                    }
+                    vmStates.put(entry.getKey(), new HostVmStateReportEntry(entry.getValue(), hostName));
+                } catch (final LibvirtException e) {
+                    s_logger.warn("Unable to get vms", e);
+                }
+            }
+        }
+        return vmStates;
+    }
+
+    /**
+     * Same report as getHostVmStateReport() built from the domain state
+     * table kept up to date by the lifecycle events of the domains.
+     * @return null if the events of the connection are not tracked.
+     */
+    private HashMap<String, HostVmStateReportEntry> getTrackedHostVmStateReport(final Connect conn) {
+        final LibvirtDomainStateTracker tracker = _domainStateTracker;
+        if (tracker == null || !registerDomainEventListener(conn, tracker)) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        Map<String, PowerState> states = tracker.getStates(now);
+        if (states == null) {
+            final long syncStart = tracker.beginSync();
+            states = getDomainStates(conn);
+            if (states == null || !tracker.sync(states, syncStart, now)) {
+                return null;
+            }
+            states = tracker.getStates(now);
+            if (states == null) {
+                return null;
+            }
+        }
         final HashMap<String, HostVmStateReportEntry> vmStates = new HashMap<String, HostVmStateReportEntry>();
+        for (final Map.Entry<String, PowerState> entry : states.entrySet()) {
+            if (entry.getValue() == PowerState.PowerOn) {
+                vmStates.put(entry.getKey(), new HostVmStateReportEntry(entry.getValue(), _domainEventHostName));
+            }
+        }
+        return vmStates;
+    }
+
+    /**
+     * Has the lifecycle events of the domains of the connection update the
+     * domain state table, again whenever the connection has been opened again.
+     * @return false if the events cannot be tracked.
+     */
+    private boolean registerDomainEventListener(final Connect conn, final LibvirtDomainStateTracker tracker) {
+        synchronized (_domainEventLock) {
+            if (_domainEventConnection == conn) {
+                return true;
+            }
+            tracker.invalidate();
+            _domainEventConnection = null;
+            try {
+                _domainEventHostName = conn.getHostName();
+                conn.addLifecycleListener(new LifecycleListener() {
+                    @Override
+                    public int onLifecycleChange(final Domain domain, final DomainEvent event) {
+                        if (conn == _domainEventConnection) {
+                            onDomainEvent(domain, event);
+                        }
+                        return 0;
+                    }
+                });
+            } catch (final LibvirtException e) {
+                s_logger.warn("Unable to register for the lifecycle events of the domains, polling their state: " + e.getMessage());
+                _domainStateTracker = null;
+                return false;
+            }
+            _domainEventConnection = conn;
+            return true;
+        }
+    }
+
+    private void onDomainEvent(final Domain domain, final DomainEvent event) {
+        final LibvirtDomainStateTracker tracker = _domainStateTracker;
+        final String vmName;
+        try {
+            vmName = domain.getName();
+        } catch (final LibvirtException e) {
+            s_logger.warn("Unable to get the name of the domain of event " + event.getType() + ": " + e.getMessage());
+            if (tracker != null) {
+                tracker.invalidate();
+            }
+            return;
+        }
+        s_logger.debug("Domain " + vmName + " lifecycle event: " + event.getType());
+        // a domain defined again, by a migration or from outside of the agent, may not have the devices read earlier
+        if (event.getType() == DomainEventType.DEFINED || event.getType() == DomainEventType.UNDEFINED) {
+            invalidateDomainDevices(vmName);
+        }
+        if (tracker != null && tracker.update(vmName, event.getType())) {
+            scheduleDomainEventPing();
+        }
+    }
+
+    /**
+     * Has the agent send a ping shortly, the events of several domains
+     * changing state at the same time being reported by the same ping.
+     */
+    private void scheduleDomainEventPing() {
+        final IAgentControl agentControl = getAgentControl();
+        if (agentControl == null || _domainEventExecutor == null || !_domainEventPingScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        _domainEventExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                _domainEventPingScheduled.set(false);
+                agentControl.sendPing();
+            }
+        }, DOMAIN_EVENT_PING_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the power state of every domain defined, null if they cannot be listed.
+     */
+    private Map<String, PowerState> getDomainStates(final Connect conn) {
+        final Map<String, PowerState> states = new HashMap<String, PowerState>();
 
         String[] vms = null;
         int[] ids = null;
@@ -3124,15 +3304,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 final PowerState state = convertToPowerState(ps);
 
                 s_logger.trace("VM " + dm.getName() + ": powerstate = " + ps + "; vm state=" + state.toString());
-                final String vmName = dm.getName();
-
-                // TODO : for XS/KVM (host-based resource), we require to remove
-                // VM completely from host, for some reason, KVM seems to still keep
-                // Stopped VM around, to work-around that, reporting only powered-on VM
-                //
-                if (state == PowerState.PowerOn) {
-                    vmStates.put(vmName, new HostVmStateReportEntry(state, conn.getHostName()));
-                }
+                states.put(dm.getName(), state);
             } catch (final LibvirtException e) {
                 s_logger.warn("Unable to get vms", e);
             } finally {
@@ -3155,14 +3327,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 final PowerState state = convertToPowerState(ps);
                 final String vmName = dm.getName();
                 s_logger.trace("VM " + vmName + ": powerstate = " + ps + "; vm state=" + state.toString());
-
-                // TODO : for XS/KVM (host-based resource), we require to remove
-                // VM completely from host, for some reason, KVM seems to still keep
-                // Stopped VM around, to work-around that, reporting only powered-on VM
-                //
-                if (state == PowerState.PowerOn) {
-                    vmStates.put(vmName, new HostVmStateReportEntry(state, conn.getHostName()));
-                }
+                states.put(vmName, state);
             } catch (final LibvirtException e) {
                 s_logger.warn("Unable to get vms", e);
             } finally {
@@ -3176,7 +3341,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             }
         }
 
-        return vmStates;
+        return states;
     }
 
     public String rebootVM(final Connect conn, final String vmName) throws LibvirtException{
@@ -3361,13 +3526,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public Integer getVncPort(final Connect conn, final String vmName) throws LibvirtException {
-        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
         Domain dm = null;
         try {
             dm = conn.domainLookupByName(vmName);
-            final String xmlDesc = dm.getXMLDesc(0);
-            parser.parseDomainXML(xmlDesc);
-            return parser.getVncPort();
+            return getDomainDevices(dm, vmName).getVncPort();
         } finally {
             try {
                 if (dm != null) {
@@ -3479,12 +3641,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public List<InterfaceDef> getInterfaces(final Connect conn, final String vmName) {
-        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
         Domain dm = null;
         try {
             dm = conn.domainLookupByName(vmName);
-            parser.parseDomainXML(dm.getXMLDesc(0));
-            return parser.getInterfaces();
+            return new ArrayList<InterfaceDef>(getDomainDevices(dm, vmName).getInterfaces());
 
         } catch (final LibvirtException e) {
             s_logger.debug("Failed to get dom xml: " + e.toString());
@@ -3501,12 +3661,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public List<DiskDef> getDisks(final Connect conn, final String vmName) {
-        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
         Domain dm = null;
         try {
             dm = conn.domainLookupByName(vmName);
-            parser.parseDomainXML(dm.getXMLDesc(0));
-            return parser.getDisks();
+            return new ArrayList<DiskDef>(getDomainDevices(dm, vmName).getDisks());
 
         } catch (final LibvirtException e) {
             s_logger.debug("Failed to get dom xml: " + e.toString());
@@ -3530,56 +3688,84 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public List<VmNetworkStatsEntry> getVmNetworkStat(Connect conn, String vmName) throws LibvirtException {
-        Domain dm = null;
-        try {
-            dm = getDomain(conn, vmName);
+        final LibvirtDomainStats domainStats = getRecentDomainStats(conn, vmName);
 
-            List<VmNetworkStatsEntry> stats = new ArrayList<VmNetworkStatsEntry>();
+        List<VmNetworkStatsEntry> stats = new ArrayList<VmNetworkStatsEntry>();
+        if (domainStats == null) {
+            return stats;
+        }
+        for (final LibvirtDomainStats.InterfaceStats nicStats : domainStats.getInterfaces()) {
+            VmNetworkStatsEntry stat = new VmNetworkStatsEntry(vmName, nicStats.getMacAddress(), nicStats.getTxBytes(), nicStats.getRxBytes());
+            stats.add(stat);
+        }
 
-            List<InterfaceDef> nics = getInterfaces(conn, vmName);
+        return stats;
+    }
 
-            for (InterfaceDef nic : nics) {
-                DomainInterfaceStats nicStats = dm.interfaceStats(nic.getDevName());
-                String macAddress = nic.getMacAddress();
-                VmNetworkStatsEntry stat = new VmNetworkStatsEntry(vmName, macAddress, nicStats.tx_bytes, nicStats.rx_bytes);
-                stats.add(stat);
-            }
+    public List<VmDiskStatsEntry> getVmDiskStat(final Connect conn, final String vmName) throws LibvirtException {
+        final LibvirtDomainStats domainStats = getRecentDomainStats(conn, vmName);
 
+        final List<VmDiskStatsEntry> stats = new ArrayList<VmDiskStatsEntry>();
+        if (domainStats == null) {
             return stats;
-        } finally {
-            if (dm != null) {
-                dm.free();
+        }
+        for (final LibvirtDomainStats.DiskStats blockStats : domainStats.getDisks()) {
+            if (blockStats.getDeviceType() != DeviceType.DISK) {
+                break;
+            }
+            final String path = blockStats.getDiskPath(); // for example, path = /mnt/pool_uuid/disk_path/
+            String diskPath = null;
+            if (path != null) {
+                final String[] token = path.split("/");
+                if (token.length > 3) {
+                    diskPath = token[3];
+                    final VmDiskStatsEntry stat = new VmDiskStatsEntry(vmName, diskPath, blockStats.getWriteRequests(), blockStats.getReadRequests(), blockStats.getWriteBytes(),
+                            blockStats.getReadBytes());
+                    stats.add(stat);
+                }
             }
         }
+
+        return stats;
     }
 
-    public List<VmDiskStatsEntry> getVmDiskStat(final Connect conn, final String vmName) throws LibvirtException {
+    /**
+     * Reads the counters of the domain in a single pass, the interfaces and
+     * disks of the domain being taken from the device cache.
+     * @return null if the domain does not exist.
+     */
+    public LibvirtDomainStats getDomainStats(final Connect conn, final String vmName) throws LibvirtException {
         Domain dm = null;
         try {
             dm = getDomain(conn, vmName);
+            if (dm == null) {
+                return null;
+            }
+            final LibvirtDomainDeviceCache.Devices devices = getDomainDevices(dm, vmName);
+            final DomainInfo info = dm.getInfo();
+            final long freeMemoryKBs = getMemoryFreeInKBs(dm);
 
-            final List<VmDiskStatsEntry> stats = new ArrayList<VmDiskStatsEntry>();
-
-            final List<DiskDef> disks = getDisks(conn, vmName);
+            final List<LibvirtDomainStats.InterfaceStats> interfaces = new ArrayList<LibvirtDomainStats.InterfaceStats>();
+            for (final InterfaceDef vif : devices.getInterfaces()) {
+                final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
+                interfaces.add(new LibvirtDomainStats.InterfaceStats(vif.getDevName(), vif.getMacAddress(), ifStats.rx_bytes, ifStats.tx_bytes));
+            }
 
-            for (final DiskDef disk : disks) {
-                if (disk.getDeviceType() != DeviceType.DISK) {
-                    break;
+            final List<LibvirtDomainStats.DiskStats> disks = new ArrayList<LibvirtDomainStats.DiskStats>();
+            for (final DiskDef disk : devices.getDisks()) {
+                if (disk.getDeviceType() == DeviceType.CDROM || disk.getDeviceType() == DeviceType.FLOPPY) {
+                    disks.add(new LibvirtDomainStats.DiskStats(disk.getDiskLabel(), disk.getDiskPath(), disk.getDeviceType(), 0, 0, 0, 0));
+                    continue;
                 }
                 final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                final String path = disk.getDiskPath(); // for example, path = /mnt/pool_uuid/disk_path/
-                String diskPath = null;
-                if (path != null) {
-                    final String[] token = path.split("/");
-                    if (token.length > 3) {
-                        diskPath = token[3];
-                        final VmDiskStatsEntry stat = new VmDiskStatsEntry(vmName, diskPath, blockStats.wr_req, blockStats.rd_req, blockStats.wr_bytes, blockStats.rd_bytes);
-                        stats.add(stat);
-                    }
-                }
+                disks.add(new LibvirtDomainStats.DiskStats(disk.getDiskLabel(), disk.getDiskPath(), disk.getDeviceType(), blockStats.rd_req, blockStats.wr_req, blockStats.rd_bytes,
+                        blockStats.wr_bytes));
             }
 
-            return stats;
+            final LibvirtDomainStats domainStats = new LibvirtDomainStats(vmName, System.currentTimeMillis(), info.cpuTime, info.nrVirtCpu, info.maxMem, info.memory, freeMemoryKBs,
+                    interfaces, disks);
+            _domainStats.put(vmName, domainStats);
+            return domainStats;
         } finally {
             if (dm != null) {
                 dm.free();
@@ -3587,6 +3773,46 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         }
     }
 
+    /**
+     * @return the last counters read from the domain if they are recent
+     * enough, the counters read now otherwise, null if the domain does not exist.
+     */
+    protected LibvirtDomainStats getRecentDomainStats(final Connect conn, final String vmName) throws LibvirtException {
+        final LibvirtDomainStats domainStats = _domainStats.get(vmName);
+        if (domainStats != null && System.currentTimeMillis() - domainStats.getTimestamp() <= _vmStatsMaxAge) {
+            return domainStats;
+        }
+        return getDomainStats(conn, vmName);
+    }
+
+    /**
+     * @return the devices of the domain, parsed from its XML unless those
+     * parsed earlier are still valid.
+     */
+    protected LibvirtDomainDeviceCache.Devices getDomainDevices(final Domain dm, final String vmName) throws LibvirtException {
+        final String uuid = dm.getUUIDString();
+        final int domainId = dm.getID();
+        final long now = System.currentTimeMillis();
+        final LibvirtDomainDeviceCache.Devices devices = _domainDevices.get(vmName, uuid, domainId, now);
+        if (devices != null) {
+            return devices;
+        }
+        final long generation = _domainDevices.getGeneration();
+        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+        // what could not be parsed is not cached
+        final boolean parsed = parser.parseDomainXML(dm.getXMLDesc(0));
+        return _domainDevices.put(vmName, parsed ? uuid : null, domainId, now, generation, parser);
+    }
+
+    /**
+     * Has the devices of the domain read again, to be called whenever a
+     * device is attached to or detached from it and once it is stopped.
+     */
+    public void invalidateDomainDevices(final String vmName) {
+        _domainDevices.invalidate(vmName);
+        _domainStats.remove(vmName);
+    }
+
     private class VmStats {
         long _usedTime;
         long _tx;
@@ -3595,120 +3821,109 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         long _ioWrote;
         long _bytesRead;
         long _bytesWrote;
-        Calendar _timestamp;
+        long _timestamp;
     }
 
     public VmStatsEntry getVmStat(final Connect conn, final String vmName) throws LibvirtException {
-        Domain dm = null;
-        try {
-            dm = getDomain(conn, vmName);
-            if (dm == null) {
-                return null;
-            }
-            DomainInfo info = dm.getInfo();
-            final VmStatsEntry stats = new VmStatsEntry();
+        final LibvirtDomainStats domainStats = getDomainStats(conn, vmName);
+        if (domainStats == null) {
+            return null;
+        }
+        final VmStatsEntry stats = new VmStatsEntry();
 
-            stats.setNumCPUs(info.nrVirtCpu);
-            stats.setEntityType("vm");
+        stats.setNumCPUs(domainStats.getVirtCpus());
+        stats.setEntityType("vm");
 
-            stats.setMemoryKBs(info.maxMem);
-            stats.setTargetMemoryKBs(info.memory);
-            stats.setIntFreeMemoryKBs(getMemoryFreeInKBs(dm));
+        stats.setMemoryKBs(domainStats.getMaxMemoryKBs());
+        stats.setTargetMemoryKBs(domainStats.getMemoryKBs());
+        stats.setIntFreeMemoryKBs(domainStats.getFreeMemoryKBs());
 
-            /* get cpu utilization */
-            VmStats oldStats = null;
+        /* get cpu utilization */
+        final VmStats oldStats = _vmStats.get(vmName);
 
-            final Calendar now = Calendar.getInstance();
+        long elapsedTime = 0;
+        if (oldStats != null) {
+            elapsedTime = domainStats.getTimestamp() - oldStats._timestamp;
+            double utilization = (domainStats.getCpuTime() - oldStats._usedTime) / ((double)elapsedTime * 1000000);
 
-            oldStats = _vmStats.get(vmName);
+            utilization = utilization / getHostCpus(conn);
+            if (utilization > 0) {
+                stats.setCPUUtilization(utilization * 100);
+            }
+        }
 
-            long elapsedTime = 0;
-            if (oldStats != null) {
-                elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
-                double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
+        /* get network stats */
+        long rx = 0;
+        long tx = 0;
+        for (final LibvirtDomainStats.InterfaceStats ifStats : domainStats.getInterfaces()) {
+            rx += ifStats.getRxBytes();
+            tx += ifStats.getTxBytes();
+        }
 
-                final NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
-                if (utilization > 0) {
-                    stats.setCPUUtilization(utilization * 100);
-                }
+        if (oldStats != null) {
+            final double deltarx = rx - oldStats._rx;
+            if (deltarx > 0) {
+                stats.setNetworkReadKBs(deltarx / 1024);
+            }
+            final double deltatx = tx - oldStats._tx;
+            if (deltatx > 0) {
+                stats.setNetworkWriteKBs(deltatx / 1024);
             }
+        }
 
-            /* get network stats */
+        /* get disk stats */
+        long io_rd = 0;
+        long io_wr = 0;
+        long bytes_rd = 0;
+        long bytes_wr = 0;
+        for (final LibvirtDomainStats.DiskStats blockStats : domainStats.getDisks()) {
+            io_rd += blockStats.getReadRequests();
+            io_wr += blockStats.getWriteRequests();
+            bytes_rd += blockStats.getReadBytes();
+            bytes_wr += blockStats.getWriteBytes();
+        }
 
-            final List<InterfaceDef> vifs = getInterfaces(conn, vmName);
-            long rx = 0;
-            long tx = 0;
-            for (final InterfaceDef vif : vifs) {
-                final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
-                rx += ifStats.rx_bytes;
-                tx += ifStats.tx_bytes;
+        if (oldStats != null) {
+            final long deltaiord = io_rd - oldStats._ioRead;
+            if (deltaiord > 0) {
+                stats.setDiskReadIOs(deltaiord);
             }
-
-            if (oldStats != null) {
-                final double deltarx = rx - oldStats._rx;
-                if (deltarx > 0) {
-                    stats.setNetworkReadKBs(deltarx / 1024);
-                }
-                final double deltatx = tx - oldStats._tx;
-                if (deltatx > 0) {
-                    stats.setNetworkWriteKBs(deltatx / 1024);
-                }
+            final long deltaiowr = io_wr - oldStats._ioWrote;
+            if (deltaiowr > 0) {
+                stats.setDiskWriteIOs(deltaiowr);
             }
-
-            /* get disk stats */
-            final List<DiskDef> disks = getDisks(conn, vmName);
-            long io_rd = 0;
-            long io_wr = 0;
-            long bytes_rd = 0;
-            long bytes_wr = 0;
-            for (final DiskDef disk : disks) {
-                if (disk.getDeviceType() == DeviceType.CDROM || disk.getDeviceType() == DeviceType.FLOPPY) {
-                    continue;
-                }
-                final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                io_rd += blockStats.rd_req;
-                io_wr += blockStats.wr_req;
-                bytes_rd += blockStats.rd_bytes;
-                bytes_wr += blockStats.wr_bytes;
+            final double deltabytesrd = bytes_rd - oldStats._bytesRead;
+            if (deltabytesrd > 0) {
+                stats.setDiskReadKBs(deltabytesrd / 1024);
             }
-
-            if (oldStats != null) {
-                final long deltaiord = io_rd - oldStats._ioRead;
-                if (deltaiord > 0) {
-                    stats.setDiskReadIOs(deltaiord);
-                }
-                final long deltaiowr = io_wr - oldStats._ioWrote;
-                if (deltaiowr > 0) {
-                    stats.setDiskWriteIOs(deltaiowr);
-                }
-                final double deltabytesrd = bytes_rd - oldStats._bytesRead;
-                if (deltabytesrd > 0) {
-                    stats.setDiskReadKBs(deltabytesrd / 1024);
-                }
-                final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
-                if (deltabyteswr > 0) {
-                    stats.setDiskWriteKBs(deltabyteswr / 1024);
-                }
+            final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
+            if (deltabyteswr > 0) {
+                stats.setDiskWriteKBs(deltabyteswr / 1024);
             }
+        }
 
-            /* save to Hashmap */
-            final VmStats newStat = new VmStats();
-            newStat._usedTime = info.cpuTime;
-            newStat._rx = rx;
-            newStat._tx = tx;
-            newStat._ioRead = io_rd;
-            newStat._ioWrote = io_wr;
-            newStat._bytesRead = bytes_rd;
-            newStat._bytesWrote = bytes_wr;
-            newStat._timestamp = now;
-            _vmStats.put(vmName, newStat);
-            return stats;
-        } finally {
-            if (dm != null) {
-                dm.free();
-            }
+        /* save to Hashmap */
+        final VmStats newStat = new VmStats();
+        newStat._usedTime = domainStats.getCpuTime();
+        newStat._rx = rx;
+        newStat._tx = tx;
+        newStat._ioRead = io_rd;
+        newStat._ioWrote = io_wr;
+        newStat._bytesRead = bytes_rd;
+        newStat._bytesWrote = bytes_wr;
+        newStat._timestamp = domainStats.getTimestamp();
+        _vmStats.put(vmName, newStat);
+        return stats;
+    }
+
+    /**
+     * @return the number of cpus of the host, read once.
+     */
+    protected int getHostCpus(final Connect conn) throws LibvirtException {
+        if (_hostCpus <= 0) {
+            _hostCpus = conn.nodeInfo().cpus;
         }
+        return _hostCpus;
     }
 
     /**
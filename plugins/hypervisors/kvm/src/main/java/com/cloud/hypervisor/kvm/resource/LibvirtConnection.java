@@ -21,6 +21,7 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
+import org.libvirt.Library;
 import org.libvirt.LibvirtException;
 
 import com.cloud.hypervisor.Hypervisor;
@@ -32,6 +33,7 @@ public class LibvirtConnection {
 
     static private Connect s_connection;
     static private String s_hypervisorURI;
+    static private Thread s_eventLoop;
 
     static public Connect getConnection() throws LibvirtException {
         return getConnection(s_hypervisorURI);
@@ -87,6 +89,43 @@ public class LibvirtConnection {
         s_hypervisorURI = hypervisorURI;
     }
 
+    /**
+     * Registers the default libvirt event loop and has it run by a daemon
+     * thread, the connections opened from then on deliver the domain events.
+     * @return true if the event loop is running.
+     */
+    static synchronized boolean initializeEventLoop() {
+        if (s_eventLoop != null) {
+            return true;
+        }
+        try {
+            Library.initEventLoop();
+        } catch (LibvirtException e) {
+            s_logger.warn("Unable to register the libvirt event loop: " + e.getMessage());
+            return false;
+        }
+        s_eventLoop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Library.processEvent();
+                    } catch (LibvirtException e) {
+                        s_logger.warn("Failed to process libvirt events: " + e.getMessage());
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "LibvirtEventLoop");
+        s_eventLoop.setDaemon(true);
+        s_eventLoop.start();
+        return true;
+    }
+
     static String getHypervisorURI(String hypervisorType) {
         if ("LXC".equalsIgnoreCase(hypervisorType)) {
             return "lxc:///";
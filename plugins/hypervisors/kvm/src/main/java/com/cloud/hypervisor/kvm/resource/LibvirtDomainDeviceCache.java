@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+
+/**
+ * LibvirtDomainDeviceCache keeps the devices parsed from the XML of the
+ * domains so that the statistics collection and the commands only reading
+ * them do not dump and parse the domain XML every time.  An entry is only
+ * valid for the domain uuid and id it was read for, the id changing whenever
+ * the domain is started again, and for a bounded time.  The agent invalidates
+ * the entry of a domain whenever it changes the definition of it.
+ */
+public class LibvirtDomainDeviceCache {
+
+    public static class Devices {
+        private final String uuid;
+        private final int domainId;
+        private final long loaded;
+        private final List<InterfaceDef> interfaces;
+        private final List<DiskDef> disks;
+        private final Integer vncPort;
+
+        Devices(String uuid, int domainId, long loaded, LibvirtDomainXMLParser parser) {
+            this.uuid = uuid;
+            this.domainId = domainId;
+            this.loaded = loaded;
+            this.interfaces = Collections.unmodifiableList(new ArrayList<InterfaceDef>(parser.getInterfaces()));
+            this.disks = Collections.unmodifiableList(new ArrayList<DiskDef>(parser.getDisks()));
+            this.vncPort = parser.getVncPort();
+        }
+
+        public List<InterfaceDef> getInterfaces() {
+            return interfaces;
+        }
+
+        public List<DiskDef> getDisks() {
+            return disks;
+        }
+
+        public Integer getVncPort() {
+            return vncPort;
+        }
+    }
+
+    private final Map<String, Devices> _devices = new ConcurrentHashMap<String, Devices>();
+    private final AtomicLong _invalidations = new AtomicLong();
+    private final long _maxAge;
+
+    /**
+     * @param maxAge time in ms after which the devices of a domain are read again.
+     */
+    public LibvirtDomainDeviceCache(long maxAge) {
+        _maxAge = maxAge;
+    }
+
+    /**
+     * @return the devices of the domain, null if they have to be read.
+     */
+    public Devices get(String vmName, String uuid, int domainId, long now) {
+        final Devices devices = _devices.get(vmName);
+        if (devices == null || !devices.uuid.equals(uuid) || devices.domainId != domainId || now - devices.loaded > _maxAge) {
+            return null;
+        }
+        return devices;
+    }
+
+    /**
+     * @return the value to give to put() for the devices about to be read.
+     */
+    public long getGeneration() {
+        return _invalidations.get();
+    }
+
+    /**
+     * Caches the devices parsed for the domain, unless an entry has been
+     * invalidated since generation was taken as they may then be outdated.
+     * @param uuid uuid of the domain, the devices are not cached if null.
+     */
+    public Devices put(String vmName, String uuid, int domainId, long now, long generation, LibvirtDomainXMLParser parser) {
+        final Devices devices = new Devices(uuid, domainId, now, parser);
+        if (uuid == null) {
+            return devices;
+        }
+        _devices.put(vmName, devices);
+        if (_invalidations.get() != generation) {
+            _devices.remove(vmName, devices);
+        }
+        return devices;
+    }
+
+    public void invalidate(String vmName) {
+        _invalidations.incrementAndGet();
+        _devices.remove(vmName);
+    }
+
+    public int size() {
+        return _devices.size();
+    }
+}
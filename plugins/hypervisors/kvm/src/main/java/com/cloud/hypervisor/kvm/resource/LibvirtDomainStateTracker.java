@@ -0,0 +1,173 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.libvirt.event.DomainEventType;
+
+import com.cloud.vm.VirtualMachine.PowerState;
+
+/**
+ * LibvirtDomainStateTracker keeps the power state of the domains of the host
+ * up to date from the libvirt domain lifecycle events, so that the ping
+ * reports and the vm state checks are answered without asking libvirt.  The
+ * table is only trusted once it has been filled from a full listing of the
+ * domains and is filled again from one once the sync interval has elapsed, in
+ * case an event has been lost.
+ */
+public class LibvirtDomainStateTracker {
+
+    protected static class State {
+        final PowerState powerState;
+        final long version;
+
+        State(PowerState powerState, long version) {
+            this.powerState = powerState;
+            this.version = version;
+        }
+    }
+
+    private final long _syncInterval;
+    private Map<String, State> _states = new HashMap<String, State>();
+    private long _version;
+    private long _invalidated;
+    private long _synced = -1;
+
+    /**
+     * @param syncInterval time in milliseconds after which the table is filled again from a full listing.
+     */
+    public LibvirtDomainStateTracker(long syncInterval) {
+        _syncInterval = syncInterval;
+    }
+
+    /**
+     * @return the power state of the domain after the event, null if the
+     * event does not tell it.
+     */
+    protected static PowerState getPowerState(DomainEventType type, PowerState current) {
+        switch (type) {
+        case STARTED:
+        case RESUMED:
+        case SUSPENDED:
+        case PMSUSPENDED:
+            return PowerState.PowerOn;
+        case STOPPED:
+        case SHUTDOWN:
+            return PowerState.PowerOff;
+        case CRASHED:
+            return PowerState.PowerUnknown;
+        case DEFINED:
+            // a running domain is defined again when its definition is updated
+            return current == null ? PowerState.PowerOff : current;
+        case UNDEFINED:
+            // a running domain which is undefined keeps running as a transient one
+            return current == PowerState.PowerOn ? current : PowerState.PowerOff;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * To be called before listing the domains, the listing is then given to
+     * sync() along with the returned version.
+     */
+    public synchronized long beginSync() {
+        return _version;
+    }
+
+    /**
+     * Replaces the table with the listed domains, the domains having had an
+     * event since the listing began keep the state of that event.
+     * @return false if the table has been invalidated since the listing began.
+     */
+    public synchronized boolean sync(Map<String, PowerState> states, long syncStart, long now) {
+        if (syncStart < _invalidated) {
+            return false;
+        }
+        final Map<String, State> synced = new HashMap<String, State>();
+        for (final Map.Entry<String, PowerState> entry : states.entrySet()) {
+            synced.put(entry.getKey(), new State(entry.getValue(), syncStart));
+        }
+        for (final Map.Entry<String, State> entry : _states.entrySet()) {
+            if (entry.getValue().version > syncStart) {
+                synced.put(entry.getKey(), entry.getValue());
+            }
+        }
+        _states = synced;
+        _synced = now;
+        return true;
+    }
+
+    /**
+     * Applies a lifecycle event of a domain, an event that does not tell the
+     * power state of the domain has the table filled again.
+     * @return true if the domain is reported as running and was not before, or the reverse.
+     */
+    public synchronized boolean update(String vmName, DomainEventType type) {
+        final State current = _states.get(vmName);
+        final PowerState powerState = getPowerState(type, current == null ? null : current.powerState);
+        if (powerState == null) {
+            invalidate();
+            return true;
+        }
+        _states.put(vmName, new State(powerState, ++_version));
+        final boolean wasOn = current != null && current.powerState == PowerState.PowerOn;
+        return _synced >= 0 && wasOn != (powerState == PowerState.PowerOn);
+    }
+
+    /**
+     * Drops the table, to be called whenever events may have been missed.
+     */
+    public synchronized void invalidate() {
+        _states = new HashMap<String, State>();
+        _invalidated = ++_version;
+        _synced = -1;
+    }
+
+    public synchronized boolean isSynced(long now) {
+        return _synced >= 0 && now - _synced < _syncInterval;
+    }
+
+    /**
+     * @return the power state of the domain, null if the domain is not in the
+     * table or the table is not in sync.  A domain defined since the last
+     * listing may not have had its event yet, so it is looked up in libvirt.
+     */
+    public synchronized PowerState getState(String vmName, long now) {
+        if (!isSynced(now)) {
+            return null;
+        }
+        final State state = _states.get(vmName);
+        return state == null ? null : state.powerState;
+    }
+
+    /**
+     * @return the power state of every domain defined, null if the table is not in sync.
+     */
+    public synchronized Map<String, PowerState> getStates(long now) {
+        if (!isSynced(now)) {
+            return null;
+        }
+        final Map<String, PowerState> states = new HashMap<String, PowerState>();
+        for (final Map.Entry<String, State> entry : _states.entrySet()) {
+            states.put(entry.getKey(), entry.getValue().powerState);
+        }
+        return states;
+    }
+}
@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef.DeviceType;
+
+/**
+ * LibvirtDomainStats holds the counters of a domain, cpu, memory, interfaces
+ * and disks, read in a single pass over the domain so that the vm, disk and
+ * network statistics of the domain are all served from the same snapshot.
+ */
+public class LibvirtDomainStats {
+
+    public static class InterfaceStats {
+        private final String devName;
+        private final String macAddress;
+        private final long rxBytes;
+        private final long txBytes;
+
+        public InterfaceStats(String devName, String macAddress, long rxBytes, long txBytes) {
+            this.devName = devName;
+            this.macAddress = macAddress;
+            this.rxBytes = rxBytes;
+            this.txBytes = txBytes;
+        }
+
+        public String getDevName() {
+            return devName;
+        }
+
+        public String getMacAddress() {
+            return macAddress;
+        }
+
+        public long getRxBytes() {
+            return rxBytes;
+        }
+
+        public long getTxBytes() {
+            return txBytes;
+        }
+    }
+
+    /**
+     * The counters of cdrom and floppy devices are not read and stay at zero.
+     */
+    public static class DiskStats {
+        private final String diskLabel;
+        private final String diskPath;
+        private final DeviceType deviceType;
+        private final long readRequests;
+        private final long writeRequests;
+        private final long readBytes;
+        private final long writeBytes;
+
+        public DiskStats(String diskLabel, String diskPath, DeviceType deviceType, long readRequests, long writeRequests, long readBytes, long writeBytes) {
+            this.diskLabel = diskLabel;
+            this.diskPath = diskPath;
+            this.deviceType = deviceType;
+            this.readRequests = readRequests;
+            this.writeRequests = writeRequests;
+            this.readBytes = readBytes;
+            this.writeBytes = writeBytes;
+        }
+
+        public String getDiskLabel() {
+            return diskLabel;
+        }
+
+        public String getDiskPath() {
+            return diskPath;
+        }
+
+        public DeviceType getDeviceType() {
+            return deviceType;
+        }
+
+        public long getReadRequests() {
+            return readRequests;
+        }
+
+        public long getWriteRequests() {
+            return writeRequests;
+        }
+
+        public long getReadBytes() {
+            return readBytes;
+        }
+
+        public long getWriteBytes() {
+            return writeBytes;
+        }
+    }
+
+    private final String vmName;
+    private final long timestamp;
+    private final long cpuTime;
+    private final int virtCpus;
+    private final long maxMemoryKBs;
+    private final long memoryKBs;
+    private final long freeMemoryKBs;
+    private final List<InterfaceStats> interfaces;
+    private final List<DiskStats> disks;
+
+    public LibvirtDomainStats(String vmName, long timestamp, long cpuTime, int virtCpus, long maxMemoryKBs, long memoryKBs, long freeMemoryKBs, List<InterfaceStats> interfaces,
+            List<DiskStats> disks) {
+        this.vmName = vmName;
+        this.timestamp = timestamp;
+        this.cpuTime = cpuTime;
+        this.virtCpus = virtCpus;
+        this.maxMemoryKBs = maxMemoryKBs;
+        this.memoryKBs = memoryKBs;
+        this.freeMemoryKBs = freeMemoryKBs;
+        this.interfaces = Collections.unmodifiableList(interfaces);
+        this.disks = Collections.unmodifiableList(disks);
+    }
+
+    public String getVmName() {
+        return vmName;
+    }
+
+    /**
+     * @return time in ms at which the counters have been read.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return cpu time used by the domain in ns.
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    public int getVirtCpus() {
+        return virtCpus;
+    }
+
+    public long getMaxMemoryKBs() {
+        return maxMemoryKBs;
+    }
+
+    public long getMemoryKBs() {
+        return memoryKBs;
+    }
+
+    public long getFreeMemoryKBs() {
+        return freeMemoryKBs;
+    }
+
+    public List<InterfaceStats> getInterfaces() {
+        return interfaces;
+    }
+
+    public List<DiskStats> getDisks() {
+        return disks;
+    }
+}
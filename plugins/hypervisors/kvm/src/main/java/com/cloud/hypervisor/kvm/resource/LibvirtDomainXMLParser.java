@@ -17,23 +17,25 @@
 package com.cloud.hypervisor.kvm.resource;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import com.google.common.base.Strings;
 
@@ -47,6 +49,11 @@ import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.WatchDogDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.WatchDogDef.WatchDogModel;
 import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.WatchDogDef.WatchDogAction;
 
+/**
+ * LibvirtDomainXMLParser reads the devices of a domain from its XML in one
+ * streaming pass.  Each device is looked at the way the DOM lookups used to
+ * do it: for every tag name, the first element of that name below the device.
+ */
 public class LibvirtDomainXMLParser {
     private static final Logger s_logger = Logger.getLogger(LibvirtDomainXMLParser.class);
     private final List<InterfaceDef> interfaces = new ArrayList<InterfaceDef>();
@@ -57,298 +64,401 @@ public class LibvirtDomainXMLParser {
     private Integer vncPort;
     private String desc;
 
+    private static final Set<String> DEVICE_TAGS = new HashSet<String>(Arrays.asList("disk", "interface", "channel", "graphics", "rng", "watchdog"));
+    private static final XMLInputFactory s_inputFactory = XMLInputFactory.newInstance();
+    static {
+        s_inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        s_inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        s_inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * An element along with the attributes and the text of the first element
+     * of every tag name below it.
+     */
+    protected static class DomainElement {
+        private final String name;
+        private final Map<String, String> attributes;
+        private final Map<String, Map<String, String>> tagAttributes = new HashMap<String, Map<String, String>>();
+        private final Map<String, String> tagValues = new HashMap<String, String>();
+
+        DomainElement(String name, Map<String, String> attributes) {
+            this.name = name;
+            this.attributes = attributes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the attribute of the element, an empty string if it is not set.
+         */
+        public String getAttribute(String attr) {
+            final String value = attributes.get(attr);
+            return value == null ? "" : value;
+        }
+
+        public boolean hasTag(String tag) {
+            return tagAttributes.containsKey(tag);
+        }
+
+        /**
+         * @return the attribute of the first element named tag, null if there
+         * is no such element, an empty string if the attribute is not set.
+         */
+        public String getAttrValue(String tag, String attr) {
+            final Map<String, String> tagAttrs = tagAttributes.get(tag);
+            if (tagAttrs == null) {
+                return null;
+            }
+            final String value = tagAttrs.get(attr);
+            return value == null ? "" : value;
+        }
+
+        /**
+         * @return the text of the first element named tag, null if there is no such element or it has no text.
+         */
+        public String getTagValue(String tag) {
+            return tagValues.get(tag);
+        }
+    }
+
     public boolean parseDomainXML(String domXML) {
-        DocumentBuilder builder;
+        final List<DomainElement> devices = new ArrayList<DomainElement>();
         try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-
-            InputSource is = new InputSource();
-            is.setCharacterStream(new StringReader(domXML));
-            Document doc = builder.parse(is);
-
-            Element rootElement = doc.getDocumentElement();
-
-            desc = getTagValue("description", rootElement);
-
-            Element devices = (Element)rootElement.getElementsByTagName("devices").item(0);
-            NodeList disks = devices.getElementsByTagName("disk");
-            for (int i = 0; i < disks.getLength(); i++) {
-                Element disk = (Element)disks.item(i);
-                String type = disk.getAttribute("type");
-                DiskDef def = new DiskDef();
-                if (type.equalsIgnoreCase("network")) {
-                    String diskFmtType = getAttrValue("driver", "type", disk);
-                    String diskCacheMode = getAttrValue("driver", "cache", disk);
-                    String diskPath = getAttrValue("source", "name", disk);
-                    String protocol = getAttrValue("source", "protocol", disk);
-                    String authUserName = getAttrValue("auth", "username", disk);
-                    String poolUuid = getAttrValue("secret", "uuid", disk);
-                    String host = getAttrValue("host", "name", disk);
-                    int port = Integer.parseInt(getAttrValue("host", "port", disk));
-                    String diskLabel = getAttrValue("target", "dev", disk);
-                    String bus = getAttrValue("target", "bus", disk);
-
-                    DiskDef.DiskFmtType fmt = null;
-                    if (diskFmtType != null) {
-                        fmt = DiskDef.DiskFmtType.valueOf(diskFmtType.toUpperCase());
-                    }
+            desc = readDomainXML(domXML, devices);
+        } catch (XMLStreamException e) {
+            s_logger.debug(e.toString());
+            return false;
+        }
 
-                    def.defNetworkBasedDisk(diskPath, host, port, authUserName, poolUuid, diskLabel,
-                        DiskDef.DiskBus.valueOf(bus.toUpperCase()),
-                        DiskDef.DiskProtocol.valueOf(protocol.toUpperCase()), fmt);
-                    def.setCacheMode(DiskDef.DiskCacheMode.valueOf(diskCacheMode.toUpperCase()));
-                } else {
-                    String diskFmtType = getAttrValue("driver", "type", disk);
-                    String diskCacheMode = getAttrValue("driver", "cache", disk);
-                    String diskFile = getAttrValue("source", "file", disk);
-                    String diskDev = getAttrValue("source", "dev", disk);
-
-                    String diskLabel = getAttrValue("target", "dev", disk);
-                    String bus = getAttrValue("target", "bus", disk);
-                    String device = disk.getAttribute("device");
-
-                    if (type.equalsIgnoreCase("file")) {
-                        if (device.equalsIgnoreCase("disk")) {
-                            DiskDef.DiskFmtType fmt = null;
-                            if (diskFmtType != null) {
-                                fmt = DiskDef.DiskFmtType.valueOf(diskFmtType.toUpperCase());
-                            }
-                            def.defFileBasedDisk(diskFile, diskLabel, DiskDef.DiskBus.valueOf(bus.toUpperCase()), fmt);
-                        } else if (device.equalsIgnoreCase("cdrom")) {
-                            def.defISODisk(diskFile , i+1);
-                        }
-                    } else if (type.equalsIgnoreCase("block")) {
-                        def.defBlockBasedDisk(diskDev, diskLabel,
-                            DiskDef.DiskBus.valueOf(bus.toUpperCase()));
-                    }
-                    if (StringUtils.isNotBlank(diskCacheMode)) {
-                        def.setCacheMode(DiskDef.DiskCacheMode.valueOf(diskCacheMode.toUpperCase()));
-                    }
+        int diskIndex = 0;
+        boolean graphicsRead = false;
+        for (DomainElement device : devices) {
+            if (device.getName().equals("disk")) {
+                diskDefs.add(parseDisk(device, diskIndex++));
+            } else if (device.getName().equals("interface")) {
+                interfaces.add(parseInterface(device));
+            } else if (device.getName().equals("channel")) {
+                channels.add(parseChannel(device));
+            } else if (device.getName().equals("graphics")) {
+                if (!graphicsRead) {
+                    graphicsRead = true;
+                    parseGraphics(device);
+                }
+            } else if (device.getName().equals("rng")) {
+                rngDefs.add(parseRng(device));
+            } else if (device.getName().equals("watchdog")) {
+                WatchDogDef def = parseWatchDog(device);
+                if (def != null) {
+                    watchDogDefs.add(def);
                 }
+            }
+        }
+        return true;
+    }
 
-                NodeList iotune = disk.getElementsByTagName("iotune");
-                if ((iotune != null) && (iotune.getLength() != 0)) {
-                    String bytesReadRateStr = getTagValue("read_bytes_sec", (Element)iotune.item(0));
-                    if (bytesReadRateStr != null) {
-                        Long bytesReadRate = Long.parseLong(bytesReadRateStr);
-                        def.setBytesReadRate(bytesReadRate);
-                    }
-                    String bytesReadRateMaxStr = getTagValue("read_bytes_sec_max", (Element)iotune.item(0));
-                    if (bytesReadRateMaxStr != null) {
-                        Long bytesReadRateMax = Long.parseLong(bytesReadRateMaxStr);
-                        def.setBytesReadRateMax(bytesReadRateMax);
-                    }
-                    String bytesReadRateMaxLengthStr = getTagValue("read_bytes_sec_max_length", (Element)iotune.item(0));
-                    if (bytesReadRateMaxLengthStr != null) {
-                        Long bytesReadRateMaxLength = Long.parseLong(bytesReadRateMaxLengthStr);
-                        def.setBytesReadRateMaxLength(bytesReadRateMaxLength);
-                    }
-                    String bytesWriteRateStr = getTagValue("write_bytes_sec", (Element)iotune.item(0));
-                    if (bytesWriteRateStr != null) {
-                        Long bytesWriteRate = Long.parseLong(bytesWriteRateStr);
-                        def.setBytesWriteRate(bytesWriteRate);
-                    }
-                    String bytesWriteRateMaxStr = getTagValue("write_bytes_sec_max", (Element)iotune.item(0));
-                    if (bytesWriteRateMaxStr != null) {
-                        Long bytesWriteRateMax = Long.parseLong(bytesWriteRateMaxStr);
-                        def.setBytesWriteRateMax(bytesWriteRateMax);
-                    }
-                    String bytesWriteRateMaxLengthStr = getTagValue("write_bytes_sec_max_length", (Element)iotune.item(0));
-                    if (bytesWriteRateMaxLengthStr != null) {
-                        Long bytesWriteRateMaxLength = Long.parseLong(bytesWriteRateMaxLengthStr);
-                        def.setBytesWriteRateMaxLength(bytesWriteRateMaxLength);
-                    }
-                    String iopsReadRateStr = getTagValue("read_iops_sec", (Element)iotune.item(0));
-                    if (iopsReadRateStr != null) {
-                        Long iopsReadRate = Long.parseLong(iopsReadRateStr);
-                        def.setIopsReadRate(iopsReadRate);
-                    }
-                    String iopsReadRateMaxStr = getTagValue("read_iops_sec_max", (Element)iotune.item(0));
-                    if (iopsReadRateMaxStr != null) {
-                        Long iopsReadRateMax = Long.parseLong(iopsReadRateMaxStr);
-                        def.setIopsReadRateMax(iopsReadRateMax);
-                    }
-                    String iopsReadRateMaxLengthStr = getTagValue("read_iops_sec_max_length", (Element)iotune.item(0));
-                    if (iopsReadRateMaxLengthStr != null) {
-                        Long iopsReadRateMaxLength = Long.parseLong(iopsReadRateMaxLengthStr);
-                        def.setIopsReadRateMaxLength(iopsReadRateMaxLength);
+    /**
+     * Reads the devices of the first devices element of the domain.
+     * @return the description of the domain.
+     */
+    protected static String readDomainXML(String domXML, List<DomainElement> devices) throws XMLStreamException {
+        final XMLStreamReader reader = s_inputFactory.createXMLStreamReader(new StringReader(domXML));
+        // the device being read and the elements below it, along with their depth
+        final Deque<DomainElement> open = new ArrayDeque<DomainElement>();
+        final Deque<Integer> openDepths = new ArrayDeque<Integer>();
+        final List<DomainElement> waitingForText = new ArrayList<DomainElement>();
+        String waitingTag = null;
+        boolean descWaiting = false;
+        String description = null;
+        boolean descRead = false;
+        int devicesDepth = -1;
+        boolean devicesRead = false;
+        int depth = 0;
+        try {
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE) {
+                    // only the first child of an element is taken as its text
+                    final String text = reader.getText();
+                    for (DomainElement element : waitingForText) {
+                        element.tagValues.put(waitingTag, text);
                     }
-                    String iopsWriteRateStr = getTagValue("write_iops_sec", (Element)iotune.item(0));
-                    if (iopsWriteRateStr != null) {
-                        Long iopsWriteRate = Long.parseLong(iopsWriteRateStr);
-                        def.setIopsWriteRate(iopsWriteRate);
+                    if (descWaiting) {
+                        description = text;
                     }
-                    String iopsWriteRateMaxStr = getTagValue("write_iops_sec_max", (Element)iotune.item(0));
-                    if (iopsWriteRateMaxStr != null) {
-                        Long iopsWriteRateMax = Long.parseLong(iopsWriteRateMaxStr);
-                        def.setIopsWriteRateMax(iopsWriteRateMax);
+                    waitingForText.clear();
+                    descWaiting = false;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+                    continue;
+                }
+                waitingForText.clear();
+                descWaiting = false;
+
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (!openDepths.isEmpty() && openDepths.peek() == depth) {
+                        open.pop();
+                        openDepths.pop();
                     }
-                    String iopsWriteRateMaxLengthStr = getTagValue("write_iops_sec_max_length", (Element)iotune.item(0));
-                    if (iopsWriteRateMaxLengthStr != null) {
-                        Long iopsWriteRateMaxLength = Long.parseLong(iopsWriteRateMaxLengthStr);
-                        def.setIopsWriteRateMaxLength(iopsWriteRateMaxLength);
+                    if (depth == devicesDepth) {
+                        devicesDepth = -1;
+                        devicesRead = true;
                     }
+                    continue;
                 }
 
-                diskDefs.add(def);
-            }
-
-            NodeList nics = devices.getElementsByTagName("interface");
-            for (int i = 0; i < nics.getLength(); i++) {
-                Element nic = (Element)nics.item(i);
-
-                String type = nic.getAttribute("type");
-                String mac = getAttrValue("mac", "address", nic);
-                String dev = getAttrValue("target", "dev", nic);
-                String model = getAttrValue("model", "type", nic);
-                String slot = StringUtils.removeStart(getAttrValue("address", "slot", nic), "0x");
-
-                InterfaceDef def = new InterfaceDef();
-                NodeList bandwidth = nic.getElementsByTagName("bandwidth");
-                Integer networkRateKBps = 0;
-                if ((bandwidth != null) && (bandwidth.getLength() != 0)) {
-                    Integer inbound = Integer.valueOf(getAttrValue("inbound", "average", (Element)bandwidth.item(0)));
-                    Integer outbound = Integer.valueOf(getAttrValue("outbound", "average", (Element)bandwidth.item(0)));
-                    if (inbound.equals(outbound)) {
-                        networkRateKBps = inbound;
-                    }
+                final String name = getName(reader);
+                if (name.equals("description") && !descRead) {
+                    descRead = true;
+                    descWaiting = true;
                 }
-                if (type.equalsIgnoreCase("network")) {
-                    String network = getAttrValue("source", "network", nic);
-                    def.defPrivateNet(network, dev, mac, NicModel.valueOf(model.toUpperCase()), networkRateKBps);
-                } else if (type.equalsIgnoreCase("bridge")) {
-                    String bridge = getAttrValue("source", "bridge", nic);
-                    def.defBridgeNet(bridge, dev, mac, NicModel.valueOf(model.toUpperCase()), networkRateKBps);
-                } else if (type.equalsIgnoreCase("ethernet")) {
-                    String scriptPath = getAttrValue("script", "path", nic);
-                    def.defEthernet(dev, mac, NicModel.valueOf(model.toUpperCase()), scriptPath, networkRateKBps);
-                } else if (type.equals("vhostuser")) {
-                    String sourcePort = getAttrValue("source", "path", nic);
-                    String mode = getAttrValue("source", "mode", nic);
-                    int lastSlashIndex = sourcePort.lastIndexOf("/");
-                    String ovsPath = sourcePort.substring(0,lastSlashIndex);
-                    String port = sourcePort.substring(lastSlashIndex + 1);
-                    def.setDpdkSourcePort(port);
-                    def.setDpdkOvsPath(ovsPath);
-                    def.setInterfaceMode(mode);
+                Map<String, String> attributes = null;
+                for (DomainElement element : open) {
+                    if (!element.tagAttributes.containsKey(name)) {
+                        if (attributes == null) {
+                            attributes = getAttributes(reader);
+                        }
+                        element.tagAttributes.put(name, attributes);
+                        waitingForText.add(element);
+                    }
                 }
-
-                if (StringUtils.isNotBlank(slot)) {
-                    def.setSlot(Integer.parseInt(slot, 16));
+                waitingTag = name;
+                if (devicesDepth >= 0 && DEVICE_TAGS.contains(name)) {
+                    final DomainElement device = new DomainElement(name, attributes == null ? getAttributes(reader) : attributes);
+                    devices.add(device);
+                    open.push(device);
+                    openDepths.push(depth);
+                } else if (name.equals("devices") && devicesDepth < 0 && !devicesRead) {
+                    devicesDepth = depth;
                 }
-
-                interfaces.add(def);
+                depth++;
             }
+        } finally {
+            reader.close();
+        }
+        return description;
+    }
 
-            NodeList ports = devices.getElementsByTagName("channel");
-            for (int i = 0; i < ports.getLength(); i++) {
-                Element channel = (Element)ports.item(i);
-
-                String type = channel.getAttribute("type");
-                String path = getAttrValue("source", "path", channel);
-                String name = getAttrValue("target", "name", channel);
-                String state = getAttrValue("target", "state", channel);
-
-                ChannelDef def = null;
-                if (!StringUtils.isNotBlank(state)) {
-                    def = new ChannelDef(name, ChannelDef.ChannelType.valueOf(type.toUpperCase()), new File(path));
-                } else {
-                    def = new ChannelDef(name, ChannelDef.ChannelType.valueOf(type.toUpperCase()),
-                            ChannelDef.ChannelState.valueOf(state.toUpperCase()), new File(path));
-                }
+    private static String getName(XMLStreamReader reader) {
+        final String prefix = reader.getPrefix();
+        return Strings.isNullOrEmpty(prefix) ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+    }
+
+    private static Map<String, String> getAttributes(XMLStreamReader reader) {
+        final Map<String, String> attributes = new HashMap<String, String>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            final String prefix = reader.getAttributePrefix(i);
+            final String name = reader.getAttributeLocalName(i);
+            attributes.put(Strings.isNullOrEmpty(prefix) ? name : prefix + ":" + name, reader.getAttributeValue(i));
+        }
+        return attributes;
+    }
 
-                channels.add(def);
+    private static DiskDef parseDisk(DomainElement disk, int i) {
+        String type = disk.getAttribute("type");
+        DiskDef def = new DiskDef();
+        if (type.equalsIgnoreCase("network")) {
+            String diskFmtType = disk.getAttrValue("driver", "type");
+            String diskCacheMode = disk.getAttrValue("driver", "cache");
+            String diskPath = disk.getAttrValue("source", "name");
+            String protocol = disk.getAttrValue("source", "protocol");
+            String authUserName = disk.getAttrValue("auth", "username");
+            String poolUuid = disk.getAttrValue("secret", "uuid");
+            String host = disk.getAttrValue("host", "name");
+            int port = Integer.parseInt(disk.getAttrValue("host", "port"));
+            String diskLabel = disk.getAttrValue("target", "dev");
+            String bus = disk.getAttrValue("target", "bus");
+
+            DiskDef.DiskFmtType fmt = null;
+            if (diskFmtType != null) {
+                fmt = DiskDef.DiskFmtType.valueOf(diskFmtType.toUpperCase());
             }
 
-            Element graphic = (Element)devices.getElementsByTagName("graphics").item(0);
-
-            if (graphic != null) {
-                String port = graphic.getAttribute("port");
-                if (port != null) {
-                    try {
-                        vncPort = Integer.parseInt(port);
-                        if (vncPort != -1) {
-                            vncPort = vncPort - 5900;
-                        } else {
-                            vncPort = null;
-                        }
-                    } catch (NumberFormatException nfe) {
-                        vncPort = null;
+            def.defNetworkBasedDisk(diskPath, host, port, authUserName, poolUuid, diskLabel,
+                DiskDef.DiskBus.valueOf(bus.toUpperCase()),
+                DiskDef.DiskProtocol.valueOf(protocol.toUpperCase()), fmt);
+            def.setCacheMode(DiskDef.DiskCacheMode.valueOf(diskCacheMode.toUpperCase()));
+        } else {
+            String diskFmtType = disk.getAttrValue("driver", "type");
+            String diskCacheMode = disk.getAttrValue("driver", "cache");
+            String diskFile = disk.getAttrValue("source", "file");
+            String diskDev = disk.getAttrValue("source", "dev");
+
+            String diskLabel = disk.getAttrValue("target", "dev");
+            String bus = disk.getAttrValue("target", "bus");
+            String device = disk.getAttribute("device");
+
+            if (type.equalsIgnoreCase("file")) {
+                if (device.equalsIgnoreCase("disk")) {
+                    DiskDef.DiskFmtType fmt = null;
+                    if (diskFmtType != null) {
+                        fmt = DiskDef.DiskFmtType.valueOf(diskFmtType.toUpperCase());
                     }
+                    def.defFileBasedDisk(diskFile, diskLabel, DiskDef.DiskBus.valueOf(bus.toUpperCase()), fmt);
+                } else if (device.equalsIgnoreCase("cdrom")) {
+                    def.defISODisk(diskFile , i+1);
                 }
+            } else if (type.equalsIgnoreCase("block")) {
+                def.defBlockBasedDisk(diskDev, diskLabel,
+                    DiskDef.DiskBus.valueOf(bus.toUpperCase()));
             }
-
-            NodeList rngs = devices.getElementsByTagName("rng");
-            for (int i = 0; i < rngs.getLength(); i++) {
-                RngDef def = null;
-                Element rng = (Element)rngs.item(i);
-                String backendModel = getAttrValue("backend", "model", rng);
-                String path = getTagValue("backend", rng);
-                String bytes = getAttrValue("rate", "bytes", rng);
-                String period = getAttrValue("rate", "period", rng);
-
-                if (Strings.isNullOrEmpty(backendModel)) {
-                    def = new RngDef(path, Integer.parseInt(bytes), Integer.parseInt(period));
-                } else {
-                    def = new RngDef(path, RngBackendModel.valueOf(backendModel.toUpperCase()),
-                                     Integer.parseInt(bytes), Integer.parseInt(period));
-                }
-
-                rngDefs.add(def);
+            if (StringUtils.isNotBlank(diskCacheMode)) {
+                def.setCacheMode(DiskDef.DiskCacheMode.valueOf(diskCacheMode.toUpperCase()));
             }
+        }
 
-            NodeList watchDogs = devices.getElementsByTagName("watchdog");
-            for (int i = 0; i < watchDogs.getLength(); i++) {
-                WatchDogDef def = null;
-                Element watchDog = (Element)watchDogs.item(i);
-                String action = watchDog.getAttribute("action");
-                String model = watchDog.getAttribute("model");
-
-                if (Strings.isNullOrEmpty(model)) {
-                   continue;
-                }
-
-                if (Strings.isNullOrEmpty(action)) {
-                    def = new WatchDogDef(WatchDogModel.valueOf(model.toUpperCase()));
-                } else {
-                    def = new WatchDogDef(WatchDogAction.valueOf(action.toUpperCase()),
-                                          WatchDogModel.valueOf(model.toUpperCase()));
-                }
+        if (disk.hasTag("iotune")) {
+            String bytesReadRateStr = disk.getTagValue("read_bytes_sec");
+            if (bytesReadRateStr != null) {
+                def.setBytesReadRate(Long.parseLong(bytesReadRateStr));
+            }
+            String bytesReadRateMaxStr = disk.getTagValue("read_bytes_sec_max");
+            if (bytesReadRateMaxStr != null) {
+                def.setBytesReadRateMax(Long.parseLong(bytesReadRateMaxStr));
+            }
+            String bytesReadRateMaxLengthStr = disk.getTagValue("read_bytes_sec_max_length");
+            if (bytesReadRateMaxLengthStr != null) {
+                def.setBytesReadRateMaxLength(Long.parseLong(bytesReadRateMaxLengthStr));
+            }
+            String bytesWriteRateStr = disk.getTagValue("write_bytes_sec");
+            if (bytesWriteRateStr != null) {
+                def.setBytesWriteRate(Long.parseLong(bytesWriteRateStr));
+            }
+            String bytesWriteRateMaxStr = disk.getTagValue("write_bytes_sec_max");
+            if (bytesWriteRateMaxStr != null) {
+                def.setBytesWriteRateMax(Long.parseLong(bytesWriteRateMaxStr));
+            }
+            String bytesWriteRateMaxLengthStr = disk.getTagValue("write_bytes_sec_max_length");
+            if (bytesWriteRateMaxLengthStr != null) {
+                def.setBytesWriteRateMaxLength(Long.parseLong(bytesWriteRateMaxLengthStr));
+            }
+            String iopsReadRateStr = disk.getTagValue("read_iops_sec");
+            if (iopsReadRateStr != null) {
+                def.setIopsReadRate(Long.parseLong(iopsReadRateStr));
+            }
+            String iopsReadRateMaxStr = disk.getTagValue("read_iops_sec_max");
+            if (iopsReadRateMaxStr != null) {
+                def.setIopsReadRateMax(Long.parseLong(iopsReadRateMaxStr));
+            }
+            String iopsReadRateMaxLengthStr = disk.getTagValue("read_iops_sec_max_length");
+            if (iopsReadRateMaxLengthStr != null) {
+                def.setIopsReadRateMaxLength(Long.parseLong(iopsReadRateMaxLengthStr));
+            }
+            String iopsWriteRateStr = disk.getTagValue("write_iops_sec");
+            if (iopsWriteRateStr != null) {
+                def.setIopsWriteRate(Long.parseLong(iopsWriteRateStr));
+            }
+            String iopsWriteRateMaxStr = disk.getTagValue("write_iops_sec_max");
+            if (iopsWriteRateMaxStr != null) {
+                def.setIopsWriteRateMax(Long.parseLong(iopsWriteRateMaxStr));
+            }
+            String iopsWriteRateMaxLengthStr = disk.getTagValue("write_iops_sec_max_length");
+            if (iopsWriteRateMaxLengthStr != null) {
+                def.setIopsWriteRateMaxLength(Long.parseLong(iopsWriteRateMaxLengthStr));
+            }
+        }
+        return def;
+    }
 
-                watchDogDefs.add(def);
+    private static InterfaceDef parseInterface(DomainElement nic) {
+        String type = nic.getAttribute("type");
+        String mac = nic.getAttrValue("mac", "address");
+        String dev = nic.getAttrValue("target", "dev");
+        String model = nic.getAttrValue("model", "type");
+        String slot = StringUtils.removeStart(nic.getAttrValue("address", "slot"), "0x");
+
+        InterfaceDef def = new InterfaceDef();
+        Integer networkRateKBps = 0;
+        if (nic.hasTag("bandwidth")) {
+            Integer inbound = Integer.valueOf(nic.getAttrValue("inbound", "average"));
+            Integer outbound = Integer.valueOf(nic.getAttrValue("outbound", "average"));
+            if (inbound.equals(outbound)) {
+                networkRateKBps = inbound;
             }
+        }
+        if (type.equalsIgnoreCase("network")) {
+            String network = nic.getAttrValue("source", "network");
+            def.defPrivateNet(network, dev, mac, NicModel.valueOf(model.toUpperCase()), networkRateKBps);
+        } else if (type.equalsIgnoreCase("bridge")) {
+            String bridge = nic.getAttrValue("source", "bridge");
+            def.defBridgeNet(bridge, dev, mac, NicModel.valueOf(model.toUpperCase()), networkRateKBps);
+        } else if (type.equalsIgnoreCase("ethernet")) {
+            String scriptPath = nic.getAttrValue("script", "path");
+            def.defEthernet(dev, mac, NicModel.valueOf(model.toUpperCase()), scriptPath, networkRateKBps);
+        } else if (type.equals("vhostuser")) {
+            String sourcePort = nic.getAttrValue("source", "path");
+            String mode = nic.getAttrValue("source", "mode");
+            int lastSlashIndex = sourcePort.lastIndexOf("/");
+            String ovsPath = sourcePort.substring(0,lastSlashIndex);
+            String port = sourcePort.substring(lastSlashIndex + 1);
+            def.setDpdkSourcePort(port);
+            def.setDpdkOvsPath(ovsPath);
+            def.setInterfaceMode(mode);
+        }
 
-            return true;
-        } catch (ParserConfigurationException e) {
-            s_logger.debug(e.toString());
-        } catch (SAXException e) {
-            s_logger.debug(e.toString());
-        } catch (IOException e) {
-            s_logger.debug(e.toString());
+        if (StringUtils.isNotBlank(slot)) {
+            def.setSlot(Integer.parseInt(slot, 16));
         }
-        return false;
+        return def;
     }
 
-    private static String getTagValue(String tag, Element eElement) {
-        NodeList tagNodeList = eElement.getElementsByTagName(tag);
-        if (tagNodeList == null || tagNodeList.getLength() == 0) {
-            return null;
+    private static ChannelDef parseChannel(DomainElement channel) {
+        String type = channel.getAttribute("type");
+        String path = channel.getAttrValue("source", "path");
+        String name = channel.getAttrValue("target", "name");
+        String state = channel.getAttrValue("target", "state");
+
+        if (!StringUtils.isNotBlank(state)) {
+            return new ChannelDef(name, ChannelDef.ChannelType.valueOf(type.toUpperCase()), new File(path));
         }
+        return new ChannelDef(name, ChannelDef.ChannelType.valueOf(type.toUpperCase()),
+                ChannelDef.ChannelState.valueOf(state.toUpperCase()), new File(path));
+    }
 
-        NodeList nlList = tagNodeList.item(0).getChildNodes();
+    private void parseGraphics(DomainElement graphic) {
+        String port = graphic.getAttribute("port");
+        try {
+            vncPort = Integer.parseInt(port);
+            if (vncPort != -1) {
+                vncPort = vncPort - 5900;
+            } else {
+                vncPort = null;
+            }
+        } catch (NumberFormatException nfe) {
+            vncPort = null;
+        }
+    }
 
-        Node nValue = nlList.item(0);
+    private static RngDef parseRng(DomainElement rng) {
+        String backendModel = rng.getAttrValue("backend", "model");
+        String path = rng.getTagValue("backend");
+        String bytes = rng.getAttrValue("rate", "bytes");
+        String period = rng.getAttrValue("rate", "period");
 
-        return nValue.getNodeValue();
+        if (Strings.isNullOrEmpty(backendModel)) {
+            return new RngDef(path, Integer.parseInt(bytes), Integer.parseInt(period));
+        }
+        return new RngDef(path, RngBackendModel.valueOf(backendModel.toUpperCase()),
+                Integer.parseInt(bytes), Integer.parseInt(period));
     }
 
-    private static String getAttrValue(String tag, String attr, Element eElement) {
-        NodeList tagNode = eElement.getElementsByTagName(tag);
-        if (tagNode.getLength() == 0) {
+    private static WatchDogDef parseWatchDog(DomainElement watchDog) {
+        String action = watchDog.getAttribute("action");
+        String model = watchDog.getAttribute("model");
+
+        if (Strings.isNullOrEmpty(model)) {
             return null;
         }
-        Element node = (Element)tagNode.item(0);
-        return node.getAttribute(attr);
+
+        if (Strings.isNullOrEmpty(action)) {
+            return new WatchDogDef(WatchDogModel.valueOf(model.toUpperCase()));
+        }
+        return new WatchDogDef(WatchDogAction.valueOf(action.toUpperCase()),
+                WatchDogModel.valueOf(model.toUpperCase()));
     }
 
     public Integer getVncPort() {
@@ -86,6 +86,7 @@ public final class LibvirtReplugNicCommandWrapper extends CommandWrapper<ReplugN
             interfaceDef.setLinkStateUp(true);
             s_logger.debug("ReplugNic: Updating interface" + interfaceDef);
             vm.updateDeviceFlags(interfaceDef.toString(), DomainAffect.LIVE.getValue());
+            libvirtComputingResource.invalidateDomainDevices(vmName);
 
             // We don't know which "traffic type" is associated with
             // each interface at this point, so inform all vif drivers
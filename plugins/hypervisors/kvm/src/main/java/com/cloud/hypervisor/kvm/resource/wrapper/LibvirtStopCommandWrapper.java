@@ -92,6 +92,7 @@ public final class LibvirtStopCommandWrapper extends CommandWrapper<StopCommand,
 
             libvirtComputingResource.destroyNetworkRulesForVM(conn, vmName);
             final String result = libvirtComputingResource.stopVM(conn, vmName, command.isForceStop());
+            libvirtComputingResource.invalidateDomainDevices(vmName);
 
             performAgentStopHook(vmName, libvirtComputingResource);
 
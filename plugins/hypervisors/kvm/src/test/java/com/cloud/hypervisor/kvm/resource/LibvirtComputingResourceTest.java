@@ -143,6 +143,8 @@ import com.cloud.agent.api.UnPlugNicCommand;
 import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
 import com.cloud.agent.api.UpgradeSnapshotCommand;
+import com.cloud.agent.api.VmDiskStatsEntry;
+import com.cloud.agent.api.VmNetworkStatsEntry;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.check.CheckSshCommand;
 import com.cloud.agent.api.proxy.CheckConsoleProxyLoadCommand;
@@ -559,6 +561,54 @@ public class LibvirtComputingResourceTest {
         Assert.assertTrue(vmStat.getTargetMemoryKBs() >= vmStat.getMemoryKBs());
     }
 
+    @Test
+    public void testVmStatsServedFromOneSnapshot() throws LibvirtException {
+        final Connect connect = Mockito.mock(Connect.class);
+        final Domain domain = Mockito.mock(Domain.class);
+        Mockito.when(domain.getInfo()).thenReturn(new DomainInfo());
+        Mockito.when(domain.memoryStats(2)).thenReturn(new MemoryStatistic[0]);
+        Mockito.when(connect.domainLookupByName(VMNAME)).thenReturn(domain);
+        final NodeInfo nodeInfo = new NodeInfo();
+        nodeInfo.cpus = 8;
+        Mockito.when(connect.nodeInfo()).thenReturn(nodeInfo);
+        final DomainInterfaceStats interfaceStats = new DomainInterfaceStats();
+        interfaceStats.rx_bytes = 2048;
+        interfaceStats.tx_bytes = 1024;
+        Mockito.when(domain.interfaceStats("vnet0")).thenReturn(interfaceStats);
+        final DomainBlockStats blockStats = new DomainBlockStats();
+        blockStats.rd_req = 10;
+        blockStats.wr_req = 20;
+        Mockito.when(domain.blockStats("vda")).thenReturn(blockStats);
+
+        Mockito.when(domain.getUUIDString()).thenReturn("4d2c1526-865d-4fc9-a1ac-dbd1801a22d0");
+        Mockito.when(domain.getXMLDesc(0)).thenReturn("<domain type='kvm' id='10'><name>" + VMNAME + "</name><devices>" +
+                "<disk type='file' device='disk'><driver name='qemu' type='qcow2'/><source file='/mnt/pool/volume'/><target dev='vda' bus='virtio'/></disk>" +
+                "<interface type='bridge'><mac address='02:00:00:00:00:01'/><source bridge='cloudbr0'/><target dev='vnet0'/><model type='virtio'/></interface>" +
+                "</devices></domain>");
+
+        final LibvirtComputingResource libvirtComputingResource = new LibvirtComputingResource();
+        libvirtComputingResource.getVmStat(connect, VMNAME);
+        libvirtComputingResource.getVmStat(connect, VMNAME);
+        final List<VmNetworkStatsEntry> networkStats = libvirtComputingResource.getVmNetworkStat(connect, VMNAME);
+        final List<VmDiskStatsEntry> diskStats = libvirtComputingResource.getVmDiskStat(connect, VMNAME);
+
+        // the domain xml is read once, the disk and network stats come from the last vm stats
+        verify(domain, times(1)).getXMLDesc(0);
+        verify(connect, times(2)).domainLookupByName(VMNAME);
+        verify(connect, times(1)).nodeInfo();
+        Assert.assertEquals(1, networkStats.size());
+        Assert.assertEquals(2048, networkStats.get(0).getBytesReceived());
+        Assert.assertEquals("02:00:00:00:00:01", networkStats.get(0).getMacAddress());
+        Assert.assertEquals(1, diskStats.size());
+        Assert.assertEquals("volume", diskStats.get(0).getPath());
+        Assert.assertEquals(20, diskStats.get(0).getIOWrite());
+
+        libvirtComputingResource.invalidateDomainDevices(VMNAME);
+        libvirtComputingResource.getVmDiskStat(connect, VMNAME);
+        verify(domain, times(2)).getXMLDesc(0);
+        verify(connect, times(3)).domainLookupByName(VMNAME);
+    }
+
     /*
      * New Tests
      */
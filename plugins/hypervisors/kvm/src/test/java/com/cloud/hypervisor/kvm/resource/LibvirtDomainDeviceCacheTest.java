@@ -0,0 +1,86 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LibvirtDomainDeviceCacheTest {
+    private static final String VMNAME = "i-2-10-VM";
+    private static final String UUID = "4d2c1526-865d-4fc9-a1ac-dbd1801a22d0";
+    private static final String XML = "<domain type='kvm'><name>" + VMNAME + "</name><devices>" +
+            "<interface type='bridge'><mac address='02:00:00:00:00:01'/><source bridge='cloudbr0'/><target dev='vnet0'/><model type='virtio'/></interface>" +
+            "<graphics type='vnc' port='5901' autoport='yes'/>" +
+            "</devices></domain>";
+
+    private LibvirtDomainDeviceCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new LibvirtDomainDeviceCache(1000L);
+    }
+
+    private LibvirtDomainDeviceCache.Devices put(String uuid, int domainId, long now, long generation) {
+        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+        Assert.assertTrue(parser.parseDomainXML(XML));
+        return cache.put(VMNAME, uuid, domainId, now, generation, parser);
+    }
+
+    @Test
+    public void devicesAreCachedPerDomainId() {
+        final LibvirtDomainDeviceCache.Devices devices = put(UUID, 5, 0L, cache.getGeneration());
+        Assert.assertSame(devices, cache.get(VMNAME, UUID, 5, 500L));
+        Assert.assertEquals(1, devices.getInterfaces().size());
+        Assert.assertEquals(0, devices.getDisks().size());
+        Assert.assertEquals(Integer.valueOf(1), devices.getVncPort());
+        // the domain has been started again
+        Assert.assertNull(cache.get(VMNAME, UUID, 6, 500L));
+        // the domain has been defined again under the same name
+        Assert.assertNull(cache.get(VMNAME, "0b7ff3d5-3e6c-4e0b-9f5a-8a5c1ce7a8e4", 5, 500L));
+    }
+
+    @Test
+    public void devicesExpire() {
+        put(UUID, 5, 0L, cache.getGeneration());
+        Assert.assertNotNull(cache.get(VMNAME, UUID, 5, 1000L));
+        Assert.assertNull(cache.get(VMNAME, UUID, 5, 1001L));
+    }
+
+    @Test
+    public void invalidate() {
+        put(UUID, 5, 0L, cache.getGeneration());
+        cache.invalidate(VMNAME);
+        Assert.assertNull(cache.get(VMNAME, UUID, 5, 0L));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void devicesReadBeforeInvalidationAreNotCached() {
+        final long generation = cache.getGeneration();
+        cache.invalidate(VMNAME);
+        Assert.assertNotNull(put(UUID, 5, 0L, generation));
+        Assert.assertNull(cache.get(VMNAME, UUID, 5, 0L));
+    }
+
+    @Test
+    public void devicesWithoutUuidAreNotCached() {
+        Assert.assertNotNull(put(null, 5, 0L, cache.getGeneration()));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNull(cache.get(VMNAME, null, 5, 0L));
+    }
+}
@@ -0,0 +1,112 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.libvirt.event.DomainEventType;
+
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class LibvirtDomainStateTrackerTest {
+    private static final String VMNAME = "i-2-10-VM";
+    private static final String OTHER_VMNAME = "i-2-11-VM";
+
+    private LibvirtDomainStateTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new LibvirtDomainStateTracker(1000L);
+    }
+
+    private void sync(long now, String vmName, PowerState state) {
+        final long syncStart = tracker.beginSync();
+        final Map<String, PowerState> states = new HashMap<String, PowerState>();
+        states.put(vmName, state);
+        Assert.assertTrue(tracker.sync(states, syncStart, now));
+    }
+
+    @Test
+    public void notSyncedReturnsNull() {
+        Assert.assertFalse(tracker.isSynced(0L));
+        Assert.assertFalse(tracker.update(VMNAME, DomainEventType.STARTED));
+        Assert.assertNull(tracker.getState(VMNAME, 0L));
+        Assert.assertNull(tracker.getStates(0L));
+    }
+
+    @Test
+    public void eventsUpdateSyncedTable() {
+        sync(0L, VMNAME, PowerState.PowerOn);
+        Assert.assertEquals(PowerState.PowerOn, tracker.getState(VMNAME, 10L));
+        // a domain missing from the table is looked up in libvirt
+        Assert.assertNull(tracker.getState(OTHER_VMNAME, 10L));
+
+        Assert.assertTrue(tracker.update(VMNAME, DomainEventType.STOPPED));
+        Assert.assertEquals(PowerState.PowerOff, tracker.getState(VMNAME, 10L));
+        Assert.assertTrue(tracker.update(OTHER_VMNAME, DomainEventType.STARTED));
+        // pausing a running domain does not change what is reported
+        Assert.assertFalse(tracker.update(OTHER_VMNAME, DomainEventType.SUSPENDED));
+        Assert.assertEquals(PowerState.PowerOn, tracker.getStates(10L).get(OTHER_VMNAME));
+    }
+
+    @Test
+    public void definitionEventsKeepRunningDomains() {
+        sync(0L, VMNAME, PowerState.PowerOn);
+        Assert.assertFalse(tracker.update(VMNAME, DomainEventType.DEFINED));
+        Assert.assertFalse(tracker.update(VMNAME, DomainEventType.UNDEFINED));
+        Assert.assertEquals(PowerState.PowerOn, tracker.getState(VMNAME, 10L));
+        Assert.assertFalse(tracker.update(OTHER_VMNAME, DomainEventType.DEFINED));
+        Assert.assertEquals(PowerState.PowerOff, tracker.getState(OTHER_VMNAME, 10L));
+    }
+
+    @Test
+    public void tableExpires() {
+        sync(0L, VMNAME, PowerState.PowerOn);
+        Assert.assertTrue(tracker.isSynced(999L));
+        Assert.assertNull(tracker.getState(VMNAME, 1000L));
+    }
+
+    @Test
+    public void eventDuringSyncIsKept() {
+        final long syncStart = tracker.beginSync();
+        tracker.update(VMNAME, DomainEventType.STOPPED);
+        final Map<String, PowerState> states = new HashMap<String, PowerState>();
+        // listed before the domain stopped
+        states.put(VMNAME, PowerState.PowerOn);
+        Assert.assertTrue(tracker.sync(states, syncStart, 0L));
+        Assert.assertEquals(PowerState.PowerOff, tracker.getState(VMNAME, 10L));
+    }
+
+    @Test
+    public void invalidateDuringSync() {
+        final long syncStart = tracker.beginSync();
+        tracker.invalidate();
+        Assert.assertFalse(tracker.sync(new HashMap<String, PowerState>(), syncStart, 0L));
+        Assert.assertFalse(tracker.isSynced(0L));
+    }
+
+    @Test
+    public void unknownEventInvalidates() {
+        sync(0L, VMNAME, PowerState.PowerOn);
+        Assert.assertTrue(tracker.update(VMNAME, DomainEventType.UNKNOWN));
+        Assert.assertFalse(tracker.isSynced(10L));
+    }
+}
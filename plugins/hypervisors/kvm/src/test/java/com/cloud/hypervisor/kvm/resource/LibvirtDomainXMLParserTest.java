@@ -228,4 +228,69 @@ public class LibvirtDomainXMLParserTest extends TestCase {
         assertEquals(WatchDogDef.WatchDogModel.I6300ESB, watchDogs.get(0).getModel());
         assertEquals(WatchDogDef.WatchDogAction.RESET, watchDogs.get(0).getAction());
     }
+
+    public void testDomainXMLParserManyDevices() {
+        // iotune is only written for these versions
+        LibvirtVMDef.setGlobalQemuVersion(2006000L);
+        LibvirtVMDef.setGlobalLibvirtVersion(9008L);
+        LibvirtVMDef vm = new LibvirtVMDef();
+        vm.setHvsType("kvm");
+        vm.setDomainName("i-2-10-VM");
+        vm.setDomUUID("4d2c1526-865d-4fc9-a1ac-dbd1801a22d0");
+        vm.setDomDescription("CentOS 7 (64-bit)");
+
+        LibvirtVMDef.DevicesDef devices = new LibvirtVMDef.DevicesDef();
+        devices.setEmulatorPath("/usr/libexec/qemu-kvm");
+        for (int i = 0; i < 20; i++) {
+            DiskDef disk = new DiskDef();
+            disk.defFileBasedDisk("/mnt/pool/volume-" + i, i, DiskDef.DiskBus.VIRTIO, DiskDef.DiskFmtType.QCOW2);
+            disk.setCacheMode(DiskDef.DiskCacheMode.NONE);
+            disk.setBytesReadRate(1000L + i);
+            disk.setIopsWriteRate(100L + i);
+            devices.addDevice(disk);
+        }
+        for (int i = 0; i < 10; i++) {
+            InterfaceDef nic = new InterfaceDef();
+            nic.defBridgeNet("cloudbr" + i, "vnet" + i, String.format("02:00:00:00:00:%02x", i), InterfaceDef.NicModel.VIRTIO, 25600);
+            nic.setSlot(i + 3);
+            devices.addDevice(nic);
+        }
+        devices.addDevice(new LibvirtVMDef.GraphicDef("vnc", (short)5912, false, "0.0.0.0", null, null));
+        devices.addDevice(new ChannelDef("org.qemu.guest_agent.0", ChannelDef.ChannelType.UNIX, new File("/var/lib/libvirt/qemu/i-2-10-VM.agent")));
+        devices.addDevice(new WatchDogDef(WatchDogDef.WatchDogAction.RESET, WatchDogDef.WatchDogModel.I6300ESB));
+        vm.addComp(devices);
+
+        LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+        assertTrue(parser.parseDomainXML(vm.toString()));
+
+        assertEquals("CentOS 7 (64-bit)", parser.getDescription());
+        assertEquals(Integer.valueOf(12), parser.getVncPort());
+
+        List<DiskDef> disks = parser.getDisks();
+        assertEquals(20, disks.size());
+        for (int i = 0; i < disks.size(); i++) {
+            assertEquals("/mnt/pool/volume-" + i, disks.get(i).getDiskPath());
+            assertEquals(DiskDef.DiskCacheMode.NONE, disks.get(i).getCacheMode());
+            assertTrue(disks.get(i).toString().contains("<read_bytes_sec>" + (1000 + i) + "</read_bytes_sec>"));
+            assertTrue(disks.get(i).toString().contains("<write_iops_sec>" + (100 + i) + "</write_iops_sec>"));
+        }
+
+        List<InterfaceDef> ifs = parser.getInterfaces();
+        assertEquals(10, ifs.size());
+        for (int i = 0; i < ifs.size(); i++) {
+            assertEquals("cloudbr" + i, ifs.get(i).getBrName());
+            assertEquals("vnet" + i, ifs.get(i).getDevName());
+            assertEquals(Integer.valueOf(i + 3), ifs.get(i).getSlot());
+            assertTrue(ifs.get(i).toString().contains("<inbound average='25600' peak='25600'/>"));
+        }
+
+        assertEquals(1, parser.getChannels().size());
+        assertEquals(1, parser.getWatchDogs().size());
+    }
+
+    public void testDomainXMLParserInvalidXML() {
+        LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+        assertFalse(parser.parseDomainXML("<domain type='kvm'><devices><disk type='file'>"));
+        assertTrue(parser.getDisks().isEmpty());
+    }
 }
@@ -0,0 +1,82 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.api;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.apache.cloudstack.acl.RoleType;
+import org.apache.cloudstack.api.command.admin.host.ListHostsCmd;
+import org.apache.cloudstack.api.response.HostResponse;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.metrics.MetricsService;
+import org.apache.cloudstack.response.UsageHistoryResponse;
+
+import com.cloud.host.Host;
+
+@APICommand(name = ListHostsUsageHistoryCmd.APINAME, description = "Lists the statistics history of hosts", responseObject = UsageHistoryResponse.class,
+        requestHasSensitiveInfo = false, responseHasSensitiveInfo = false, responseView = ResponseObject.ResponseView.Full,
+        since = "4.15.0", authorized = {RoleType.Admin})
+public class ListHostsUsageHistoryCmd extends ListHostsCmd {
+    public static final String APINAME = "listHostsUsageHistory";
+
+    @Inject
+    private MetricsService metricsService;
+
+    @Parameter(name = ApiConstants.START_DATE, type = CommandType.DATE,
+            description = "start of the statistics history (use format \"yyyy-MM-dd\" or \"yyyy-MM-dd HH:mm:ss\"), defaults to one hour before the end date")
+    private Date startDate;
+
+    @Parameter(name = ApiConstants.END_DATE, type = CommandType.DATE,
+            description = "end of the statistics history (use format \"yyyy-MM-dd\" or \"yyyy-MM-dd HH:mm:ss\"), defaults to now")
+    private Date endDate;
+
+    @Parameter(name = ApiConstants.INTERVAL, type = CommandType.LONG,
+            description = "length in seconds of the intervals the statistics are averaged over, the finest kept for the period by default")
+    private Long interval;
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    public Long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public String getCommandName() {
+        return APINAME.toLowerCase() + BaseCmd.RESPONSE_SUFFIX;
+    }
+
+    @Override
+    public void execute() {
+        setType(Host.Type.Routing.toString());
+        ListResponse<HostResponse> hosts = getHostResponses();
+        final List<UsageHistoryResponse> historyResponses = metricsService.listHostUsageHistory(hosts.getResponses(), getStartDate(), getEndDate(), getInterval());
+        ListResponse<UsageHistoryResponse> response = new ListResponse<>();
+        response.setResponses(historyResponses, hosts.getCount());
+        response.setResponseName(getCommandName());
+        setResponseObject(response);
+    }
+}
@@ -29,10 +29,12 @@ import org.apache.cloudstack.response.ClusterMetricsResponse;
 import org.apache.cloudstack.response.HostMetricsResponse;
 import org.apache.cloudstack.response.InfrastructureResponse;
 import org.apache.cloudstack.response.StoragePoolMetricsResponse;
+import org.apache.cloudstack.response.UsageHistoryResponse;
 import org.apache.cloudstack.response.VmMetricsResponse;
 import org.apache.cloudstack.response.VolumeMetricsResponse;
 import org.apache.cloudstack.response.ZoneMetricsResponse;
 
+import java.util.Date;
 import java.util.List;
 
 public interface MetricsService extends PluggableService {
@@ -44,4 +46,7 @@ public interface MetricsService extends PluggableService {
     List<HostMetricsResponse> listHostMetrics(List<HostResponse> poolResponses);
     List<ClusterMetricsResponse> listClusterMetrics(Pair<List<ClusterResponse>, Integer> clusterResponses);
     List<ZoneMetricsResponse> listZoneMetrics(List<ZoneResponse> poolResponses);
+
+    List<UsageHistoryResponse> listVmUsageHistory(List<UserVmResponse> vmResponses, Date startDate, Date endDate, Long interval);
+    List<UsageHistoryResponse> listHostUsageHistory(List<HostResponse> hostResponses, Date startDate, Date endDate, Long interval);
 }
@@ -19,6 +19,7 @@ package org.apache.cloudstack.metrics;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -26,9 +27,11 @@ import javax.inject.Inject;
 import org.apache.cloudstack.api.ApiErrorCode;
 import org.apache.cloudstack.api.ListClustersMetricsCmd;
 import org.apache.cloudstack.api.ListHostsMetricsCmd;
+import org.apache.cloudstack.api.ListHostsUsageHistoryCmd;
 import org.apache.cloudstack.api.ListInfrastructureCmd;
 import org.apache.cloudstack.api.ListStoragePoolsMetricsCmd;
 import org.apache.cloudstack.api.ListVMsMetricsCmd;
+import org.apache.cloudstack.api.ListVMsUsageHistoryCmd;
 import org.apache.cloudstack.api.ListVolumesMetricsCmd;
 import org.apache.cloudstack.api.ListZonesMetricsCmd;
 import org.apache.cloudstack.api.ServerApiException;
@@ -42,7 +45,9 @@ import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.response.ClusterMetricsResponse;
 import org.apache.cloudstack.response.HostMetricsResponse;
 import org.apache.cloudstack.response.InfrastructureResponse;
+import org.apache.cloudstack.response.StatsResponse;
 import org.apache.cloudstack.response.StoragePoolMetricsResponse;
+import org.apache.cloudstack.response.UsageHistoryResponse;
 import org.apache.cloudstack.response.VmMetricsResponse;
 import org.apache.cloudstack.response.VolumeMetricsResponse;
 import org.apache.cloudstack.response.ZoneMetricsResponse;
@@ -65,6 +70,7 @@ import com.cloud.dc.dao.ClusterDao;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
 import com.cloud.deploy.DeploymentClusterPlanner;
+import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.host.Host;
 import com.cloud.host.HostStats;
 import com.cloud.host.Status;
@@ -73,6 +79,9 @@ import com.cloud.network.router.VirtualRouter;
 import com.cloud.org.Cluster;
 import com.cloud.org.Grouping;
 import com.cloud.org.Managed;
+import com.cloud.server.StatsCollector.HostHistoryMetric;
+import com.cloud.server.StatsCollector.VmHistoryMetric;
+import com.cloud.server.StatsHistory;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
 import com.cloud.utils.Pair;
@@ -466,6 +475,96 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
         return metricsResponses;
     }
 
+    /**
+     * Checks the period asked for, filling in the last hour until now by default.
+     * @return the start and end of the period.
+     */
+    private Pair<Date, Date> getUsageHistoryPeriod(Date startDate, Date endDate, Long interval) {
+        if (interval != null && interval < 0) {
+            throw new InvalidParameterValueException("The interval must not be negative");
+        }
+        final Date end = endDate == null ? new Date() : endDate;
+        final Date start = startDate == null ? new Date(end.getTime() - 60 * 60 * 1000L) : startDate;
+        if (start.after(end)) {
+            throw new InvalidParameterValueException("The start date must not be after the end date");
+        }
+        return new Pair<>(start, end);
+    }
+
+    private List<StatsResponse> getStatsResponses(final StatsHistory.Series series, final boolean vm) {
+        final List<StatsResponse> statsResponses = new ArrayList<>();
+        if (series == null) {
+            return statsResponses;
+        }
+        for (int i = 0; i < series.size(); i++) {
+            final StatsResponse statsResponse = new StatsResponse();
+            statsResponse.setTimestamp(new Date(series.getTimestamp(i)));
+            statsResponse.setSamples(series.getSamples(i));
+            if (vm) {
+                statsResponse.setCpuUsed(series.getAverage(VmHistoryMetric.CpuUtilization.ordinal(), i));
+                statsResponse.setNetworkKbsRead(series.getAverage(VmHistoryMetric.NetworkReadKBs.ordinal(), i));
+                statsResponse.setNetworkKbsWrite(series.getAverage(VmHistoryMetric.NetworkWriteKBs.ordinal(), i));
+                statsResponse.setDiskKbsRead(series.getAverage(VmHistoryMetric.DiskReadKBs.ordinal(), i));
+                statsResponse.setDiskKbsWrite(series.getAverage(VmHistoryMetric.DiskWriteKBs.ordinal(), i));
+                statsResponse.setDiskIORead(series.getAverage(VmHistoryMetric.DiskReadIOs.ordinal(), i));
+                statsResponse.setDiskIOWrite(series.getAverage(VmHistoryMetric.DiskWriteIOs.ordinal(), i));
+                statsResponse.setMemoryKBs(series.getAverage(VmHistoryMetric.MemoryKBs.ordinal(), i));
+                statsResponse.setMemoryIntFreeKBs(series.getAverage(VmHistoryMetric.IntFreeMemoryKBs.ordinal(), i));
+                statsResponse.setMemoryTargetKBs(series.getAverage(VmHistoryMetric.TargetMemoryKBs.ordinal(), i));
+            } else {
+                statsResponse.setCpuUsed(series.getAverage(HostHistoryMetric.CpuUtilization.ordinal(), i));
+                statsResponse.setNetworkKbsRead(series.getAverage(HostHistoryMetric.NetworkReadKBs.ordinal(), i));
+                statsResponse.setNetworkKbsWrite(series.getAverage(HostHistoryMetric.NetworkWriteKBs.ordinal(), i));
+                statsResponse.setMemoryTotalKBs(series.getAverage(HostHistoryMetric.TotalMemoryKBs.ordinal(), i));
+                statsResponse.setMemoryFreeKBs(series.getAverage(HostHistoryMetric.FreeMemoryKBs.ordinal(), i));
+                statsResponse.setLoadAverage(series.getAverage(HostHistoryMetric.LoadAverage.ordinal(), i));
+            }
+            statsResponses.add(statsResponse);
+        }
+        return statsResponses;
+    }
+
+    private UsageHistoryResponse createUsageHistoryResponse(final String objectName, final String id, final String name, final StatsHistory.Series series, final boolean vm) {
+        final UsageHistoryResponse historyResponse = new UsageHistoryResponse(objectName, id, name);
+        if (series != null) {
+            historyResponse.setInterval(series.getResolution() / 1000L);
+        }
+        historyResponse.setStats(getStatsResponses(series, vm));
+        return historyResponse;
+    }
+
+    @Override
+    public List<UsageHistoryResponse> listVmUsageHistory(List<UserVmResponse> vmResponses, Date startDate, Date endDate, Long interval) {
+        final Pair<Date, Date> period = getUsageHistoryPeriod(startDate, endDate, interval);
+        final long resolution = interval == null ? 0 : interval * 1000L;
+        final List<UsageHistoryResponse> historyResponses = new ArrayList<>();
+        for (final UserVmResponse vmResponse : vmResponses) {
+            final VMInstanceVO vm = vmInstanceDao.findByUuid(vmResponse.getId());
+            if (vm == null) {
+                continue;
+            }
+            final StatsHistory.Series series = ApiDBUtils.getVmStatisticsHistory(vm.getId(), period.first(), period.second(), resolution);
+            historyResponses.add(createUsageHistoryResponse("virtualmachine", vmResponse.getId(), vmResponse.getName(), series, true));
+        }
+        return historyResponses;
+    }
+
+    @Override
+    public List<UsageHistoryResponse> listHostUsageHistory(List<HostResponse> hostResponses, Date startDate, Date endDate, Long interval) {
+        final Pair<Date, Date> period = getUsageHistoryPeriod(startDate, endDate, interval);
+        final long resolution = interval == null ? 0 : interval * 1000L;
+        final List<UsageHistoryResponse> historyResponses = new ArrayList<>();
+        for (final HostResponse hostResponse : hostResponses) {
+            final Host host = hostDao.findByUuid(hostResponse.getId());
+            if (host == null) {
+                continue;
+            }
+            final StatsHistory.Series series = ApiDBUtils.getHostStatisticsHistory(host.getId(), period.first(), period.second(), resolution);
+            historyResponses.add(createUsageHistoryResponse("host", hostResponse.getId(), hostResponse.getName(), series, false));
+        }
+        return historyResponses;
+    }
+
     @Override
     public List<Class<?>> getCommands() {
         List<Class<?>> cmdList = new ArrayList<Class<?>>();
@@ -476,6 +575,8 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
         cmdList.add(ListHostsMetricsCmd.class);
         cmdList.add(ListClustersMetricsCmd.class);
         cmdList.add(ListZonesMetricsCmd.class);
+        cmdList.add(ListVMsUsageHistoryCmd.class);
+        cmdList.add(ListHostsUsageHistoryCmd.class);
         return cmdList;
     }
 
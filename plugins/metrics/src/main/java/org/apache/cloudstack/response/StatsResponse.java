@@ -0,0 +1,152 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.response;
+
+import java.util.Date;
+
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class StatsResponse extends BaseResponse {
+
+    @SerializedName("timestamp")
+    @Param(description = "the start of the interval")
+    private Date timestamp;
+
+    @SerializedName("samples")
+    @Param(description = "the number of samples the interval is averaged over")
+    private Integer samples;
+
+    @SerializedName("cpuused")
+    @Param(description = "the average cpu utilization in percent")
+    private Double cpuUsed;
+
+    @SerializedName("networkkbsread")
+    @Param(description = "the average network read in KiB")
+    private Double networkKbsRead;
+
+    @SerializedName("networkkbswrite")
+    @Param(description = "the average network write in KiB")
+    private Double networkKbsWrite;
+
+    @SerializedName("diskkbsread")
+    @Param(description = "the average disk read in KiB")
+    private Double diskKbsRead;
+
+    @SerializedName("diskkbswrite")
+    @Param(description = "the average disk write in KiB")
+    private Double diskKbsWrite;
+
+    @SerializedName("diskioread")
+    @Param(description = "the average disk read operations")
+    private Double diskIORead;
+
+    @SerializedName("diskiowrite")
+    @Param(description = "the average disk write operations")
+    private Double diskIOWrite;
+
+    @SerializedName("memorykbs")
+    @Param(description = "the average memory used by the vm in KiB")
+    private Double memoryKBs;
+
+    @SerializedName("memoryintfreekbs")
+    @Param(description = "the average memory free inside the vm in KiB")
+    private Double memoryIntFreeKBs;
+
+    @SerializedName("memorytargetkbs")
+    @Param(description = "the average target memory of the vm in KiB")
+    private Double memoryTargetKBs;
+
+    @SerializedName("memorytotalkbs")
+    @Param(description = "the average total memory of the host in KiB")
+    private Double memoryTotalKBs;
+
+    @SerializedName("memoryfreekbs")
+    @Param(description = "the average free memory of the host in KiB")
+    private Double memoryFreeKBs;
+
+    @SerializedName("loadaverage")
+    @Param(description = "the average load of the host")
+    private Double loadAverage;
+
+    public StatsResponse() {
+        setObjectName("stats");
+    }
+
+    public void setTimestamp(final Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public void setSamples(final Integer samples) {
+        this.samples = samples;
+    }
+
+    public void setCpuUsed(final Double cpuUsed) {
+        this.cpuUsed = cpuUsed;
+    }
+
+    public void setNetworkKbsRead(final Double networkKbsRead) {
+        this.networkKbsRead = networkKbsRead;
+    }
+
+    public void setNetworkKbsWrite(final Double networkKbsWrite) {
+        this.networkKbsWrite = networkKbsWrite;
+    }
+
+    public void setDiskKbsRead(final Double diskKbsRead) {
+        this.diskKbsRead = diskKbsRead;
+    }
+
+    public void setDiskKbsWrite(final Double diskKbsWrite) {
+        this.diskKbsWrite = diskKbsWrite;
+    }
+
+    public void setDiskIORead(final Double diskIORead) {
+        this.diskIORead = diskIORead;
+    }
+
+    public void setDiskIOWrite(final Double diskIOWrite) {
+        this.diskIOWrite = diskIOWrite;
+    }
+
+    public void setMemoryKBs(final Double memoryKBs) {
+        this.memoryKBs = memoryKBs;
+    }
+
+    public void setMemoryIntFreeKBs(final Double memoryIntFreeKBs) {
+        this.memoryIntFreeKBs = memoryIntFreeKBs;
+    }
+
+    public void setMemoryTargetKBs(final Double memoryTargetKBs) {
+        this.memoryTargetKBs = memoryTargetKBs;
+    }
+
+    public void setMemoryTotalKBs(final Double memoryTotalKBs) {
+        this.memoryTotalKBs = memoryTotalKBs;
+    }
+
+    public void setMemoryFreeKBs(final Double memoryFreeKBs) {
+        this.memoryFreeKBs = memoryFreeKBs;
+    }
+
+    public void setLoadAverage(final Double loadAverage) {
+        this.loadAverage = loadAverage;
+    }
+}
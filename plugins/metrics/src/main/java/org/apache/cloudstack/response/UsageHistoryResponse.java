@@ -0,0 +1,59 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.response;
+
+import java.util.List;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class UsageHistoryResponse extends BaseResponse {
+
+    @SerializedName(ApiConstants.ID)
+    @Param(description = "the ID of the resource")
+    private String id;
+
+    @SerializedName(ApiConstants.NAME)
+    @Param(description = "the name of the resource")
+    private String name;
+
+    @SerializedName(ApiConstants.INTERVAL)
+    @Param(description = "the length in seconds of the intervals the statistics are averaged over")
+    private Long interval;
+
+    @SerializedName("stats")
+    @Param(description = "the statistics of the resource, one per interval having samples", responseObject = StatsResponse.class)
+    private List<StatsResponse> stats;
+
+    public UsageHistoryResponse(final String objectName, final String id, final String name) {
+        setObjectName(objectName);
+        this.id = id;
+        this.name = name;
+    }
+
+    public void setInterval(final Long interval) {
+        this.interval = interval;
+    }
+
+    public void setStats(final List<StatsResponse> stats) {
+        this.stats = stats;
+    }
+}
@@ -17,6 +17,7 @@
 package com.cloud.api;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -257,6 +258,7 @@ import com.cloud.server.ResourceMetaDataService;
 import com.cloud.server.ResourceTag;
 import com.cloud.server.ResourceTag.ResourceObjectType;
 import com.cloud.server.StatsCollector;
+import com.cloud.server.StatsHistory;
 import com.cloud.server.TaggedResourceService;
 import com.cloud.service.ServiceOfferingDetailsVO;
 import com.cloud.service.ServiceOfferingVO;
@@ -975,6 +977,14 @@ public class ApiDBUtils {
         return s_statsCollector.getVmStats(hostId);
     }
 
+    public static StatsHistory.Series getVmStatisticsHistory(long vmId, Date from, Date to, long resolution) {
+        return s_statsCollector.getVmStatsHistory(vmId, from, to, resolution);
+    }
+
+    public static StatsHistory.Series getHostStatisticsHistory(long hostId, Date from, Date to, long resolution) {
+        return s_statsCollector.getHostStatsHistory(hostId, from, to, resolution);
+    }
+
     public static VolumeStats getVolumeStatistics(String volumeUuid) {
         return s_statsCollector.getVolumeStats(volumeUuid);
     }
@@ -274,6 +274,14 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             , false
             , ConfigKey.Scope.Global);
 
+    static final ConfigKey<Boolean> ApiResponseGzipEnabled = new ConfigKey<Boolean>("Advanced"
+            , Boolean.class
+            , "api.response.gzip.enabled"
+            , "true"
+            , "Compress the response of synchronous api commands with gzip when the client accepts it"
+            , true
+            , ConfigKey.Scope.Global);
+
     private static final ConfigKey<Boolean> UseEventAccountInfo = new ConfigKey<Boolean>( "advanced"
             , Boolean.class
             , "event.accountinfo"
@@ -533,6 +541,12 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     @Override
     @SuppressWarnings("rawtypes")
     public String handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb) throws ServerApiException {
+        return handleRequest(params, responseType, auditTrailSb, null);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public String handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb, final ResponseOutput output) throws ServerApiException {
         checkCharacterInkParams(params);
 
         String response = null;
@@ -585,7 +599,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
 
                     // This is where the command is either serialized, or directly dispatched
                     StringBuilder log = new StringBuilder();
-                    response = queueCommand(cmdObj, paramMap, log);
+                    response = queueCommand(cmdObj, paramMap, log, output);
                     buildAuditTrail(auditTrailSb, command[0], log.toString());
                 } else {
                     final String errorString = "Unknown API command: " + command[0];
@@ -671,7 +685,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         return ApiResponseSerializer.toSerializedString(response, cmd.getResponseType());
     }
 
-    private String queueCommand(final BaseCmd cmdObj, final Map<String, String> params, StringBuilder log) throws Exception {
+    private String queueCommand(final BaseCmd cmdObj, final Map<String, String> params, StringBuilder log, final ResponseOutput output) throws Exception {
         final CallContext ctx = CallContext.current();
         final Long callerUserId = ctx.getCallingUserId();
         final Account caller = ctx.getCallingAccount();
@@ -777,6 +791,10 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
 
             SerializationContext.current().setUuidTranslation(true);
+            if (output != null) {
+                ApiResponseSerializer.writeSerializedStringWithSecureLogs((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType(), output.open(), log);
+                return null;
+            }
             return ApiResponseSerializer.toSerializedStringWithSecureLogs((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType(), log);
         }
     }
@@ -1463,7 +1481,8 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
                 ConcurrentSnapshotsThresholdPerHost,
                 EncodeApiResponse,
                 EnableSecureSessionCookie,
-                JSONDefaultContentType
+                JSONDefaultContentType,
+                ApiResponseGzipEnabled
         };
     }
 }
@@ -16,7 +16,9 @@
 // under the License.
 package com.cloud.api;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.URLDecoder;
 import java.net.UnknownHostException;
@@ -56,6 +58,7 @@ import com.cloud.user.User;
 import com.cloud.utils.HttpUtils;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.db.EntityManager;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 
 @Component("apiServlet")
@@ -172,6 +175,7 @@ public class ApiServlet extends HttpServlet {
             s_logger.debug("===START=== " + reqStr);
         }
 
+        StreamingResponseOutput output = null;
         try {
 
             if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
@@ -318,8 +322,14 @@ public class ApiServlet extends HttpServlet {
                 // Add the HTTP method (GET/POST/PUT/DELETE) as well into the params map.
                 params.put("httpmethod", new String[]{req.getMethod()});
                 setProjectContext(params);
-                final String response = apiServer.handleRequest(params, responseType, auditTrailSb);
-                HttpUtils.writeHttpResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType, ApiServer.JSONcontentType.value());
+                output = new StreamingResponseOutput(resp, responseType,
+                        ApiServer.ApiResponseGzipEnabled.value() && HttpUtils.acceptsGzip(req));
+                final String response = apiServer.handleRequest(params, responseType, auditTrailSb, output);
+                if (output.isOpen()) {
+                    output.close();
+                } else {
+                    HttpUtils.writeHttpResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType, ApiServer.JSONcontentType.value());
+                }
             } else {
                 if (session != null) {
                     try {
@@ -336,13 +346,19 @@ public class ApiServlet extends HttpServlet {
 
             }
         } catch (final ServerApiException se) {
+            auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
+            if (output != null && output.isOpen()) {
+                output.abort(se);
+            }
             final String serializedResponseText = apiServer.getSerializedApiError(se, params, responseType);
             resp.setHeader("X-Description", se.getDescription());
             HttpUtils.writeHttpResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType, ApiServer.JSONcontentType.value());
-            auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
         } catch (final Exception ex) {
             s_logger.error("unknown exception writing api response", ex);
             auditTrailSb.append(" unknown exception writing api response");
+            if (output != null && output.isOpen()) {
+                output.abort(ex);
+            }
         } finally {
             s_accessLogger.info(auditTrailSb.toString());
             if (s_logger.isDebugEnabled()) {
@@ -417,4 +433,52 @@ public class ApiServlet extends HttpServlet {
         }
         return null;
     }
+
+    /**
+     * Opens the servlet output only once the command has run, so errors raised
+     * by the command are still reported with their own status code.
+     */
+    private static class StreamingResponseOutput implements ApiServerService.ResponseOutput {
+        private final HttpServletResponse _resp;
+        private final String _responseType;
+        private final boolean _gzip;
+        private Writer _writer;
+
+        StreamingResponseOutput(final HttpServletResponse resp, final String responseType, final boolean gzip) {
+            _resp = resp;
+            _responseType = responseType;
+            _gzip = gzip;
+        }
+
+        @Override
+        public Writer open() throws IOException {
+            _writer = HttpUtils.openHttpResponseWriter(_resp, HttpServletResponse.SC_OK, _responseType, ApiServer.JSONcontentType.value(), _gzip);
+            return _writer;
+        }
+
+        boolean isOpen() {
+            return _writer != null;
+        }
+
+        /**
+         * Gives up on a response which failed after it was opened.  The status line
+         * and part of the body are already sent, so rather than appending an error
+         * or completing the body, the exception is left to the container, which then
+         * resets the connection and the client can't mistake the partial body for a
+         * whole response.
+         */
+        void abort(final Exception cause) {
+            throw new CloudRuntimeException("Aborting api response after it failed half way", cause);
+        }
+
+        void close() {
+            try {
+                _writer.close();
+            } catch (final IOException e) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Exception writing http response: " + e);
+                }
+            }
+        }
+    }
 }
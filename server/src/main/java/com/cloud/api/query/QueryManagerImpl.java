@@ -37,7 +37,9 @@ import org.apache.cloudstack.affinity.AffinityGroupResponse;
 import org.apache.cloudstack.affinity.AffinityGroupVMMapVO;
 import org.apache.cloudstack.affinity.dao.AffinityGroupDomainMapDao;
 import org.apache.cloudstack.affinity.dao.AffinityGroupVMMapDao;
+import org.apache.cloudstack.api.BaseListCmd;
 import org.apache.cloudstack.api.BaseListProjectAndAccountResourcesCmd;
+import org.apache.cloudstack.api.PageToken;
 import org.apache.cloudstack.api.ResourceDetail;
 import org.apache.cloudstack.api.ResponseGenerator;
 import org.apache.cloudstack.api.ResponseObject.ResponseView;
@@ -116,6 +118,7 @@ import org.apache.cloudstack.engine.subsystem.api.storage.TemplateState;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.security.keys.KeysManager;
 import org.apache.cloudstack.query.QueryService;
 import org.apache.cloudstack.resourcedetail.dao.DiskOfferingDetailsDao;
 import org.apache.commons.collections.CollectionUtils;
@@ -148,6 +151,7 @@ import com.cloud.api.query.dao.VolumeJoinDao;
 import com.cloud.api.query.vo.AccountJoinVO;
 import com.cloud.api.query.vo.AffinityGroupJoinVO;
 import com.cloud.api.query.vo.AsyncJobJoinVO;
+import com.cloud.api.query.vo.BaseViewVO;
 import com.cloud.api.query.vo.DataCenterJoinVO;
 import com.cloud.api.query.vo.DiskOfferingJoinVO;
 import com.cloud.api.query.vo.DomainJoinVO;
@@ -258,6 +262,9 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
     @Inject
     private AccountManager _accountMgr;
 
+    @Inject
+    private KeysManager _keysMgr;
+
     @Inject
     private ProjectManager _projectMgr;
 
@@ -583,7 +590,11 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
         Pair<List<EventJoinVO>, Integer> result = searchForEventsInternal(cmd);
         ListResponse<EventResponse> response = new ListResponse<EventResponse>();
         List<EventResponse> eventResponses = ViewResponseHelper.createEventResponse(result.first().toArray(new EventJoinVO[result.first().size()]));
-        response.setResponses(eventResponses, result.second());
+        if (cmd.isKeysetPagination()) {
+            response.setResponses(eventResponses, getNextPageToken(cmd, result.first(), false));
+        } else {
+            response.setResponses(eventResponses, result.second());
+        }
         return response;
     }
 
@@ -607,11 +618,14 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
-        Filter searchFilter = new Filter(EventJoinVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        // keyset pages are ordered by id, which follows the creation order of the events
+        Filter searchFilter = cmd.isKeysetPagination() ? getKeysetFilter(EventJoinVO.class, cmd, false)
+                : new Filter(EventJoinVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
         SearchBuilder<EventJoinVO> sb = _eventJoinDao.createSearchBuilder();
         _accountMgr.buildACLViewSearchBuilder(sb, domainId, isRecursive, permittedAccounts, listProjectResourcesCriteria);
 
         sb.and("id", sb.entity().getId(), SearchCriteria.Op.EQ);
+        sb.and("idLT", sb.entity().getId(), SearchCriteria.Op.LT);
         sb.and("levelL", sb.entity().getLevel(), SearchCriteria.Op.LIKE);
         sb.and("levelEQ", sb.entity().getLevel(), SearchCriteria.Op.EQ);
         sb.and("type", sb.entity().getType(), SearchCriteria.Op.EQ);
@@ -670,6 +684,11 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
 
         sc.setParameters("archived", false);
 
+        Long pageTokenId = cmd.isKeysetPagination() ? getPageTokenId(cmd) : null;
+        if (pageTokenId != null) {
+            sc.setParameters("idLT", pageTokenId);
+        }
+
         Pair<List<EventJoinVO>, Integer> eventPair = null;
         // event_view will not have duplicate rows for each event, so
         // searchAndCount should be good enough.
@@ -694,6 +713,9 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
              * _eventDao.findCompletedEvent(event.getId()); if (completedEvent
              * == null) { pendingEvents.add(event); } } return pendingEvents;
              */
+        } else if (cmd.isKeysetPagination()) {
+            // no count query, the caller only needs to know if there is a next page
+            eventPair = new Pair<List<EventJoinVO>, Integer>(_eventJoinDao.search(sc, searchFilter), null);
         } else {
             eventPair = _eventJoinDao.searchAndCount(sc, searchFilter);
         }
@@ -850,7 +872,11 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
         }
         List<UserVmResponse> vmResponses = ViewResponseHelper.createUserVmResponse(respView, "virtualmachine", cmd.getDetails(), result.first().toArray(new UserVmJoinVO[result.first().size()]));
 
-        response.setResponses(vmResponses, result.second());
+        if (cmd.isKeysetPagination()) {
+            response.setResponses(vmResponses, getNextPageToken(cmd, result.first(), true));
+        } else {
+            response.setResponses(vmResponses, result.second());
+        }
         return response;
     }
 
@@ -869,7 +895,8 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
-        Filter searchFilter = new Filter(UserVmJoinVO.class, "id", true, cmd.getStartIndex(), cmd.getPageSizeVal());
+        Filter searchFilter = cmd.isKeysetPagination() ? getKeysetFilter(UserVmJoinVO.class, cmd, true)
+                : new Filter(UserVmJoinVO.class, "id", true, cmd.getStartIndex(), cmd.getPageSizeVal());
 
         List<Long> ids = null;
         if (cmd.getId() != null) {
@@ -925,6 +952,7 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
 
         sb.and("displayName", sb.entity().getDisplayName(), SearchCriteria.Op.LIKE);
         sb.and("idIN", sb.entity().getId(), SearchCriteria.Op.IN);
+        sb.and("idGT", sb.entity().getId(), SearchCriteria.Op.GT);
         sb.and("name", sb.entity().getName(), SearchCriteria.Op.LIKE);
         sb.and("stateEQ", sb.entity().getState(), SearchCriteria.Op.EQ);
         sb.and("stateNEQ", sb.entity().getState(), SearchCriteria.Op.NEQ);
@@ -1093,14 +1121,29 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
         if (!isRootAdmin) {
             sc.setParameters("displayVm", 1);
         }
-        // search vm details by ids
-        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = _userVmJoinDao.searchAndDistinctCount(sc, searchFilter);
-        Integer count = uniqueVmPair.second();
-        if (count.intValue() == 0) {
-            // handle empty result cases
-            return uniqueVmPair;
+
+        List<UserVmJoinVO> uniqueVms;
+        Integer count = null;
+        if (cmd.isKeysetPagination()) {
+            Long pageTokenId = getPageTokenId(cmd);
+            if (pageTokenId != null) {
+                sc.setParameters("idGT", pageTokenId);
+            }
+            // no distinct count query, the caller only needs to know if there is a next page
+            uniqueVms = _userVmJoinDao.search(sc, searchFilter);
+            if (uniqueVms.isEmpty()) {
+                return new Pair<List<UserVmJoinVO>, Integer>(uniqueVms, count);
+            }
+        } else {
+            // search vm details by ids
+            Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = _userVmJoinDao.searchAndDistinctCount(sc, searchFilter);
+            count = uniqueVmPair.second();
+            if (count.intValue() == 0) {
+                // handle empty result cases
+                return uniqueVmPair;
+            }
+            uniqueVms = uniqueVmPair.first();
         }
-        List<UserVmJoinVO> uniqueVms = uniqueVmPair.first();
         Long[] vmIds = new Long[uniqueVms.size()];
         int i = 0;
         for (UserVmJoinVO v : uniqueVms) {
@@ -1110,6 +1153,52 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
         return new Pair<List<UserVmJoinVO>, Integer>(vms, count);
     }
 
+    /**
+     * Keyset pages are ordered by id and start right after the id carried by
+     * the page token, so neither an OFFSET scan nor a count query is needed.
+     */
+    private Filter getKeysetFilter(Class<?> clazz, BaseListCmd cmd, boolean ascending) {
+        Long pageSize = cmd.getPageSizeVal();
+        return new Filter(clazz, "id", ascending, pageSize == null ? null : Long.valueOf(0), pageSize);
+    }
+
+    /**
+     * @return the token of the page following rows, or null if rows is the last page.
+     * Join views return one row per tag/nic, so the page is measured in distinct ids.
+     */
+    private String getNextPageToken(BaseListCmd cmd, List<? extends BaseViewVO> rows, boolean ascending) {
+        Long pageSize = cmd.getPageSizeVal();
+        if (pageSize == null || rows.isEmpty()) {
+            return null;
+        }
+        Set<Long> ids = new HashSet<Long>();
+        long lastId = rows.get(0).getId();
+        for (BaseViewVO row : rows) {
+            ids.add(row.getId());
+            lastId = ascending ? Math.max(lastId, row.getId()) : Math.min(lastId, row.getId());
+        }
+        if (ids.size() < pageSize) {
+            return null;
+        }
+        return PageToken.encode(lastId, cmd.getCommandName(), getPageTokenKey());
+    }
+
+    /**
+     * @return the id of the last row of the previous keyset page, null for the first page.
+     */
+    private Long getPageTokenId(BaseListCmd cmd) {
+        String token = cmd.getNextPageToken();
+        return token == null ? null : PageToken.decode(token, cmd.getCommandName(), getPageTokenKey());
+    }
+
+    private String getPageTokenKey() {
+        String key = _keysMgr.getHashKey();
+        if (key == null) {
+            throw new CloudRuntimeException("Unable to page by keyset, the security hash key is not set");
+        }
+        return key;
+    }
+
     @Override
     public ListResponse<SecurityGroupResponse> searchForSecurityGroups(ListSecurityGroupsCmd cmd) {
         Pair<List<SecurityGroupJoinVO>, Integer> result = searchForSecurityGroupsInternal(cmd);
@@ -1861,7 +1950,11 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
                 vr.setNeedQuiescevm(quiescevm);
             }
         }
-        response.setResponses(volumeResponses, result.second());
+        if (cmd.isKeysetPagination()) {
+            response.setResponses(volumeResponses, getNextPageToken(cmd, result.first(), false));
+        } else {
+            response.setResponses(volumeResponses, result.second());
+        }
         return response;
     }
 
@@ -1892,7 +1985,9 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
         Long domainId = domainIdRecursiveListProject.first();
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
-        Filter searchFilter = new Filter(VolumeJoinVO.class, "created", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        // keyset pages are ordered by id, which follows the creation order of the volumes
+        Filter searchFilter = cmd.isKeysetPagination() ? getKeysetFilter(VolumeJoinVO.class, cmd, false)
+                : new Filter(VolumeJoinVO.class, "created", false, cmd.getStartIndex(), cmd.getPageSizeVal());
 
         // hack for now, this should be done better but due to needing a join I
         // opted to
@@ -1908,6 +2003,7 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
         sb.and("name", sb.entity().getName(), SearchCriteria.Op.EQ);
         sb.and("id", sb.entity().getId(), SearchCriteria.Op.EQ);
         sb.and("idIN", sb.entity().getId(), SearchCriteria.Op.IN);
+        sb.and("idLT", sb.entity().getId(), SearchCriteria.Op.LT);
         sb.and("volumeType", sb.entity().getVolumeType(), SearchCriteria.Op.LIKE);
         sb.and("uuid", sb.entity().getUuid(), SearchCriteria.Op.NNULL);
         sb.and("instanceId", sb.entity().getVmId(), SearchCriteria.Op.EQ);
@@ -1997,14 +2093,28 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
             sc.setParameters("stateNEQ", Volume.State.Expunged);
         }
 
-        // search Volume details by ids
-        Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = _volumeJoinDao.searchAndCount(sc, searchFilter);
-        Integer count = uniqueVolPair.second();
-        if (count.intValue() == 0) {
-            // empty result
-            return uniqueVolPair;
+        List<VolumeJoinVO> uniqueVols;
+        Integer count = null;
+        if (cmd.isKeysetPagination()) {
+            Long pageTokenId = getPageTokenId(cmd);
+            if (pageTokenId != null) {
+                sc.setParameters("idLT", pageTokenId);
+            }
+            // no count query, the caller only needs to know if there is a next page
+            uniqueVols = _volumeJoinDao.search(sc, searchFilter);
+            if (uniqueVols.isEmpty()) {
+                return new Pair<List<VolumeJoinVO>, Integer>(uniqueVols, count);
+            }
+        } else {
+            // search Volume details by ids
+            Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = _volumeJoinDao.searchAndCount(sc, searchFilter);
+            count = uniqueVolPair.second();
+            if (count.intValue() == 0) {
+                // empty result
+                return uniqueVolPair;
+            }
+            uniqueVols = uniqueVolPair.first();
         }
-        List<VolumeJoinVO> uniqueVols = uniqueVolPair.first();
         Long[] vrIds = new Long[uniqueVols.size()];
         int i = 0;
         for (VolumeJoinVO v : uniqueVols) {
@@ -41,6 +41,9 @@ import org.apache.cloudstack.api.response.SuccessResponse;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -48,168 +51,235 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ApiResponseSerializer {
     private static final Logger s_logger = Logger.getLogger(ApiResponseSerializer.class.getName());
 
-    public static String toSerializedString(ResponseObject result, String responseType) {
-        s_logger.trace("===Serializing Response===");
-        if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-            return toJSONSerializedString(result, new StringBuilder());
-        } else {
-            return toXMLSerializedString(result, new StringBuilder());
+    // Gson instances are thread safe, the exclusion strategies look at the calling account on every call
+    private static final Gson s_responseGson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+    private static final Gson s_logGson = ApiResponseGsonHelper.getLogBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+
+    // serializable fields of each response class, in the order the XML serializer writes them
+    private static final ConcurrentHashMap<Class<?>, ResponseField[]> s_responseFields = new ConcurrentHashMap<Class<?>, ResponseField[]>();
+
+    private static final class ResponseField {
+        final Field field;
+        final String name;
+        final Param param;
+
+        ResponseField(Field field, String name, Param param) {
+            this.field = field;
+            this.name = name;
+            this.param = param;
         }
     }
 
+    public static String toSerializedString(ResponseObject result, String responseType) {
+        return toSerializedStringWithSecureLogs(result, responseType, new StringBuilder());
+    }
+
     public static String toSerializedStringWithSecureLogs(ResponseObject result, String responseType, StringBuilder log) {
+        if (result == null || log == null) {
+            return null;
+        }
+        StringWriter out = new StringWriter();
+        try {
+            writeSerializedStringWithSecureLogs(result, responseType, out, log);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize response " + result.getResponseName(), e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the serialized response to out while it is being built, list
+     * responses are written one element at a time so the whole response never
+     * has to be held in memory as a single string.
+     */
+    public static void writeSerializedStringWithSecureLogs(ResponseObject result, String responseType, Writer out, StringBuilder log) throws IOException {
         s_logger.trace("===Serializing Response===");
+        if (result == null || log == null) {
+            return;
+        }
         if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-            return toJSONSerializedString(result, log);
+            writeJSONSerializedString(result, out, log);
         } else {
-            return toXMLSerializedString(result, log);
+            writeXMLSerializedString(result, out, log);
         }
     }
 
+    // the elements of a list response are only logged up to this length, the rest is still written to out
+    static final int MAX_LOGGED_LIST_LENGTH = 64 * 1024;
+    private static final String TRUNCATED_LOG = "...";
+
     private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
 
     public static String unescape(String escaped) {
-        String str = escaped;
-        Matcher matcher = s_unicodeEscapePattern.matcher(str);
-        while (matcher.find()) {
-            str = str.replaceAll("\\" + matcher.group(0), Character.toString((char)Integer.parseInt(matcher.group(1), 16)));
+        Matcher matcher = s_unicodeEscapePattern.matcher(escaped);
+        if (!matcher.find()) {
+            return escaped;
         }
-        return str;
+        StringBuilder str = new StringBuilder(escaped.length());
+        do {
+            matcher.appendReplacement(str, Matcher.quoteReplacement(Character.toString((char)Integer.parseInt(matcher.group(1), 16))));
+        } while (matcher.find());
+        matcher.appendTail(str);
+        return str.toString();
     }
 
     public static String toJSONSerializedString(ResponseObject result, StringBuilder log) {
         if (result != null && log != null) {
-            Gson responseBuilder = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
-            Gson logBuilder = ApiResponseGsonHelper.getLogBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+            StringWriter out = new StringWriter();
+            try {
+                writeJSONSerializedString(result, out, log);
+            } catch (IOException e) {
+                throw new CloudRuntimeException("Unable to serialize response " + result.getResponseName(), e);
+            }
+            return out.toString();
+        }
+        return null;
+    }
+
+    private static void writeJSONSerializedString(ResponseObject result, Writer out, StringBuilder log) throws IOException {
+        out.append("{\"").append(result.getResponseName()).append("\":");
+        log.append("{\"").append(result.getResponseName()).append("\":");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
+            Integer count = ((ListResponse)result).getCount();
+            boolean nonZeroCount = (count != null && count.longValue() != 0);
+            if (nonZeroCount) {
+                out.append("{\"").append(ApiConstants.COUNT).append("\":").append(String.valueOf(count));
+                log.append("{\"").append(ApiConstants.COUNT).append("\":").append(count);
+            }
 
-            StringBuilder sb = new StringBuilder();
+            if ((responses != null) && !responses.isEmpty()) {
+                String jsonStr = unescape(s_responseGson.toJson(responses.get(0)));
+                String logStr = unescape(s_logGson.toJson(responses.get(0)));
 
-            sb.append("{\"").append(result.getResponseName()).append("\":");
-            log.append("{\"").append(result.getResponseName()).append("\":");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
-                Integer count = ((ListResponse)result).getCount();
-                boolean nonZeroCount = (count != null && count.longValue() != 0);
                 if (nonZeroCount) {
-                    sb.append("{\"").append(ApiConstants.COUNT).append("\":").append(count);
-                    log.append("{\"").append(ApiConstants.COUNT).append("\":").append(count);
+                    out.append(",\"").append(responses.get(0).getObjectName()).append("\":[").append(jsonStr);
+                    log.append(",\"").append(responses.get(0).getObjectName()).append("\":[").append(logStr);
                 }
 
-                if ((responses != null) && !responses.isEmpty()) {
-                    String jsonStr = responseBuilder.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
-                    String logStr = logBuilder.toJson(responses.get(0));
-                    logStr = unescape(logStr);
-
-                    if (nonZeroCount) {
-                        sb.append(",\"").append(responses.get(0).getObjectName()).append("\":[").append(jsonStr);
-                        log.append(",\"").append(responses.get(0).getObjectName()).append("\":[").append(logStr);
-                    }
-
-                    for (int i = 1; i < ((ListResponse)result).getResponses().size(); i++) {
-                        jsonStr = responseBuilder.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        logStr = logBuilder.toJson(responses.get(i));
-                        logStr = unescape(logStr);
-                        sb.append(",").append(jsonStr);
+                boolean truncated = false;
+                for (int i = 1; i < responses.size(); i++) {
+                    jsonStr = unescape(s_responseGson.toJson(responses.get(i)));
+                    out.append(",").append(jsonStr);
+                    if (log.length() < MAX_LOGGED_LIST_LENGTH) {
+                        logStr = unescape(s_logGson.toJson(responses.get(i)));
                         log.append(",").append(logStr);
+                    } else if (!truncated) {
+                        log.append(",").append(TRUNCATED_LOG);
+                        truncated = true;
                     }
-                    sb.append("]}");
-                    log.append("]}");
-                } else  {
-                    if (!nonZeroCount) {
-                        sb.append("{");
-                        log.append("{");
-                    }
-
-                    sb.append("}");
-                    log.append("}");
                 }
-            } else if (result instanceof SuccessResponse || result instanceof ExceptionResponse) {
-                final String jsonErrorText = unescape(responseBuilder.toJson(result));
-                sb.append(jsonErrorText);
-                log.append(jsonErrorText);
-            } else {
-                String jsonStr = responseBuilder.toJson(result);
-                if (jsonStr != null && !jsonStr.isEmpty()) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append("{\"").append(result.getObjectName()).append("\":").append(jsonStr).append("}");
-                    }
+                out.append("]");
+                log.append("]");
+                String nextPageToken = ((ListResponse)result).getNextPageToken();
+                if (nextPageToken != null) {
+                    out.append(",\"").append(ApiConstants.NEXT_PAGE_TOKEN).append("\":\"").append(nextPageToken).append("\"");
+                    log.append(",\"").append(ApiConstants.NEXT_PAGE_TOKEN).append("\":\"").append(nextPageToken).append("\"");
+                }
+                out.append("}");
+                log.append("}");
+            } else  {
+                if (!nonZeroCount) {
+                    out.append("{");
+                    log.append("{");
+                }
+
+                out.append("}");
+                log.append("}");
+            }
+        } else if (result instanceof SuccessResponse || result instanceof ExceptionResponse) {
+            final String jsonErrorText = unescape(s_responseGson.toJson(result));
+            out.append(jsonErrorText);
+            log.append(jsonErrorText);
+        } else {
+            String jsonStr = s_responseGson.toJson(result);
+            if (jsonStr != null && !jsonStr.isEmpty()) {
+                jsonStr = unescape(jsonStr);
+                if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
+                    out.append(jsonStr);
                 } else {
-                    sb.append("{}");
+                    out.append("{\"").append(result.getObjectName()).append("\":").append(jsonStr).append("}");
                 }
-                String logStr = logBuilder.toJson(result);
-                if (logStr != null && !logStr.isEmpty()) {
-                    logStr = unescape(logStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
-                        log.append(logStr);
-                    } else {
-                        log.append("{\"").append(result.getObjectName()).append("\":").append(logStr).append("}");
-                    }
+            } else {
+                out.append("{}");
+            }
+            String logStr = s_logGson.toJson(result);
+            if (logStr != null && !logStr.isEmpty()) {
+                logStr = unescape(logStr);
+                if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
+                    log.append(logStr);
                 } else {
-                    log.append("{}");
+                    log.append("{\"").append(result.getObjectName()).append("\":").append(logStr).append("}");
                 }
+            } else {
+                log.append("{}");
             }
-            sb.append("}");
-            log.append("}");
-            return sb.toString();
         }
-        return null;
+        out.append("}");
+        log.append("}");
     }
 
-    private static String toXMLSerializedString(ResponseObject result, StringBuilder log) {
-        if (result != null && log != null) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-            sb.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
-            log.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-            log.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
-
-            if (result instanceof ListResponse) {
-                Integer count = ((ListResponse)result).getCount();
-
-                if (count != null && count != 0) {
-                    sb.append("<").append(ApiConstants.COUNT).append(">").append(((ListResponse)result).getCount()).append("</").append(ApiConstants.COUNT).append(">");
-                    log.append("<").append(ApiConstants.COUNT).append(">").append(((ListResponse)result).getCount()).append("</").append(ApiConstants.COUNT).append(">");
-                }
-                List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
-                if ((responses != null) && !responses.isEmpty()) {
-                    for (ResponseObject obj : responses) {
-                        serializeResponseObjXML(sb, log, obj);
+    private static void writeXMLSerializedString(ResponseObject result, Writer out, StringBuilder log) throws IOException {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
+        log.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        log.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
+
+        if (result instanceof ListResponse) {
+            Integer count = ((ListResponse)result).getCount();
+
+            if (count != null && count != 0) {
+                out.append("<").append(ApiConstants.COUNT).append(">").append(String.valueOf(count)).append("</").append(ApiConstants.COUNT).append(">");
+                log.append("<").append(ApiConstants.COUNT).append(">").append(count).append("</").append(ApiConstants.COUNT).append(">");
+            }
+            List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
+            if ((responses != null) && !responses.isEmpty()) {
+                StringBuilder skipped = null;
+                for (ResponseObject obj : responses) {
+                    if (log.length() < MAX_LOGGED_LIST_LENGTH) {
+                        serializeResponseObjXML(out, log, obj);
+                    } else {
+                        if (skipped == null) {
+                            skipped = new StringBuilder();
+                            log.append(TRUNCATED_LOG);
+                        }
+                        skipped.setLength(0);
+                        serializeResponseObjXML(out, skipped, obj);
                     }
                 }
+            }
+            String nextPageToken = ((ListResponse)result).getNextPageToken();
+            if (nextPageToken != null) {
+                out.append("<").append(ApiConstants.NEXT_PAGE_TOKEN).append(">").append(nextPageToken).append("</").append(ApiConstants.NEXT_PAGE_TOKEN).append(">");
+                log.append("<").append(ApiConstants.NEXT_PAGE_TOKEN).append(">").append(nextPageToken).append("</").append(ApiConstants.NEXT_PAGE_TOKEN).append(">");
+            }
+        } else {
+            if (result instanceof CreateCmdResponse || result instanceof AsyncJobResponse || result instanceof AuthenticationCmdResponse) {
+                serializeResponseObjFieldsXML(out, log, result);
             } else {
-                if (result instanceof CreateCmdResponse || result instanceof AsyncJobResponse || result instanceof AuthenticationCmdResponse) {
-                    serializeResponseObjFieldsXML(sb, log, result);
-                } else {
-                    serializeResponseObjXML(sb, log, result);
-                }
+                serializeResponseObjXML(out, log, result);
             }
-
-            sb.append("</").append(result.getResponseName()).append(">");
-            log.append("</").append(result.getResponseName()).append(">");
-            return sb.toString();
         }
-        return null;
+
+        out.append("</").append(result.getResponseName()).append(">");
+        log.append("</").append(result.getResponseName()).append(">");
     }
 
-    private static void serializeResponseObjXML(StringBuilder sb, StringBuilder log, ResponseObject obj) {
+    private static void serializeResponseObjXML(Writer out, StringBuilder log, ResponseObject obj) throws IOException {
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("<").append(obj.getObjectName()).append(">");
+            out.append("<").append(obj.getObjectName()).append(">");
             log.append("<").append(obj.getObjectName()).append(">");
         }
-        serializeResponseObjFieldsXML(sb, log, obj);
+        serializeResponseObjFieldsXML(out, log, obj);
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("</").append(obj.getObjectName()).append(">");
+            out.append("</").append(obj.getObjectName()).append(">");
             log.append("</").append(obj.getObjectName()).append(">");
         }
     }
@@ -223,13 +293,18 @@ public class ApiResponseSerializer {
         return fields.toArray(new Field[] {});
     }
 
-    private static void serializeResponseObjFieldsXML(StringBuilder sb, StringBuilder log, ResponseObject obj) {
-        boolean isAsync = false;
-        if (obj instanceof AsyncJobResponse)
-            isAsync = true;
+    /**
+     * @return the non transient fields of clz carrying a serialized name, the
+     * reflection is only done the first time a response class is serialized.
+     */
+    private static ResponseField[] getResponseFields(Class<?> clz) {
+        ResponseField[] responseFields = s_responseFields.get(clz);
+        if (responseFields != null) {
+            return responseFields;
+        }
 
-        Field[] fields = getFlattenFields(obj.getClass());
-        for (Field field : fields) {
+        List<ResponseField> fields = new ArrayList<ResponseField>();
+        for (Field field : getFlattenFields(clz)) {
             if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
                 continue; // skip transient fields
             }
@@ -239,8 +314,24 @@ public class ApiResponseSerializer {
                 continue; // skip fields w/o serialized name
             }
 
+            field.setAccessible(true);
+            fields.add(new ResponseField(field, serializedName.value(), field.getAnnotation(Param.class)));
+        }
+        responseFields = fields.toArray(new ResponseField[fields.size()]);
+        ResponseField[] existing = s_responseFields.putIfAbsent(clz, responseFields);
+        return existing != null ? existing : responseFields;
+    }
+
+    private static void serializeResponseObjFieldsXML(Writer out, StringBuilder log, ResponseObject obj) throws IOException {
+        boolean isAsync = false;
+        if (obj instanceof AsyncJobResponse)
+            isAsync = true;
+
+        for (ResponseField responseField : getResponseFields(obj.getClass())) {
+            String serializedName = responseField.name;
+
             boolean logField = true;
-            Param param = field.getAnnotation(Param.class);
+            Param param = responseField.param;
             if (param != null) {
                 RoleType[] allowedRoles = param.authorized();
                 if (allowedRoles.length > 0) {
@@ -262,10 +353,9 @@ public class ApiResponseSerializer {
                 }
             }
 
-            field.setAccessible(true);
             Object fieldValue = null;
             try {
-                fieldValue = field.get(obj);
+                fieldValue = responseField.field.get(obj);
             } catch (IllegalArgumentException e) {
                 throw new CloudRuntimeException("how illegal is it?", e);
             } catch (IllegalAccessException e) {
@@ -275,12 +365,12 @@ public class ApiResponseSerializer {
                 if (fieldValue instanceof ResponseObject) {
                     ResponseObject subObj = (ResponseObject)fieldValue;
                     if (isAsync) {
-                        sb.append("<jobresult>");
+                        out.append("<jobresult>");
                         log.append("<jobresult>");
                     }
-                    serializeResponseObjXML(sb, log, subObj);
+                    serializeResponseObjXML(out, log, subObj);
                     if (isAsync) {
-                        sb.append("</jobresult>");
+                        out.append("</jobresult>");
                         log.append("</jobresult>");
                     }
                 } else if (fieldValue instanceof Collection<?>) {
@@ -289,10 +379,8 @@ public class ApiResponseSerializer {
                     for (Object value : subResponseList) {
                         if (value instanceof ResponseObject) {
                             ResponseObject subObj = (ResponseObject)value;
-                            if (serializedName != null) {
-                                subObj.setObjectName(serializedName.value());
-                            }
-                            serializeResponseObjXML(sb, log, subObj);
+                            subObj.setObjectName(serializedName);
+                            serializeResponseObjXML(out, log, subObj);
                         } else if (value instanceof ExceptionProxyObject) {
                             // Only exception reponses carry a list of
                             // ExceptionProxyObject objects.
@@ -300,42 +388,42 @@ public class ApiResponseSerializer {
                             // If this is the first IdentityProxy field
                             // encountered, put in a uuidList tag.
                             if (!usedUuidList) {
-                                sb.append("<" + serializedName.value() + ">");
-                                log.append("<" + serializedName.value() + ">");
+                                out.append("<" + serializedName + ">");
+                                log.append("<" + serializedName + ">");
                                 usedUuidList = true;
                             }
-                            sb.append("<" + "uuid" + ">" + idProxy.getUuid() + "</" + "uuid" + ">");
+                            out.append("<" + "uuid" + ">" + idProxy.getUuid() + "</" + "uuid" + ">");
                             log.append("<" + "uuid" + ">" + idProxy.getUuid() + "</" + "uuid" + ">");
                             // Append the new descriptive property also.
                             String idFieldName = idProxy.getDescription();
                             if (idFieldName != null) {
-                                sb.append("<" + "uuidProperty" + ">" + idFieldName + "</" + "uuidProperty" + ">");
+                                out.append("<" + "uuidProperty" + ">" + idFieldName + "</" + "uuidProperty" + ">");
                                 log.append("<" + "uuidProperty" + ">" + idFieldName + "</" + "uuidProperty" + ">");
                             }
                         } else if (value instanceof String) {
-                            sb.append("<").append(serializedName.value()).append(">").append(value).append("</").append(serializedName.value()).append(">");
+                            out.append("<").append(serializedName).append(">").append((String)value).append("</").append(serializedName).append(">");
                             if (logField) {
-                                log.append("<").append(serializedName.value()).append(">").append(value).append("</").append(serializedName.value()).append(">");
+                                log.append("<").append(serializedName).append(">").append(value).append("</").append(serializedName).append(">");
                             }
                         }
                     }
                     if (usedUuidList) {
                         // close the uuidList.
-                        sb.append("</").append(serializedName.value()).append(">");
-                        log.append("</").append(serializedName.value()).append(">");
+                        out.append("</").append(serializedName).append(">");
+                        log.append("</").append(serializedName).append(">");
                     }
                 } else if (fieldValue instanceof Date) {
-                    sb.append("<").append(serializedName.value()).append(">").append(BaseCmd.getDateString((Date)fieldValue)).append("</").append(serializedName.value()).append(">");
-                    log.append("<").append(serializedName.value()).append(">").append(BaseCmd.getDateString((Date)fieldValue)).append("</").append(serializedName.value()).append(">");
+                    out.append("<").append(serializedName).append(">").append(BaseCmd.getDateString((Date)fieldValue)).append("</").append(serializedName).append(">");
+                    log.append("<").append(serializedName).append(">").append(BaseCmd.getDateString((Date)fieldValue)).append("</").append(serializedName).append(">");
                 } else {
                     String resultString = escapeSpecialXmlChars(fieldValue.toString());
                     if (!(obj instanceof ExceptionResponse)) {
                         resultString = encodeParam(resultString);
                     }
 
-                    sb.append("<").append(serializedName.value()).append(">").append(resultString).append("</").append(serializedName.value()).append(">");
+                    out.append("<").append(serializedName).append(">").append(resultString).append("</").append(serializedName).append(">");
                     if (logField) {
-                        log.append("<").append(serializedName.value()).append(">").append(resultString).append("</").append(serializedName.value()).append(">");
+                        log.append("<").append(serializedName).append(">").append(resultString).append("</").append(serializedName).append(">");
                     }
                 }
             }
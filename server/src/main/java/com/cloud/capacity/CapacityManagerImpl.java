@@ -17,6 +17,7 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -49,7 +50,9 @@ import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
 import com.cloud.dc.ClusterVO;
+import com.cloud.dc.HostPodVO;
 import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.HostPodDao;
 import com.cloud.deploy.DeploymentClusterPlanner;
 import com.cloud.event.UsageEventVO;
 import com.cloud.exception.ConnectionException;
@@ -79,6 +82,7 @@ import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.StateListener;
@@ -135,12 +139,17 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Inject
     ClusterDetailsDao _clusterDetailsDao;
+    @Inject
+    HostPodDao _podDao;
     private int _vmCapacityReleaseInterval;
     long _extraBytesPerVolume = 0;
 
     @Inject
     MessageBus _messageBus;
 
+    private final HostCapacityIndex _capacityIndex = new HostCapacityIndex();
+    private final Object _capacityIndexLoadLock = new Object();
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
@@ -266,6 +275,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMemory.getId(), capacityMemory);
                     _capacityDao.update(capacityCpuCore.getId(), capacityCpuCore);
+                    updateHostCapacityIndex(capacityCpu, capacityMemory);
                 }
             });
 
@@ -395,6 +405,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMem.getId(), capacityMem);
                     _capacityDao.update(capacityCpuCore.getId(), capacityCpuCore);
+                    updateHostCapacityIndex(capacityCpu, capacityMem);
                 }
             });
         } catch (Exception e) {
@@ -858,6 +869,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             try {
                 _capacityDao.update(cpuCap.getId(), cpuCap);
                 _capacityDao.update(memCap.getId(), memCap);
+                updateHostCapacityIndex(cpuCap, memCap);
             } catch (Exception e) {
                 s_logger.error("Caught exception while updating cpu/memory capacity for the host " + host.getId(), e);
             }
@@ -875,6 +887,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     capacity.setReservedCapacity(reservedMemoryFinal);
                     capacity.setCapacityState(capacityState);
                     _capacityDao.persist(capacity);
+                    updateHostCapacityIndex(capacity);
 
                     capacity =
                         new CapacityVO(host.getId(), host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedCpuFinal, host.getCpus().longValue() *
@@ -882,6 +895,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     capacity.setReservedCapacity(reservedCpuFinal);
                     capacity.setCapacityState(capacityState);
                     _capacityDao.persist(capacity);
+                    updateHostCapacityIndex(capacity);
                 }
             });
 
@@ -1038,6 +1052,111 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     }
 
+    /**
+     * Records the capacity rows in the host capacity index once the transaction writing them has committed
+     */
+    protected void updateHostCapacityIndex(final CapacityVO... capacities) {
+        TransactionLegacy.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                for (CapacityVO capacity : capacities) {
+                    _capacityIndex.update(capacity);
+                }
+            }
+        });
+    }
+
+    @Override
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityTypeForOrdering, boolean isZone) {
+        Long zoneId = id;
+        if (!isZone) {
+            HostPodVO pod = _podDao.findById(id);
+            if (pod == null) {
+                return null;
+            }
+            zoneId = pod.getDataCenterId();
+        }
+        if (!loadHostCapacityIndex(zoneId, capacityTypeForOrdering)) {
+            return null;
+        }
+        return _capacityIndex.orderClustersByAggregateCapacity(zoneId, isZone ? null : id, capacityTypeForOrdering);
+    }
+
+    @Override
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityTypeForOrdering) {
+        if (!loadHostCapacityIndex(zoneId, capacityTypeForOrdering)) {
+            return null;
+        }
+        return _capacityIndex.orderPodsByAggregateCapacity(zoneId, capacityTypeForOrdering);
+    }
+
+    /**
+     * Reloads the cpu and memory capacity of the zone into the index when it is older than host.capacity.index.refresh.interval
+     * @return false if the index is disabled or does not cover the capacity type
+     */
+    protected boolean loadHostCapacityIndex(long zoneId, short capacityTypeForOrdering) {
+        int refreshInterval = HostCapacityIndexRefreshInterval.value();
+        if (refreshInterval <= 0) {
+            _capacityIndex.invalidateAll();
+            return false;
+        }
+        if (!HostCapacityIndex.isIndexed(capacityTypeForOrdering)) {
+            return false;
+        }
+        synchronized (_capacityIndexLoadLock) {
+            long now = System.currentTimeMillis();
+            if (_capacityIndex.isLoaded(zoneId, now - refreshInterval * 1000L)) {
+                return true;
+            }
+
+            _capacityIndex.startLoading(zoneId);
+            try {
+                SearchCriteria<CapacityVO> capacitySC = _capacityDao.createSearchCriteria();
+                capacitySC.addAnd("dataCenterId", SearchCriteria.Op.EQ, zoneId);
+                capacitySC.addAnd("capacityType", SearchCriteria.Op.IN, Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+                List<CapacityVO> capacities = _capacityDao.search(capacitySC, null);
+
+                List<Long> clusterIds = new ArrayList<Long>();
+                for (ClusterVO cluster : _clusterDao.listByZoneId(zoneId)) {
+                    clusterIds.add(cluster.getId());
+                }
+                List<Long> podIds = new ArrayList<Long>();
+                for (HostPodVO pod : _podDao.listByDataCenterId(zoneId)) {
+                    podIds.add(pod.getId());
+                }
+
+                Map<Long, Double> cpuOvercommitRatios = new HashMap<Long, Double>();
+                Map<Long, Double> memoryOvercommitRatios = new HashMap<Long, Double>();
+                if (!clusterIds.isEmpty()) {
+                    SearchCriteria<ClusterDetailsVO> detailsSC = _clusterDetailsDao.createSearchCriteria();
+                    detailsSC.addAnd("clusterId", SearchCriteria.Op.IN, clusterIds.toArray());
+                    detailsSC.addAnd("name", SearchCriteria.Op.IN, "cpuOvercommitRatio", "memoryOvercommitRatio");
+                    for (ClusterDetailsVO detail : _clusterDetailsDao.search(detailsSC, null)) {
+                        try {
+                            double ratio = Double.parseDouble(detail.getValue());
+                            if ("cpuOvercommitRatio".equals(detail.getName())) {
+                                cpuOvercommitRatios.put(detail.getClusterId(), ratio);
+                            } else {
+                                memoryOvercommitRatios.put(detail.getClusterId(), ratio);
+                            }
+                        } catch (NumberFormatException e) {
+                            s_logger.warn("Ignoring invalid " + detail.getName() + " " + detail.getValue() + " of cluster " + detail.getClusterId());
+                        }
+                    }
+                }
+
+                _capacityIndex.load(zoneId, capacities, clusterIds, podIds, cpuOvercommitRatios, memoryOvercommitRatios, now);
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Loaded " + capacities.size() + " cpu and memory capacities of zone " + zoneId + " in " + (System.currentTimeMillis() - now) + "ms");
+                }
+                return true;
+            } catch (RuntimeException e) {
+                _capacityIndex.cancelLoading(zoneId);
+                throw e;
+            }
+        }
+    }
+
     @Override
     public float getClusterOverProvisioningFactor(Long clusterId, short capacityType) {
 
@@ -1122,6 +1241,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Override
     public void processHostRemoved(long hostId, long clusterId) {
+        _capacityIndex.invalidateCluster(clusterId);
     }
 
     @Override
@@ -1211,6 +1331,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] {CpuOverprovisioningFactor, MemOverprovisioningFactor, StorageCapacityDisableThreshold, StorageOverprovisioningFactor,
-            StorageAllocatedCapacityDisableThreshold, StorageOperationsExcludeCluster, VmwareCreateCloneFull, ImageStoreNFSVersion};
+            StorageAllocatedCapacityDisableThreshold, StorageOperationsExcludeCluster, VmwareCreateCloneFull, ImageStoreNFSVersion,
+            HostCapacityIndexRefreshInterval};
     }
 }
@@ -0,0 +1,258 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.utils.Pair;
+
+/**
+ * HostCapacityIndex keeps the cpu and memory rows of op_host_capacity of a
+ * zone, together with the overcommit ratios of its clusters, in memory so that
+ * the planners can order the clusters and pods by aggregate capacity without
+ * querying the database on every deployment.
+ *
+ * The index may lag behind op_host_capacity: a zone is reloaded once its
+ * snapshot is older than the refresh interval and rows written by this
+ * management server are updated in place once committed, but other writers
+ * are not seen until then.  It is therefore only used to order, the clusters
+ * and pods having enough capacity are still looked up in the database.
+ */
+public class HostCapacityIndex {
+
+    protected static class HostCapacity {
+        final long hostId;
+        final Long podId;
+        final Long clusterId;
+        final short capacityType;
+        final long totalCapacity;
+        final long usedCapacity;
+        final long reservedCapacity;
+
+        HostCapacity(Capacity capacity) {
+            hostId = capacity.getHostOrPoolId();
+            podId = capacity.getPodId();
+            clusterId = capacity.getClusterId();
+            capacityType = capacity.getCapacityType();
+            totalCapacity = capacity.getTotalCapacity();
+            usedCapacity = capacity.getUsedCapacity();
+            reservedCapacity = capacity.getReservedCapacity();
+        }
+    }
+
+    protected static class ZoneCapacity {
+        final Map<Long, HostCapacity> cpu = new HashMap<Long, HostCapacity>();
+        final Map<Long, HostCapacity> memory = new HashMap<Long, HostCapacity>();
+        final Map<Long, Double> cpuOvercommitRatios;
+        final Map<Long, Double> memoryOvercommitRatios;
+        final Set<Long> clusterIds;
+        final Set<Long> podIds;
+        volatile long loaded;
+
+        ZoneCapacity(Collection<Long> clusterIds, Collection<Long> podIds, Map<Long, Double> cpuOvercommitRatios, Map<Long, Double> memoryOvercommitRatios, long loaded) {
+            this.clusterIds = new HashSet<Long>(clusterIds);
+            this.podIds = new HashSet<Long>(podIds);
+            this.cpuOvercommitRatios = new HashMap<Long, Double>(cpuOvercommitRatios);
+            this.memoryOvercommitRatios = new HashMap<Long, Double>(memoryOvercommitRatios);
+            this.loaded = loaded;
+        }
+
+        void put(HostCapacity capacity) {
+            if (capacity.capacityType == Capacity.CAPACITY_TYPE_CPU) {
+                cpu.put(capacity.hostId, capacity);
+            } else if (capacity.capacityType == Capacity.CAPACITY_TYPE_MEMORY) {
+                memory.put(capacity.hostId, capacity);
+            }
+        }
+
+        Map<Long, HostCapacity> rows(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? cpu : memory;
+        }
+
+        Map<Long, Double> ratios(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? cpuOvercommitRatios : memoryOvercommitRatios;
+        }
+    }
+
+    private final Map<Long, ZoneCapacity> _zones = new ConcurrentHashMap<Long, ZoneCapacity>();
+    private final Map<Long, List<HostCapacity>> _loading = new HashMap<Long, List<HostCapacity>>();
+
+    public static boolean isIndexed(short capacityType) {
+        return capacityType == Capacity.CAPACITY_TYPE_CPU || capacityType == Capacity.CAPACITY_TYPE_MEMORY;
+    }
+
+    /**
+     * @return true if the zone has been loaded at or after notBefore.
+     */
+    public boolean isLoaded(long zoneId, long notBefore) {
+        final ZoneCapacity zone = _zones.get(zoneId);
+        return zone != null && zone.loaded >= notBefore;
+    }
+
+    /**
+     * Has the rows updated from now on recorded so that load() can apply
+     * them on top of the rows it is given, call it before reading the zone.
+     */
+    public synchronized void startLoading(long zoneId) {
+        if (!_loading.containsKey(zoneId)) {
+            _loading.put(zoneId, new ArrayList<HostCapacity>());
+        }
+    }
+
+    public synchronized void cancelLoading(long zoneId) {
+        _loading.remove(zoneId);
+    }
+
+    /**
+     * Replaces the zone with the given cpu and memory rows.
+     * @param clusterIds clusters of the zone that are not removed.
+     * @param podIds pods of the zone that are not removed.
+     */
+    public synchronized void load(long zoneId, List<? extends Capacity> capacities, Collection<Long> clusterIds, Collection<Long> podIds, Map<Long, Double> cpuOvercommitRatios,
+            Map<Long, Double> memoryOvercommitRatios, long now) {
+        final ZoneCapacity zone = new ZoneCapacity(clusterIds, podIds, cpuOvercommitRatios, memoryOvercommitRatios, now);
+        for (final Capacity capacity : capacities) {
+            if (capacity.getHostOrPoolId() != null && isIndexed(capacity.getCapacityType())) {
+                zone.put(new HostCapacity(capacity));
+            }
+        }
+        final List<HostCapacity> updated = _loading.remove(zoneId);
+        if (updated != null) {
+            for (final HostCapacity capacity : updated) {
+                zone.put(capacity);
+            }
+        }
+        _zones.put(zoneId, zone);
+    }
+
+    /**
+     * Records the row as just written to op_host_capacity.  A row of a cluster
+     * or pod the zone does not know about makes the zone reload on next use.
+     */
+    public synchronized void update(Capacity capacity) {
+        if (capacity.getHostOrPoolId() == null || capacity.getDataCenterId() == null || !isIndexed(capacity.getCapacityType())) {
+            return;
+        }
+        final HostCapacity row = new HostCapacity(capacity);
+        final List<HostCapacity> updated = _loading.get(capacity.getDataCenterId());
+        if (updated != null) {
+            updated.add(row);
+        }
+        final ZoneCapacity zone = _zones.get(capacity.getDataCenterId());
+        if (zone == null) {
+            return;
+        }
+        synchronized (zone) {
+            zone.put(row);
+        }
+        if (!zone.clusterIds.contains(row.clusterId) || !zone.podIds.contains(row.podId)) {
+            zone.loaded = 0;
+        }
+    }
+
+    public void invalidate(long zoneId) {
+        _zones.remove(zoneId);
+    }
+
+    public void invalidateCluster(long clusterId) {
+        for (final Map.Entry<Long, ZoneCapacity> entry : _zones.entrySet()) {
+            if (entry.getValue().clusterIds.contains(clusterId)) {
+                _zones.remove(entry.getKey());
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        _zones.clear();
+    }
+
+    /**
+     * Same result as CapacityDao.orderClustersByAggregateCapacity().
+     * @param podId pod to look into, null for the whole zone.
+     * @return the clusters in order of aggregate capacity, along with the
+     * aggregate capacity of every cluster, or null if the zone is not loaded.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long zoneId, Long podId, short capacityTypeForOrdering) {
+        final ZoneCapacity zone = _zones.get(zoneId);
+        if (zone == null || !isIndexed(capacityTypeForOrdering)) {
+            return null;
+        }
+        synchronized (zone) {
+            return orderByAggregateCapacity(zone, podId, capacityTypeForOrdering, false);
+        }
+    }
+
+    /**
+     * Same result as CapacityDao.orderPodsByAggregateCapacity().
+     * @return null if the zone is not loaded.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityTypeForOrdering) {
+        final ZoneCapacity zone = _zones.get(zoneId);
+        if (zone == null || !isIndexed(capacityTypeForOrdering)) {
+            return null;
+        }
+        synchronized (zone) {
+            return orderByAggregateCapacity(zone, null, capacityTypeForOrdering, true);
+        }
+    }
+
+    private static Pair<List<Long>, Map<Long, Double>> orderByAggregateCapacity(ZoneCapacity zone, Long podId, short capacityType, boolean byPod) {
+        final Map<Long, double[]> sums = new HashMap<Long, double[]>();
+        final Map<Long, Double> ratios = zone.ratios(capacityType);
+        for (final HostCapacity capacity : zone.rows(capacityType).values()) {
+            if (podId != null && !podId.equals(capacity.podId)) {
+                continue;
+            }
+            final Double ratio = capacity.clusterId == null ? null : ratios.get(capacity.clusterId);
+            final Long groupId = byPod ? capacity.podId : capacity.clusterId;
+            if (ratio == null || groupId == null) {
+                continue;
+            }
+            double[] sum = sums.get(groupId);
+            if (sum == null) {
+                sum = new double[2];
+                sums.put(groupId, sum);
+            }
+            sum[0] += capacity.usedCapacity + capacity.reservedCapacity;
+            sum[1] += capacity.totalCapacity * ratio;
+        }
+
+        final Map<Long, Double> aggregateCapacity = new HashMap<Long, Double>();
+        for (final Map.Entry<Long, double[]> entry : sums.entrySet()) {
+            final double[] sum = entry.getValue();
+            aggregateCapacity.put(entry.getKey(), sum[1] == 0 ? 0 : sum[0] / sum[1]);
+        }
+        final List<Long> ordered = new ArrayList<Long>(aggregateCapacity.keySet());
+        Collections.sort(ordered, new Comparator<Long>() {
+            @Override
+            public int compare(Long id1, Long id2) {
+                final int result = Double.compare(aggregateCapacity.get(id1), aggregateCapacity.get(id2));
+                return result != 0 ? result : id1.compareTo(id2);
+            }
+        });
+        return new Pair<List<Long>, Map<Long, Double>>(ordered, aggregateCapacity);
+    }
+}
@@ -107,12 +107,15 @@ import org.apache.commons.collections.MapUtils;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.AgentManager;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateConfigCacheCommand;
 import com.cloud.alert.AlertManager;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.api.query.dao.NetworkOfferingJoinDao;
 import com.cloud.api.query.vo.NetworkOfferingJoinVO;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Resource.ResourceType;
 import com.cloud.dc.AccountVlanMapVO;
 import com.cloud.dc.ClusterDetailsDao;
@@ -198,6 +201,7 @@ import com.cloud.org.Grouping;
 import com.cloud.org.Grouping.AllocationState;
 import com.cloud.projects.Project;
 import com.cloud.projects.ProjectManager;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.server.ConfigurationServer;
 import com.cloud.server.ManagementService;
 import com.cloud.service.ServiceOfferingDetailsVO;
@@ -385,6 +389,8 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
     @Inject
     IndirectAgentLB _indirectAgentLB;
     @Inject
+    ClusterManager _clusterMgr;
+    @Inject
     private VMTemplateZoneDao templateZoneDao;
 
     // FIXME - why don't we have interface for DataCenterLinkLocalIpAddressDao?
@@ -635,6 +641,7 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
             default:
                 throw new InvalidParameterValueException("Scope provided is invalid");
             }
+            invalidateConfigCache(name);
             return value;
         }
 
@@ -725,10 +732,20 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
         }
 
         txn.commit();
+        invalidateConfigCache(name);
         messageBus.publish(_name, EventTypes.EVENT_CONFIGURATION_VALUE_EDIT, PublishScope.GLOBAL, name);
         return _configDao.getValue(name);
     }
 
+    /**
+     * Drops the cached values of the configuration on this management server and asks the peers to do the same.
+     */
+    private void invalidateConfigCache(final String name) {
+        _configDepot.invalidateCachedValues(name);
+        final Command[] cmds = new Command[] {new InvalidateConfigCacheCommand(name)};
+        _clusterMgr.broadcast(0, GsonHelper.getGson().toJson(cmds));
+    }
+
     @Override
     @ActionEvent(eventType = EventTypes.EVENT_CONFIGURATION_VALUE_EDIT, eventDescription = "updating configuration")
     public Configuration updateConfiguration(final UpdateCfgCmd cmd) throws InvalidParameterValueException {
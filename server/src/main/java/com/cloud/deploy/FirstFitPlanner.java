@@ -499,7 +499,11 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        Pair<List<Long>, Map<Long, Double>> result = capacityMgr.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        // the index doesn't know the clusters added since it was last loaded, the database does
+        if (result == null || !result.first().containsAll(clusterIdswithEnoughCapacity)) {
+            result = capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        }
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -533,7 +537,11 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("PodId List having enough CPU and RAM capacity: " + podIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
+        Pair<List<Long>, Map<Long, Double>> result = capacityMgr.orderPodsByAggregateCapacity(zoneId, capacityType);
+        // the index doesn't know the pods added since it was last loaded, the database does
+        if (result == null || !result.first().containsAll(podIdswithEnoughCapacity)) {
+            result = capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
+        }
         List<Long> podIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
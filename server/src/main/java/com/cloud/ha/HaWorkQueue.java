@@ -0,0 +1,181 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * HaWorkQueue holds the work items this management server has taken from
+ * op_ha_work until a worker is free to process them.  Restarts go first,
+ * system vms before user vms, and no more than a given number of items of the
+ * same cluster are processed at the same time.
+ */
+public class HaWorkQueue {
+
+    protected static class Item {
+        final HaWorkVO work;
+        final Long clusterId;
+        final int rank;
+        final long seq;
+
+        Item(HaWorkVO work, Long clusterId, long seq) {
+            this.work = work;
+            this.clusterId = clusterId;
+            this.rank = rank(work);
+            this.seq = seq;
+        }
+    }
+
+    private static final Comparator<Item> s_itemComparator = new Comparator<Item>() {
+        @Override
+        public int compare(Item item1, Item item2) {
+            if (item1.rank != item2.rank) {
+                return item1.rank < item2.rank ? -1 : 1;
+            }
+            if (item1.work.getTimeToTry() != item2.work.getTimeToTry()) {
+                return item1.work.getTimeToTry() < item2.work.getTimeToTry() ? -1 : 1;
+            }
+            return Long.compare(item1.seq, item2.seq);
+        }
+    };
+
+    private final TreeSet<Item> _queued = new TreeSet<Item>(s_itemComparator);
+    private final Map<Long, Item> _running = new HashMap<Long, Item>();
+    private final Map<Long, Integer> _runningPerCluster = new HashMap<Long, Integer>();
+    private long _seq;
+
+    protected static int rank(HaWorkVO work) {
+        final WorkType type = work.getWorkType();
+        if (type == WorkType.HA) {
+            return work.getType() == VirtualMachine.Type.User ? 1 : 0;
+        }
+        if (type == WorkType.Stop || type == WorkType.CheckStop || type == WorkType.ForceStop) {
+            return 2;
+        }
+        if (type == WorkType.Migration) {
+            return 3;
+        }
+        return 4;
+    }
+
+    /**
+     * @param clusterId cluster of the host the work is about, null if unknown.
+     */
+    public synchronized void add(HaWorkVO work, Long clusterId) {
+        _queued.add(new Item(work, clusterId, _seq++));
+    }
+
+    /**
+     * Takes the first queued work whose cluster is below its budget.
+     * @param maxRunning number of items processed at the same time.
+     * @param maxRunningPerCluster number of items of a cluster processed at the same time, 0 for no limit.
+     * @return null if nothing can be processed now.
+     */
+    public synchronized HaWorkVO poll(int maxRunning, int maxRunningPerCluster) {
+        if (_running.size() >= maxRunning) {
+            return null;
+        }
+        for (final Iterator<Item> it = _queued.iterator(); it.hasNext();) {
+            final Item item = it.next();
+            if (maxRunningPerCluster > 0 && item.clusterId != null && getRunning(item.clusterId) >= maxRunningPerCluster) {
+                continue;
+            }
+            it.remove();
+            _running.put(item.work.getId(), item);
+            if (item.clusterId != null) {
+                _runningPerCluster.put(item.clusterId, getRunning(item.clusterId) + 1);
+            }
+            return item.work;
+        }
+        return null;
+    }
+
+    /**
+     * Releases the budget taken by poll() once the work has been processed.
+     */
+    public synchronized void done(HaWorkVO work) {
+        final Item item = _running.remove(work.getId());
+        if (item == null || item.clusterId == null) {
+            return;
+        }
+        final int running = getRunning(item.clusterId) - 1;
+        if (running > 0) {
+            _runningPerCluster.put(item.clusterId, running);
+        } else {
+            _runningPerCluster.remove(item.clusterId);
+        }
+    }
+
+    /**
+     * @return the clusters with as many items queued or processed as they may have processed at the same time.
+     */
+    public synchronized Set<Long> getClustersAtBudget(int maxRunningPerCluster) {
+        final Set<Long> clusterIds = new HashSet<Long>();
+        if (maxRunningPerCluster <= 0) {
+            return clusterIds;
+        }
+        final Map<Long, Integer> counts = new HashMap<Long, Integer>(_runningPerCluster);
+        for (final Item item : _queued) {
+            if (item.clusterId != null) {
+                final Integer count = counts.get(item.clusterId);
+                counts.put(item.clusterId, count == null ? 1 : count + 1);
+            }
+        }
+        for (final Map.Entry<Long, Integer> count : counts.entrySet()) {
+            if (count.getValue() >= maxRunningPerCluster) {
+                clusterIds.add(count.getKey());
+            }
+        }
+        return clusterIds;
+    }
+
+    /**
+     * Removes the work that is queued but not processed yet.
+     */
+    public synchronized List<HaWorkVO> drain() {
+        final List<HaWorkVO> works = new ArrayList<HaWorkVO>(_queued.size());
+        for (final Item item : _queued) {
+            works.add(item.work);
+        }
+        _queued.clear();
+        return works;
+    }
+
+    private int getRunning(Long clusterId) {
+        final Integer running = _runningPerCluster.get(clusterId);
+        return running == null ? 0 : running;
+    }
+
+    public synchronized int getQueuedCount() {
+        return _queued.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return _running.size();
+    }
+}
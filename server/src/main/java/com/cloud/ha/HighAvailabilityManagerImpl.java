@@ -50,6 +50,7 @@ import com.cloud.user.AccountManager;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -67,12 +68,22 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -110,10 +121,27 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
             "Total number of attempts for trying migration of a VM.",
             true, ConfigKey.Scope.Global);
 
-    WorkerThread[] _workers;
-    boolean _stopped;
+    // how long the dispatcher keeps checking the database every second after being woken up, as the work may not
+    // have been committed yet when the scheduling thread wakes it up
+    private static final long WAKEUP_RECHECK_WINDOW = 10 * SECONDS_TO_MILLISECONDS_FACTOR;
+    // how long stop() waits for the dispatcher to be done with the database
+    private static final long DISPATCHER_STOP_TIMEOUT = 30 * SECONDS_TO_MILLISECONDS_FACTOR;
+
+    WorkDispatcher _dispatcher;
+    ExecutorService _workerPool;
+    ExecutorService _investigatorPool;
+    int _workerCount;
+    final HaWorkQueue _workQueue = new HaWorkQueue();
+    final HighAvailabilityManagerMBeanImpl _mBean = new HighAvailabilityManagerMBeanImpl(_workQueue);
+    private final Object _dispatcherLock = new Object();
+    private boolean _wakeupPending;
+    private long _lastWakeup;
+    private volatile long _nextTimeToTry = Long.MAX_VALUE;
+    volatile boolean _stopped;
     long _timeToSleep;
     @Inject
+    HostInvestigationCache _hostInvestigations;
+    @Inject
     HighAvailabilityDao _haDao;
     @Inject
     VMInstanceDao _instanceDao;
@@ -210,21 +238,93 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
             return Status.Alert;
         }
 
-        Status hostState = null;
-        for (Investigator investigator : investigators) {
-            hostState = investigator.isAgentAlive(host);
-            if (hostState != null) {
+        return _hostInvestigations.get(hostId, InvestigationCacheTtl.value() * SECONDS_TO_MILLISECONDS_FACTOR, new Callable<Status>() {
+            @Override
+            public Status call() {
+                return investigateHost(host);
+            }
+        });
+    }
+
+    private Status investigateHost(final HostVO host) {
+        final List<Callable<Status>> investigations = new ArrayList<Callable<Status>>(investigators.size());
+        for (final Investigator investigator : investigators) {
+            investigations.add(new Callable<Status>() {
+                @Override
+                public Status call() {
+                    return investigator.isAgentAlive(host);
+                }
+            });
+        }
+
+        final List<FutureTask<Status>> results = startInvestigations(investigations);
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                final Investigator investigator = investigators.get(i);
+                Status hostState = null;
+                try {
+                    hostState = awaitInvestigation(results.get(i));
+                } catch (UnknownVM e) {
+                    // not thrown when investigating hosts
+                }
+                if (hostState != null) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug(investigator.getName() + " was able to determine host " + host.getId() + " is in " + hostState.toString());
+                    }
+                    return hostState;
+                }
                 if (s_logger.isDebugEnabled()) {
-                    s_logger.debug(investigator.getName() + " was able to determine host " + hostId + " is in " + hostState.toString());
+                    s_logger.debug(investigator.getName() + " unable to determine the state of the host.  Moving on.");
                 }
-                return hostState;
             }
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug(investigator.getName() + " unable to determine the state of the host.  Moving on.");
+        } finally {
+            cancelInvestigations(results);
+        }
+
+        return null;
+    }
+
+    /**
+     * Has the investigators run at the same time.  Their answers are still
+     * taken in the order of the investigators, so the first conclusive answer
+     * is the one of the same investigator as when they ran one after another.
+     */
+    private <T> List<FutureTask<T>> startInvestigations(final List<Callable<T>> investigations) {
+        final List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>(investigations.size());
+        for (final Callable<T> investigation : investigations) {
+            final FutureTask<T> task = new FutureTask<T>(investigation);
+            tasks.add(task);
+            if (_investigatorPool != null && investigations.size() > 1) {
+                // a task the pool has no thread for is run by the caller when awaited
+                _investigatorPool.execute(task);
+            }
+        }
+        return tasks;
+    }
+
+    private <T> T awaitInvestigation(final FutureTask<T> task) throws UnknownVM {
+        // runs the task here if no thread of the pool has picked it up
+        task.run();
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownVM();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof UnknownVM) {
+                throw (UnknownVM)e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
             }
+            throw new CloudRuntimeException("Investigation failed", e.getCause());
         }
+    }
 
-        return hostState;
+    private <T> void cancelInvestigations(final List<FutureTask<T>> tasks) {
+        for (final FutureTask<T> task : tasks) {
+            task.cancel(true);
+        }
     }
 
     @Override
@@ -310,8 +410,10 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
     }
 
     protected void wakeupWorkers() {
-        for (WorkerThread worker : _workers) {
-            worker.wakup();
+        synchronized (_dispatcherLock) {
+            _wakeupPending = true;
+            _lastWakeup = System.currentTimeMillis();
+            _dispatcherLock.notifyAll();
         }
     }
 
@@ -489,17 +591,33 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
                     return null;
                 }
 
+                final VirtualMachine investigatedVm = vm;
+                final HostVO investigatedHost = host;
+                final List<Callable<Boolean>> investigations = new ArrayList<Callable<Boolean>>(investigators.size());
+                for (final Investigator it : investigators) {
+                    investigations.add(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws UnknownVM {
+                            return it.isVmAlive(investigatedVm, investigatedHost);
+                        }
+                    });
+                }
+
                 Investigator investigator = null;
-                for (Investigator it : investigators) {
-                    investigator = it;
-                    try
-                    {
-                        alive = investigator.isVmAlive(vm, host);
-                        s_logger.info(investigator.getName() + " found " + vm + " to be alive? " + alive);
-                        break;
-                    } catch (UnknownVM e) {
-                        s_logger.info(investigator.getName() + " could not find " + vm);
+                final List<FutureTask<Boolean>> results = startInvestigations(investigations);
+                try {
+                    for (int i = 0; i < results.size(); i++) {
+                        investigator = investigators.get(i);
+                        try {
+                            alive = awaitInvestigation(results.get(i));
+                            s_logger.info(investigator.getName() + " found " + vm + " to be alive? " + alive);
+                            break;
+                        } catch (UnknownVM e) {
+                            s_logger.info(investigator.getName() + " could not find " + vm);
+                        }
                     }
+                } finally {
+                    cancelInvestigations(results);
                 }
 
                 boolean fenced = false;
@@ -782,6 +900,11 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
         work.setTimesTried(work.getTimesTried() + 1);
         work.setServerId(null);
         work.setDateTaken(null);
+
+        final long timeToTry = nextTime << 10;
+        if (timeToTry < _nextTimeToTry) {
+            _nextTimeToTry = timeToTry;
+        }
     }
 
     private long getRescheduleTime(WorkType workType) {
@@ -856,9 +979,19 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
             xmlParams);
 
         final int count = HAWorkers.value();
-        _workers = new WorkerThread[count];
-        for (int i = 0; i < _workers.length; i++) {
-            _workers[i] = new WorkerThread("HA-Worker-" + i);
+        _workerCount = count;
+        _workerPool = Executors.newFixedThreadPool(count, new NamedThreadFactory("HA-Worker"));
+        _dispatcher = new WorkDispatcher("HA-Dispatcher");
+        // investigations the pool has no thread for are run by the worker waiting for them
+        _investigatorPool = new ThreadPoolExecutor(0, count * Math.max(1, investigators == null ? 0 : investigators.size()), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory("HA-Investigator"), new ThreadPoolExecutor.DiscardPolicy());
+        // what was found out about a host is stale once its status changes
+        Status.getStateMachine().registerListener(_hostInvestigations);
+
+        try {
+            JmxUtil.registerMBean("HighAvailabilityManager", "HighAvailabilityManagerImpl", _mBean);
+        } catch (Exception e) {
+            s_logger.error("Failed to register MBean", e);
         }
 
         _forceHA = ForceHA.value();
@@ -891,9 +1024,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
     public boolean start() {
         _stopped = false;
 
-        for (final WorkerThread thread : _workers) {
-            thread.start();
-        }
+        _dispatcher.start();
 
         _executor.scheduleAtFixedRate(new CleanupTask(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
 
@@ -905,12 +1036,48 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
         _stopped = true;
 
         wakeupWorkers();
+        // the dispatcher has to be done handing work to the pool before the pool goes
+        try {
+            _dispatcher.join(DISPATCHER_STOP_TIMEOUT);
+        } catch (final InterruptedException e) {
+            s_logger.debug("[ignored] interrupted while waiting for the HA dispatcher to stop");
+        }
+        releaseQueuedWork();
 
+        _workerPool.shutdown();
+        _investigatorPool.shutdown();
         _executor.shutdown();
 
         return true;
     }
 
+    /**
+     * Gives the work taken from the database but not handed to a worker back, so other management
+     * servers can take it.
+     */
+    protected void releaseQueuedWork() {
+        for (final HaWorkVO work : _workQueue.drain()) {
+            try {
+                _haDao.releaseWorkItem(work.getId(), _serverId);
+            } catch (final Exception e) {
+                s_logger.warn("Unable to release HA work " + work.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the hosts of the clusters that have as much work as they may have processed at the same time.
+     */
+    protected Set<Long> getHostsOfClustersAtBudget(final Set<Long> clusterIds) {
+        final Set<Long> hostIds = new HashSet<Long>();
+        for (final Long clusterId : clusterIds) {
+            for (final HostVO host : _hostDao.findByClusterId(clusterId)) {
+                hostIds.add(host.getId());
+            }
+        }
+        return hostIds;
+    }
+
     protected class CleanupTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -924,8 +1091,17 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
         }
     }
 
-    protected class WorkerThread extends Thread {
-        public WorkerThread(String name) {
+    /**
+     * Takes work from the database into the work queue and hands it over to
+     * the worker pool.  No more work is taken than there are free workers, and
+     * none for the hosts of a cluster at its budget, so work this server can't
+     * process now stays available to the other management servers.  The
+     * database is only checked again when woken up, when a worker is done,
+     * when some work is due to be retried or every time.to.sleep seconds
+     * otherwise.
+     */
+    protected class WorkDispatcher extends Thread {
+        public WorkDispatcher(String name) {
             super(name);
         }
 
@@ -944,37 +1120,106 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
         }
 
         private void runWithContext() {
-            HaWorkVO work = null;
             try {
                 s_logger.trace("Checking the database for work");
-                work = _haDao.take(_serverId);
-                if (work == null) {
-                    try {
-                        synchronized (this) {
-                            wait(_timeToSleep);
+                final int maxRunningPerCluster = HAWorkersPerCluster.value();
+                Set<Long> clustersAtBudget = _workQueue.getClustersAtBudget(maxRunningPerCluster);
+                final Set<Long> excludedHostIds = getHostsOfClustersAtBudget(clustersAtBudget);
+                while (!_stopped && _workQueue.getQueuedCount() + _workQueue.getRunningCount() < _workerCount) {
+                    final HaWorkVO work = _haDao.take(_serverId, excludedHostIds);
+                    if (work == null) {
+                        break;
+                    }
+                    final Long clusterId = getClusterId(work);
+                    _workQueue.add(work, clusterId);
+                    if (clusterId != null && !clustersAtBudget.contains(clusterId)) {
+                        clustersAtBudget = _workQueue.getClustersAtBudget(maxRunningPerCluster);
+                        if (clustersAtBudget.contains(clusterId)) {
+                            excludedHostIds.addAll(getHostsOfClustersAtBudget(Collections.singleton(clusterId)));
                         }
-                        return;
-                    } catch (final InterruptedException e) {
-                        s_logger.info("Interrupted");
+                    }
+                }
+
+                HaWorkVO work;
+                while (!_stopped && (work = _workQueue.poll(_workerCount, maxRunningPerCluster)) != null) {
+                    try {
+                        _workerPool.execute(new WorkTask(work));
+                    } catch (final RejectedExecutionException e) {
+                        _workQueue.done(work);
+                        _haDao.releaseWorkItem(work.getId(), _serverId);
+                        break;
+                    }
+                }
+            } catch (final Throwable th) {
+                s_logger.error("Caught this throwable, ", th);
+            }
+
+            try {
+                waitForWork();
+            } catch (final InterruptedException e) {
+                s_logger.info("Interrupted");
+            }
+        }
+
+        private void waitForWork() throws InterruptedException {
+            synchronized (_dispatcherLock) {
+                if (_wakeupPending) {
+                    _wakeupPending = false;
+                    return;
+                }
+                final long now = System.currentTimeMillis();
+                long timeToSleep = _timeToSleep;
+                if (now - _lastWakeup < WAKEUP_RECHECK_WINDOW) {
+                    timeToSleep = Math.min(timeToSleep, SECONDS_TO_MILLISECONDS_FACTOR);
+                }
+                final long nextTimeToTry = _nextTimeToTry;
+                if (nextTimeToTry != Long.MAX_VALUE) {
+                    if (nextTimeToTry <= now) {
+                        _nextTimeToTry = Long.MAX_VALUE;
                         return;
                     }
+                    timeToSleep = Math.min(timeToSleep, nextTimeToTry - now);
+                }
+                if (!_stopped) {
+                    _dispatcherLock.wait(timeToSleep);
                 }
+                _wakeupPending = false;
+            }
+        }
+    }
+
+    protected class WorkTask extends ManagedContextRunnable {
+        private final HaWorkVO _work;
 
-                NDC.push("work-" + work.getId());
-                s_logger.info("Processing work " + work);
-                processWork(work);
+        public WorkTask(HaWorkVO work) {
+            _work = work;
+        }
+
+        @Override
+        protected void runInContext() {
+            NDC.push("work-" + _work.getId());
+            try {
+                s_logger.info("Processing work " + _work);
+                processWork(_work);
+                if (_work.getWorkType() == WorkType.HA && Step.Done.equals(_work.getStep()) && _work.getTimesTried() < _maxRetries && _work.getCreated() != null) {
+                    _mBean.recordTimeToRestart(System.currentTimeMillis() - _work.getCreated().getTime());
+                }
             } catch (final Throwable th) {
                 s_logger.error("Caught this throwable, ", th);
             } finally {
-                if (work != null) {
-                    NDC.pop();
+                NDC.pop();
+                _workQueue.done(_work);
+                synchronized (_dispatcherLock) {
+                    _wakeupPending = true;
+                    _dispatcherLock.notifyAll();
                 }
             }
         }
+    }
 
-        public synchronized void wakup() {
-            notifyAll();
-        }
+    private Long getClusterId(HaWorkVO work) {
+        final HostVO host = _hostDao.findById(work.getHostId());
+        return host == null ? null : host.getClusterId();
     }
 
     @Override
@@ -1039,6 +1284,6 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements Configur
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey[] {TimeBetweenCleanup, MigrationMaxRetries, TimeToSleep, TimeBetweenFailures,
             StopRetryInterval, RestartRetryInterval, MigrateRetryInterval, InvestigateRetryInterval,
-            HAWorkers, ForceHA};
+            HAWorkers, HAWorkersPerCluster, InvestigationCacheTtl, ForceHA};
     }
 }
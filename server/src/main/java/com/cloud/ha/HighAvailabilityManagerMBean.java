@@ -0,0 +1,41 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+/**
+ * Allows JMX access
+ *
+ */
+public interface HighAvailabilityManagerMBean {
+    int getQueuedWorkCount();
+
+    int getRunningWorkCount();
+
+    long getRestartedVmCount();
+
+    /**
+     * Times to restart are in milliseconds, from the time the HA work is
+     * scheduled to the time it is done, over the last restarted vms.
+     */
+    long getTimeToRestart50thPercentile();
+
+    long getTimeToRestart90thPercentile();
+
+    long getTimeToRestart99thPercentile();
+
+    long getTimeToRestartMax();
+}
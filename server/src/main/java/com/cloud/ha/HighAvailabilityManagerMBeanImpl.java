@@ -0,0 +1,86 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.Arrays;
+
+import javax.management.StandardMBean;
+
+public class HighAvailabilityManagerMBeanImpl extends StandardMBean implements HighAvailabilityManagerMBean {
+    // number of the last times to restart the percentiles are computed on
+    protected static final int SAMPLES = 1024;
+
+    private final HaWorkQueue _workQueue;
+    private final long[] _timesToRestart = new long[SAMPLES];
+    private long _restarted;
+
+    protected HighAvailabilityManagerMBeanImpl(HaWorkQueue workQueue) {
+        super(HighAvailabilityManagerMBean.class, false);
+        _workQueue = workQueue;
+    }
+
+    public synchronized void recordTimeToRestart(long millis) {
+        _timesToRestart[(int)(_restarted % SAMPLES)] = millis;
+        _restarted++;
+    }
+
+    protected synchronized long getTimeToRestartPercentile(int percentile) {
+        final int count = (int)Math.min(_restarted, SAMPLES);
+        if (count == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(_timesToRestart, count);
+        Arrays.sort(sorted);
+        final int rank = (int)Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    @Override
+    public int getQueuedWorkCount() {
+        return _workQueue.getQueuedCount();
+    }
+
+    @Override
+    public int getRunningWorkCount() {
+        return _workQueue.getRunningCount();
+    }
+
+    @Override
+    public synchronized long getRestartedVmCount() {
+        return _restarted;
+    }
+
+    @Override
+    public long getTimeToRestart50thPercentile() {
+        return getTimeToRestartPercentile(50);
+    }
+
+    @Override
+    public long getTimeToRestart90thPercentile() {
+        return getTimeToRestartPercentile(90);
+    }
+
+    @Override
+    public long getTimeToRestart99thPercentile() {
+        return getTimeToRestartPercentile(99);
+    }
+
+    @Override
+    public long getTimeToRestartMax() {
+        return getTimeToRestartPercentile(100);
+    }
+}
@@ -0,0 +1,116 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.host.Host;
+import com.cloud.host.Status;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.fsm.StateListener;
+import com.cloud.utils.fsm.StateMachine2;
+
+/**
+ * HostInvestigationCache keeps the status a host has been investigated to be
+ * in for a while, so that the vms of a failed host do not each have their
+ * host investigated again.  Callers investigating a host that is already being
+ * investigated wait for that investigation instead of starting another one.
+ * Inconclusive (null) results are kept as well, a host found to be Down is
+ * only reported to the callers waiting for that investigation.  What is kept
+ * for a host is dropped as soon as its status changes or its agent connects.
+ * One instance is shared by the HA manager and the investigators.
+ */
+public class HostInvestigationCache implements StateListener<Status, Status.Event, Host> {
+    private static final Logger s_logger = Logger.getLogger(HostInvestigationCache.class);
+
+    private static class Entry {
+        final FutureTask<Status> task;
+        volatile long expires = Long.MAX_VALUE;
+
+        Entry(Callable<Status> investigation) {
+            task = new FutureTask<Status>(investigation);
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> _entries = new ConcurrentHashMap<Long, Entry>();
+
+    /**
+     * @param ttl milliseconds the result is kept for, 0 to always investigate.
+     * @param investigation finds out the status of the host.
+     */
+    public Status get(long hostId, long ttl, Callable<Status> investigation) {
+        if (ttl <= 0) {
+            final Entry entry = new Entry(investigation);
+            entry.task.run();
+            return await(hostId, entry);
+        }
+        while (true) {
+            final Entry entry = _entries.get(hostId);
+            if (entry != null && entry.expires > System.currentTimeMillis()) {
+                return await(hostId, entry);
+            }
+            final Entry created = new Entry(investigation);
+            final boolean installed = entry == null ? _entries.putIfAbsent(hostId, created) == null : _entries.replace(hostId, entry, created);
+            if (!installed) {
+                continue;
+            }
+            created.task.run();
+            final Status status = await(hostId, created);
+            created.expires = status == Status.Down ? 0 : System.currentTimeMillis() + ttl;
+            return status;
+        }
+    }
+
+    public void invalidate(long hostId) {
+        _entries.remove(hostId);
+    }
+
+    @Override
+    public boolean preStateTransitionEvent(Status oldState, Status.Event event, Status newState, Host host, boolean status, Object opaque) {
+        return true;
+    }
+
+    @Override
+    public boolean postStateTransitionEvent(StateMachine2.Transition<Status, Status.Event> transition, Host host, boolean status, Object opaque) {
+        if (status && (transition.getCurrentState() != transition.getToState() || transition.getEvent() == Status.Event.AgentConnected)) {
+            invalidate(host.getId());
+        }
+        return true;
+    }
+
+    private Status await(long hostId, Entry entry) {
+        try {
+            return entry.task.get();
+        } catch (InterruptedException e) {
+            s_logger.debug("Interrupted while waiting for the investigation of host " + hostId);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // failures are not kept, the next caller investigates again
+            _entries.remove(hostId, entry);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new CloudRuntimeException("Unable to investigate host " + hostId, e.getCause());
+        }
+    }
+}
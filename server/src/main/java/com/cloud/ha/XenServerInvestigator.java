@@ -17,6 +17,7 @@
 package com.cloud.ha;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.inject.Inject;
 
@@ -38,6 +39,8 @@ import com.cloud.vm.VirtualMachine;
 public class XenServerInvestigator extends AdapterBase implements Investigator {
     private final static Logger s_logger = Logger.getLogger(XenServerInvestigator.class);
     @Inject
+    HostInvestigationCache _hostInvestigations;
+    @Inject
     HostDao _hostDao;
     @Inject
     AgentManager _agentMgr;
@@ -75,8 +78,17 @@ public class XenServerInvestigator extends AdapterBase implements Investigator {
     }
 
     @Override
-    public boolean isVmAlive(VirtualMachine vm, Host host) throws UnknownVM {
-        Status status = isAgentAlive(host);
+    public boolean isVmAlive(VirtualMachine vm, final Host host) throws UnknownVM {
+        if (host.getHypervisorType() != HypervisorType.XenServer) {
+            throw new UnknownVM();
+        }
+        // the vms of a host are investigated one after another, the host only needs to be investigated once
+        Status status = _hostInvestigations.get(host.getId(), HighAvailabilityManager.InvestigationCacheTtl.value() * 1000L, new Callable<Status>() {
+            @Override
+            public Status call() {
+                return isAgentAlive(host);
+            }
+        });
         if (status == null) {
             throw new UnknownVM();
         }
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.ha.dao;
 
+import java.util.Collection;
 import java.util.List;
 
 import com.cloud.ha.HaWorkVO;
@@ -32,6 +33,15 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
      */
     HaWorkVO take(long serverId);
 
+    /**
+     * Takes an available HA work item which is not about one of the given hosts.
+     *
+     * @param serverId server that is taking this.
+     * @param excludedHostIds hosts whose work is left to later or to other servers.
+     * @return WorkVO if there's one to work on; null if none.
+     */
+    HaWorkVO take(long serverId, Collection<Long> excludedHostIds);
+
     /**
      * Finds all the work items related to this instance.
      *
@@ -65,6 +75,13 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
 
     int releaseWorkItems(long nodeId);
 
+    /**
+     * Gives a work item taken by the server back, so any server can take it.
+     *
+     * @return false if the server no longer has it.
+     */
+    boolean releaseWorkItem(long workId, long nodeId);
+
     /**
      * Look for HA work that has been scheduled for a vm since a certain work id.
      *
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.ha.dao;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -39,6 +41,7 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
     private static final Logger s_logger = Logger.getLogger(HighAvailabilityDaoImpl.class);
 
     private final SearchBuilder<HaWorkVO> TBASearch;
+    private final SearchBuilder<HaWorkVO> TBAExcludingHostsSearch;
     private final SearchBuilder<HaWorkVO> PreviousInstanceSearch;
     private final SearchBuilder<HaWorkVO> UntakenMigrationSearch;
     private final SearchBuilder<HaWorkVO> CleanupSearch;
@@ -65,6 +68,16 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         TBASearch.and("step", TBASearch.entity().getStep(), Op.NIN);
         TBASearch.done();
 
+        TBAExcludingHostsSearch = createSearchBuilder();
+        TBAExcludingHostsSearch.and("server", TBAExcludingHostsSearch.entity().getServerId(), Op.NULL);
+        TBAExcludingHostsSearch.and("taken", TBAExcludingHostsSearch.entity().getDateTaken(), Op.NULL);
+        TBAExcludingHostsSearch.and("time", TBAExcludingHostsSearch.entity().getTimeToTry(), Op.LTEQ);
+        TBAExcludingHostsSearch.and("step", TBAExcludingHostsSearch.entity().getStep(), Op.NIN);
+        TBAExcludingHostsSearch.and().op("nohost", TBAExcludingHostsSearch.entity().getHostId(), Op.NULL);
+        TBAExcludingHostsSearch.or("hosts", TBAExcludingHostsSearch.entity().getHostId(), Op.NIN);
+        TBAExcludingHostsSearch.cp();
+        TBAExcludingHostsSearch.done();
+
         PreviousInstanceSearch = createSearchBuilder();
         PreviousInstanceSearch.and("instance", PreviousInstanceSearch.entity().getInstanceId(), Op.EQ);
         PreviousInstanceSearch.done();
@@ -93,6 +106,7 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         ReleaseSearch.and("server", ReleaseSearch.entity().getServerId(), Op.EQ);
         ReleaseSearch.and("step", ReleaseSearch.entity().getStep(), Op.NIN);
         ReleaseSearch.and("taken", ReleaseSearch.entity().getDateTaken(), Op.NNULL);
+        ReleaseSearch.and("id", ReleaseSearch.entity().getId(), Op.EQ);
         ReleaseSearch.done();
 
         FutureHaWorkSearch = createSearchBuilder();
@@ -163,9 +177,20 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
 
     @Override
     public HaWorkVO take(final long serverId) {
+        return take(serverId, Collections.<Long>emptyList());
+    }
+
+    @Override
+    public HaWorkVO take(final long serverId, final Collection<Long> excludedHostIds) {
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
         try {
-            final SearchCriteria<HaWorkVO> sc = TBASearch.create();
+            final SearchCriteria<HaWorkVO> sc;
+            if (excludedHostIds.isEmpty()) {
+                sc = TBASearch.create();
+            } else {
+                sc = TBAExcludingHostsSearch.create();
+                sc.setParameters("hosts", excludedHostIds.toArray());
+            }
             sc.setParameters("time", System.currentTimeMillis() >> 10);
             sc.setParameters("step", Step.Done, Step.Cancelled);
 
@@ -260,4 +285,18 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
 
         return update(vo, sc);
     }
+
+    @Override
+    public boolean releaseWorkItem(long workId, long nodeId) {
+        SearchCriteria<HaWorkVO> sc = ReleaseSearch.create();
+        sc.setParameters("server", nodeId);
+        sc.setParameters("step", Step.Done, Step.Cancelled, Step.Error);
+        sc.setParameters("id", workId);
+
+        HaWorkVO vo = createForUpdate();
+        vo.setDateTaken(null);
+        vo.setServerId(null);
+
+        return update(vo, sc) > 0;
+    }
 }
\ No newline at end of file
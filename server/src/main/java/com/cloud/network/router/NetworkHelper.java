@@ -46,6 +46,28 @@ public interface NetworkHelper {
     public abstract boolean sendCommandsToRouter(VirtualRouter router,
             Commands cmds) throws AgentUnavailableException, ResourceUnavailableException;
 
+    /**
+     * Sends the commands of several routers at once through the agent
+     * pipelines, the commands of the routers running on the same host sharing
+     * requests, and then waits for all the answers.  Unlike a loop over
+     * sendCommandsToRouter(), a router failing does not keep the others from
+     * getting their commands, the first exception being thrown once all the
+     * answers are in.
+     * The rules applied through the network topologies are still sent router
+     * by router: the network elements apply them one router at a time and
+     * handle a disconnected router before going on with the next one.
+     * @return true if the commands succeeded on every router.
+     */
+    public abstract boolean sendCommandsToRouters(Map<? extends VirtualRouter, Commands> cmdsByRouter)
+            throws AgentUnavailableException, ResourceUnavailableException;
+
+    /**
+     * Has the next commands sent to the router all sent, including those
+     * whose configuration was already applied on it, by whichever management
+     * server sends them.
+     */
+    public abstract void forgetRouterConfig(long routerId);
+
     public abstract void handleSingleWorkingRedundantRouter(
             List<? extends VirtualRouter> connectedRouters,
             List<? extends VirtualRouter> disconnectedRouters, String reason)
@@ -23,6 +23,10 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -38,6 +42,7 @@ import org.apache.cloudstack.utils.CloudStackVersion;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
 import com.cloud.agent.api.to.NicTO;
 import com.cloud.agent.manager.Commands;
 import com.cloud.alert.AlertManager;
@@ -158,6 +163,9 @@ public class NetworkHelperImpl implements NetworkHelper {
     VpcVirtualNetworkApplianceManager _vpcRouterMgr;
 
     protected final Map<HypervisorType, ConfigKey<String>> hypervisorsMap = new HashMap<>();
+    protected final RouterConfigTracker _configTracker = new RouterConfigTracker();
+    // whether the generations of configuration of the routers were moved since router.config.diff.enabled was last seen set
+    private volatile boolean _configGenerationsBumped;
 
     @PostConstruct
     protected void setupHypervisorsMap() {
@@ -169,22 +177,190 @@ public class NetworkHelperImpl implements NetworkHelper {
         hypervisorsMap.put(HypervisorType.Ovm3, VirtualNetworkApplianceManager.RouterTemplateOvm3);
     }
 
+    /**
+     * Commands being sent to a router: the commands to send once those already
+     * applied on it have been dropped, and what is needed to record the answers.
+     */
+    private static class RouterSend {
+        final VirtualRouter router;
+        final Commands cmds;
+        final Commands toSend;
+        final RouterConfigTracker.Update update;
+        final long generation;
+
+        RouterSend(final VirtualRouter router, final Commands cmds, final Commands toSend, final RouterConfigTracker.Update update, final long generation) {
+            this.router = router;
+            this.cmds = cmds;
+            this.toSend = toSend;
+            this.update = update;
+            this.generation = generation;
+        }
+    }
+
     @Override
     public boolean sendCommandsToRouter(final VirtualRouter router, final Commands cmds) throws AgentUnavailableException, ResourceUnavailableException {
+        final RouterSend send = prepareSend(router, cmds);
+        if (send.toSend.size() == 0) {
+            return completeSend(send, new Answer[0]);
+        }
+        final Answer[] answers;
+        try {
+            answers = send(router, send.toSend);
+        } catch (final AgentUnavailableException | RuntimeException e) {
+            failSend(send);
+            throw e;
+        }
+        return completeSend(send, answers);
+    }
+
+    @Override
+    public boolean sendCommandsToRouters(final Map<? extends VirtualRouter, Commands> cmdsByRouter) throws AgentUnavailableException, ResourceUnavailableException {
+        final Map<RouterSend, List<Future<Answer>>> pending = new LinkedHashMap<RouterSend, List<Future<Answer>>>();
+        final List<RouterSend> sequential = new ArrayList<RouterSend>();
+        boolean result = true;
+        Exception failure = null;
+        // every command is submitted before any answer is waited for, so that the routers are reprogrammed at the same time
+        for (final Map.Entry<? extends VirtualRouter, Commands> entry : cmdsByRouter.entrySet()) {
+            final RouterSend send;
+            try {
+                send = prepareSend(entry.getKey(), entry.getValue());
+            } catch (final ResourceUnavailableException e) {
+                failure = failure == null ? e : failure;
+                continue;
+            }
+            if (send.toSend.size() == 0) {
+                result = completeSend(send, new Answer[0]) && result;
+            } else if (send.toSend.stopOnError() && send.toSend.size() > 1) {
+                // the pipelined requests do not stop on error
+                sequential.add(send);
+            } else {
+                try {
+                    pending.put(send, _agentMgr.sendPipelined(send.router.getHostId(), send.toSend));
+                } catch (final AgentUnavailableException | RuntimeException e) {
+                    failSend(send);
+                    failure = failure == null ? e : failure;
+                }
+            }
+        }
+        for (final RouterSend send : sequential) {
+            try {
+                result = completeSend(send, send(send.router, send.toSend)) && result;
+            } catch (final AgentUnavailableException | RuntimeException e) {
+                failSend(send);
+                failure = failure == null ? e : failure;
+            }
+        }
+        for (final Map.Entry<RouterSend, List<Future<Answer>>> entry : pending.entrySet()) {
+            final RouterSend send = entry.getKey();
+            final Answer[] answers;
+            try {
+                answers = getAnswers(send, entry.getValue());
+            } catch (final AgentUnavailableException e) {
+                failSend(send);
+                failure = failure == null ? e : failure;
+                continue;
+            }
+            send.toSend.setAnswers(answers);
+            result = completeSend(send, answers) && result;
+        }
+
+        if (failure instanceof AgentUnavailableException) {
+            throw (AgentUnavailableException)failure;
+        } else if (failure instanceof ResourceUnavailableException) {
+            throw (ResourceUnavailableException)failure;
+        } else if (failure != null) {
+            throw (RuntimeException)failure;
+        }
+        return result;
+    }
+
+    /**
+     * Waits for the answers of pipelined commands, no longer than the commands would wait for them if they were sent
+     * on their own.
+     */
+    private Answer[] getAnswers(final RouterSend send, final List<Future<Answer>> futures) throws AgentUnavailableException {
+        final Long hostId = send.router.getHostId();
+        final Command[] cmds = send.toSend.toCommands();
+        final Answer[] answers = new Answer[futures.size()];
+        for (int i = 0; i < answers.length; i++) {
+            final int timeout = cmds[i].getWait() > 0 ? cmds[i].getWait() : AgentManager.Wait.value();
+            try {
+                answers[i] = futures.get(i).get(timeout, TimeUnit.SECONDS);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof AgentUnavailableException) {
+                    throw (AgentUnavailableException)e.getCause();
+                }
+                s_logger.warn("Timed Out", e.getCause());
+                throw new AgentUnavailableException("Unable to send commands to virtual router ", hostId, e.getCause());
+            } catch (final TimeoutException e) {
+                s_logger.warn("Timed out waiting for the answers of virtual router " + send.router.getInstanceName());
+                throw new AgentUnavailableException("Unable to send commands to virtual router ", hostId, e);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AgentUnavailableException("Interrupted while waiting for the answers of virtual router ", hostId, e);
+            }
+        }
+        return answers;
+    }
+
+    private RouterSend prepareSend(final VirtualRouter router, final Commands cmds) throws ResourceUnavailableException {
         if (!checkRouterVersion(router)) {
             s_logger.debug("Router requires upgrade. Unable to send command to router:" + router.getId() + ", router template version : " + router.getTemplateVersion()
                     + ", minimal required version : " + NetworkOrchestrationService.MinVRVersion.valueIn(router.getDataCenterId()));
             throw new ResourceUnavailableException("Unable to send command. Router requires upgrade", VirtualRouter.class, router.getId());
         }
-        Answer[] answers = null;
+        if (!isConfigDiffEnabled()) {
+            return new RouterSend(router, cmds, cmds, null, 0);
+        }
+
+        final long generation = _routerDao.getConfigGeneration(router.getId());
+        final RouterConfigTracker.Update update = _configTracker.prepare(router.getId(), generation, cmds);
+        if (update.getSkippedCount() > 0 && s_logger.isDebugEnabled()) {
+            s_logger.debug("Skipping " + update.getSkippedCount() + " of " + cmds.size() + " commands already applied on router " + router.getInstanceName());
+        }
+        return new RouterSend(router, cmds, update.getCommandsToSend(), update, generation);
+    }
+
+    private boolean completeSend(final RouterSend send, final Answer[] answers) {
+        final long routerId = send.router.getId();
+        if (send.update == null) {
+            try {
+                return isSuccessful(answers, send.cmds.size());
+            } finally {
+                forgetRouterConfig(routerId);
+            }
+        }
+        if (send.toSend.size() == 0) {
+            return _configTracker.complete(send.update, answers, send.generation);
+        }
+        // only this send changed the router since the generation was read if it moves it to the next one
+        if (_routerDao.updateConfigGeneration(routerId, send.generation)) {
+            return _configTracker.complete(send.update, answers, send.generation + 1);
+        }
+        _routerDao.bumpConfigGeneration(routerId);
+        return _configTracker.complete(send.update, answers, null);
+    }
+
+    private void failSend(final RouterSend send) {
+        if (send.update == null) {
+            forgetRouterConfig(send.router.getId());
+            return;
+        }
+        _routerDao.bumpConfigGeneration(send.router.getId());
+        _configTracker.complete(send.update, null, null);
+    }
+
+    private Answer[] send(final VirtualRouter router, final Commands cmds) throws AgentUnavailableException {
         try {
-            answers = _agentMgr.send(router.getHostId(), cmds);
+            return _agentMgr.send(router.getHostId(), cmds);
         } catch (final OperationTimedoutException e) {
             s_logger.warn("Timed Out", e);
             throw new AgentUnavailableException("Unable to send commands to virtual router ", router.getHostId(), e);
         }
+    }
 
-        if (answers == null || answers.length != cmds.size()) {
+    private static boolean isSuccessful(final Answer[] answers, final int count) {
+        if (answers == null || answers.length != count) {
             return false;
         }
 
@@ -199,6 +375,34 @@ public class NetworkHelperImpl implements NetworkHelper {
         return result;
     }
 
+    @Override
+    public void forgetRouterConfig(final long routerId) {
+        if (!isConfigDiffEnabled()) {
+            return;
+        }
+        _routerDao.bumpConfigGeneration(routerId);
+        _configTracker.forget(routerId);
+    }
+
+    /**
+     * While router.config.diff.enabled is not set, nothing is tracked and the
+     * generations of configuration of the routers are left alone.  They are
+     * instead moved once for all the routers when the setting is first seen
+     * unset, so that nothing recorded before is trusted once it is set again.
+     */
+    private boolean isConfigDiffEnabled() {
+        if (VirtualNetworkApplianceManager.RouterConfigDiffEnabled.value()) {
+            _configGenerationsBumped = false;
+            return true;
+        }
+        if (!_configGenerationsBumped) {
+            _routerDao.bumpAllConfigGenerations();
+            _configTracker.forgetAll();
+            _configGenerationsBumped = true;
+        }
+        return false;
+    }
+
     @Override
     public void handleSingleWorkingRedundantRouter(final List<? extends VirtualRouter> connectedRouters, final List<? extends VirtualRouter> disconnectedRouters,
             final String reason) throws ResourceUnavailableException {
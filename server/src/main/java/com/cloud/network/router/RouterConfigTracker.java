@@ -0,0 +1,299 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.DhcpEntryCommand;
+import com.cloud.agent.api.routing.LoadBalancerConfigCommand;
+import com.cloud.agent.api.routing.VmDataCommand;
+import com.cloud.agent.manager.Commands;
+import com.cloud.serializer.GsonHelper;
+
+/**
+ * RouterConfigTracker remembers, per router, a fingerprint of the last
+ * configuration successfully applied for each piece of router state that a
+ * single command fully describes: the dhcp entry and the metadata of a vm,
+ * and the load balancer configuration.  Applying the same configuration again
+ * changes nothing on the router, so such commands are dropped before they
+ * reach the agent and only the entries that changed are sent.
+ *
+ * The fingerprints are only known to the management server that sent the
+ * commands, while any management server may configure the router.  They are
+ * therefore kept against the generation of configuration of the router shared
+ * in the database, which every management server bumps each time it sends
+ * commands to the router and each time the router changes state, and which is
+ * bumped for every router when the tracking gets disabled.  Nothing is
+ * skipped for a router whose generation is not the one the fingerprints were
+ * recorded at, and the fingerprints of a send are only recorded when the
+ * generation moved from the one read before the send to the next one, that is
+ * when nothing else changed the router in between.
+ *
+ * Firewall rules are not tracked: a command only carries the rules added or
+ * revoked for an ip or a network, which the router merges into iptables that
+ * the ip association, static nat and port forwarding commands change as well.
+ *
+ * The state of a router is also dropped as soon as a command sent to it
+ * fails.  A command whose send overlapped another send of the same entry is
+ * not recorded, as the order in which the router applied them is unknown.
+ */
+public class RouterConfigTracker {
+
+    protected static class Entry {
+        String fingerprint;
+        long sends;
+        int inFlight;
+    }
+
+    protected static class RouterState {
+        long generation;
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+        RouterState(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The commands of a Commands that are to be sent to a router, as returned
+     * by prepare() and to be given back to complete() once they have been sent.
+     */
+    public static class Update {
+        final long routerId;
+        final long generation;
+        final RouterState state;
+        final Commands commands;
+        final Commands toSend;
+        final int[] indexes;
+        final String[] keys;
+        final String[] fingerprints;
+        final long[] sends;
+
+        Update(long routerId, long generation, RouterState state, Commands commands, Commands toSend, int[] indexes, String[] keys, String[] fingerprints, long[] sends) {
+            this.routerId = routerId;
+            this.generation = generation;
+            this.state = state;
+            this.commands = commands;
+            this.toSend = toSend;
+            this.indexes = indexes;
+            this.keys = keys;
+            this.fingerprints = fingerprints;
+            this.sends = sends;
+        }
+
+        /**
+         * @return the commands to send, empty if the router already has all of them applied.
+         */
+        public Commands getCommandsToSend() {
+            return toSend;
+        }
+
+        public int getSkippedCount() {
+            return commands.size() - toSend.size();
+        }
+    }
+
+    private final Map<Long, RouterState> _routers = new ConcurrentHashMap<Long, RouterState>();
+
+    /**
+     * @return the router state the command fully describes, null if the command is not tracked.
+     */
+    public static String getKey(Command cmd) {
+        if (cmd instanceof DhcpEntryCommand) {
+            return "dhcp:" + ((DhcpEntryCommand)cmd).getVmMac();
+        } else if (cmd instanceof VmDataCommand) {
+            return "vmdata:" + ((VmDataCommand)cmd).getVmIpAddress();
+        } else if (cmd instanceof LoadBalancerConfigCommand) {
+            return "lb";
+        }
+        return null;
+    }
+
+    public static String getFingerprint(Command cmd) {
+        return DigestUtils.md5Hex(GsonHelper.getGson().toJson(cmd));
+    }
+
+    /**
+     * Drops the commands the router already has applied.  Nothing is dropped
+     * from commands opening or cancelling an aggregated execution, which
+     * replays the whole configuration of the router.
+     * @param generation the generation of configuration of the router, as read before sending the commands.
+     */
+    public Update prepare(long routerId, long generation, Commands cmds) {
+        final Command[] commands = cmds.toCommands();
+        for (final Command cmd : commands) {
+            if (cmd instanceof AggregationControlCommand && ((AggregationControlCommand)cmd).getAction() != AggregationControlCommand.Action.Finish) {
+                forget(routerId);
+                return new Update(routerId, generation, null, cmds, cmds, null, null, null, null);
+            }
+        }
+
+        final RouterState state = getState(routerId, generation);
+        final Commands toSend = new Commands(cmds.getErrorHandling());
+        final List<Integer> indexes = new ArrayList<Integer>();
+        final String[] keys = new String[commands.length];
+        final String[] fingerprints = new String[commands.length];
+        final long[] sends = new long[commands.length];
+        synchronized (state) {
+            for (int i = 0; i < commands.length; i++) {
+                keys[i] = getKey(commands[i]);
+                if (keys[i] != null) {
+                    fingerprints[i] = getFingerprint(commands[i]);
+                    Entry entry = state.entries.get(keys[i]);
+                    if (entry == null) {
+                        entry = new Entry();
+                        state.entries.put(keys[i], entry);
+                    } else if (entry.inFlight == 0 && fingerprints[i].equals(entry.fingerprint)) {
+                        continue;
+                    }
+                    entry.fingerprint = null;
+                    entry.inFlight++;
+                    sends[i] = ++entry.sends;
+                }
+                toSend.addCommand(commands[i]);
+                indexes.add(i);
+            }
+        }
+
+        final int[] sent = new int[indexes.size()];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = indexes.get(i);
+        }
+        return new Update(routerId, generation, state, cmds, sent.length == commands.length ? cmds : toSend, sent, keys, fingerprints, sends);
+    }
+
+    /**
+     * Records the answers of the commands that have been sent and sets the
+     * answers of all the commands, those dropped included, on the original
+     * Commands.
+     * @param answers the answers to getCommandsToSend(), null if they could not be sent.
+     * @param generation the generation of configuration of the router the
+     * send moved it to, null if another change to the router may have got in
+     * since prepare(), in which case nothing is recorded.
+     * @return true if all the commands have been applied.
+     */
+    public boolean complete(Update update, Answer[] answers, Long generation) {
+        final boolean applied = answers != null && answers.length == update.toSend.size() && isSuccessful(answers);
+        if (update.state == null) {
+            if (!applied) {
+                forget(update.routerId);
+            }
+            update.commands.setAnswers(answers);
+            return applied;
+        }
+
+        final boolean current;
+        synchronized (update.state) {
+            current = applied && generation != null && update.state.generation == update.generation;
+            if (current) {
+                update.state.generation = generation;
+            }
+            for (final int i : update.indexes) {
+                if (update.keys[i] == null) {
+                    continue;
+                }
+                final Entry entry = update.state.entries.get(update.keys[i]);
+                entry.inFlight--;
+                if (current && entry.inFlight == 0 && entry.sends == update.sends[i]) {
+                    entry.fingerprint = update.fingerprints[i];
+                }
+            }
+        }
+        if (!current) {
+            forget(update.routerId);
+        }
+        if (answers == null || update.getSkippedCount() == 0) {
+            update.commands.setAnswers(answers);
+            return applied;
+        }
+
+        final Command[] commands = update.commands.toCommands();
+        final Answer[] all = new Answer[commands.length];
+        for (int i = 0; i < update.indexes.length && i < answers.length; i++) {
+            all[update.indexes[i]] = answers[i];
+        }
+        final boolean[] sent = new boolean[commands.length];
+        for (final int i : update.indexes) {
+            sent[i] = true;
+        }
+        for (int i = 0; i < all.length; i++) {
+            if (!sent[i]) {
+                all[i] = new Answer(commands[i], true, "Configuration is already applied on the router");
+            }
+        }
+        update.commands.setAnswers(all);
+        return applied;
+    }
+
+    /**
+     * Drops what is known of the configuration of the router, the next
+     * commands sent to it are all sent.
+     */
+    public void forget(long routerId) {
+        _routers.remove(routerId);
+    }
+
+    public void forgetAll() {
+        _routers.clear();
+    }
+
+    /**
+     * @return the generation of configuration of the router the fingerprints
+     * known for it were recorded at, null if none are known.
+     */
+    public Long getGeneration(long routerId) {
+        final RouterState state = _routers.get(routerId);
+        if (state == null) {
+            return null;
+        }
+        synchronized (state) {
+            return state.generation;
+        }
+    }
+
+    private synchronized RouterState getState(long routerId, long generation) {
+        RouterState state = _routers.get(routerId);
+        if (state != null) {
+            synchronized (state) {
+                if (state.generation == generation) {
+                    return state;
+                }
+            }
+        }
+        state = new RouterState(generation);
+        _routers.put(routerId, state);
+        return state;
+    }
+
+    private static boolean isSuccessful(Answer[] answers) {
+        for (final Answer answer : answers) {
+            if (answer == null || !answer.getResult()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
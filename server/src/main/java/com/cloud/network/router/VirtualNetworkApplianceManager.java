@@ -111,6 +111,10 @@ public interface VirtualNetworkApplianceManager extends Manager, VirtualNetworkA
             "Advanced", "100", "Max Memory Usage threshold as % above which check is considered a failure.",
             true, ConfigKey.Scope.Zone, null);
 
+    static final ConfigKey<Boolean> RouterConfigDiffEnabled = new ConfigKey<Boolean>(Boolean.class, "router.config.diff.enabled", "Advanced", "false",
+            "If true, dhcp entries, vm metadata and load balancer configurations that are already applied on a virtual router are not sent to it again.",
+            true, ConfigKey.Scope.Global, null);
+
     public static final int DEFAULT_ROUTER_VM_RAMSIZE = 256;            // 256M
     public static final int DEFAULT_ROUTER_CPU_MHZ = 500;                // 500 MHz
     public static final boolean USE_POD_VLAN = false;
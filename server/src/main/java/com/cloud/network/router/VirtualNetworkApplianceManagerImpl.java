@@ -31,16 +31,20 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -1618,8 +1622,29 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
                 final List<DomainRouterVO> routers = _routerDao.listByStateAndManagementServer(VirtualMachine.State.Running, mgmtSrvrId);
                 s_logger.debug("Found " + routers.size() + " running routers. ");
 
+                // pipelined so that the commands to routers running on the same host are sent in one request
+                final List<Pair<DomainRouterVO, Future<Answer>>> updates = new ArrayList<Pair<DomainRouterVO, Future<Answer>>>();
                 for (final DomainRouterVO router : routers) {
-                    updateRouterHealthChecksConfig(router);
+                    final SetMonitorServiceCommand command = createRouterHealthChecksConfigCommand(router);
+                    if (command == null) {
+                        continue;
+                    }
+                    try {
+                        updates.add(new Pair<DomainRouterVO, Future<Answer>>(router, _agentMgr.sendPipelined(router.getHostId(), command)));
+                    } catch (final Exception e) {
+                        s_logger.error("Error while sending update data for health check to router: " + router.getInstanceName(), e);
+                    }
+                }
+                for (final Pair<DomainRouterVO, Future<Answer>> update : updates) {
+                    Answer answer = null;
+                    try {
+                        answer = update.second().get(AgentManager.Wait.value(), TimeUnit.SECONDS);
+                    } catch (final ExecutionException e) {
+                        s_logger.error("Error while sending update data for health check to router: " + update.first().getInstanceName(), e.getCause());
+                    } catch (final TimeoutException e) {
+                        s_logger.error("Timed out sending update data for health check to router: " + update.first().getInstanceName());
+                    }
+                    processRouterHealthChecksConfigAnswer(update.first(), answer);
                 }
             } catch (final Exception ex) {
                 s_logger.error("Fail to complete the UpdateRouterHealthChecksConfigTask! ", ex);
@@ -1652,18 +1677,11 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
      * @return success of whether data was sent or not
      */
     private boolean updateRouterHealthChecksConfig(DomainRouterVO router) {
-        if (!RouterHealthChecksEnabled.value()) {
-            return false;
-        }
-
-        SetMonitorServiceCommand command = createMonitorServiceCommand(router, null,true, true);
-        String controlIP = getRouterControlIP(router);
-        if (StringUtils.isBlank(controlIP) || controlIP.equals("0.0.0.0")) {
-            s_logger.debug("Skipping update data on router " + router.getUuid() + " because controlIp is not correct.");
+        final SetMonitorServiceCommand command = createRouterHealthChecksConfigCommand(router);
+        if (command == null) {
             return false;
         }
 
-        s_logger.info("Updating data for router health checks for router " + router.getUuid());
         Answer origAnswer = null;
         try {
             origAnswer = _agentMgr.easySend(router.getHostId(), command);
@@ -1672,6 +1690,29 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
             return false;
         }
 
+        return processRouterHealthChecksConfigAnswer(router, origAnswer);
+    }
+
+    /**
+     * @return the command updating the health check config of the router, null if it cannot be updated.
+     */
+    private SetMonitorServiceCommand createRouterHealthChecksConfigCommand(DomainRouterVO router) {
+        if (!RouterHealthChecksEnabled.value()) {
+            return null;
+        }
+
+        SetMonitorServiceCommand command = createMonitorServiceCommand(router, null,true, true);
+        String controlIP = getRouterControlIP(router);
+        if (StringUtils.isBlank(controlIP) || controlIP.equals("0.0.0.0")) {
+            s_logger.debug("Skipping update data on router " + router.getUuid() + " because controlIp is not correct.");
+            return null;
+        }
+
+        s_logger.info("Updating data for router health checks for router " + router.getUuid());
+        return command;
+    }
+
+    private boolean processRouterHealthChecksConfigAnswer(DomainRouterVO router, Answer origAnswer) {
         if (origAnswer == null) {
             s_logger.error("Unable to update health checks data to router " + router.getHostName());
             return false;
@@ -2824,12 +2865,12 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
             throw new ResourceUnavailableException("Failed to delete remote access VPN", DataCenter.class, network.getDataCenterId());
         }
 
-        boolean result = true;
+        final Map<VirtualRouter, Commands> cmdsByRouter = new LinkedHashMap<VirtualRouter, Commands>();
         for (final VirtualRouter router : routers) {
             if (router.getState() == VirtualMachine.State.Running) {
                 final Commands cmds = new Commands(Command.OnError.Continue);
                 _commandSetupHelper.createApplyVpnCommands(false, vpn, router, cmds);
-                result = result && _nwHelper.sendCommandsToRouter(router, cmds);
+                cmdsByRouter.put(router, cmds);
             } else if (router.getState() == VirtualMachine.State.Stopped) {
                 s_logger.debug("Router " + router + " is in Stopped state, not sending deleteRemoteAccessVpn command to it");
                 continue;
@@ -2840,7 +2881,8 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
             }
         }
 
-        return result;
+        // the routers of the network are reprogrammed at the same time
+        return _nwHelper.sendCommandsToRouters(cmdsByRouter);
     }
 
     @Override
@@ -3267,7 +3309,8 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
                 RouterHealthChecksFreeDiskSpaceThreshold,
                 RouterHealthChecksMaxCpuUsageThreshold,
                 RouterHealthChecksMaxMemoryUsageThreshold,
-                ExposeDnsAndBootpServer
+                ExposeDnsAndBootpServer,
+                RouterConfigDiffEnabled
         };
     }
 
@@ -3281,6 +3324,10 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
     public boolean postStateTransitionEvent(final StateMachine2.Transition<VirtualMachine.State, VirtualMachine.Event> transition, final VirtualMachine vo, final boolean status, final Object opaque) {
         final VirtualMachine.State newState = transition.getToState();
         final VirtualMachine.Event event = transition.getEvent();
+        if (vo.getType() == VirtualMachine.Type.DomainRouter && status) {
+            // the router gets its whole configuration replayed once running again
+            _nwHelper.forgetRouterConfig(vo.getId());
+        }
         if (vo.getType() == VirtualMachine.Type.DomainRouter &&
                 event == VirtualMachine.Event.FollowAgentPowerOnReport &&
                 newState == VirtualMachine.State.Running &&
@@ -3319,6 +3366,7 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
             throws AgentUnavailableException, ResourceUnavailableException {
 
         int errors = 0;
+        final Map<VirtualRouter, Commands> cmdsByRouter = new LinkedHashMap<VirtualRouter, Commands>();
 
         for (final DomainRouterVO router : routers) {
 
@@ -3333,16 +3381,14 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
             }
 
             final AggregationControlCommand cmd = new AggregationControlCommand(action, router.getInstanceName(), routerControlIp, routerIpInNetwork);
-            final Commands cmds = new Commands(cmd);
-            if (!_nwHelper.sendCommandsToRouter(router, cmds)) {
-                return false;
-            }
+            cmdsByRouter.put(router, new Commands(cmd));
         }
         if (errors == routers.size()) {
             s_logger.error("aggregationExecution() on " + getClass().getName() + " failed! Network is not configured in any router.");
             return false;
         }
-        return true;
+        // the routers of the network open or close their aggregated execution at the same time
+        return _nwHelper.sendCommandsToRouters(cmdsByRouter);
     }
 
     @Override
@@ -0,0 +1,197 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.host.HostVO;
+
+/**
+ * HostStatsFanOut asks many hosts for their stats at the same time.  The
+ * executor it is given bounds how many hosts are asked at once by all the
+ * collections sharing it, and a collection asks no more than maxPerPod hosts
+ * of the same pod at once.  Hosts are taken in random order so that the ones
+ * not reached before the deadline are not always the same.
+ */
+public class HostStatsFanOut {
+    private static final Logger s_logger = Logger.getLogger(HostStatsFanOut.class);
+
+    public interface HostStatsCollector<T> {
+        /**
+         * Called on a thread of the executor.
+         * @return the stats of the host, null if it has none.
+         */
+        T collect(HostVO host) throws Exception;
+    }
+
+    public static class Result<T> {
+        private final Map<Long, T> _stats;
+        private final int _failed;
+        private final int _skipped;
+
+        Result(Map<Long, T> stats, int failed, int skipped) {
+            _stats = stats;
+            _failed = failed;
+            _skipped = skipped;
+        }
+
+        /**
+         * @return the stats by host id, of the hosts that answered in time.
+         */
+        public Map<Long, T> getStats() {
+            return _stats;
+        }
+
+        public int getFailedCount() {
+            return _failed;
+        }
+
+        /**
+         * @return number of hosts not asked or not done before the deadline.
+         */
+        public int getSkippedCount() {
+            return _skipped;
+        }
+    }
+
+    private static class Round<T> {
+        final HostStatsCollector<T> collector;
+        final long deadline;
+        final CountDownLatch done;
+        final Map<Long, T> stats = new ConcurrentHashMap<Long, T>();
+        final AtomicInteger answered = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        Round(HostStatsCollector<T> collector, int hostCount, long deadline) {
+            this.collector = collector;
+            this.done = new CountDownLatch(hostCount);
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Asks the hosts of a pod one after another, and resubmits itself after
+     * each host so that the other pods get their turn on the executor.
+     */
+    private class PodLane<T> extends ManagedContextRunnable {
+        private final Round<T> _round;
+        private final Queue<HostVO> _hosts;
+
+        PodLane(Round<T> round, Queue<HostVO> hosts) {
+            _round = round;
+            _hosts = hosts;
+        }
+
+        @Override
+        protected void runInContext() {
+            final HostVO host = _hosts.poll();
+            if (host == null) {
+                return;
+            }
+            try {
+                if (System.currentTimeMillis() < _round.deadline) {
+                    final T stats = _round.collector.collect(host);
+                    if (stats != null) {
+                        _round.stats.put(host.getId(), stats);
+                    }
+                    _round.answered.incrementAndGet();
+                }
+            } catch (Exception e) {
+                _round.failed.incrementAndGet();
+                s_logger.debug("Failed to collect stats of host " + host.getId() + ": " + e.getMessage());
+            } finally {
+                _round.done.countDown();
+            }
+            if (!_hosts.isEmpty()) {
+                submit(this, _round, _hosts);
+            }
+        }
+    }
+
+    private final Executor _executor;
+    private final int _maxPerPod;
+
+    /**
+     * @param executor runs the collections, its number of threads is the global budget.
+     * @param maxPerPod number of hosts of a pod a collection asks at once.
+     */
+    public HostStatsFanOut(Executor executor, int maxPerPod) {
+        _executor = executor;
+        _maxPerPod = Math.max(1, maxPerPod);
+    }
+
+    /**
+     * Asks every host and waits until all have answered or the timeout has
+     * passed.  Hosts still being asked at that time keep their thread until
+     * they answer, but their stats are not part of the result.
+     */
+    public <T> Result<T> collect(List<HostVO> hosts, HostStatsCollector<T> collector, long timeout) {
+        final Round<T> round = new Round<T>(collector, hosts.size(), System.currentTimeMillis() + timeout);
+        final List<HostVO> shuffled = new ArrayList<HostVO>(hosts);
+        Collections.shuffle(shuffled);
+        final Map<Long, Queue<HostVO>> byPod = new HashMap<Long, Queue<HostVO>>();
+        for (final HostVO host : shuffled) {
+            Queue<HostVO> podHosts = byPod.get(host.getPodId());
+            if (podHosts == null) {
+                podHosts = new ConcurrentLinkedQueue<HostVO>();
+                byPod.put(host.getPodId(), podHosts);
+            }
+            podHosts.add(host);
+        }
+        for (final Queue<HostVO> podHosts : byPod.values()) {
+            final int lanes = Math.min(_maxPerPod, podHosts.size());
+            for (int i = 0; i < lanes; i++) {
+                submit(new PodLane<T>(round, podHosts), round, podHosts);
+            }
+        }
+
+        try {
+            round.done.await(Math.max(0, round.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final int answered = round.answered.get();
+        final int failed = round.failed.get();
+        return new Result<T>(new HashMap<Long, T>(round.stats), failed, hosts.size() - answered - failed);
+    }
+
+    private <T> void submit(PodLane<T> lane, Round<T> round, Queue<HostVO> hosts) {
+        try {
+            _executor.execute(lane);
+        } catch (RejectedExecutionException e) {
+            // the executor is shut down, the hosts left are skipped
+            while (hosts.poll() != null) {
+                round.done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,443 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.RevokeLockLeaseCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.LocalLockTable;
+import com.cloud.utils.db.LocalLockTable.LocalLock;
+import com.cloud.utils.db.LockMaster;
+import com.cloud.utils.db.LockStatistics;
+import com.cloud.utils.db.Merovingian2;
+
+/**
+ * LeaseLockMaster keeps a cluster lock as a lease of this management server
+ * once one of its threads got it, instead of giving the op_lock row back on
+ * every release.  As long as the lease is kept, further acquisitions by any
+ * thread of this server are served from the in-process lock without a
+ * database round trip.
+ *
+ * A lease is given back when it stayed unused for the lease TTL, renewed by
+ * every use, or when a peer waits for the lock.  Waiting threads, those of
+ * peers running plain Merovingian2 included, keep a waiter row next to the
+ * lock in op_lock, which the lease reaper looks for; a leasing peer also asks
+ * for the lock over the cluster channel with a RevokeLockLeaseCommand.  A
+ * revoked lease is given back as soon as no thread holds the lock anymore,
+ * and this server then stays away from the lock until the waiter got it, for
+ * at most the hand-off grace period, instead of taking it right back.  op_lock
+ * stays the authority, so the leases of a dead server are cleaned up like its
+ * locks.
+ *
+ * Every lease grant gets a fencing token which increases within a run of
+ * this server and is recorded with the lock in op_lock.  A lease is only
+ * given back if op_lock still carries its token, and the lease reaper drops
+ * leases whose row is gone or carries another token, as when a peer cleaned
+ * up the locks of this server after losing contact with it, so this server
+ * stops handing out a lock it no longer owns.
+ */
+public class LeaseLockMaster implements LockMaster {
+    private static final Logger s_logger = Logger.getLogger(LeaseLockMaster.class);
+
+    private static final long MIN_RETRY_INTERVAL = 50;
+    private static final long MAX_RETRY_INTERVAL = 2000;
+    // long enough for a plain Merovingian2 waiter, which polls op_lock every 5 seconds, to get the lock
+    private static final long HANDOFF_GRACE = 10000;
+
+    private final Merovingian2 _dbLockMaster;
+    private final ClusterManager _clusterMgr;
+    private final long _msId;
+    private final long _leaseTtl;
+    private final LocalLockTable _localLocks;
+    private final LockStatistics _statistics;
+    private final Map<String, Lease> _leases = new ConcurrentHashMap<String, Lease>();
+    // locks whose lease was given up to a waiting peer, with the end of the hand-off grace period
+    private final Map<String, Long> _handoffs = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong _lastToken;
+    private final ScheduledExecutorService _leaseReaper = Executors.newScheduledThreadPool(1, new NamedThreadFactory("LockLease-Reaper"));
+
+    private static final ThreadLocal<List<LocalLock>> s_held = new ThreadLocal<List<LocalLock>>() {
+        @Override
+        protected List<LocalLock> initialValue() {
+            return new ArrayList<LocalLock>();
+        }
+    };
+
+    public LeaseLockMaster(final Merovingian2 dbLockMaster, final ClusterManager clusterMgr, final int leaseTtlSeconds) {
+        _dbLockMaster = dbLockMaster;
+        _clusterMgr = clusterMgr;
+        _msId = clusterMgr.getManagementNodeId();
+        _leaseTtl = leaseTtlSeconds * 1000L;
+        _localLocks = dbLockMaster.getLocalLocks();
+        _statistics = dbLockMaster.getStatistics();
+        _lastToken = new AtomicLong(clusterMgr.getCurrentRunId() << 20);
+    }
+
+    public void start() {
+        final long interval = Math.max(Math.min(_leaseTtl / 2, 1000), 100);
+        _leaseReaper.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                reapLeases();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        _leaseReaper.shutdown();
+    }
+
+    @Override
+    public boolean acquire(final String key, final int timeInSeconds) {
+        final long startTime = System.currentTimeMillis();
+        final long deadline = startTime + timeInSeconds * 1000L;
+
+        final LocalLock local = _localLocks.ref(key);
+        if (!local.lock(timeInSeconds * 1000L)) {
+            _localLocks.unref(local);
+            _statistics.recordTimeout();
+            s_logger.warn("Timed out on acquiring lock " + key + " held by another thread of this server.  Waited for " + timeInSeconds + " seconds");
+            return false;
+        }
+
+        if (local.getHoldCount() > 1) {
+            s_held.get().add(local);
+            _statistics.recordLocalAcquire();
+            return true;
+        }
+
+        boolean acquired = false;
+        try {
+            Lease lease = _leases.get(key);
+            if (lease != null && lease.isRevoked()) {
+                // a peer is waiting for it, let it have a go before competing again
+                dropLease(key);
+                lease = null;
+            }
+
+            if (lease != null) {
+                _statistics.recordLocalAcquire();
+                acquired = true;
+            } else {
+                acquired = acquireLease(key, deadline);
+            }
+        } finally {
+            if (!acquired) {
+                local.unlock();
+                _localLocks.unref(local);
+            }
+        }
+
+        if (!acquired) {
+            _statistics.recordTimeout();
+            s_logger.warn("Timed out on acquiring lock " + key + " .  Waited for " + (System.currentTimeMillis() - startTime) / 1000 + " seconds");
+            return false;
+        }
+
+        final long now = System.currentTimeMillis();
+        local.setAcquiredAt(now);
+        s_held.get().add(local);
+        _statistics.recordWait(now - startTime);
+        return true;
+    }
+
+    protected boolean acquireLease(final String key, final long deadline) {
+        long retryInterval = MIN_RETRY_INTERVAL;
+        boolean waiting = false;
+        try {
+            while (true) {
+                final long token = _lastToken.incrementAndGet();
+                if (!isHandingOff(key) && _dbLockMaster.acquireLease(key, token)) {
+                    final Lease lease = new Lease(token);
+                    _leases.put(key, lease);
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Leased lck-" + key + " with token " + lease.getToken());
+                    }
+                    return true;
+                }
+
+                final Long owner = _dbLockMaster.getLockOwner(key);
+                if (owner != null && owner != _msId) {
+                    if (!waiting) {
+                        waiting = _dbLockMaster.markWaiting(key);
+                    }
+                    requestRevoke(owner, key);
+                }
+
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    Thread.sleep(Math.min(retryInterval, remaining));
+                } catch (final InterruptedException e) {
+                    s_logger.debug("[ignored] interupted while aquiring " + key);
+                }
+                retryInterval = Math.min(retryInterval * 2, MAX_RETRY_INTERVAL);
+            }
+        } finally {
+            if (waiting) {
+                _dbLockMaster.unmarkWaiting(key);
+            }
+        }
+    }
+
+    /**
+     * @return true if the lease on the lock was given up to a peer which is still waiting for it.
+     */
+    protected boolean isHandingOff(final String key) {
+        final Long until = _handoffs.get(key);
+        if (until == null) {
+            return false;
+        }
+        if (until > System.currentTimeMillis() && _dbLockMaster.getLockOwner(key) == null && _dbLockMaster.isWaitedForByOthers(key)) {
+            return true;
+        }
+        _handoffs.remove(key, until);
+        return false;
+    }
+
+    protected void requestRevoke(final long owner, final String key) {
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Asking management server " + owner + " to give up lck-" + key);
+        }
+        try {
+            final Command[] cmds = new Command[] {new RevokeLockLeaseCommand(key)};
+            _clusterMgr.executeAsync(Long.toString(owner), 0, GsonHelper.getGson().toJson(cmds), false);
+        } catch (final Exception e) {
+            s_logger.warn("Unable to ask management server " + owner + " to give up lck-" + key, e);
+        }
+    }
+
+    @Override
+    public boolean release(final String key) {
+        final LocalLock local = _localLocks.get(key);
+        if (local == null || !local.isHeldByCurrentThread()) {
+            s_logger.warn("Was unable to find lock for the key " + key + " and thread " + Thread.currentThread().getName());
+            return false;
+        }
+
+        s_held.get().remove(local);
+        try {
+            if (local.getHoldCount() == 1) {
+                _statistics.recordHold(System.currentTimeMillis() - local.getAcquiredAt());
+                final Lease lease = _leases.get(key);
+                if (lease == null) {
+                    // taken away by cleanupForServer() or from JMX while we were holding it
+                    return false;
+                }
+                if (lease.isRevoked()) {
+                    dropLease(key);
+                } else {
+                    lease.renew(System.currentTimeMillis() + _leaseTtl);
+                }
+            }
+            return true;
+        } finally {
+            local.unlock();
+            _localLocks.unref(local);
+        }
+    }
+
+    /**
+     * Gives the op_lock row back, the caller must own the local lock.
+     */
+    protected void dropLease(final String key) {
+        final Lease lease = _leases.remove(key);
+        if (lease != null) {
+            if (lease.isRevoked()) {
+                _handoffs.put(key, System.currentTimeMillis() + HANDOFF_GRACE);
+            }
+            _dbLockMaster.releaseLease(key, lease.getToken());
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Gave up lease on lck-" + key);
+            }
+        }
+    }
+
+    /**
+     * Gives the lease back if nobody holds or waits for the lock, the caller must not own the local lock.
+     * @return true if the lease is gone.
+     */
+    protected boolean dropLeaseIfIdle(final String key, final Lease lease) {
+        final LocalLock local = _localLocks.ref(key);
+        try {
+            if (!local.tryLock()) {
+                return false;
+            }
+            try {
+                if (_leases.get(key) == lease) {
+                    dropLease(key);
+                }
+                return true;
+            } finally {
+                local.unlock();
+            }
+        } finally {
+            _localLocks.unref(local);
+        }
+    }
+
+    protected void reapLeases() {
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, Long> entry : _handoffs.entrySet()) {
+            if (entry.getValue() <= now) {
+                _handoffs.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        if (_leases.isEmpty()) {
+            return;
+        }
+        fenceLeases();
+        try {
+            for (final String key : _dbLockMaster.getLocksWaitedForByOthers()) {
+                final Lease lease = _leases.get(key);
+                if (lease != null) {
+                    lease.revoke();
+                }
+            }
+        } catch (final Exception e) {
+            s_logger.warn("Unable to look for peers waiting for the leased locks", e);
+        }
+        for (final Map.Entry<String, Lease> entry : _leases.entrySet()) {
+            final Lease lease = entry.getValue();
+            if (lease.isRevoked() || lease.getExpiresAt() <= now) {
+                try {
+                    dropLeaseIfIdle(entry.getKey(), lease);
+                } catch (final Exception e) {
+                    s_logger.warn("Unable to give up lease on lck-" + entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the leases op_lock no longer records under their fencing token.
+     */
+    protected void fenceLeases() {
+        // leases granted while op_lock is read may not be in what is read
+        final long lastToken = _lastToken.get();
+        final Map<String, Long> held;
+        try {
+            held = _dbLockMaster.getLeases();
+        } catch (final Exception e) {
+            s_logger.warn("Unable to check the leased locks", e);
+            return;
+        }
+        for (final Map.Entry<String, Lease> entry : _leases.entrySet()) {
+            final Lease lease = entry.getValue();
+            if (lease.getToken() <= lastToken && !Long.valueOf(lease.getToken()).equals(held.get(entry.getKey()))) {
+                s_logger.warn("Lease " + lease.getToken() + " on lck-" + entry.getKey() + " is no longer recorded in op_lock, dropping it");
+                _leases.remove(entry.getKey(), lease);
+            }
+        }
+    }
+
+    @Override
+    public boolean revokeLease(final String key) {
+        final Lease lease = _leases.get(key);
+        if (lease == null) {
+            return true;
+        }
+        // a peer is asking for it, it goes back now if idle or else on the last release
+        lease.revoke();
+        return dropLeaseIfIdle(key, lease);
+    }
+
+    @Override
+    public int owns(final String key) {
+        final LocalLock local = _localLocks.get(key);
+        if (local != null && local.isHeldByCurrentThread()) {
+            return local.getHoldCount();
+        }
+        if (_leases.containsKey(key)) {
+            return local != null && local.isLocked() ? -1 : 0;
+        }
+        return _dbLockMaster.owns(key);
+    }
+
+    @Override
+    public void cleanupThread() {
+        final List<LocalLock> held = s_held.get();
+        if (held.isEmpty()) {
+            return;
+        }
+        s_logger.warn("There were still " + held.size() + " lease locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!");
+        for (final LocalLock local : held) {
+            // the state protected by the lock may be half way, don't hand it to the next thread of this server
+            final Lease lease = _leases.get(local.getKey());
+            if (lease != null) {
+                lease.revoke();
+            }
+            local.unlock();
+            _localLocks.unref(local);
+        }
+        held.clear();
+    }
+
+    @Override
+    public void cleanupForServer(final long msId) {
+        if (msId == _msId) {
+            _leases.clear();
+        }
+        _dbLockMaster.cleanupForServer(msId);
+    }
+
+    protected static class Lease {
+        private final long _token;
+        private volatile long _expiresAt = Long.MAX_VALUE;
+        private volatile boolean _revoked;
+
+        public Lease(final long token) {
+            _token = token;
+        }
+
+        public long getToken() {
+            return _token;
+        }
+
+        public long getExpiresAt() {
+            return _expiresAt;
+        }
+
+        public void renew(final long expiresAt) {
+            _expiresAt = expiresAt;
+        }
+
+        public boolean isRevoked() {
+            return _revoked;
+        }
+
+        public void revoke() {
+            _revoked = true;
+        }
+    }
+}
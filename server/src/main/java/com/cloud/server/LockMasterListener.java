@@ -18,6 +18,7 @@ package com.cloud.server;
 
 import java.util.List;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.ClusterManagerListener;
 import org.apache.cloudstack.management.ManagementServerHost;
 import com.cloud.utils.db.Merovingian2;
@@ -28,11 +29,25 @@ import com.cloud.utils.db.Merovingian2;
  */
 public class LockMasterListener implements ClusterManagerListener {
     Merovingian2 _lockMaster;
+    LeaseLockMaster _leaseLockMaster;
 
     public LockMasterListener(long msId) {
         _lockMaster = Merovingian2.createLockMaster(msId);
     }
 
+    /**
+     * Serves the cluster locks through leases kept by this management server from now on.
+     */
+    public synchronized void enableLeases(ClusterManager clusterMgr, int leaseTtlSeconds) {
+        if (_leaseLockMaster != null) {
+            return;
+        }
+        _lockMaster.setTrackWaiters(true);
+        _leaseLockMaster = new LeaseLockMaster(_lockMaster, clusterMgr, leaseTtlSeconds);
+        _leaseLockMaster.start();
+        Merovingian2.setActiveLockMaster(_leaseLockMaster);
+    }
+
     @Override
     public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
     }
@@ -720,6 +720,10 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
     static final ConfigKey<Integer> vmPasswordLength = new ConfigKey<Integer>("Advanced", Integer.class, "vm.password.length", "6", "Specifies the length of a randomly generated password", false);
     static final ConfigKey<Integer> sshKeyLength = new ConfigKey<Integer>("Advanced", Integer.class, "ssh.key.length", "2048", "Specifies custom SSH key length (bit)", true, ConfigKey.Scope.Global);
     static final ConfigKey<Boolean> humanReadableSizes = new ConfigKey<Boolean>("Advanced", Boolean.class, "display.human.readable.sizes", "true", "Enables outputting human readable byte sizes to logs and usage records.", false, ConfigKey.Scope.Global);
+    static final ConfigKey<Boolean> lockLeaseEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "cluster.lock.lease.enabled", "false",
+            "Keep cluster locks as leases of the management server between uses, so that most acquisitions don't need a database round trip. Requires a restart.", false);
+    static final ConfigKey<Integer> lockLeaseTtl = new ConfigKey<Integer>("Advanced", Integer.class, "cluster.lock.lease.ttl", "10",
+            "Time in seconds an unused cluster lock lease is kept before it is given back to the database", false);
 
     @Inject
     public AccountManager _accountMgr;
@@ -945,6 +949,9 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
         }
 
         _clusterMgr.registerListener(_lockMasterListener);
+        if (lockLeaseEnabled.value()) {
+            _lockMasterListener.enableLeases(_clusterMgr, lockLeaseTtl.value());
+        }
 
         enableAdminUser("password");
         return true;
@@ -3180,7 +3187,7 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {vmPasswordLength, sshKeyLength, humanReadableSizes};
+        return new ConfigKey<?>[] {vmPasswordLength, sshKeyLength, humanReadableSizes, lockLeaseEnabled, lockLeaseTtl};
     }
 
     protected class EventPurgeTask extends ManagedContextRunnable {
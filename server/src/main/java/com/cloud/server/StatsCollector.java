@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.server;
 
+import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -23,13 +24,16 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -131,6 +135,7 @@ import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.MacAddress;
 import com.cloud.vm.NicVO;
 import com.cloud.vm.UserVmManager;
@@ -218,9 +223,32 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             "URI to send StatsCollector statistics to. The collector is defined on the URI scheme. Example: graphite://graphite-hostaddress:port or influxdb://influxdb-hostaddress/dbname. Note that the port is optional, if not added the default port for the respective collector (graphite or influxdb) will be used. Additionally, the database name '/dbname' is  also optional; default db name is 'cloudstack'. You must create and configure the database if using influxdb.",
             true);
 
+    private static final ConfigKey<Integer> statsCollectionMaxConcurrentHosts = new ConfigKey<Integer>("Advanced", Integer.class, "stats.collection.max.concurrent.hosts", "32",
+            "Number of hosts asked for vm, vm disk and vm network statistics at the same time.", false);
+    private static final ConfigKey<Integer> statsCollectionMaxConcurrentHostsPerPod = new ConfigKey<Integer>("Advanced", Integer.class,
+            "stats.collection.max.concurrent.hosts.per.pod", "8", "Number of hosts of a pod asked for vm, vm disk or vm network statistics at the same time.", false);
+    private static final ConfigKey<Integer> statsCollectionDbBatchSize = new ConfigKey<Integer>("Advanced", Integer.class, "stats.collection.db.batch.size", "500",
+            "Number of vm disk or vm network statistics written to the database in one batch.", true);
+    private static final ConfigKey<String> statsHistoryTiers = new ConfigKey<String>("Advanced", String.class, "stats.history.tiers", "60:60,300:144,3600:168",
+            "Resolution (in seconds) and number of intervals of every tier of the vm and host statistics history, the default keeps 1 hour at 1 minute, 12 hours at 5 minutes and 7 days at 1 hour. The history is disabled if this is empty.",
+            false);
+    private static final ConfigKey<Integer> statsHistoryMaxVms = new ConfigKey<Integer>("Advanced", Integer.class, "stats.history.max.vms", "10000",
+            "Number of vms the statistics history is kept for, about 18KB of memory per vm with the default tiers.", false);
+    private static final ConfigKey<Integer> statsHistoryMaxHosts = new ConfigKey<Integer>("Advanced", Integer.class, "stats.history.max.hosts", "1000",
+            "Number of hosts the statistics history is kept for.", false);
+    private static final ConfigKey<String> statsHistoryPath = new ConfigKey<String>("Advanced", String.class, "stats.history.path", "",
+            "Directory the vm and host statistics history is kept in across restarts of the management server. The history is kept in memory only if this is empty.", false);
+
     private static StatsCollector s_instance = null;
 
     private ScheduledExecutorService _executor = null;
+    private ThreadPoolExecutor _hostStatsExecutor = null;
+    private HostStatsFanOut _hostStatsFanOut = null;
+    private StatsCycle _vmStatsCycle = null;
+    private StatsCycle _vmDiskStatsCycle = null;
+    private StatsCycle _vmNetworkStatsCycle = null;
+    private StatsHistory _vmStatsHistory = null;
+    private StatsHistory _hostStatsHistory = null;
     @Inject
     private AgentManager _agentMgr;
     @Inject
@@ -334,12 +362,20 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     protected void init(Map<String, String> configs) {
         _executor = Executors.newScheduledThreadPool(6, new NamedThreadFactory("StatsCollector"));
 
+        int maxConcurrentHosts = Math.max(1, statsCollectionMaxConcurrentHosts.value());
+        _hostStatsExecutor = new ThreadPoolExecutor(maxConcurrentHosts, maxConcurrentHosts, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("StatsCollector-Host"));
+        _hostStatsExecutor.allowCoreThreadTimeOut(true);
+        _hostStatsFanOut = new HostStatsFanOut(_hostStatsExecutor, statsCollectionMaxConcurrentHostsPerPod.value());
+
         hostStatsInterval = NumbersUtil.parseLong(configs.get("host.stats.interval"), ONE_MINUTE_IN_MILLISCONDS);
         hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), ONE_MINUTE_IN_MILLISCONDS);
         storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), ONE_MINUTE_IN_MILLISCONDS);
         volumeStatsInterval = NumbersUtil.parseLong(configs.get("volume.stats.interval"), ONE_MINUTE_IN_MILLISCONDS);
         autoScaleStatsInterval = NumbersUtil.parseLong(configs.get("autoscale.stats.interval"), ONE_MINUTE_IN_MILLISCONDS);
 
+        initStatsHistory();
+
         String statsUri = statsOutputUri.value();
         if (StringUtils.isNotBlank(statsUri)) {
             try {
@@ -381,6 +417,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         }
 
         if (hostAndVmStatsInterval > 0) {
+            _vmStatsCycle = createStatsCycle("VmStatsCollector", hostAndVmStatsInterval);
             _executor.scheduleWithFixedDelay(new VmStatsCollector(), 15000L, hostAndVmStatsInterval, TimeUnit.MILLISECONDS);
         }
 
@@ -393,25 +430,27 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         }
 
         if (vmDiskStatsInterval.value() > 0) {
-            if (vmDiskStatsInterval.value() < vmDiskStatsIntervalMin.value()) {
+            int interval = vmDiskStatsInterval.value();
+            if (interval < vmDiskStatsIntervalMin.value()) {
                 s_logger.debug("vm.disk.stats.interval - " + vmDiskStatsInterval.value() + " is smaller than vm.disk.stats.interval.min - " + vmDiskStatsIntervalMin.value()
                         + ", so use vm.disk.stats.interval.min");
-                _executor.scheduleAtFixedRate(new VmDiskStatsTask(), vmDiskStatsIntervalMin.value(), vmDiskStatsIntervalMin.value(), TimeUnit.SECONDS);
-            } else {
-                _executor.scheduleAtFixedRate(new VmDiskStatsTask(), vmDiskStatsInterval.value(), vmDiskStatsInterval.value(), TimeUnit.SECONDS);
+                interval = vmDiskStatsIntervalMin.value();
             }
+            _vmDiskStatsCycle = createStatsCycle("VmDiskStatsTask", interval * 1000L);
+            _executor.scheduleAtFixedRate(new VmDiskStatsTask(), interval, interval, TimeUnit.SECONDS);
         } else {
             s_logger.debug("vm.disk.stats.interval - " + vmDiskStatsInterval.value() + " is 0 or less than 0, so not scheduling the vm disk stats thread");
         }
 
         if (vmNetworkStatsInterval.value() > 0) {
-            if (vmNetworkStatsInterval.value() < vmNetworkStatsIntervalMin.value()) {
+            int interval = vmNetworkStatsInterval.value();
+            if (interval < vmNetworkStatsIntervalMin.value()) {
                 s_logger.debug("vm.network.stats.interval - " + vmNetworkStatsInterval.value() + " is smaller than vm.network.stats.interval.min - "
                         + vmNetworkStatsIntervalMin.value() + ", so use vm.network.stats.interval.min");
-                _executor.scheduleAtFixedRate(new VmNetworkStatsTask(), vmNetworkStatsIntervalMin.value(), vmNetworkStatsIntervalMin.value(), TimeUnit.SECONDS);
-            } else {
-                _executor.scheduleAtFixedRate(new VmNetworkStatsTask(), vmNetworkStatsInterval.value(), vmNetworkStatsInterval.value(), TimeUnit.SECONDS);
+                interval = vmNetworkStatsIntervalMin.value();
             }
+            _vmNetworkStatsCycle = createStatsCycle("VmNetworkStatsTask", interval * 1000L);
+            _executor.scheduleAtFixedRate(new VmNetworkStatsTask(), interval, interval, TimeUnit.SECONDS);
         } else {
             s_logger.debug("vm.network.stats.interval - " + vmNetworkStatsInterval.value() + " is 0 or less than 0, so not scheduling the vm network stats thread");
         }
@@ -463,6 +502,54 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         _diskStatsUpdateExecutor.scheduleAtFixedRate(new VmDiskStatsUpdaterTask(), (endDate - System.currentTimeMillis()), period, TimeUnit.MILLISECONDS);
     }
 
+    @Override
+    public boolean stop() {
+        closeStatsHistory(_vmStatsHistory);
+        closeStatsHistory(_hostStatsHistory);
+        return true;
+    }
+
+    /**
+     * Creates the vm and host statistics history, unless stats.history.tiers is empty.
+     */
+    private void initStatsHistory() {
+        if (StringUtils.isBlank(statsHistoryTiers.value())) {
+            s_logger.debug("stats.history.tiers is empty, so not keeping the vm and host statistics history");
+            return;
+        }
+        try {
+            StatsHistory.Tier[] tiers = StatsHistory.parseTiers(statsHistoryTiers.value());
+            File dir = StringUtils.isBlank(statsHistoryPath.value()) ? null : new File(statsHistoryPath.value());
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                s_logger.warn("Unable to create " + dir + ", keeping the statistics history in memory only");
+                dir = null;
+            }
+            _vmStatsHistory = new StatsHistory(VmHistoryMetric.values().length, tiers, statsHistoryMaxVms.value(), dir == null ? null : new File(dir, "vm_stats.history"));
+            _hostStatsHistory = new StatsHistory(HostHistoryMetric.values().length, tiers, statsHistoryMaxHosts.value(), dir == null ? null : new File(dir, "host_stats.history"));
+        } catch (IllegalArgumentException e) {
+            s_logger.error("Invalid stats.history.tiers " + statsHistoryTiers.value() + ", not keeping the vm and host statistics history", e);
+        }
+    }
+
+    private void closeStatsHistory(StatsHistory history) {
+        if (history != null) {
+            history.close();
+        }
+    }
+
+    /**
+     * Creates the cycle metrics of a stats collection and exports them over JMX.
+     */
+    private StatsCycle createStatsCycle(String name, long interval) {
+        StatsCycle cycle = new StatsCycle(name, interval);
+        try {
+            JmxUtil.registerMBean("StatsCollector", name, cycle);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the cycle metrics of " + name + " for JMX", e);
+        }
+        return cycle;
+    }
+
     /**
      * Configures the database name according to the URI path. For instance, if the URI is as influxdb://address:port/dbname, the database name will be 'dbname'.
      */
@@ -515,6 +602,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                         hostStatsEntry.setHostVo(host);
                         metrics.put(hostStatsEntry.getHostId(), hostStatsEntry);
                         _hostStats.put(host.getId(), hostStatsEntry);
+                        addToHostStatsHistory(hostStatsEntry);
                     } else {
                         s_logger.warn("The Host stats is null for host: " + host.getId());
                     }
@@ -525,6 +613,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 }
 
                 updateGpuEnabledHostsDetails(hosts);
+                expireStatsHistory(_hostStatsHistory);
             } catch (Throwable t) {
                 s_logger.error("Error trying to retrieve host stats", t);
             }
@@ -563,59 +652,67 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         protected void runInContext() {
             try {
                 s_logger.trace("VmStatsCollector is running...");
+                final long start = System.currentTimeMillis();
 
                 SearchCriteria<HostVO> sc = createSearchCriteriaForHostTypeRoutingStateUpAndNotInMaintenance();
                 List<HostVO> hosts = _hostDao.search(sc, null);
 
-                Map<Object, Object> metrics = new HashMap<>();
+                HostStatsFanOut.Result<Integer> result = _hostStatsFanOut.collect(hosts, new HostStatsFanOut.HostStatsCollector<Integer>() {
+                    @Override
+                    public Integer collect(HostVO host) throws Exception {
+                        return collectVmStats(host);
+                    }
+                }, hostAndVmStatsInterval);
 
-                for (HostVO host : hosts) {
-                    List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                    List<Long> vmIds = new ArrayList<Long>();
+                _vmStatsCycle.record(start, System.currentTimeMillis(), hosts.size(), result.getFailedCount(), result.getSkippedCount());
+                expireStatsHistory(_vmStatsHistory);
+            } catch (Throwable t) {
+                s_logger.error("Error trying to retrieve VM stats", t);
+            }
+        }
 
-                    for (UserVmVO vm : vms) {
-                        vmIds.add(vm.getId());
-                    }
+        /**
+         * Keeps the stats of the vms of the host and sends them to the external stats collector, if any.
+         * @return the number of vms having stats.
+         */
+        private Integer collectVmStats(HostVO host) {
+            List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
+            List<Long> vmIds = new ArrayList<Long>();
 
-                    try {
-                        Map<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
-
-                        if (vmStatsById != null) {
-                            Set<Long> vmIdSet = vmStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-                                statsForCurrentIteration.setVmId(vmId);
-                                UserVmVO userVmVo = _userVmDao.findById(vmId);
-                                statsForCurrentIteration.setUserVmVO(userVmVo);
-
-                                storeVirtualMachineStatsInMemory(statsForCurrentIteration);
-
-                                if (externalStatsType == ExternalStatsProtocol.GRAPHITE) {
-                                    prepareVmMetricsForGraphite(metrics, statsForCurrentIteration);
-                                } else {
-                                    metrics.put(statsForCurrentIteration.getVmId(), statsForCurrentIteration);
-                                }
-                            }
+            for (UserVmVO vm : vms) {
+                vmIds.add(vm.getId());
+            }
 
-                            if (!metrics.isEmpty()) {
-                                if (externalStatsType == ExternalStatsProtocol.GRAPHITE) {
-                                    sendVmMetricsToGraphiteHost(metrics, host);
-                                } else if (externalStatsType == ExternalStatsProtocol.INFLUXDB) {
-                                    sendMetricsToInfluxdb(metrics);
-                                }
-                            }
+            Map<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
+            if (vmStatsById == null) {
+                return null;
+            }
 
-                            metrics.clear();
-                        }
-                    } catch (Exception e) {
-                        s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-                        continue;
-                    }
+            Map<Object, Object> metrics = new HashMap<>();
+            for (Map.Entry<Long, VmStatsEntry> entry : vmStatsById.entrySet()) {
+                VmStatsEntry statsForCurrentIteration = entry.getValue();
+                statsForCurrentIteration.setVmId(entry.getKey());
+                UserVmVO userVmVo = _userVmDao.findById(entry.getKey());
+                statsForCurrentIteration.setUserVmVO(userVmVo);
+
+                addToVmStatsHistory(statsForCurrentIteration);
+                storeVirtualMachineStatsInMemory(statsForCurrentIteration);
+
+                if (externalStatsType == ExternalStatsProtocol.GRAPHITE) {
+                    prepareVmMetricsForGraphite(metrics, statsForCurrentIteration);
+                } else {
+                    metrics.put(statsForCurrentIteration.getVmId(), statsForCurrentIteration);
                 }
+            }
 
-            } catch (Throwable t) {
-                s_logger.error("Error trying to retrieve VM stats", t);
+            if (!metrics.isEmpty()) {
+                if (externalStatsType == ExternalStatsProtocol.GRAPHITE) {
+                    sendVmMetricsToGraphiteHost(metrics, host);
+                } else if (externalStatsType == ExternalStatsProtocol.INFLUXDB) {
+                    sendMetricsToInfluxdb(metrics);
+                }
             }
+            return vmStatsById.size();
         }
 
         @Override
@@ -628,6 +725,71 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         return _VmStats.get(id);
     }
 
+    /**
+     * Metrics kept in the vm statistics history, in the order of their index.
+     */
+    public enum VmHistoryMetric {
+        CpuUtilization, NetworkReadKBs, NetworkWriteKBs, DiskReadKBs, DiskWriteKBs, DiskReadIOs, DiskWriteIOs, MemoryKBs, IntFreeMemoryKBs, TargetMemoryKBs
+    }
+
+    /**
+     * Metrics kept in the host statistics history, in the order of their index.
+     */
+    public enum HostHistoryMetric {
+        CpuUtilization, NetworkReadKBs, NetworkWriteKBs, TotalMemoryKBs, FreeMemoryKBs, LoadAverage
+    }
+
+    private void addToVmStatsHistory(VmStatsEntry stats) {
+        if (_vmStatsHistory == null) {
+            return;
+        }
+        double[] values = new double[] {stats.getCPUUtilization(), stats.getNetworkReadKBs(), stats.getNetworkWriteKBs(), stats.getDiskReadKBs(), stats.getDiskWriteKBs(),
+                stats.getDiskReadIOs(), stats.getDiskWriteIOs(), stats.getMemoryKBs(), stats.getIntFreeMemoryKBs(), stats.getTargetMemoryKBs()};
+        if (!_vmStatsHistory.add(stats.getVmId(), System.currentTimeMillis(), values)) {
+            s_logger.debug("The vm statistics history is full, not keeping the history of vm " + stats.getVmId());
+        }
+    }
+
+    private void addToHostStatsHistory(HostStatsEntry stats) {
+        if (_hostStatsHistory == null) {
+            return;
+        }
+        double[] values = new double[] {stats.getCpuUtilization(), stats.getNetworkReadKBs(), stats.getNetworkWriteKBs(), stats.getTotalMemoryKBs(), stats.getFreeMemoryKBs(),
+                stats.getLoadAverage()};
+        if (!_hostStatsHistory.add(stats.getHostId(), System.currentTimeMillis(), values)) {
+            s_logger.debug("The host statistics history is full, not keeping the history of host " + stats.getHostId());
+        }
+    }
+
+    /**
+     * Forgets the entities of the history having no sample within its retention, such as expunged vms or removed hosts.
+     */
+    private void expireStatsHistory(StatsHistory history) {
+        if (history == null) {
+            return;
+        }
+        int expired = history.expire(System.currentTimeMillis() - history.getRetention());
+        if (expired > 0 && s_logger.isDebugEnabled()) {
+            s_logger.debug("Expired the statistics history of " + expired + " entities");
+        }
+    }
+
+    /**
+     * @param resolution resolution in milliseconds asked for, 0 for the finest kept.
+     * @return the averages of the metrics of VmHistoryMetric between from and to, null if the vm has no history.
+     */
+    public StatsHistory.Series getVmStatsHistory(long vmId, Date from, Date to, long resolution) {
+        return _vmStatsHistory == null ? null : _vmStatsHistory.query(vmId, from.getTime(), to.getTime(), resolution);
+    }
+
+    /**
+     * @param resolution resolution in milliseconds asked for, 0 for the finest kept.
+     * @return the averages of the metrics of HostHistoryMetric between from and to, null if the host has no history.
+     */
+    public StatsHistory.Series getHostStatsHistory(long hostId, Date from, Date to, long resolution) {
+        return _hostStatsHistory == null ? null : _hostStatsHistory.query(hostId, from.getTime(), to.getTime(), resolution);
+    }
+
     class VmDiskStatsUpdaterTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -675,6 +837,70 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         }
     }
 
+    /**
+     * The stats a host answered with for its user vms.
+     */
+    static class HostVmStats<T> {
+        final HostVO host;
+        final Map<Long, UserVmVO> vms;
+        final Map<Long, List<T>> stats;
+
+        HostVmStats(HostVO host, Map<Long, UserVmVO> vms, Map<Long, List<T>> stats) {
+            this.host = host;
+            this.vms = vms;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * A stats entry reported for a vm, along with the host that reported it.
+     */
+    static class ReportedVmStats<T> {
+        final HostVO host;
+        final UserVmVO vm;
+        final T stats;
+
+        ReportedVmStats(HostVO host, UserVmVO vm, T stats) {
+            this.host = host;
+            this.vm = vm;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Asks the hosts for the disk or network stats of their running user vms.
+     * @return the entries reported, of the vms still known.
+     */
+    private <T> List<ReportedVmStats<T>> collectUserVmStats(List<HostVO> hosts, HostStatsFanOut.HostStatsCollector<HostVmStats<T>> collector, StatsCycle cycle) {
+        final long start = System.currentTimeMillis();
+        HostStatsFanOut.Result<HostVmStats<T>> result = _hostStatsFanOut.collect(hosts, collector, cycle.getInterval());
+        cycle.record(start, System.currentTimeMillis(), hosts.size(), result.getFailedCount(), result.getSkippedCount());
+
+        List<ReportedVmStats<T>> reported = new ArrayList<ReportedVmStats<T>>();
+        for (HostVmStats<T> hostStats : result.getStats().values()) {
+            for (Map.Entry<Long, List<T>> entry : hostStats.stats.entrySet()) {
+                UserVmVO vm = hostStats.vms.get(entry.getKey());
+                if (vm == null || entry.getValue() == null) {
+                    continue;
+                }
+                for (T stats : entry.getValue()) {
+                    reported.add(new ReportedVmStats<T>(hostStats.host, vm, stats));
+                }
+            }
+        }
+        return reported;
+    }
+
+    private Map<Long, UserVmVO> listRunningUserVms(HostVO host) {
+        Map<Long, UserVmVO> vms = new HashMap<Long, UserVmVO>();
+        for (UserVmVO vm : _userVmDao.listRunningByHostId(host.getId())) {
+            if (vm.getType() == VirtualMachine.Type.User) {
+                vms.put(vm.getId(), vm);
+            }
+        }
+        return vms;
+    }
+
     class VmDiskStatsTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -688,118 +914,89 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             // collect the vm disk statistics(total) from hypervisor. added by weizhou, 2013.03.
             s_logger.trace("Running VM disk stats ...");
             try {
-                Transaction.execute(new TransactionCallbackNoReturn() {
-                    @Override
-                    public void doInTransactionWithoutResult(TransactionStatus status) {
-                        s_logger.debug("VmDiskStatsTask is running...");
-
-                        SearchCriteria<HostVO> sc = createSearchCriteriaForHostTypeRoutingStateUpAndNotInMaintenance();
-                        sc.addAnd("hypervisorType", SearchCriteria.Op.IN, HypervisorType.KVM, HypervisorType.VMware);
-                        List<HostVO> hosts = _hostDao.search(sc, null);
-
-                        for (HostVO host : hosts) {
-                            List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                            List<Long> vmIds = new ArrayList<Long>();
+                s_logger.debug("VmDiskStatsTask is running...");
 
-                            for (UserVmVO  vm : vms) {
-                                if (vm.getType() == VirtualMachine.Type.User) // user vm
-                                    vmIds.add(vm.getId());
-                            }
-
-                            HashMap<Long, List<VmDiskStatsEntry>> vmDiskStatsById = _userVmMgr.getVmDiskStatistics(host.getId(), host.getName(), vmIds);
-                            if (vmDiskStatsById == null)
-                                continue;
-
-                            Set<Long> vmIdSet = vmDiskStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                List<VmDiskStatsEntry> vmDiskStats = vmDiskStatsById.get(vmId);
-                                if (vmDiskStats == null)
-                                    continue;
-                                UserVmVO userVm = _userVmDao.findById(vmId);
-                                for (VmDiskStatsEntry vmDiskStat : vmDiskStats) {
-                                    SearchCriteria<VolumeVO> sc_volume = _volsDao.createSearchCriteria();
-                                    sc_volume.addAnd("path", SearchCriteria.Op.EQ, vmDiskStat.getPath());
-                                    List<VolumeVO> volumes = _volsDao.search(sc_volume, null);
+                SearchCriteria<HostVO> sc = createSearchCriteriaForHostTypeRoutingStateUpAndNotInMaintenance();
+                sc.addAnd("hypervisorType", SearchCriteria.Op.IN, HypervisorType.KVM, HypervisorType.VMware);
+                List<HostVO> hosts = _hostDao.search(sc, null);
 
-                                    if (CollectionUtils.isEmpty(volumes))
-                                        break;
+                List<ReportedVmStats<VmDiskStatsEntry>> reported = collectUserVmStats(hosts, new HostStatsFanOut.HostStatsCollector<HostVmStats<VmDiskStatsEntry>>() {
+                    @Override
+                    public HostVmStats<VmDiskStatsEntry> collect(HostVO host) throws Exception {
+                        Map<Long, UserVmVO> vms = listRunningUserVms(host);
+                        HashMap<Long, List<VmDiskStatsEntry>> vmDiskStatsById = _userVmMgr.getVmDiskStatistics(host.getId(), host.getName(), new ArrayList<Long>(vms.keySet()));
+                        return vmDiskStatsById == null ? null : new HostVmStats<VmDiskStatsEntry>(host, vms, vmDiskStatsById);
+                    }
+                }, _vmDiskStatsCycle);
 
-                                    VolumeVO volume = volumes.get(0);
-                                    VmDiskStatisticsVO previousVmDiskStats = _vmDiskStatsDao.findBy(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
-                                    VmDiskStatisticsVO vmDiskStat_lock = _vmDiskStatsDao.lock(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
+                int batchSize = Math.max(1, statsCollectionDbBatchSize.value());
+                for (int i = 0; i < reported.size(); i += batchSize) {
+                    updateVmDiskStats(reported.subList(i, Math.min(i + batchSize, reported.size())));
+                }
+            } catch (Exception e) {
+                s_logger.warn("Error while collecting vm disk stats from hosts", e);
+            }
+        }
 
-                                    if (areAllDiskStatsZero(vmDiskStat)) {
-                                        s_logger.debug("IO/bytes read and write are all 0. Not updating vm_disk_statistics");
-                                        continue;
-                                    }
+        private void updateVmDiskStats(List<ReportedVmStats<VmDiskStatsEntry>> reported) {
+            Set<String> paths = new HashSet<String>();
+            Set<Long> accountIds = new HashSet<Long>();
+            Set<Long> vmIds = new HashSet<Long>();
+            for (ReportedVmStats<VmDiskStatsEntry> vmDiskStat : reported) {
+                paths.add(vmDiskStat.stats.getPath());
+                accountIds.add(vmDiskStat.vm.getAccountId());
+                vmIds.add(vmDiskStat.vm.getId());
+            }
 
-                                    if (vmDiskStat_lock == null) {
-                                        s_logger.warn("unable to find vm disk stats from host for account: " + userVm.getAccountId() + " with vmId: " + userVm.getId()
-                                                + " and volumeId:" + volume.getId());
-                                        continue;
-                                    }
+            Map<String, VolumeVO> volumesByPath = new HashMap<String, VolumeVO>();
+            SearchCriteria<VolumeVO> sc_volume = _volsDao.createSearchCriteria();
+            sc_volume.addAnd("path", SearchCriteria.Op.IN, paths.toArray());
+            for (VolumeVO volume : _volsDao.search(sc_volume, null)) {
+                if (!volumesByPath.containsKey(volume.getPath())) {
+                    volumesByPath.put(volume.getPath(), volume);
+                }
+            }
+            Map<String, VmDiskStatisticsVO> statsByVolume = new HashMap<String, VmDiskStatisticsVO>();
+            for (VmDiskStatisticsVO stats : _vmDiskStatsDao.listBy(accountIds, vmIds)) {
+                statsByVolume.put(stats.getAccountId() + "/" + stats.getDataCenterId() + "/" + stats.getVmId() + "/" + stats.getVolumeId(), stats);
+            }
 
-                                    if (isCurrentVmDiskStatsDifferentFromPrevious(previousVmDiskStats, vmDiskStat_lock)) {
-                                        s_logger.debug("vm disk stats changed from the time GetVmDiskStatsCommand was sent. " + "Ignoring current answer. Host: " + host.getName()
-                                                + " . VM: " + vmDiskStat.getVmName() + " Read(Bytes): " + toHumanReadableSize(vmDiskStat.getBytesRead()) + " write(Bytes): " + toHumanReadableSize(vmDiskStat.getBytesWrite())
-                                                + " Read(IO): " + toHumanReadableSize(vmDiskStat.getIORead()) + " write(IO): " + toHumanReadableSize(vmDiskStat.getIOWrite()));
-                                        continue;
-                                    }
+            List<VmDiskStatisticsVO> updated = new ArrayList<VmDiskStatisticsVO>();
+            for (ReportedVmStats<VmDiskStatsEntry> reportedStat : reported) {
+                VmDiskStatsEntry vmDiskStat = reportedStat.stats;
+                UserVmVO userVm = reportedStat.vm;
+                VolumeVO volume = volumesByPath.get(vmDiskStat.getPath());
+                if (volume == null) {
+                    continue;
+                }
 
-                                    if (vmDiskStat_lock.getCurrentBytesRead() > vmDiskStat.getBytesRead()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Read # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + toHumanReadableSize(vmDiskStat.getBytesRead()) + " Stored: "
-                                                    + vmDiskStat_lock.getCurrentBytesRead());
-                                        }
-                                        vmDiskStat_lock.setNetBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
-                                    }
-                                    vmDiskStat_lock.setCurrentBytesRead(vmDiskStat.getBytesRead());
-                                    if (vmDiskStat_lock.getCurrentBytesWrite() > vmDiskStat.getBytesWrite()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Write # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + toHumanReadableSize(vmDiskStat.getBytesWrite()) + " Stored: "
-                                                    + toHumanReadableSize(vmDiskStat_lock.getCurrentBytesWrite()));
-                                        }
-                                        vmDiskStat_lock.setNetBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
-                                    }
-                                    vmDiskStat_lock.setCurrentBytesWrite(vmDiskStat.getBytesWrite());
-                                    if (vmDiskStat_lock.getCurrentIORead() > vmDiskStat.getIORead()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Read # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIORead() + " Stored: "
-                                                    + vmDiskStat_lock.getCurrentIORead());
-                                        }
-                                        vmDiskStat_lock.setNetIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
-                                    }
-                                    vmDiskStat_lock.setCurrentIORead(vmDiskStat.getIORead());
-                                    if (vmDiskStat_lock.getCurrentIOWrite() > vmDiskStat.getIOWrite()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Write # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIOWrite() + " Stored: "
-                                                    + vmDiskStat_lock.getCurrentIOWrite());
-                                        }
-                                        vmDiskStat_lock.setNetIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
-                                    }
-                                    vmDiskStat_lock.setCurrentIOWrite(vmDiskStat.getIOWrite());
+                if (areAllDiskStatsZero(vmDiskStat)) {
+                    s_logger.debug("IO/bytes read and write are all 0. Not updating vm_disk_statistics");
+                    continue;
+                }
 
-                                    if (!_dailyOrHourly) {
-                                        //update agg bytes
-                                        vmDiskStat_lock.setAggBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
-                                        vmDiskStat_lock.setAggBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
-                                        vmDiskStat_lock.setAggIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
-                                        vmDiskStat_lock.setAggIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
-                                    }
+                VmDiskStatisticsVO vmDiskStatsVO = statsByVolume.get(userVm.getAccountId() + "/" + userVm.getDataCenterId() + "/" + userVm.getId() + "/" + volume.getId());
+                if (vmDiskStatsVO == null) {
+                    s_logger.warn("unable to find vm disk stats from host for account: " + userVm.getAccountId() + " with vmId: " + userVm.getId()
+                            + " and volumeId:" + volume.getId());
+                    continue;
+                }
 
-                                    _vmDiskStatsDao.update(vmDiskStat_lock.getId(), vmDiskStat_lock);
-                                }
-                            }
-                        }
-                    }
-                });
-            } catch (Exception e) {
-                s_logger.warn("Error while collecting vm disk stats from hosts", e);
+                if (s_logger.isDebugEnabled() && (vmDiskStatsVO.getCurrentBytesRead() > vmDiskStat.getBytesRead() || vmDiskStatsVO.getCurrentBytesWrite() > vmDiskStat.getBytesWrite()
+                        || vmDiskStatsVO.getCurrentIORead() > vmDiskStat.getIORead() || vmDiskStatsVO.getCurrentIOWrite() > vmDiskStat.getIOWrite())) {
+                    s_logger.debug("Read or written # of bytes or IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
+                            + reportedStat.host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported read(Bytes): " + toHumanReadableSize(vmDiskStat.getBytesRead())
+                            + " write(Bytes): " + toHumanReadableSize(vmDiskStat.getBytesWrite()) + " read(IO): " + vmDiskStat.getIORead() + " write(IO): " + vmDiskStat.getIOWrite());
+                }
+                vmDiskStatsVO.setCurrentBytesRead(vmDiskStat.getBytesRead());
+                vmDiskStatsVO.setCurrentBytesWrite(vmDiskStat.getBytesWrite());
+                vmDiskStatsVO.setCurrentIORead(vmDiskStat.getIORead());
+                vmDiskStatsVO.setCurrentIOWrite(vmDiskStat.getIOWrite());
+                updated.add(vmDiskStatsVO);
             }
+
+            // the net counters are carried over by the database, the aggregate ones are set here unless the usage job aggregates them
+            _vmDiskStatsDao.updateCurrentStats(updated, !_dailyOrHourly);
         }
     }
 
@@ -815,110 +1012,103 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             }
             // collect the vm network statistics(total) from hypervisor
             try {
-                Transaction.execute(new TransactionCallbackNoReturn() {
-                    @Override
-                    public void doInTransactionWithoutResult(TransactionStatus status) {
-                        s_logger.debug("VmNetworkStatsTask is running...");
-
-                        SearchCriteria<HostVO> sc = createSearchCriteriaForHostTypeRoutingStateUpAndNotInMaintenance();
-                        List<HostVO> hosts = _hostDao.search(sc, null);
+                s_logger.debug("VmNetworkStatsTask is running...");
 
-                        for (HostVO host : hosts) {
-                            List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                            List<Long> vmIds = new ArrayList<Long>();
-
-                            for (UserVmVO vm : vms) {
-                                if (vm.getType() == VirtualMachine.Type.User) // user vm
-                                    vmIds.add(vm.getId());
-                            }
-
-                            HashMap<Long, List<VmNetworkStatsEntry>> vmNetworkStatsById = _userVmMgr.getVmNetworkStatistics(host.getId(), host.getName(), vmIds);
-                            if (vmNetworkStatsById == null)
-                                continue;
-
-                            Set<Long> vmIdSet = vmNetworkStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                List<VmNetworkStatsEntry> vmNetworkStats = vmNetworkStatsById.get(vmId);
-                                if (vmNetworkStats == null)
-                                    continue;
-                                UserVmVO userVm = _userVmDao.findById(vmId);
-                                if (userVm == null) {
-                                    s_logger.debug("Cannot find uservm with id: " + vmId + " , continue");
-                                    continue;
-                                }
-                                s_logger.debug("Now we are updating the user_statistics table for VM: " + userVm.getInstanceName()
-                                        + " after collecting vm network statistics from host: " + host.getName());
-                                for (VmNetworkStatsEntry vmNetworkStat : vmNetworkStats) {
-                                    SearchCriteria<NicVO> sc_nic = _nicDao.createSearchCriteria();
-                                    sc_nic.addAnd("macAddress", SearchCriteria.Op.EQ, vmNetworkStat.getMacAddress());
-                                    NicVO nic = _nicDao.search(sc_nic, null).get(0);
-                                    List<VlanVO> vlan = _vlanDao.listVlansByNetworkId(nic.getNetworkId());
-                                    if (vlan == null || vlan.size() == 0 || vlan.get(0).getVlanType() != VlanType.DirectAttached)
-                                        continue; // only get network statistics for DirectAttached network (shared networks in Basic zone and Advanced zone with/without SG)
-                                    UserStatisticsVO previousvmNetworkStats = _userStatsDao.findBy(userVm.getAccountId(), userVm.getDataCenterId(), nic.getNetworkId(),
-                                            nic.getIPv4Address(), vmId, "UserVm");
-                                    if (previousvmNetworkStats == null) {
-                                        previousvmNetworkStats = new UserStatisticsVO(userVm.getAccountId(), userVm.getDataCenterId(), nic.getIPv4Address(), vmId, "UserVm",
-                                                nic.getNetworkId());
-                                        _userStatsDao.persist(previousvmNetworkStats);
-                                    }
-                                    UserStatisticsVO vmNetworkStat_lock = _userStatsDao.lock(userVm.getAccountId(), userVm.getDataCenterId(), nic.getNetworkId(),
-                                            nic.getIPv4Address(), vmId, "UserVm");
+                SearchCriteria<HostVO> sc = createSearchCriteriaForHostTypeRoutingStateUpAndNotInMaintenance();
+                List<HostVO> hosts = _hostDao.search(sc, null);
 
-                                    if ((vmNetworkStat.getBytesSent() == 0) && (vmNetworkStat.getBytesReceived() == 0)) {
-                                        s_logger.debug("bytes sent and received are all 0. Not updating user_statistics");
-                                        continue;
-                                    }
+                List<ReportedVmStats<VmNetworkStatsEntry>> reported = collectUserVmStats(hosts, new HostStatsFanOut.HostStatsCollector<HostVmStats<VmNetworkStatsEntry>>() {
+                    @Override
+                    public HostVmStats<VmNetworkStatsEntry> collect(HostVO host) throws Exception {
+                        Map<Long, UserVmVO> vms = listRunningUserVms(host);
+                        HashMap<Long, List<VmNetworkStatsEntry>> vmNetworkStatsById = _userVmMgr.getVmNetworkStatistics(host.getId(), host.getName(), new ArrayList<Long>(vms.keySet()));
+                        return vmNetworkStatsById == null ? null : new HostVmStats<VmNetworkStatsEntry>(host, vms, vmNetworkStatsById);
+                    }
+                }, _vmNetworkStatsCycle);
+
+                final Map<Long, Boolean> directAttachedNetworks = new HashMap<Long, Boolean>();
+                int batchSize = Math.max(1, statsCollectionDbBatchSize.value());
+                for (int i = 0; i < reported.size(); i += batchSize) {
+                    final List<ReportedVmStats<VmNetworkStatsEntry>> batch = reported.subList(i, Math.min(i + batchSize, reported.size()));
+                    Transaction.execute(new TransactionCallbackNoReturn() {
+                        @Override
+                        public void doInTransactionWithoutResult(TransactionStatus status) {
+                            updateVmNetworkStats(batch, directAttachedNetworks);
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                s_logger.warn("Error while collecting vm network stats from hosts", e);
+            }
+        }
 
-                                    if (vmNetworkStat_lock == null) {
-                                        s_logger.warn("unable to find vm network stats from host for account: " + userVm.getAccountId() + " with vmId: " + userVm.getId()
-                                                + " and nicId:" + nic.getId());
-                                        continue;
-                                    }
+        private boolean isDirectAttached(long networkId, Map<Long, Boolean> directAttachedNetworks) {
+            Boolean directAttached = directAttachedNetworks.get(networkId);
+            if (directAttached == null) {
+                List<VlanVO> vlan = _vlanDao.listVlansByNetworkId(networkId);
+                directAttached = vlan != null && vlan.size() > 0 && vlan.get(0).getVlanType() == VlanType.DirectAttached;
+                directAttachedNetworks.put(networkId, directAttached);
+            }
+            return directAttached;
+        }
 
-                                    if (previousvmNetworkStats != null && ((previousvmNetworkStats.getCurrentBytesSent() != vmNetworkStat_lock.getCurrentBytesSent())
-                                            || (previousvmNetworkStats.getCurrentBytesReceived() != vmNetworkStat_lock.getCurrentBytesReceived()))) {
-                                        s_logger.debug("vm network stats changed from the time GetNmNetworkStatsCommand was sent. " + "Ignoring current answer. Host: "
-                                                + host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Sent(Bytes): " + vmNetworkStat.getBytesSent() + " Received(Bytes): "
-                                                + vmNetworkStat.getBytesReceived());
-                                        continue;
-                                    }
+        private void updateVmNetworkStats(List<ReportedVmStats<VmNetworkStatsEntry>> reported, Map<Long, Boolean> directAttachedNetworks) {
+            Set<String> macAddresses = new HashSet<String>();
+            Set<Long> accountIds = new HashSet<Long>();
+            Set<Long> vmIds = new HashSet<Long>();
+            for (ReportedVmStats<VmNetworkStatsEntry> vmNetworkStat : reported) {
+                macAddresses.add(vmNetworkStat.stats.getMacAddress());
+                accountIds.add(vmNetworkStat.vm.getAccountId());
+                vmIds.add(vmNetworkStat.vm.getId());
+            }
 
-                                    if (vmNetworkStat_lock.getCurrentBytesSent() > vmNetworkStat.getBytesSent()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Sent # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Reported: " + toHumanReadableSize(vmNetworkStat.getBytesSent()) + " Stored: "
-                                                    + toHumanReadableSize(vmNetworkStat_lock.getCurrentBytesSent()));
-                                        }
-                                        vmNetworkStat_lock.setNetBytesSent(vmNetworkStat_lock.getNetBytesSent() + vmNetworkStat_lock.getCurrentBytesSent());
-                                    }
-                                    vmNetworkStat_lock.setCurrentBytesSent(vmNetworkStat.getBytesSent());
+            Map<String, NicVO> nicsByMacAddress = new HashMap<String, NicVO>();
+            SearchCriteria<NicVO> sc_nic = _nicDao.createSearchCriteria();
+            sc_nic.addAnd("macAddress", SearchCriteria.Op.IN, macAddresses.toArray());
+            for (NicVO nic : _nicDao.search(sc_nic, null)) {
+                if (!nicsByMacAddress.containsKey(nic.getMacAddress())) {
+                    nicsByMacAddress.put(nic.getMacAddress(), nic);
+                }
+            }
+            Map<String, UserStatisticsVO> statsByNic = new HashMap<String, UserStatisticsVO>();
+            for (UserStatisticsVO stats : _userStatsDao.listBy(accountIds, vmIds, "UserVm")) {
+                statsByNic.put(stats.getAccountId() + "/" + stats.getDataCenterId() + "/" + stats.getNetworkId() + "/" + stats.getPublicIpAddress() + "/" + stats.getDeviceId(), stats);
+            }
 
-                                    if (vmNetworkStat_lock.getCurrentBytesReceived() > vmNetworkStat.getBytesReceived()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Received # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Reported: " + toHumanReadableSize(vmNetworkStat.getBytesReceived()) + " Stored: "
-                                                    + toHumanReadableSize(vmNetworkStat_lock.getCurrentBytesReceived()));
-                                        }
-                                        vmNetworkStat_lock.setNetBytesReceived(vmNetworkStat_lock.getNetBytesReceived() + vmNetworkStat_lock.getCurrentBytesReceived());
-                                    }
-                                    vmNetworkStat_lock.setCurrentBytesReceived(vmNetworkStat.getBytesReceived());
+            List<UserStatisticsVO> updated = new ArrayList<UserStatisticsVO>();
+            for (ReportedVmStats<VmNetworkStatsEntry> reportedStat : reported) {
+                VmNetworkStatsEntry vmNetworkStat = reportedStat.stats;
+                UserVmVO userVm = reportedStat.vm;
+                NicVO nic = nicsByMacAddress.get(vmNetworkStat.getMacAddress());
+                if (nic == null || !isDirectAttached(nic.getNetworkId(), directAttachedNetworks)) {
+                    continue; // only get network statistics for DirectAttached network (shared networks in Basic zone and Advanced zone with/without SG)
+                }
+                String key = userVm.getAccountId() + "/" + userVm.getDataCenterId() + "/" + nic.getNetworkId() + "/" + nic.getIPv4Address() + "/" + userVm.getId();
+                UserStatisticsVO vmNetworkStatsVO = statsByNic.get(key);
+                if (vmNetworkStatsVO == null) {
+                    vmNetworkStatsVO = _userStatsDao.persist(new UserStatisticsVO(userVm.getAccountId(), userVm.getDataCenterId(), nic.getIPv4Address(), userVm.getId(), "UserVm",
+                            nic.getNetworkId()));
+                    statsByNic.put(key, vmNetworkStatsVO);
+                }
 
-                                    if (!_dailyOrHourly) {
-                                        //update agg bytes
-                                        vmNetworkStat_lock.setAggBytesReceived(vmNetworkStat_lock.getNetBytesReceived() + vmNetworkStat_lock.getCurrentBytesReceived());
-                                        vmNetworkStat_lock.setAggBytesSent(vmNetworkStat_lock.getNetBytesSent() + vmNetworkStat_lock.getCurrentBytesSent());
-                                    }
+                if ((vmNetworkStat.getBytesSent() == 0) && (vmNetworkStat.getBytesReceived() == 0)) {
+                    s_logger.debug("bytes sent and received are all 0. Not updating user_statistics");
+                    continue;
+                }
 
-                                    _userStatsDao.update(vmNetworkStat_lock.getId(), vmNetworkStat_lock);
-                                }
-                            }
-                        }
-                    }
-                });
-            } catch (Exception e) {
-                s_logger.warn("Error while collecting vm network stats from hosts", e);
+                if (s_logger.isDebugEnabled() && (vmNetworkStatsVO.getCurrentBytesSent() > vmNetworkStat.getBytesSent()
+                        || vmNetworkStatsVO.getCurrentBytesReceived() > vmNetworkStat.getBytesReceived())) {
+                    s_logger.debug("Sent or received # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
+                            + reportedStat.host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Reported sent: " + toHumanReadableSize(vmNetworkStat.getBytesSent())
+                            + " received: " + toHumanReadableSize(vmNetworkStat.getBytesReceived()));
+                }
+                vmNetworkStatsVO.setCurrentBytesSent(vmNetworkStat.getBytesSent());
+                vmNetworkStatsVO.setCurrentBytesReceived(vmNetworkStat.getBytesReceived());
+                updated.add(vmNetworkStatsVO);
             }
+
+            // the net counters are carried over by the database, the aggregate ones are set here unless the usage job aggregates them
+            _userStatsDao.updateCurrentStats(updated, !_dailyOrHourly);
         }
     }
 
@@ -1532,21 +1722,6 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         influxDbConnection.write(batchPoints);
     }
 
-    /**
-     * Returns true if at least one of the current disk stats is different from the previous.</br>
-     * The considered disk stats are the following: bytes read, bytes write, IO read,  and IO write.
-     */
-    protected boolean isCurrentVmDiskStatsDifferentFromPrevious(VmDiskStatisticsVO previousVmDiskStats, VmDiskStatisticsVO currentVmDiskStats) {
-        if (previousVmDiskStats != null) {
-            boolean bytesReadDifferentFromPrevious = previousVmDiskStats.getCurrentBytesRead() != currentVmDiskStats.getCurrentBytesRead();
-            boolean bytesWriteDifferentFromPrevious = previousVmDiskStats.getCurrentBytesWrite() != currentVmDiskStats.getCurrentBytesWrite();
-            boolean ioReadDifferentFromPrevious = previousVmDiskStats.getCurrentIORead() != currentVmDiskStats.getCurrentIORead();
-            boolean ioWriteDifferentFromPrevious = previousVmDiskStats.getCurrentIOWrite() != currentVmDiskStats.getCurrentIOWrite();
-            return bytesReadDifferentFromPrevious || bytesWriteDifferentFromPrevious || ioReadDifferentFromPrevious || ioWriteDifferentFromPrevious;
-        }
-        return true;
-    }
-
     /**
      * Returns true if all the VmDiskStatsEntry are Zeros (Bytes read, Bytes write, IO read, and IO write must be all equals to zero)
      */
@@ -1593,7 +1768,9 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {vmDiskStatsInterval, vmDiskStatsIntervalMin, vmNetworkStatsInterval, vmNetworkStatsIntervalMin, StatsTimeout, statsOutputUri};
+        return new ConfigKey<?>[] {vmDiskStatsInterval, vmDiskStatsIntervalMin, vmNetworkStatsInterval, vmNetworkStatsIntervalMin, StatsTimeout, statsOutputUri,
+                statsCollectionMaxConcurrentHosts, statsCollectionMaxConcurrentHostsPerPod, statsCollectionDbBatchSize, statsHistoryTiers, statsHistoryMaxVms, statsHistoryMaxHosts,
+                statsHistoryPath};
     }
 
     public double getImageStoreCapacityThreshold() {
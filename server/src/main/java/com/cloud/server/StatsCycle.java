@@ -0,0 +1,127 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * StatsCycle keeps the duration of the cycles of a stats collection and
+ * counts the ones that took longer than the interval they are scheduled at.
+ */
+public class StatsCycle extends StandardMBean implements StatsCycleMBean {
+    private static final Logger s_logger = Logger.getLogger(StatsCycle.class);
+
+    private final String _name;
+    private final long _interval;
+
+    private long _cycles;
+    private long _overruns;
+    private long _lastStart;
+    private long _lastDuration;
+    private long _maxDuration;
+    private int _lastHosts;
+    private int _lastFailedHosts;
+    private int _lastSkippedHosts;
+
+    /**
+     * @param interval interval in milliseconds the collection is scheduled at.
+     */
+    public StatsCycle(String name, long interval) {
+        super(StatsCycleMBean.class, false);
+        _name = name;
+        _interval = interval;
+    }
+
+    /**
+     * @return true if the cycle overran the interval.
+     */
+    public boolean record(long start, long end, int hosts, int failedHosts, int skippedHosts) {
+        final long duration = end - start;
+        final boolean overrun = duration > _interval;
+        synchronized (this) {
+            _cycles++;
+            if (overrun) {
+                _overruns++;
+            }
+            _lastStart = start;
+            _lastDuration = duration;
+            _maxDuration = Math.max(_maxDuration, duration);
+            _lastHosts = hosts;
+            _lastFailedHosts = failedHosts;
+            _lastSkippedHosts = skippedHosts;
+        }
+        if (overrun) {
+            s_logger.warn(_name + " took " + duration + " ms for " + hosts + " hosts, longer than its interval of " + _interval + " ms; " + skippedHosts
+                    + " hosts were skipped");
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug(_name + " took " + duration + " ms for " + hosts + " hosts, " + failedHosts + " failed and " + skippedHosts + " were skipped");
+        }
+        return overrun;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public long getInterval() {
+        return _interval;
+    }
+
+    @Override
+    public synchronized long getCycleCount() {
+        return _cycles;
+    }
+
+    @Override
+    public synchronized long getOverrunCount() {
+        return _overruns;
+    }
+
+    @Override
+    public synchronized long getLastCycleStart() {
+        return _lastStart;
+    }
+
+    @Override
+    public synchronized long getLastCycleDuration() {
+        return _lastDuration;
+    }
+
+    @Override
+    public synchronized long getMaxCycleDuration() {
+        return _maxDuration;
+    }
+
+    @Override
+    public synchronized int getLastHostCount() {
+        return _lastHosts;
+    }
+
+    @Override
+    public synchronized int getLastFailedHostCount() {
+        return _lastFailedHosts;
+    }
+
+    @Override
+    public synchronized int getLastSkippedHostCount() {
+        return _lastSkippedHosts;
+    }
+}
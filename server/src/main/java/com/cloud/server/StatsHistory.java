@@ -0,0 +1,530 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * StatsHistory keeps the recent samples of a fixed set of metrics for a
+ * bounded number of entities, such as vms or hosts.
+ *
+ * Every entity has, for each tier, a ring buffer of slots per metric.  A slot
+ * sums the samples falling in the same interval of the tier, so coarser tiers
+ * keep a longer history in the same number of slots.  The buffers are
+ * primitive values laid out in fixed size blocks, one block per entity, and
+ * are allocated by segments of entities as they are needed.  When a file is
+ * given, the segments are mapped from that file so that the history survives
+ * a restart of the management server.
+ */
+public class StatsHistory implements Closeable {
+    private static final Logger s_logger = Logger.getLogger(StatsHistory.class);
+
+    private static final int MAGIC = 0x53544853;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int ENTITIES_PER_SEGMENT = 1024;
+    private static final int ENTITY_HEADER_SIZE = 16;
+    private static final int LOCK_COUNT = 64;
+
+    public static class Tier {
+        private final long _resolution;
+        private final int _slots;
+
+        /**
+         * @param resolution length in milliseconds of the interval of a slot, at least one second.
+         * @param slots number of intervals kept.
+         */
+        public Tier(long resolution, int slots) {
+            if (resolution < 1000 || slots <= 0) {
+                throw new IllegalArgumentException("Invalid stats history tier of " + slots + " slots of " + resolution + " ms");
+            }
+            _resolution = resolution;
+            _slots = slots;
+        }
+
+        public long getResolution() {
+            return _resolution;
+        }
+
+        public int getSlots() {
+            return _slots;
+        }
+
+        /**
+         * @return how far back in milliseconds the tier goes.
+         */
+        public long getRetention() {
+            return _resolution * _slots;
+        }
+
+        @Override
+        public String toString() {
+            return _resolution / 1000 + ":" + _slots;
+        }
+    }
+
+    /**
+     * The samples of an entity over a period, one entry per interval having samples.
+     */
+    public static class Series {
+        private final long _resolution;
+        private final long[] _timestamps;
+        private final int[] _samples;
+        private final float[][] _sums;
+        private final int _size;
+
+        Series(long resolution, long[] timestamps, int[] samples, float[][] sums, int size) {
+            _resolution = resolution;
+            _timestamps = timestamps;
+            _samples = samples;
+            _sums = sums;
+            _size = size;
+        }
+
+        public long getResolution() {
+            return _resolution;
+        }
+
+        public int size() {
+            return _size;
+        }
+
+        /**
+         * @return start of the interval in milliseconds.
+         */
+        public long getTimestamp(int index) {
+            return _timestamps[index];
+        }
+
+        public int getSamples(int index) {
+            return _samples[index];
+        }
+
+        public double getSum(int metric, int index) {
+            return _sums[metric][index];
+        }
+
+        public double getAverage(int metric, int index) {
+            return _sums[metric][index] / _samples[index];
+        }
+    }
+
+    private final int _metrics;
+    private final Tier[] _tiers;
+    private final int[] _tierOffsets;
+    private final int _blockSize;
+    private final int _maxEntities;
+    private final FileChannel _channel;
+
+    private final List<ByteBuffer> _segments = new ArrayList<ByteBuffer>();
+    private final Map<Long, Integer> _index = new HashMap<Long, Integer>();
+    private final Deque<Integer> _free = new ArrayDeque<Integer>();
+    private int _next;
+    private long _dropped;
+    private final Object[] _locks = new Object[LOCK_COUNT];
+
+    /**
+     * Creates a history kept in memory only.
+     */
+    public StatsHistory(int metrics, Tier[] tiers, int maxEntities) {
+        this(metrics, tiers, maxEntities, null);
+    }
+
+    /**
+     * Creates a history kept in the given file.  The history already in the
+     * file is kept if it has been written with the same metrics and tiers.
+     * @param file null to keep the history in memory only.
+     */
+    public StatsHistory(int metrics, Tier[] tiers, int maxEntities, File file) {
+        _metrics = metrics;
+        _tiers = tiers.clone();
+        Arrays.sort(_tiers, new Comparator<Tier>() {
+            @Override
+            public int compare(Tier tier1, Tier tier2) {
+                return Long.compare(tier1.getResolution(), tier2.getResolution());
+            }
+        });
+        _tierOffsets = new int[_tiers.length];
+        int offset = ENTITY_HEADER_SIZE;
+        for (int i = 0; i < _tiers.length; i++) {
+            _tierOffsets[i] = offset;
+            // bucket and sample count of every slot, then the sums of every metric
+            offset += _tiers[i].getSlots() * (8 + 4 * metrics);
+        }
+        _blockSize = (offset + 7) & ~7;
+        _maxEntities = maxEntities;
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            _locks[i] = new Object();
+        }
+        _channel = file == null ? null : open(file);
+    }
+
+    /**
+     * Parses tiers written as resolution in seconds and number of slots,
+     * for example 60:60,300:288 for 1 hour at 1 minute and 1 day at 5 minutes.
+     */
+    public static Tier[] parseTiers(String tiers) {
+        final List<Tier> parsed = new ArrayList<Tier>();
+        for (final String tier : tiers.split(",")) {
+            if (tier.trim().isEmpty()) {
+                continue;
+            }
+            final String[] parts = tier.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid stats history tier " + tier + ", expected <resolution in seconds>:<number of slots>");
+            }
+            parsed.add(new Tier(Long.parseLong(parts[0].trim()) * 1000L, Integer.parseInt(parts[1].trim())));
+        }
+        return parsed.toArray(new Tier[parsed.size()]);
+    }
+
+    private FileChannel open(File file) {
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            writeHeader(header);
+            final ByteBuffer existing = ByteBuffer.allocate(HEADER_SIZE);
+            final long segmentSize = (long)_blockSize * ENTITIES_PER_SEGMENT;
+            long segments = 0;
+            if (channel.size() >= HEADER_SIZE && channel.read(existing, 0) == HEADER_SIZE && existing.rewind().equals(header.rewind())) {
+                segments = (channel.size() - HEADER_SIZE) / segmentSize;
+            } else {
+                if (channel.size() > 0) {
+                    s_logger.info("Discarding the stats history in " + file + " as it was written with other metrics or tiers");
+                }
+                channel.truncate(0);
+                channel.write(header.rewind(), 0);
+            }
+            for (int i = 0; i < segments; i++) {
+                _segments.add(channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + i * segmentSize, segmentSize));
+            }
+            _next = (int)Math.min(segments * ENTITIES_PER_SEGMENT, _maxEntities);
+            for (int index = 0; index < _next; index++) {
+                final long entityId = segment(index).getLong(offset(index));
+                if (entityId != 0) {
+                    _index.put(entityId, index);
+                } else {
+                    _free.push(index);
+                }
+            }
+            return channel;
+        } catch (IOException e) {
+            s_logger.warn("Unable to keep the stats history in " + file + ", keeping it in memory only", e);
+            _segments.clear();
+            _index.clear();
+            _free.clear();
+            _next = 0;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    private void writeHeader(ByteBuffer header) {
+        header.putInt(MAGIC).putInt(VERSION).putInt(_metrics).putInt(_blockSize).putInt(_tiers.length);
+        for (final Tier tier : _tiers) {
+            header.putLong(tier.getResolution()).putInt(tier.getSlots());
+        }
+    }
+
+    private ByteBuffer segment(int index) {
+        return _segments.get(index / ENTITIES_PER_SEGMENT);
+    }
+
+    private int offset(int index) {
+        return (index % ENTITIES_PER_SEGMENT) * _blockSize;
+    }
+
+    private Object lock(int index) {
+        return _locks[index % LOCK_COUNT];
+    }
+
+    /**
+     * @return the index of the block of the entity, -1 if there is none.
+     */
+    private int indexOf(long entityId, boolean create) {
+        synchronized (_index) {
+            Integer index = _index.get(entityId);
+            if (index != null || !create) {
+                return index == null ? -1 : index;
+            }
+            if (!_free.isEmpty()) {
+                index = _free.pop();
+            } else if (_next < _maxEntities) {
+                index = _next++;
+                if (index / ENTITIES_PER_SEGMENT >= _segments.size()) {
+                    if (!addSegment()) {
+                        _next--;
+                        _dropped++;
+                        return -1;
+                    }
+                }
+            } else {
+                _dropped++;
+                return -1;
+            }
+            final ByteBuffer segment = segment(index);
+            final int offset = offset(index);
+            synchronized (lock(index)) {
+                for (int i = 0; i < _blockSize; i += 8) {
+                    segment.putLong(offset + i, 0);
+                }
+                segment.putLong(offset, entityId);
+            }
+            _index.put(entityId, index);
+            return index;
+        }
+    }
+
+    private boolean addSegment() {
+        final int size = _blockSize * ENTITIES_PER_SEGMENT;
+        if (_channel == null) {
+            _segments.add(ByteBuffer.allocate(size));
+            return true;
+        }
+        try {
+            final MappedByteBuffer segment = _channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long)_segments.size() * size, size);
+            _segments.add(segment);
+            return true;
+        } catch (IOException e) {
+            s_logger.warn("Unable to grow the stats history file", e);
+            return false;
+        }
+    }
+
+    /**
+     * Adds a sample of every metric of the entity.  A sample older than the
+     * interval a slot holds is not added to that slot.
+     * @return false if the history is full and does not know the entity.
+     */
+    public boolean add(long entityId, long timestamp, double[] values) {
+        final int index = indexOf(entityId, true);
+        if (index < 0) {
+            return false;
+        }
+        final ByteBuffer segment = segment(index);
+        final int offset = offset(index);
+        synchronized (lock(index)) {
+            if (segment.getLong(offset) != entityId) {
+                return false;
+            }
+            if (timestamp > segment.getLong(offset + 8)) {
+                segment.putLong(offset + 8, timestamp);
+            }
+            for (int t = 0; t < _tiers.length; t++) {
+                final Tier tier = _tiers[t];
+                final int bucket = (int)(timestamp / tier.getResolution());
+                final int slot = bucket % tier.getSlots();
+                final int bucketPos = offset + _tierOffsets[t] + slot * 4;
+                final int countPos = bucketPos + tier.getSlots() * 4;
+                final int sumPos = offset + _tierOffsets[t] + tier.getSlots() * 8 + slot * 4;
+                final int stored = segment.getInt(bucketPos);
+                if (stored > bucket) {
+                    continue;
+                }
+                if (stored != bucket) {
+                    segment.putInt(bucketPos, bucket);
+                    segment.putInt(countPos, 0);
+                    for (int m = 0; m < _metrics; m++) {
+                        segment.putFloat(sumPos + m * tier.getSlots() * 4, 0);
+                    }
+                }
+                segment.putInt(countPos, segment.getInt(countPos) + 1);
+                for (int m = 0; m < _metrics && m < values.length; m++) {
+                    final int pos = sumPos + m * tier.getSlots() * 4;
+                    segment.putFloat(pos, segment.getFloat(pos) + (float)values[m]);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the samples between from and to, inclusive, from the finest tier
+     * that is at least as coarse as the resolution asked and still goes back
+     * to from, or else from the coarsest tier.
+     * @param resolution resolution in milliseconds asked for, 0 for the finest.
+     * @return null if the entity has no history.
+     */
+    public Series query(long entityId, long from, long to, long resolution) {
+        final int index = indexOf(entityId, false);
+        if (index < 0 || _tiers.length == 0) {
+            return null;
+        }
+        final ByteBuffer segment = segment(index);
+        final int offset = offset(index);
+        synchronized (lock(index)) {
+            if (segment.getLong(offset) != entityId) {
+                return null;
+            }
+            final long last = segment.getLong(offset + 8);
+            int t = _tiers.length - 1;
+            for (int i = 0; i < _tiers.length; i++) {
+                if (_tiers[i].getResolution() >= resolution && from >= last - _tiers[i].getRetention()) {
+                    t = i;
+                    break;
+                }
+            }
+            final Tier tier = _tiers[t];
+            final int slots = tier.getSlots();
+            final long lastBucket = last / tier.getResolution();
+            final long firstBucket = Math.max(from / tier.getResolution(), lastBucket - slots + 1);
+            final long endBucket = Math.min(to / tier.getResolution(), lastBucket);
+            final int length = (int)Math.max(0, Math.min(slots, endBucket - firstBucket + 1));
+
+            final long[] timestamps = new long[length];
+            final int[] samples = new int[length];
+            final float[][] sums = new float[_metrics][length];
+            int size = 0;
+            for (long bucket = firstBucket; bucket <= endBucket; bucket++) {
+                final int slot = (int)(bucket % slots);
+                final int bucketPos = offset + _tierOffsets[t] + slot * 4;
+                final int count = segment.getInt(bucketPos + slots * 4);
+                if (segment.getInt(bucketPos) != bucket || count == 0) {
+                    continue;
+                }
+                timestamps[size] = bucket * tier.getResolution();
+                samples[size] = count;
+                final int sumPos = offset + _tierOffsets[t] + slots * 8 + slot * 4;
+                for (int m = 0; m < _metrics; m++) {
+                    sums[m][size] = segment.getFloat(sumPos + m * slots * 4);
+                }
+                size++;
+            }
+            return new Series(tier.getResolution(), timestamps, samples, sums, size);
+        }
+    }
+
+    public void remove(long entityId) {
+        synchronized (_index) {
+            final Integer index = _index.remove(entityId);
+            if (index == null) {
+                return;
+            }
+            synchronized (lock(index)) {
+                segment(index).putLong(offset(index), 0);
+            }
+            _free.push(index);
+        }
+    }
+
+    /**
+     * Removes the entities having no sample since notBefore.
+     * @return the number of entities removed.
+     */
+    public int expire(long notBefore) {
+        int removed = 0;
+        synchronized (_index) {
+            for (final Iterator<Map.Entry<Long, Integer>> it = _index.entrySet().iterator(); it.hasNext();) {
+                final int index = it.next().getValue();
+                synchronized (lock(index)) {
+                    final ByteBuffer segment = segment(index);
+                    if (segment.getLong(offset(index) + 8) >= notBefore) {
+                        continue;
+                    }
+                    segment.putLong(offset(index), 0);
+                }
+                it.remove();
+                _free.push(index);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return how far back in milliseconds the coarsest tier goes.
+     */
+    public long getRetention() {
+        long retention = 0;
+        for (final Tier tier : _tiers) {
+            retention = Math.max(retention, tier.getRetention());
+        }
+        return retention;
+    }
+
+    public int getMetricCount() {
+        return _metrics;
+    }
+
+    public int size() {
+        synchronized (_index) {
+            return _index.size();
+        }
+    }
+
+    public int getMaxEntities() {
+        return _maxEntities;
+    }
+
+    /**
+     * @return number of samples not added because the history was full.
+     */
+    public long getDroppedCount() {
+        synchronized (_index) {
+            return _dropped;
+        }
+    }
+
+    /**
+     * @return bytes allocated or mapped for the entities.
+     */
+    public long getAllocatedBytes() {
+        synchronized (_index) {
+            return (long)_segments.size() * _blockSize * ENTITIES_PER_SEGMENT;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (_channel == null) {
+            return;
+        }
+        synchronized (_index) {
+            for (final ByteBuffer segment : _segments) {
+                ((MappedByteBuffer)segment).force();
+            }
+        }
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            s_logger.warn("Unable to close the stats history file", e);
+        }
+    }
+}
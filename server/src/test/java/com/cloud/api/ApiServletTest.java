@@ -18,7 +18,10 @@ package com.cloud.api;
 
 import static org.mockito.ArgumentMatchers.nullable;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
@@ -28,12 +31,18 @@ import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.ApiErrorCode;
+import org.apache.cloudstack.api.ApiServerService;
+import org.apache.cloudstack.api.ServerApiException;
 import org.apache.cloudstack.api.auth.APIAuthenticationManager;
 import org.apache.cloudstack.api.auth.APIAuthenticationType;
 import org.apache.cloudstack.api.auth.APIAuthenticator;
@@ -50,6 +59,7 @@ import com.cloud.server.ManagementServer;
 import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.User;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ApiServletTest {
@@ -182,7 +192,7 @@ public class ApiServletTest {
         Mockito.verify(response).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
         Mockito.verify(apiServer, Mockito.never()).handleRequest(
                 Mockito.anyMap(), Mockito.anyString(),
-                Mockito.any(StringBuilder.class));
+                Mockito.any(StringBuilder.class), Mockito.any(ApiServerService.ResponseOutput.class));
     }
 
     @SuppressWarnings("unchecked")
@@ -196,7 +206,90 @@ public class ApiServletTest {
         Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
         Mockito.verify(apiServer, Mockito.times(1)).handleRequest(
                 Mockito.anyMap(), Mockito.anyString(),
-                Mockito.any(StringBuilder.class));
+                Mockito.any(StringBuilder.class), Mockito.any(ApiServerService.ResponseOutput.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void processRequestInContextStreamsResponse() {
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(
+                apiServer.verifyRequest(nullable(Map.class), nullable(Long.class), nullable(InetAddress.class)))
+        .thenReturn(true);
+        Mockito.when(apiServer.handleRequest(Mockito.anyMap(), Mockito.anyString(),
+                Mockito.any(StringBuilder.class), Mockito.any(ApiServerService.ResponseOutput.class)))
+        .thenAnswer(invocation -> {
+            ApiServerService.ResponseOutput output = invocation.getArgument(3);
+            output.open().write("<listvirtualmachinesresponse/>");
+            return null;
+        });
+        servlet.processRequestInContext(request, response);
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
+        Assert.assertEquals("<listvirtualmachinesresponse/>", responseWriter.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void processRequestInContextAbortsFailedStreamedResponse() {
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(
+                apiServer.verifyRequest(nullable(Map.class), nullable(Long.class), nullable(InetAddress.class)))
+        .thenReturn(true);
+        Mockito.when(apiServer.handleRequest(Mockito.anyMap(), Mockito.anyString(),
+                Mockito.any(StringBuilder.class), Mockito.any(ApiServerService.ResponseOutput.class)))
+        .thenAnswer(invocation -> {
+            ApiServerService.ResponseOutput output = invocation.getArgument(3);
+            output.open().write("<listvirtualmachinesresponse>");
+            throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "failed half way");
+        });
+        try {
+            servlet.processRequestInContext(request, response);
+            Assert.fail("a response failing half way must not be completed");
+        } catch (CloudRuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof ServerApiException);
+        }
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(response, Mockito.never()).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        Assert.assertEquals("<listvirtualmachinesresponse>", responseWriter.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void processRequestInContextStreamsGzipResponse() throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        });
+        Mockito.lenient().when(request.getHeader(Mockito.eq("Accept-Encoding"))).thenReturn("gzip, deflate");
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(
+                apiServer.verifyRequest(nullable(Map.class), nullable(Long.class), nullable(InetAddress.class)))
+        .thenReturn(true);
+        Mockito.when(apiServer.handleRequest(Mockito.anyMap(), Mockito.anyString(),
+                Mockito.any(StringBuilder.class), Mockito.any(ApiServerService.ResponseOutput.class)))
+        .thenAnswer(invocation -> {
+            ApiServerService.ResponseOutput output = invocation.getArgument(3);
+            output.open().write("<listvirtualmachinesresponse/>");
+            return null;
+        });
+        servlet.processRequestInContext(request, response);
+        Mockito.verify(response).setHeader("Content-Encoding", "gzip");
+
+        char[] buffer = new char[64];
+        int length = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(body.toByteArray())), "UTF-8").read(buffer);
+        Assert.assertEquals("<listvirtualmachinesresponse/>", new String(buffer, 0, length));
     }
 
     @SuppressWarnings("unchecked")
@@ -0,0 +1,141 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cloudstack.api.BaseResponse;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.cloud.api.ApiDBUtils;
+import com.cloud.serializer.Param;
+import com.cloud.server.ManagementServer;
+import com.cloud.utils.HttpUtils;
+import com.google.gson.annotations.SerializedName;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApiResponseSerializerTest {
+
+    @Mock
+    ManagementServer managementServer;
+
+    static class TestResponse extends BaseResponse {
+        @SerializedName("id")
+        @Param(description = "the id")
+        private String id;
+
+        @SerializedName("name")
+        @Param(description = "the name")
+        private String name;
+
+        TestResponse(String id, String name) {
+            super("testobject");
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        Field smsField = ApiDBUtils.class.getDeclaredField("s_ms");
+        smsField.setAccessible(true);
+        smsField.set(null, managementServer);
+        Mockito.lenient().when(managementServer.getVersion()).thenReturn("LATEST-AND-GREATEST");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        Field smsField = ApiDBUtils.class.getDeclaredField("s_ms");
+        smsField.setAccessible(true);
+        smsField.set(null, null);
+    }
+
+    private ListResponse<TestResponse> createListResponse(String nextPageToken) {
+        List<TestResponse> responses = new ArrayList<TestResponse>();
+        responses.add(new TestResponse("1", "a<b"));
+        responses.add(new TestResponse("2", "c"));
+        ListResponse<TestResponse> response = new ListResponse<TestResponse>();
+        response.setResponses(responses, nextPageToken);
+        response.setResponseName("listtestsresponse");
+        return response;
+    }
+
+    @Test
+    public void testListResponseJSON() {
+        Assert.assertEquals("{\"listtestsresponse\":{\"count\":2,\"testobject\":[{\"id\":\"1\",\"name\":\"a<b\"},{\"id\":\"2\",\"name\":\"c\"}]}}",
+                ApiResponseSerializer.toSerializedString(createListResponse(null), HttpUtils.RESPONSE_TYPE_JSON));
+        Assert.assertEquals("{\"listtestsresponse\":{\"count\":2,\"testobject\":[{\"id\":\"1\",\"name\":\"a<b\"},{\"id\":\"2\",\"name\":\"c\"}],\"nextpagetoken\":\"token\"}}",
+                ApiResponseSerializer.toSerializedString(createListResponse("token"), HttpUtils.RESPONSE_TYPE_JSON));
+    }
+
+    @Test
+    public void testListResponseXML() {
+        Assert.assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><listtestsresponse cloud-stack-version=\"LATEST-AND-GREATEST\"><count>2</count>"
+                + "<testobject><id>1</id><name>a&lt;b</name></testobject><testobject><id>2</id><name>c</name></testobject>"
+                + "<nextpagetoken>token</nextpagetoken></listtestsresponse>",
+                ApiResponseSerializer.toSerializedString(createListResponse("token"), HttpUtils.RESPONSE_TYPE_XML));
+    }
+
+    @Test
+    public void testStreamingMatchesSerializedString() throws Exception {
+        for (String responseType : new String[] {HttpUtils.RESPONSE_TYPE_JSON, HttpUtils.RESPONSE_TYPE_XML}) {
+            StringBuilder log = new StringBuilder();
+            StringWriter out = new StringWriter();
+            ApiResponseSerializer.writeSerializedStringWithSecureLogs(createListResponse("token"), responseType, out, log);
+            Assert.assertEquals(ApiResponseSerializer.toSerializedString(createListResponse("token"), responseType), out.toString());
+            Assert.assertEquals(out.toString(), log.toString());
+        }
+    }
+
+    @Test
+    public void testLogOfLongListIsTruncated() throws Exception {
+        List<TestResponse> responses = new ArrayList<TestResponse>();
+        for (int i = 0; i < ApiResponseSerializer.MAX_LOGGED_LIST_LENGTH / 10; i++) {
+            responses.add(new TestResponse(Integer.toString(i), "name"));
+        }
+        ListResponse<TestResponse> response = new ListResponse<TestResponse>();
+        response.setResponses(responses);
+        response.setResponseName("listtestsresponse");
+
+        for (String responseType : new String[] {HttpUtils.RESPONSE_TYPE_JSON, HttpUtils.RESPONSE_TYPE_XML}) {
+            StringBuilder log = new StringBuilder();
+            StringWriter out = new StringWriter();
+            ApiResponseSerializer.writeSerializedStringWithSecureLogs(response, responseType, out, log);
+            Assert.assertEquals(ApiResponseSerializer.toSerializedString(response, responseType), out.toString());
+            Assert.assertTrue(out.toString().contains("<id>" + (responses.size() - 1) + "</id>") || out.toString().contains("\"id\":\"" + (responses.size() - 1) + "\""));
+            Assert.assertTrue(log.length() < ApiResponseSerializer.MAX_LOGGED_LIST_LENGTH + 1024);
+            Assert.assertTrue(log.toString().contains("..."));
+        }
+    }
+
+    @Test
+    public void testUnescape() {
+        Assert.assertEquals("plain", ApiResponseSerializer.unescape("plain"));
+        Assert.assertEquals("a<b>c\\", ApiResponseSerializer.unescape("a\\u003cb\\u003Ec\\u005c"));
+    }
+}
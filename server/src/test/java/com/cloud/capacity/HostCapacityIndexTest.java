@@ -0,0 +1,146 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.Pair;
+
+public class HostCapacityIndexTest {
+    private static final long ZONE = 1L;
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    private HostCapacityIndex index;
+    private List<CapacityVO> capacities;
+    private Map<Long, Double> cpuRatios;
+    private Map<Long, Double> memoryRatios;
+
+    @Before
+    public void setUp() {
+        index = new HostCapacityIndex();
+        capacities = new ArrayList<CapacityVO>();
+        cpuRatios = new HashMap<Long, Double>();
+        memoryRatios = new HashMap<Long, Double>();
+        for (long clusterId = 10; clusterId <= 12; clusterId++) {
+            cpuRatios.put(clusterId, 1.0);
+            memoryRatios.put(clusterId, 1.0);
+        }
+        // cluster 10 in pod 100 is half used, cluster 11 in pod 100 is almost full, cluster 12 in pod 101 is empty
+        addHost(1, 100, 10, 4000, 2000, 8 * GB, 4 * GB);
+        addHost(2, 100, 10, 4000, 2000, 8 * GB, 4 * GB);
+        addHost(3, 100, 11, 4000, 3500, 8 * GB, 7 * GB);
+        addHost(4, 101, 12, 4000, 0, 8 * GB, 0);
+    }
+
+    private CapacityVO capacity(long hostId, long podId, long clusterId, long used, long total, short type) {
+        return new CapacityVO(hostId, ZONE, podId, clusterId, used, total, type);
+    }
+
+    private void addHost(long hostId, long podId, long clusterId, long totalCpu, long usedCpu, long totalMemory, long usedMemory) {
+        capacities.add(capacity(hostId, podId, clusterId, usedCpu, totalCpu, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(capacity(hostId, podId, clusterId, usedMemory, totalMemory, Capacity.CAPACITY_TYPE_MEMORY));
+    }
+
+    private void load() {
+        index.load(ZONE, capacities, Arrays.asList(10L, 11L, 12L), Arrays.asList(100L, 101L), cpuRatios, memoryRatios, 1000L);
+    }
+
+    @Test
+    public void notLoadedZoneReturnsNull() {
+        Assert.assertFalse(index.isLoaded(ZONE, 0));
+        Assert.assertNull(index.orderClustersByAggregateCapacity(ZONE, null, Capacity.CAPACITY_TYPE_CPU));
+        Assert.assertNull(index.orderPodsByAggregateCapacity(ZONE, Capacity.CAPACITY_TYPE_CPU));
+    }
+
+    @Test
+    public void clustersOrderedByAggregateCapacity() {
+        load();
+        Assert.assertTrue(index.isLoaded(ZONE, 1000L));
+        Assert.assertFalse(index.isLoaded(ZONE, 1001L));
+
+        Pair<List<Long>, Map<Long, Double>> result = index.orderClustersByAggregateCapacity(ZONE, null, Capacity.CAPACITY_TYPE_CPU);
+        Assert.assertEquals(Arrays.asList(12L, 10L, 11L), result.first());
+        Assert.assertEquals(0.5, result.second().get(10L), 0.0001);
+        Assert.assertEquals(0.875, result.second().get(11L), 0.0001);
+
+        result = index.orderClustersByAggregateCapacity(ZONE, 100L, Capacity.CAPACITY_TYPE_MEMORY);
+        Assert.assertEquals(Arrays.asList(10L, 11L), result.first());
+    }
+
+    @Test
+    public void overcommitRatioAndClustersWithoutRatio() {
+        cpuRatios.put(11L, 4.0);
+        cpuRatios.remove(12L);
+        load();
+
+        // like the query joining cluster_details, a cluster without ratio is left out
+        Pair<List<Long>, Map<Long, Double>> result = index.orderClustersByAggregateCapacity(ZONE, null, Capacity.CAPACITY_TYPE_CPU);
+        Assert.assertEquals(Arrays.asList(11L, 10L), result.first());
+        Assert.assertEquals(3500.0 / 16000, result.second().get(11L), 0.0001);
+    }
+
+    @Test
+    public void podsOrderedByAggregateCapacity() {
+        load();
+        Pair<List<Long>, Map<Long, Double>> result = index.orderPodsByAggregateCapacity(ZONE, Capacity.CAPACITY_TYPE_CPU);
+        Assert.assertEquals(Arrays.asList(101L, 100L), result.first());
+        Assert.assertEquals(7500.0 / 12000, result.second().get(100L), 0.0001);
+    }
+
+    @Test
+    public void updateIsVisibleToPlanners() {
+        load();
+        index.update(capacity(4, 101, 12, 4000, 4000, Capacity.CAPACITY_TYPE_CPU));
+
+        Pair<List<Long>, Map<Long, Double>> result = index.orderClustersByAggregateCapacity(ZONE, null, Capacity.CAPACITY_TYPE_CPU);
+        Assert.assertEquals(Arrays.asList(10L, 11L, 12L), result.first());
+        Assert.assertTrue(index.isLoaded(ZONE, 1000L));
+    }
+
+    @Test
+    public void updateOfUnknownClusterExpiresZone() {
+        load();
+        index.update(capacity(5, 100, 13, 0, 4000, Capacity.CAPACITY_TYPE_CPU));
+        Assert.assertFalse(index.isLoaded(ZONE, 1000L));
+    }
+
+    @Test
+    public void updateWhileLoadingIsKept() {
+        index.startLoading(ZONE);
+        index.update(capacity(4, 101, 12, 4000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        load();
+
+        Pair<List<Long>, Map<Long, Double>> result = index.orderClustersByAggregateCapacity(ZONE, null, Capacity.CAPACITY_TYPE_CPU);
+        Assert.assertEquals(Arrays.asList(10L, 11L, 12L), result.first());
+    }
+
+    @Test
+    public void invalidateCluster() {
+        load();
+        index.invalidateCluster(11L);
+        Assert.assertFalse(index.isLoaded(ZONE, 0));
+    }
+}
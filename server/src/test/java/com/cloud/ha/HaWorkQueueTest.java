@@ -0,0 +1,121 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.vm.VirtualMachine;
+
+public class HaWorkQueueTest {
+    private HaWorkQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new HaWorkQueue();
+    }
+
+    private HaWorkVO work(long id, WorkType workType, VirtualMachine.Type type) {
+        HaWorkVO work = Mockito.mock(HaWorkVO.class);
+        Mockito.when(work.getId()).thenReturn(id);
+        Mockito.when(work.getWorkType()).thenReturn(workType);
+        Mockito.when(work.getType()).thenReturn(type);
+        return work;
+    }
+
+    @Test
+    public void restartsOfSystemVmsGoFirst() {
+        HaWorkVO migration = work(1, WorkType.Migration, VirtualMachine.Type.User);
+        HaWorkVO userVm = work(2, WorkType.HA, VirtualMachine.Type.User);
+        HaWorkVO stop = work(3, WorkType.Stop, VirtualMachine.Type.User);
+        HaWorkVO router = work(4, WorkType.HA, VirtualMachine.Type.DomainRouter);
+        queue.add(migration, null);
+        queue.add(userVm, null);
+        queue.add(stop, null);
+        queue.add(router, null);
+
+        Assert.assertSame(router, queue.poll(10, 0));
+        Assert.assertSame(userVm, queue.poll(10, 0));
+        Assert.assertSame(stop, queue.poll(10, 0));
+        Assert.assertSame(migration, queue.poll(10, 0));
+        Assert.assertNull(queue.poll(10, 0));
+        Assert.assertEquals(4, queue.getRunningCount());
+    }
+
+    @Test
+    public void workersAreNotExceeded() {
+        queue.add(work(1, WorkType.HA, VirtualMachine.Type.User), null);
+        queue.add(work(2, WorkType.HA, VirtualMachine.Type.User), null);
+
+        HaWorkVO first = queue.poll(1, 0);
+        Assert.assertNotNull(first);
+        Assert.assertNull(queue.poll(1, 0));
+
+        queue.done(first);
+        Assert.assertNotNull(queue.poll(1, 0));
+        Assert.assertEquals(0, queue.getQueuedCount());
+    }
+
+    @Test
+    public void clusterBudgetLetsOtherClustersThrough() {
+        HaWorkVO first = work(1, WorkType.HA, VirtualMachine.Type.User);
+        HaWorkVO sameCluster = work(2, WorkType.HA, VirtualMachine.Type.User);
+        HaWorkVO otherCluster = work(3, WorkType.HA, VirtualMachine.Type.User);
+        queue.add(first, 10L);
+        queue.add(sameCluster, 10L);
+        queue.add(otherCluster, 11L);
+
+        Assert.assertSame(first, queue.poll(10, 1));
+        Assert.assertSame(otherCluster, queue.poll(10, 1));
+        Assert.assertNull(queue.poll(10, 1));
+
+        queue.done(first);
+        Assert.assertSame(sameCluster, queue.poll(10, 1));
+    }
+
+    @Test
+    public void clustersAtBudgetCountQueuedWork() {
+        queue.add(work(1, WorkType.HA, VirtualMachine.Type.User), 10L);
+        queue.add(work(2, WorkType.HA, VirtualMachine.Type.User), 10L);
+        queue.add(work(3, WorkType.HA, VirtualMachine.Type.User), 11L);
+        Assert.assertNotNull(queue.poll(10, 2));
+
+        Assert.assertEquals(Collections.singleton(10L), queue.getClustersAtBudget(2));
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(10L, 11L)), queue.getClustersAtBudget(1));
+        Assert.assertTrue(queue.getClustersAtBudget(0).isEmpty());
+    }
+
+    @Test
+    public void drainLeavesRunningWork() {
+        HaWorkVO running = work(1, WorkType.HA, VirtualMachine.Type.User);
+        HaWorkVO queued = work(2, WorkType.HA, VirtualMachine.Type.User);
+        queue.add(running, null);
+        queue.add(queued, null);
+        Assert.assertSame(running, queue.poll(1, 0));
+
+        Assert.assertEquals(Collections.singletonList(queued), queue.drain());
+        Assert.assertEquals(0, queue.getQueuedCount());
+        Assert.assertEquals(1, queue.getRunningCount());
+    }
+}
@@ -20,7 +20,6 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
-import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -113,6 +112,7 @@ public class HighAvailabilityManagerImplTest {
     VolumeOrchestrationService volumeMgr;
     @Mock
     HostVO hostVO;
+    HostInvestigationCache _hostInvestigations = new HostInvestigationCache();
 
     HighAvailabilityManagerImpl highAvailabilityManager;
     HighAvailabilityManagerImpl highAvailabilityManagerSpy;
@@ -136,14 +136,6 @@ public class HighAvailabilityManagerImplTest {
             if (injectField.isAnnotationPresent(Inject.class)) {
                 injectField.setAccessible(true);
                 injectField.set(highAvailabilityManager, this.getClass().getDeclaredField(injectField.getName()).get(this));
-            } else if (injectField.getName().equals("_workers")) {
-                injectField.setAccessible(true);
-                for (Class<?> clz : HighAvailabilityManagerImpl.class.getDeclaredClasses()) {
-                    if (clz.getName().equals("com.cloud.ha.HighAvailabilityManagerImpl$WorkerThread")) {
-                        Object obj = Array.newInstance(clz, 0);
-                        injectField.set(highAvailabilityManager, obj);
-                    }
-                }
             } else if (injectField.getName().equals("_maxRetries")) {
                 injectField.setAccessible(true);
                 injectField.set(highAvailabilityManager, 5);
@@ -228,6 +220,20 @@ public class HighAvailabilityManagerImplTest {
         assertNull(highAvailabilityManager.investigate(1l));
     }
 
+    @Test
+    public void investigateHostStatusOncePerHost() {
+        Mockito.when(_hostDao.findById(Mockito.anyLong())).thenReturn(hostVO);
+        Investigator inconclusive = Mockito.mock(CheckOnAgentInvestigator.class);
+        Investigator investigator = Mockito.mock(XenServerInvestigator.class);
+        highAvailabilityManager.setInvestigators(Arrays.asList(inconclusive, investigator));
+        Mockito.when(investigator.isAgentAlive(hostVO)).thenReturn(Status.Down);
+
+        assertTrue(highAvailabilityManager.investigate(1l) == Status.Down);
+        assertTrue(highAvailabilityManager.investigate(1l) == Status.Down);
+        Mockito.verify(inconclusive, Mockito.times(1)).isAgentAlive(hostVO);
+        Mockito.verify(investigator, Mockito.times(1)).isAgentAlive(hostVO);
+    }
+
     private void processWorkWithRetryCount(int count, Step expectedStep) {
         assertNotNull(processWorkMethod);
         HaWorkVO work = new HaWorkVO(1l, VirtualMachine.Type.User, WorkType.Migration, Step.Scheduled, 1l, VirtualMachine.State.Running, count, 12345678l);
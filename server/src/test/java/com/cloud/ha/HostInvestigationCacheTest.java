@@ -0,0 +1,94 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.host.Host;
+import com.cloud.host.Status;
+import com.cloud.utils.fsm.StateMachine2;
+
+public class HostInvestigationCacheTest {
+    private static final long TTL = 60000;
+
+    private HostInvestigationCache cache;
+    private AtomicInteger investigations;
+
+    @Before
+    public void setUp() {
+        cache = new HostInvestigationCache();
+        investigations = new AtomicInteger();
+    }
+
+    private Callable<Status> investigation(final Status status) {
+        return new Callable<Status>() {
+            @Override
+            public Status call() {
+                investigations.incrementAndGet();
+                return status;
+            }
+        };
+    }
+
+    @Test
+    public void upIsKept() {
+        Assert.assertEquals(Status.Up, cache.get(1L, TTL, investigation(Status.Up)));
+        Assert.assertEquals(Status.Up, cache.get(1L, TTL, investigation(Status.Down)));
+        Assert.assertEquals(1, investigations.get());
+    }
+
+    @Test
+    public void downIsNotKept() {
+        Assert.assertEquals(Status.Down, cache.get(1L, TTL, investigation(Status.Down)));
+        Assert.assertEquals(Status.Up, cache.get(1L, TTL, investigation(Status.Up)));
+        Assert.assertEquals(2, investigations.get());
+    }
+
+    @Test
+    public void statusChangeDropsTheHost() {
+        Host host = Mockito.mock(Host.class);
+        Mockito.when(host.getId()).thenReturn(1L);
+        cache.get(1L, TTL, investigation(Status.Up));
+        cache.get(2L, TTL, investigation(Status.Up));
+
+        cache.postStateTransitionEvent(new StateMachine2.Transition<Status, Status.Event>(Status.Up, Status.Event.Ping, Status.Up, null), host, true, null);
+        cache.get(1L, TTL, investigation(Status.Up));
+        Assert.assertEquals(2, investigations.get());
+
+        cache.postStateTransitionEvent(new StateMachine2.Transition<Status, Status.Event>(Status.Up, Status.Event.AgentDisconnected, Status.Alert, null), host, true, null);
+        cache.get(1L, TTL, investigation(Status.Up));
+        cache.get(2L, TTL, investigation(Status.Up));
+        Assert.assertEquals(3, investigations.get());
+    }
+
+    @Test
+    public void agentConnectDropsTheHost() {
+        Host host = Mockito.mock(Host.class);
+        Mockito.when(host.getId()).thenReturn(1L);
+        cache.get(1L, TTL, investigation(Status.Up));
+
+        cache.postStateTransitionEvent(new StateMachine2.Transition<Status, Status.Event>(Status.Connecting, Status.Event.AgentConnected, Status.Connecting, null), host, true, null);
+        cache.get(1L, TTL, investigation(Status.Up));
+        Assert.assertEquals(2, investigations.get());
+    }
+}
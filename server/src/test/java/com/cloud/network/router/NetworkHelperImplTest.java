@@ -17,7 +17,9 @@
 package com.cloud.network.router;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
@@ -26,6 +28,12 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
@@ -40,6 +48,7 @@ import com.cloud.agent.manager.Commands;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.OperationTimedoutException;
 import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.vm.dao.DomainRouterDao;
 
 
 @RunWith(MockitoJUnitRunner.class)
@@ -50,6 +59,9 @@ public class NetworkHelperImplTest {
     @Mock
     protected AgentManager agentManager;
 
+    @Mock
+    protected DomainRouterDao routerDao;
+
     @InjectMocks
     protected NetworkHelperImpl nwHelper = new NetworkHelperImpl();
 
@@ -170,4 +182,93 @@ public class NetworkHelperImplTest {
         assertFalse(result);
     }
 
+    /**
+     * With router.config.diff.enabled unset, the generation of configuration of the router is left alone
+     */
+    @Test
+    public void testSendCommandsToRouterWithConfigDiffDisabled()
+            throws AgentUnavailableException, OperationTimedoutException, ResourceUnavailableException {
+        NetworkHelperImpl nwHelperUT = spy(this.nwHelper);
+        VirtualRouter vr = mock(VirtualRouter.class);
+        when(vr.getHostId()).thenReturn(HOST_ID);
+        doReturn(true).when(nwHelperUT).checkRouterVersion(vr);
+
+        Commands commands = new Commands(mock(Command.class));
+        Answer answer = mock(Answer.class);
+        when(answer.getResult()).thenReturn(true);
+        when(this.agentManager.send(HOST_ID, commands)).thenReturn(new Answer[] {answer});
+
+        assertTrue(nwHelperUT.sendCommandsToRouter(vr, commands));
+        assertTrue(nwHelperUT.sendCommandsToRouter(vr, commands));
+        nwHelperUT.forgetRouterConfig(1L);
+
+        verify(this.routerDao, times(1)).bumpAllConfigGenerations();
+        verify(this.routerDao, times(0)).bumpConfigGeneration(Matchers.anyLong());
+        verify(this.routerDao, times(0)).getConfigGeneration(Matchers.anyLong());
+    }
+
+    @Test
+    public void testSendCommandsToRoutersPipelinesAllRouters()
+            throws AgentUnavailableException, OperationTimedoutException, ResourceUnavailableException {
+        NetworkHelperImpl nwHelperUT = spy(this.nwHelper);
+        VirtualRouter vr1 = mock(VirtualRouter.class);
+        when(vr1.getHostId()).thenReturn(HOST_ID);
+        VirtualRouter vr2 = mock(VirtualRouter.class);
+        when(vr2.getHostId()).thenReturn(HOST_ID + 1);
+        doReturn(true).when(nwHelperUT).checkRouterVersion(Matchers.any(VirtualRouter.class));
+
+        Commands commands1 = new Commands(mock(Command.class));
+        Commands commands2 = new Commands(mock(Command.class));
+        Answer answer1 = mock(Answer.class);
+        when(answer1.getResult()).thenReturn(true);
+        Answer answer2 = mock(Answer.class);
+        when(answer2.getResult()).thenReturn(true);
+        when(this.agentManager.sendPipelined(HOST_ID, commands1)).thenReturn(Collections.<Future<Answer>>singletonList(CompletableFuture.completedFuture(answer1)));
+        when(this.agentManager.sendPipelined(HOST_ID + 1, commands2)).thenReturn(Collections.<Future<Answer>>singletonList(CompletableFuture.completedFuture(answer2)));
+
+        Map<VirtualRouter, Commands> cmdsByRouter = new LinkedHashMap<VirtualRouter, Commands>();
+        cmdsByRouter.put(vr1, commands1);
+        cmdsByRouter.put(vr2, commands2);
+        final boolean result = nwHelperUT.sendCommandsToRouters(cmdsByRouter);
+
+        verify(this.agentManager, times(0)).send(Matchers.anyLong(), Matchers.any(Commands.class));
+        assertTrue(result);
+        assertSame(answer1, commands1.getAnswers()[0]);
+        assertSame(answer2, commands2.getAnswers()[0]);
+    }
+
+    /**
+     * A router that cannot be reached does not keep the others from getting their commands
+     */
+    @Test
+    public void testSendCommandsToRoutersWithUnavailableRouter()
+            throws AgentUnavailableException, OperationTimedoutException, ResourceUnavailableException {
+        NetworkHelperImpl nwHelperUT = spy(this.nwHelper);
+        VirtualRouter vr1 = mock(VirtualRouter.class);
+        when(vr1.getHostId()).thenReturn(HOST_ID);
+        VirtualRouter vr2 = mock(VirtualRouter.class);
+        when(vr2.getHostId()).thenReturn(HOST_ID + 1);
+        doReturn(true).when(nwHelperUT).checkRouterVersion(Matchers.any(VirtualRouter.class));
+
+        Commands commands1 = new Commands(mock(Command.class));
+        Commands commands2 = new Commands(mock(Command.class));
+        Answer answer2 = mock(Answer.class);
+        when(answer2.getResult()).thenReturn(true);
+        when(this.agentManager.sendPipelined(HOST_ID, commands1)).thenThrow(new AgentUnavailableException(HOST_ID));
+        when(this.agentManager.sendPipelined(HOST_ID + 1, commands2)).thenReturn(Collections.<Future<Answer>>singletonList(CompletableFuture.completedFuture(answer2)));
+
+        Map<VirtualRouter, Commands> cmdsByRouter = new LinkedHashMap<VirtualRouter, Commands>();
+        cmdsByRouter.put(vr1, commands1);
+        cmdsByRouter.put(vr2, commands2);
+        try {
+            nwHelperUT.sendCommandsToRouters(cmdsByRouter);
+            fail("The unavailable router should have been reported");
+        } catch (final AgentUnavailableException e) {
+            // expected
+        }
+
+        verify(this.agentManager, times(1)).sendPipelined(HOST_ID + 1, commands2);
+        assertSame(answer2, commands2.getAnswers()[0]);
+    }
+
 }
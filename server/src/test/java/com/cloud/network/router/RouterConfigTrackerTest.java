@@ -0,0 +1,213 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.DhcpEntryCommand;
+import com.cloud.agent.api.routing.SavePasswordCommand;
+import com.cloud.agent.api.routing.VmDataCommand;
+import com.cloud.agent.manager.Commands;
+
+public class RouterConfigTrackerTest {
+    private static final long ROUTER = 1L;
+
+    private RouterConfigTracker tracker;
+    private RouterConfigTracker peer;
+    // the generation of configuration of the router shared in the database
+    private long generation;
+
+    @Before
+    public void setUp() {
+        tracker = new RouterConfigTracker();
+        peer = new RouterConfigTracker();
+        generation = 0;
+    }
+
+    private static DhcpEntryCommand dhcp(String mac, String ip) {
+        return new DhcpEntryCommand(mac, ip, "vm-" + ip, null, false);
+    }
+
+    private static VmDataCommand vmData(String ip, String userData) {
+        final VmDataCommand cmd = new VmDataCommand(ip, "vm-" + ip, false);
+        cmd.addVmData("userdata", "user-data", userData);
+        return cmd;
+    }
+
+    private static Commands commands(Command... cmds) {
+        final Commands commands = new Commands(Command.OnError.Stop);
+        for (int i = 0; i < cmds.length; i++) {
+            commands.addCommand("cmd" + i, cmds[i]);
+        }
+        return commands;
+    }
+
+    private static Answer[] answers(Commands cmds, boolean result) {
+        final Command[] commands = cmds.toCommands();
+        final Answer[] answers = new Answer[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            answers[i] = new Answer(commands[i], result, null);
+        }
+        return answers;
+    }
+
+    private RouterConfigTracker.Update prepare(RouterConfigTracker tracker, Commands cmds) {
+        return tracker.prepare(ROUTER, generation, cmds);
+    }
+
+    private RouterConfigTracker.Update prepare(Commands cmds) {
+        return prepare(tracker, cmds);
+    }
+
+    /**
+     * Completes the update the way the management server does, moving the
+     * shared generation to the next one if it is still the one the update was
+     * prepared at and bumping it otherwise.
+     */
+    private boolean complete(RouterConfigTracker tracker, RouterConfigTracker.Update update, Answer[] answers) {
+        if (update.getCommandsToSend().size() == 0) {
+            return tracker.complete(update, answers, generation);
+        }
+        if (generation == update.generation) {
+            return tracker.complete(update, answers, ++generation);
+        }
+        generation++;
+        return tracker.complete(update, answers, null);
+    }
+
+    private boolean complete(RouterConfigTracker.Update update, Answer[] answers) {
+        return complete(tracker, update, answers);
+    }
+
+    private boolean apply(RouterConfigTracker tracker, Commands cmds, boolean result) {
+        final RouterConfigTracker.Update update = prepare(tracker, cmds);
+        return complete(tracker, update, answers(update.getCommandsToSend(), result));
+    }
+
+    private boolean apply(Commands cmds, boolean result) {
+        return apply(tracker, cmds, result);
+    }
+
+    @Test
+    public void unchangedEntriesAreNotSent() {
+        Assert.assertTrue(apply(commands(dhcp("02:00:00:00:00:01", "10.1.1.10"), vmData("10.1.1.10", "a")), true));
+
+        final Commands cmds = commands(dhcp("02:00:00:00:00:01", "10.1.1.10"), vmData("10.1.1.10", "b"), new SavePasswordCommand("password", "10.1.1.10", "vm", false));
+        final RouterConfigTracker.Update update = prepare(cmds);
+        Assert.assertEquals(1, update.getSkippedCount());
+        Assert.assertEquals(2, update.getCommandsToSend().size());
+        Assert.assertTrue(update.getCommandsToSend().toCommands()[0] instanceof VmDataCommand);
+
+        Assert.assertTrue(complete(update, answers(update.getCommandsToSend(), true)));
+        Assert.assertEquals(3, cmds.getAnswers().length);
+        Assert.assertTrue(cmds.getAnswer("cmd0").getResult());
+        Assert.assertTrue(cmds.getAnswer("cmd2").getResult());
+    }
+
+    @Test
+    public void allCommandsSentWhenNothingIsKnown() {
+        final Commands cmds = commands(dhcp("02:00:00:00:00:01", "10.1.1.10"), new SavePasswordCommand("password", "10.1.1.10", "vm", false));
+        final RouterConfigTracker.Update update = prepare(cmds);
+        Assert.assertSame(cmds, update.getCommandsToSend());
+        Assert.assertEquals(0, update.getSkippedCount());
+    }
+
+    @Test
+    public void untrackedCommandsAreAlwaysSent() {
+        Assert.assertTrue(apply(commands(new SavePasswordCommand("password", "10.1.1.10", "vm", false)), true));
+        Assert.assertEquals(0, prepare(commands(new SavePasswordCommand("password", "10.1.1.10", "vm", false))).getSkippedCount());
+    }
+
+    @Test
+    public void failureForgetsTheRouter() {
+        Assert.assertTrue(apply(commands(dhcp("02:00:00:00:00:01", "10.1.1.10")), true));
+        Assert.assertNotNull(tracker.getGeneration(ROUTER));
+        Assert.assertFalse(apply(commands(dhcp("02:00:00:00:00:02", "10.1.1.11")), false));
+        Assert.assertNull(tracker.getGeneration(ROUTER));
+        Assert.assertEquals(0, prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.10"))).getSkippedCount());
+    }
+
+    @Test
+    public void commandsNotSentAreNotRecorded() {
+        final RouterConfigTracker.Update update = prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.10")));
+        Assert.assertFalse(complete(update, null));
+        Assert.assertEquals(0, prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.10"))).getSkippedCount());
+    }
+
+    @Test
+    public void aggregatedExecutionReplaysEverything() {
+        Assert.assertTrue(apply(commands(dhcp("02:00:00:00:00:01", "10.1.1.10")), true));
+        Assert.assertTrue(apply(commands(new AggregationControlCommand(AggregationControlCommand.Action.Start, "r-1-VM", "169.254.0.1", "10.1.1.1")), true));
+        Assert.assertEquals(0, prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.10"))).getSkippedCount());
+    }
+
+    @Test
+    public void overlappingSendsAreNotRecorded() {
+        final RouterConfigTracker.Update first = prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.10")));
+        final RouterConfigTracker.Update second = prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.20")));
+        Assert.assertTrue(complete(second, answers(second.getCommandsToSend(), true)));
+        Assert.assertTrue(complete(first, answers(first.getCommandsToSend(), true)));
+
+        Assert.assertEquals(0, prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.10"))).getSkippedCount());
+        Assert.assertEquals(0, prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.20"))).getSkippedCount());
+    }
+
+    @Test
+    public void forgetRouter() {
+        Assert.assertTrue(apply(commands(vmData("10.1.1.10", "a")), true));
+        Assert.assertEquals(1, prepare(commands(vmData("10.1.1.10", "a"))).getSkippedCount());
+        tracker.forget(ROUTER);
+        Assert.assertEquals(0, prepare(commands(vmData("10.1.1.10", "a"))).getSkippedCount());
+    }
+
+    @Test
+    public void changeByAnotherManagementServerIsNotSkipped() {
+        Assert.assertTrue(apply(commands(dhcp("02:00:00:00:00:01", "10.1.1.10")), true));
+        Assert.assertTrue(apply(peer, commands(dhcp("02:00:00:00:00:01", "10.1.1.20")), true));
+        Assert.assertEquals(0, prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.10"))).getSkippedCount());
+    }
+
+    @Test
+    public void stateTransitionOnAnotherManagementServerIsNotSkipped() {
+        Assert.assertTrue(apply(commands(vmData("10.1.1.10", "a")), true));
+        // the router got rebooted through another management server
+        generation++;
+        Assert.assertEquals(0, prepare(commands(vmData("10.1.1.10", "a"))).getSkippedCount());
+    }
+
+    @Test
+    public void sendOverlappingAnotherManagementServerIsNotRecorded() {
+        final RouterConfigTracker.Update update = prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.10")));
+        Assert.assertTrue(apply(peer, commands(dhcp("02:00:00:00:00:01", "10.1.1.20")), true));
+        Assert.assertTrue(complete(update, answers(update.getCommandsToSend(), true)));
+
+        Assert.assertEquals(0, prepare(commands(dhcp("02:00:00:00:00:01", "10.1.1.10"))).getSkippedCount());
+        Assert.assertEquals(0, prepare(peer, commands(dhcp("02:00:00:00:00:01", "10.1.1.20"))).getSkippedCount());
+    }
+
+    @Test
+    public void unchangedGenerationKeepsSkipping() {
+        Assert.assertTrue(apply(commands(vmData("10.1.1.10", "a")), true));
+        Assert.assertTrue(apply(commands(vmData("10.1.1.11", "b")), true));
+        Assert.assertEquals(2, prepare(commands(vmData("10.1.1.10", "a"), vmData("10.1.1.11", "b"))).getSkippedCount());
+    }
+}
@@ -0,0 +1,159 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.host.HostVO;
+
+public class HostStatsFanOutTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private List<HostVO> hosts(int count, int pods) {
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (long id = 1; id <= count; id++) {
+            HostVO host = Mockito.mock(HostVO.class);
+            Mockito.when(host.getId()).thenReturn(id);
+            Mockito.when(host.getPodId()).thenReturn(id % pods);
+            hosts.add(host);
+        }
+        return hosts;
+    }
+
+    @Test
+    public void collectsEveryHost() {
+        HostStatsFanOut.Result<Long> result = new HostStatsFanOut(executor, 2).collect(hosts(10, 3), new HostStatsFanOut.HostStatsCollector<Long>() {
+            @Override
+            public Long collect(HostVO host) {
+                return host.getId() * 2;
+            }
+        }, 10000);
+
+        Assert.assertEquals(10, result.getStats().size());
+        Assert.assertEquals(Long.valueOf(14), result.getStats().get(7L));
+        Assert.assertEquals(0, result.getFailedCount());
+        Assert.assertEquals(0, result.getSkippedCount());
+    }
+
+    @Test
+    public void hostsOfAPodAreAskedWithinBudget() {
+        final Map<Long, AtomicInteger> running = new HashMap<Long, AtomicInteger>();
+        final Map<Long, AtomicInteger> maxRunning = new HashMap<Long, AtomicInteger>();
+        for (long podId = 0; podId < 2; podId++) {
+            running.put(podId, new AtomicInteger());
+            maxRunning.put(podId, new AtomicInteger());
+        }
+        HostStatsFanOut.Result<Boolean> result = new HostStatsFanOut(executor, 1).collect(hosts(8, 2), new HostStatsFanOut.HostStatsCollector<Boolean>() {
+            @Override
+            public Boolean collect(HostVO host) throws Exception {
+                int count = running.get(host.getPodId()).incrementAndGet();
+                AtomicInteger max = maxRunning.get(host.getPodId());
+                synchronized (max) {
+                    max.set(Math.max(max.get(), count));
+                }
+                Thread.sleep(10);
+                running.get(host.getPodId()).decrementAndGet();
+                return true;
+            }
+        }, 10000);
+
+        Assert.assertEquals(8, result.getStats().size());
+        Assert.assertEquals(1, maxRunning.get(0L).get());
+        Assert.assertEquals(1, maxRunning.get(1L).get());
+    }
+
+    @Test
+    public void failedHostsAreCounted() {
+        HostStatsFanOut.Result<Long> result = new HostStatsFanOut(executor, 2).collect(hosts(6, 2), new HostStatsFanOut.HostStatsCollector<Long>() {
+            @Override
+            public Long collect(HostVO host) throws Exception {
+                if (host.getId() % 3 == 0) {
+                    throw new Exception("unreachable");
+                }
+                return host.getId();
+            }
+        }, 10000);
+
+        Assert.assertEquals(4, result.getStats().size());
+        Assert.assertEquals(2, result.getFailedCount());
+        Assert.assertEquals(0, result.getSkippedCount());
+    }
+
+    @Test
+    public void hostsWithoutStatsAreNotSkipped() {
+        HostStatsFanOut.Result<Long> result = new HostStatsFanOut(executor, 2).collect(hosts(3, 1), new HostStatsFanOut.HostStatsCollector<Long>() {
+            @Override
+            public Long collect(HostVO host) {
+                return null;
+            }
+        }, 10000);
+
+        Assert.assertTrue(result.getStats().isEmpty());
+        Assert.assertEquals(0, result.getSkippedCount());
+    }
+
+    @Test
+    public void hostsNotAskedBeforeDeadlineAreSkipped() {
+        HostStatsFanOut.Result<Long> result = new HostStatsFanOut(executor, 1).collect(hosts(5, 1), new HostStatsFanOut.HostStatsCollector<Long>() {
+            @Override
+            public Long collect(HostVO host) throws Exception {
+                Thread.sleep(100);
+                return host.getId();
+            }
+        }, 150);
+
+        Assert.assertTrue(result.getStats().size() < 5);
+        Assert.assertTrue(result.getSkippedCount() > 0);
+        Assert.assertEquals(5, result.getStats().size() + result.getSkippedCount());
+    }
+
+    @Test
+    public void hostsLeftAreSkippedOnceShutDown() {
+        executor.shutdown();
+        HostStatsFanOut.Result<Long> result = new HostStatsFanOut(executor, 1).collect(hosts(3, 1), new HostStatsFanOut.HostStatsCollector<Long>() {
+            @Override
+            public Long collect(HostVO host) {
+                return host.getId();
+            }
+        }, 10000);
+
+        Assert.assertTrue(result.getStats().isEmpty());
+        Assert.assertEquals(3, result.getSkippedCount());
+    }
+}
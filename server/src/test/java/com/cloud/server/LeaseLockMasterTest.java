@@ -0,0 +1,245 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.utils.db.LocalLockTable;
+import com.cloud.utils.db.LockStatistics;
+import com.cloud.utils.db.Merovingian2;
+
+public class LeaseLockMasterTest {
+    private static final String KEY = "lock";
+
+    // op_lock shared by the management servers, the lock rows and the waiter rows
+    private final Map<String, Long> _rows = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> _tokens = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> _waiters = new ConcurrentHashMap<String, Long>();
+    private final Map<Long, Merovingian2> _dbLockMasters = new HashMap<Long, Merovingian2>();
+
+    @Before
+    public void setUp() {
+        _rows.clear();
+        _tokens.clear();
+        _waiters.clear();
+        _dbLockMasters.clear();
+    }
+
+    private LeaseLockMaster leaseLockMaster(final long msId) {
+        final Merovingian2 db = mock(Merovingian2.class);
+        when(db.getLocalLocks()).thenReturn(new LocalLockTable());
+        when(db.getStatistics()).thenReturn(new LockStatistics());
+        when(db.acquireLease(anyString(), anyLong())).thenAnswer(i -> {
+            if (_rows.putIfAbsent(i.getArgument(0), msId) != null) {
+                return false;
+            }
+            _tokens.put(i.getArgument(0), i.getArgument(1));
+            return true;
+        });
+        when(db.releaseLease(anyString(), anyLong())).thenAnswer(i -> {
+            final String key = i.getArgument(0);
+            if (!i.getArgument(1).equals(_tokens.get(key)) || !_rows.remove(key, msId)) {
+                return false;
+            }
+            _tokens.remove(key);
+            return true;
+        });
+        when(db.getLeases()).thenAnswer(i -> {
+            final Map<String, Long> leases = new HashMap<String, Long>();
+            for (final Map.Entry<String, Long> row : _rows.entrySet()) {
+                if (row.getValue() == msId) {
+                    leases.put(row.getKey(), _tokens.get(row.getKey()));
+                }
+            }
+            return leases;
+        });
+        when(db.getLockOwner(anyString())).thenAnswer(i -> _rows.get(i.getArgument(0)));
+        when(db.markWaiting(anyString())).thenAnswer(i -> _waiters.putIfAbsent(i.getArgument(0), msId) == null);
+        doAnswer(i -> _waiters.remove(i.getArgument(0), msId)).when(db).unmarkWaiting(anyString());
+        when(db.isWaitedForByOthers(anyString())).thenAnswer(i -> {
+            final Long waiter = _waiters.get(i.getArgument(0));
+            return waiter != null && waiter != msId;
+        });
+        when(db.getLocksWaitedForByOthers()).thenAnswer(i -> {
+            final Set<String> keys = new HashSet<String>();
+            for (final Map.Entry<String, Long> waiter : _waiters.entrySet()) {
+                if (waiter.getValue() != msId) {
+                    keys.add(waiter.getKey());
+                }
+            }
+            return keys;
+        });
+        _dbLockMasters.put(msId, db);
+
+        final ClusterManager clusterMgr = mock(ClusterManager.class);
+        when(clusterMgr.getManagementNodeId()).thenReturn(msId);
+        when(clusterMgr.getCurrentRunId()).thenReturn(1L);
+        return new LeaseLockMaster(db, clusterMgr, 60);
+    }
+
+    private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void leaseIsKeptWithoutContention() {
+        final LeaseLockMaster master = leaseLockMaster(1L);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(master.acquire(KEY, 1));
+            Assert.assertTrue(master.release(KEY));
+            master.reapLeases();
+        }
+        Assert.assertEquals(Long.valueOf(1L), _rows.get(KEY));
+        verify(_dbLockMasters.get(1L), times(1)).acquireLease(eq(KEY), anyLong());
+    }
+
+    @Test
+    public void leaseTakenAwayIsNotUsedAnymore() {
+        final LeaseLockMaster master = leaseLockMaster(1L);
+        Assert.assertTrue(master.acquire(KEY, 1));
+        Assert.assertTrue(master.release(KEY));
+
+        // a peer cleaned up the locks of this server and got the lock
+        _rows.put(KEY, 2L);
+        _tokens.put(KEY, 7L);
+        master.reapLeases();
+        Assert.assertFalse(master.acquire(KEY, 1));
+        Assert.assertEquals(Long.valueOf(2L), _rows.get(KEY));
+        verify(_dbLockMasters.get(1L), times(0)).releaseLease(anyString(), anyLong());
+
+        // once the peer let go, this server needs a new lease
+        _rows.remove(KEY);
+        Assert.assertTrue(master.acquire(KEY, 1));
+        Assert.assertEquals(Long.valueOf(1L), _rows.get(KEY));
+        Assert.assertTrue(master.release(KEY));
+        verify(_dbLockMasters.get(1L), times(2)).acquireLease(eq(KEY), anyLong());
+    }
+
+    @Test
+    public void leaseIsGivenUpToPlainWaiter() {
+        final LeaseLockMaster master = leaseLockMaster(1L);
+        Assert.assertTrue(master.acquire(KEY, 1));
+        Assert.assertTrue(master.release(KEY));
+
+        // a peer running plain Merovingian2 is waiting for the lock
+        _waiters.put(KEY, 3L);
+        master.reapLeases();
+        Assert.assertNull(_rows.get(KEY));
+
+        // and this server doesn't take it back while the peer hasn't had it
+        Assert.assertFalse(master.acquire(KEY, 1));
+        Assert.assertNull(_rows.get(KEY));
+
+        // the peer got the lock and gave it back
+        _rows.put(KEY, 3L);
+        _waiters.remove(KEY);
+        _rows.remove(KEY);
+        Assert.assertTrue(master.acquire(KEY, 1));
+        Assert.assertTrue(master.release(KEY));
+    }
+
+    @Test
+    public void busyLeaseIsHandedOffToWaitingPeer() throws InterruptedException {
+        final LeaseLockMaster first = leaseLockMaster(1L);
+        final LeaseLockMaster second = leaseLockMaster(2L);
+        Assert.assertTrue(first.acquire(KEY, 1));
+        Assert.assertTrue(first.release(KEY));
+
+        final AtomicBoolean acquired = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread peer = new Thread(() -> {
+            if (second.acquire(KEY, 20)) {
+                acquired.set(true);
+                try {
+                    done.await(20, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    // let go of the lock
+                }
+                second.release(KEY);
+            }
+        });
+        peer.start();
+
+        // the first server keeps using the lock the whole time the peer waits for it
+        final long deadline = System.currentTimeMillis() + 20000;
+        while (!acquired.get() && System.currentTimeMillis() < deadline) {
+            if (first.acquire(KEY, 1)) {
+                Thread.sleep(5);
+                Assert.assertTrue(first.release(KEY));
+            }
+            first.reapLeases();
+        }
+
+        Assert.assertTrue(acquired.get());
+        Assert.assertEquals(Long.valueOf(2L), _rows.get(KEY));
+        done.countDown();
+        peer.join();
+    }
+
+    @Test
+    public void contendersTakeTurns() throws InterruptedException {
+        final LeaseLockMaster first = leaseLockMaster(1L);
+        final LeaseLockMaster second = leaseLockMaster(2L);
+        Assert.assertTrue(second.acquire(KEY, 1));
+        Assert.assertTrue(second.release(KEY));
+
+        final AtomicBoolean acquired = new AtomicBoolean();
+        final Thread waiter = new Thread(() -> {
+            if (first.acquire(KEY, 20)) {
+                acquired.set(true);
+                first.release(KEY);
+            }
+        });
+        waiter.start();
+        waitFor(() -> _waiters.containsKey(KEY));
+
+        second.reapLeases();
+        Assert.assertNull(_rows.get(KEY));
+        // the waiting peer gets it first, this server only after
+        if (second.acquire(KEY, 1)) {
+            Assert.assertTrue(acquired.get());
+            Assert.assertTrue(second.release(KEY));
+        }
+        waiter.join(20000);
+        Assert.assertTrue(acquired.get());
+    }
+}
@@ -42,7 +42,6 @@ import org.powermock.modules.junit4.PowerMockRunnerDelegate;
 
 import com.cloud.agent.api.VmDiskStatsEntry;
 import com.cloud.server.StatsCollector.ExternalStatsProtocol;
-import com.cloud.user.VmDiskStatisticsVO;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.tngtech.java.junit.dataprovider.DataProvider;
 import com.tngtech.java.junit.dataprovider.DataProviderRunner;
@@ -152,55 +151,6 @@ public class StatsCollectorTest {
         Assert.assertEquals(configuredDbName, dbName);
     }
 
-    @Test
-    public void isCurrentVmDiskStatsDifferentFromPreviousTestNull() {
-        VmDiskStatisticsVO currentVmDiskStatisticsVO = new VmDiskStatisticsVO(1l, 1l, 1l, 1l);
-        boolean result = statsCollector.isCurrentVmDiskStatsDifferentFromPrevious(null, currentVmDiskStatisticsVO);
-        Assert.assertTrue(result);
-    }
-
-    @Test
-    public void isCurrentVmDiskStatsDifferentFromPreviousTestDifferentIoWrite() {
-        configureAndTestisCurrentVmDiskStatsDifferentFromPrevious(123l, 123l, 123l, 12l, true);
-    }
-
-    @Test
-    public void isCurrentVmDiskStatsDifferentFromPreviousTestDifferentIoRead() {
-        configureAndTestisCurrentVmDiskStatsDifferentFromPrevious(123l, 123l, 12l, 123l, true);
-    }
-
-    @Test
-    public void isCurrentVmDiskStatsDifferentFromPreviousTestDifferentBytesRead() {
-        configureAndTestisCurrentVmDiskStatsDifferentFromPrevious(12l, 123l, 123l, 123l, true);
-    }
-
-    @Test
-    public void isCurrentVmDiskStatsDifferentFromPreviousTestDifferentBytesWrite() {
-        configureAndTestisCurrentVmDiskStatsDifferentFromPrevious(123l, 12l, 123l, 123l, true);
-    }
-
-    @Test
-    public void isCurrentVmDiskStatsDifferentFromPreviousTestAllEqual() {
-        configureAndTestisCurrentVmDiskStatsDifferentFromPrevious(123l, 123l, 123l, 123l, false);
-    }
-
-    private void configureAndTestisCurrentVmDiskStatsDifferentFromPrevious(long bytesRead, long bytesWrite, long ioRead, long ioWrite, boolean expectedResult) {
-        VmDiskStatisticsVO previousVmDiskStatisticsVO = new VmDiskStatisticsVO(1l, 1l, 1l, 1l);
-        previousVmDiskStatisticsVO.setCurrentBytesRead(123l);
-        previousVmDiskStatisticsVO.setCurrentBytesWrite(123l);
-        previousVmDiskStatisticsVO.setCurrentIORead(123l);
-        previousVmDiskStatisticsVO.setCurrentIOWrite(123l);
-
-        VmDiskStatisticsVO currentVmDiskStatisticsVO = new VmDiskStatisticsVO(1l, 1l, 1l, 1l);
-        currentVmDiskStatisticsVO.setCurrentBytesRead(bytesRead);
-        currentVmDiskStatisticsVO.setCurrentBytesWrite(bytesWrite);
-        currentVmDiskStatisticsVO.setCurrentIORead(ioRead);
-        currentVmDiskStatisticsVO.setCurrentIOWrite(ioWrite);
-
-        boolean result = statsCollector.isCurrentVmDiskStatsDifferentFromPrevious(previousVmDiskStatisticsVO, currentVmDiskStatisticsVO);
-        Assert.assertEquals(expectedResult, result);
-    }
-
     @Test
     @DataProvider({
         "0,0,0,0,true", "1,0,0,0,false", "0,1,0,0,false", "0,0,1,0,false",
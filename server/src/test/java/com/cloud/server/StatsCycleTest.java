@@ -0,0 +1,40 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatsCycleTest {
+
+    @Test
+    public void overrunsAreCounted() {
+        StatsCycle cycle = new StatsCycle("VmStatsCollector", 1000);
+
+        Assert.assertFalse(cycle.record(10000, 10400, 100, 1, 0));
+        Assert.assertTrue(cycle.record(20000, 21500, 120, 0, 7));
+        Assert.assertFalse(cycle.record(30000, 31000, 120, 0, 0));
+
+        Assert.assertEquals(3, cycle.getCycleCount());
+        Assert.assertEquals(1, cycle.getOverrunCount());
+        Assert.assertEquals(30000, cycle.getLastCycleStart());
+        Assert.assertEquals(1000, cycle.getLastCycleDuration());
+        Assert.assertEquals(1500, cycle.getMaxCycleDuration());
+        Assert.assertEquals(120, cycle.getLastHostCount());
+        Assert.assertEquals(0, cycle.getLastSkippedHostCount());
+    }
+}
@@ -0,0 +1,161 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatsHistoryTest {
+    private static final long MINUTE = 60000L;
+    // a whole number of hours, so that the tiers are aligned on it
+    private static final long START = 1600000000000L / (60 * MINUTE) * (60 * MINUTE);
+
+    private StatsHistory.Tier[] tiers() {
+        return StatsHistory.parseTiers("300:24, 60:60");
+    }
+
+    @Test
+    public void parseTiers() {
+        StatsHistory.Tier[] tiers = StatsHistory.parseTiers("60:60,300:288,");
+        Assert.assertEquals(2, tiers.length);
+        Assert.assertEquals(MINUTE, tiers[0].getResolution());
+        Assert.assertEquals(288, tiers[1].getSlots());
+        Assert.assertEquals(24 * 60 * MINUTE, tiers[1].getRetention());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseInvalidTiers() {
+        StatsHistory.parseTiers("60");
+    }
+
+    @Test
+    public void samplesOfAnIntervalAreSummed() {
+        StatsHistory history = new StatsHistory(2, tiers(), 10);
+        Assert.assertTrue(history.add(1L, START, new double[] {10, 100}));
+        Assert.assertTrue(history.add(1L, START + 30000, new double[] {20, 300}));
+        Assert.assertTrue(history.add(1L, START + MINUTE, new double[] {40, 50}));
+
+        StatsHistory.Series series = history.query(1L, START, START + 10 * MINUTE, 0);
+        Assert.assertEquals(MINUTE, series.getResolution());
+        Assert.assertEquals(2, series.size());
+        Assert.assertEquals(START, series.getTimestamp(0));
+        Assert.assertEquals(2, series.getSamples(0));
+        Assert.assertEquals(15, series.getAverage(0, 0), 0.001);
+        Assert.assertEquals(400, series.getSum(1, 0), 0.001);
+        Assert.assertEquals(START + MINUTE, series.getTimestamp(1));
+        Assert.assertEquals(40, series.getAverage(0, 1), 0.001);
+
+        series = history.query(1L, START, START + 10 * MINUTE, 5 * MINUTE);
+        Assert.assertEquals(5 * MINUTE, series.getResolution());
+        Assert.assertEquals(1, series.size());
+        Assert.assertEquals(3, series.getSamples(0));
+        Assert.assertEquals(70, series.getSum(0, 0), 0.001);
+
+        Assert.assertNull(history.query(2L, START, START + 10 * MINUTE, 0));
+    }
+
+    @Test
+    public void olderSamplesComeFromCoarserTier() {
+        StatsHistory history = new StatsHistory(1, tiers(), 10);
+        for (int i = 0; i < 120; i++) {
+            history.add(1L, START + i * MINUTE, new double[] {i});
+        }
+
+        StatsHistory.Series series = history.query(1L, START + 100 * MINUTE, START + 120 * MINUTE, 0);
+        Assert.assertEquals(MINUTE, series.getResolution());
+        Assert.assertEquals(20, series.size());
+        Assert.assertEquals(100, series.getAverage(0, 0), 0.001);
+
+        // the minutes of the first hour have been overwritten
+        series = history.query(1L, START, START + 120 * MINUTE, 0);
+        Assert.assertEquals(5 * MINUTE, series.getResolution());
+        Assert.assertEquals(24, series.size());
+        Assert.assertEquals(START, series.getTimestamp(0));
+        Assert.assertEquals(2, series.getAverage(0, 0), 0.001);
+        Assert.assertEquals(5, series.getSamples(0));
+    }
+
+    @Test
+    public void lateSamplesAreNotAddedToNewerIntervals() {
+        StatsHistory history = new StatsHistory(1, tiers(), 10);
+        history.add(1L, START + 60 * MINUTE, new double[] {5});
+        history.add(1L, START, new double[] {7});
+
+        StatsHistory.Series series = history.query(1L, START, START + 60 * MINUTE, 0);
+        Assert.assertEquals(1, series.size());
+        Assert.assertEquals(START + 60 * MINUTE, series.getTimestamp(0));
+        Assert.assertEquals(5, series.getSum(0, 0), 0.001);
+    }
+
+    @Test
+    public void historyIsBounded() {
+        StatsHistory history = new StatsHistory(1, tiers(), 2);
+        Assert.assertTrue(history.add(1L, START, new double[] {1}));
+        Assert.assertTrue(history.add(2L, START, new double[] {2}));
+        Assert.assertFalse(history.add(3L, START, new double[] {3}));
+        Assert.assertEquals(1, history.getDroppedCount());
+
+        history.remove(1L);
+        Assert.assertTrue(history.add(3L, START + MINUTE, new double[] {3}));
+        Assert.assertNull(history.query(1L, START, START + MINUTE, 0));
+        StatsHistory.Series series = history.query(3L, START, START + MINUTE, 0);
+        Assert.assertEquals(1, series.size());
+        Assert.assertEquals(3, series.getSum(0, 0), 0.001);
+    }
+
+    @Test
+    public void entitiesWithoutRecentSamplesExpire() {
+        StatsHistory history = new StatsHistory(1, tiers(), 10);
+        history.add(1L, START, new double[] {1});
+        history.add(2L, START + 10 * MINUTE, new double[] {2});
+
+        Assert.assertEquals(1, history.expire(START + MINUTE));
+        Assert.assertEquals(1, history.size());
+        Assert.assertNull(history.query(1L, START, START + MINUTE, 0));
+        Assert.assertEquals(24 * 5 * MINUTE, history.getRetention());
+    }
+
+    @Test
+    public void historyIsKeptInFile() throws IOException {
+        File file = File.createTempFile("stats", ".history");
+        try {
+            StatsHistory history = new StatsHistory(2, tiers(), 2000, file);
+            for (long vmId = 1; vmId <= 1500; vmId++) {
+                history.add(vmId, START, new double[] {vmId, 1});
+            }
+            history.close();
+
+            history = new StatsHistory(2, tiers(), 2000, file);
+            Assert.assertEquals(1500, history.size());
+            StatsHistory.Series series = history.query(1234L, START, START, 0);
+            Assert.assertEquals(1, series.size());
+            Assert.assertEquals(1234, series.getSum(0, 0), 0.001);
+            history.add(1501L, START, new double[] {1, 1});
+            Assert.assertEquals(1501, history.size());
+            history.close();
+
+            history = new StatsHistory(3, tiers(), 2000, file);
+            Assert.assertEquals(0, history.size());
+            history.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -118,6 +118,8 @@ public class FirstFitPlannerTest {
     @Inject
     CapacityDao capacityDao;
     @Inject
+    CapacityManager capacityMgr;
+    @Inject
     AccountManager accountMgr;
     @Inject
     ServiceOfferingDao serviceOfferingDao;
@@ -182,6 +184,30 @@ public class FirstFitPlannerTest {
         assertTrue("Reordered cluster list is not honoring the implict host tags", (clusterList.equals(reorderedClusterList)));
     }
 
+    @Test
+    public void checkClusterListFallsBackToDatabaseWhenIndexLags() throws InsufficientServerCapacityException {
+        VirtualMachineProfileImpl vmProfile = mock(VirtualMachineProfileImpl.class);
+        DataCenterDeployment plan = mock(DataCenterDeployment.class);
+        ExcludeList avoids = mock(ExcludeList.class);
+        initializeForTest(vmProfile, plan, avoids);
+
+        // the capacity index was loaded before cluster 6 was added
+        List<Long> indexedClusters = new ArrayList<Long>();
+        Map<Long, Double> indexedCapacities = new HashMap<Long, Double>();
+        for (long clusterId = 5L; clusterId >= 1L; clusterId--) {
+            indexedClusters.add(clusterId);
+            indexedCapacities.put(clusterId, 1024D);
+        }
+        when(capacityMgr.orderClustersByAggregateCapacity(dataCenterId, Capacity.CAPACITY_TYPE_CPU, true))
+            .thenReturn(new Pair<List<Long>, Map<Long, Double>>(indexedClusters, indexedCapacities));
+        try {
+            List<Long> clusterList = planner.orderClusters(vmProfile, plan, avoids);
+            assertTrue("Cluster missing from the capacity index is not considered", clusterList.contains(6L));
+        } finally {
+            when(capacityMgr.orderClustersByAggregateCapacity(dataCenterId, Capacity.CAPACITY_TYPE_CPU, true)).thenReturn(null);
+        }
+    }
+
     @Test
     public void checkClusterReorderingForDeployVMWithThresholdCheckDisabled() throws InsufficientServerCapacityException {
         VirtualMachineProfileImpl vmProfile = mock(VirtualMachineProfileImpl.class);
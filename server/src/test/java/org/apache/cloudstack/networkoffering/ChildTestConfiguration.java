@@ -23,6 +23,7 @@ import com.cloud.agent.AgentManager;
 import com.cloud.alert.AlertManager;
 import com.cloud.api.query.dao.UserAccountJoinDaoImpl;
 import com.cloud.capacity.dao.CapacityDaoImpl;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.agentlb.dao.HostTransferMapDaoImpl;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.dao.AccountVlanMapDaoImpl;
@@ -239,6 +240,11 @@ public class
         return Mockito.mock(AgentManager.class);
     }
 
+    @Bean
+    public ClusterManager clusterMgr() {
+        return Mockito.mock(ClusterManager.class);
+    }
+
     @Bean
     public StorageNetworkManager storageNtwkMgr() {
         return Mockito.mock(StorageNetworkManager.class);
@@ -0,0 +1,214 @@
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+""" Stress test measuring how fast the VM work job sync queues drain
+    when many VMs are started at once
+"""
+from nose.plugins.attrib import attr
+from marvin.cloudstackTestCase import cloudstackTestCase
+from marvin.lib.utils import cleanup_resources
+from marvin.lib.base import (Account,
+                             ServiceOffering,
+                             SimulatorMock,
+                             VirtualMachine
+                             )
+from marvin.lib.common import (get_domain,
+                               get_zone,
+                               get_template
+                               )
+from threading import Thread
+import time
+
+
+class TestSyncQueueDrain(cloudstackTestCase):
+
+    # number of VMs started concurrently
+    vmCount = 100
+    # time the simulator takes to start each VM, in milliseconds
+    startWait = 2000
+
+    @classmethod
+    def setUpClass(cls):
+        testClient = super(TestSyncQueueDrain, cls).getClsTestClient()
+        cls.apiclient = testClient.getApiClient()
+        cls.testdata = testClient.getParsedTestDataConfig()
+        cls.hypervisor = cls.testClient.getHypervisorInfo()
+
+        cls.domain = get_domain(cls.apiclient)
+        cls.zone = get_zone(cls.apiclient, testClient.getZoneForTests())
+        cls.template = get_template(
+            cls.apiclient,
+            cls.zone.id,
+            cls.testdata["ostype"])
+
+        cls._cleanup = []
+        if cls.hypervisor.lower() != "simulator":
+            return
+
+        cls.service_offering = ServiceOffering.create(
+            cls.apiclient,
+            cls.testdata["service_offering"],
+        )
+        cls._cleanup.append(cls.service_offering)
+        cls.account = Account.create(
+            cls.apiclient,
+            cls.testdata["account"],
+            domainid=cls.domain.id
+        )
+        cls._cleanup.append(cls.account)
+        return
+
+    @classmethod
+    def tearDownClass(cls):
+        try:
+            cleanup_resources(cls.apiclient, cls._cleanup)
+        except Exception as e:
+            raise Exception("Warning: Exception during cleanup : %s" % e)
+
+    def setUp(self):
+        self.apiclient = self.testClient.getApiClient()
+        self.dbclient = self.testClient.getDbConnection()
+        self.failures = []
+        self.cleanup = []
+        if self.hypervisor.lower() != "simulator":
+            self.skipTest("Stress test only runs on the simulator")
+
+    def tearDown(self):
+        try:
+            cleanup_resources(self.apiclient, self.cleanup)
+        except Exception as e:
+            raise Exception("Warning: Exception during cleanup : %s" % e)
+
+    def createVirtualMachine(self):
+        return VirtualMachine.create(
+            self.apiclient,
+            self.testdata["small"],
+            templateid=self.template.id,
+            accountid=self.account.name,
+            domainid=self.account.domainid,
+            serviceofferingid=self.service_offering.id,
+            zoneid=self.zone.id,
+            startvm=False
+        )
+
+    def startVirtualMachine(self, vm):
+        try:
+            vm.start(self.apiclient)
+        except Exception as e:
+            self.failures.append("%s: %s" % (vm.id, e))
+
+    def stopVirtualMachine(self, vm):
+        try:
+            vm.stop(self.apiclient)
+        except Exception as e:
+            self.failures.append("%s: %s" % (vm.id, e))
+
+    @attr(tags=["advanced", "basic", "stress"], required_hardware="false")
+    def test_01_start_vms_concurrently(self):
+        """ Start many stopped VMs at once and measure the drain rate
+        # 1. Deploy vmCount VMs without starting them
+        # 2. Make the simulator take startWait ms for every VM start
+        # 3. Start all of them concurrently
+        # 4. Verify all of them are running, report VMs started per second
+        #    and verify the starts ran in parallel: one after the other
+        #    they take at least vmCount * startWait ms
+        """
+        vms = []
+        for i in range(0, self.vmCount):
+            vms.append(self.createVirtualMachine())
+
+        mock = SimulatorMock.create(
+            apiclient=self.apiclient,
+            command="StartCommand",
+            zoneid=self.zone.id,
+            value="wait:%d" % self.startWait)
+        self.cleanup.append(mock)
+
+        threads = []
+        startTime = time.time()
+        for vm in vms:
+            thread = Thread(target=self.startVirtualMachine, args=(vm,))
+            threads.append(thread)
+            thread.start()
+        for thread in threads:
+            thread.join()
+        elapsed = time.time() - startTime
+
+        self.assertEqual(
+            len(self.failures),
+            0,
+            "Failed to start VMs: %s" % self.failures)
+
+        self.debug("Started %s VMs in %.2f seconds, %.2f VMs per second" %
+                   (self.vmCount, elapsed, self.vmCount / elapsed))
+
+        sequential = self.vmCount * self.startWait / 1000.0
+        self.assertLess(
+            elapsed,
+            sequential / 2,
+            "Starting %s VMs took %.2f seconds, they were not started in "
+            "parallel (%.2f seconds one after the other)" %
+            (self.vmCount, elapsed, sequential))
+        return
+
+    @attr(tags=["advanced", "basic", "stress"], required_hardware="false")
+    def test_02_vm_work_runs_in_queue_order(self):
+        """ Queue several operations on one VM and verify they run in order
+        # 1. Deploy a VM without starting it
+        # 2. Submit start, stop, start and stop one second apart, so that
+        #    they all wait in the sync queue of the VM
+        # 3. Verify all of them succeeded and that their work jobs completed
+        #    in the order they were queued
+        """
+        vm = self.createVirtualMachine()
+
+        mock = SimulatorMock.create(
+            apiclient=self.apiclient,
+            command="StartCommand",
+            zoneid=self.zone.id,
+            value="wait:%d" % self.startWait)
+        self.cleanup.append(mock)
+
+        operations = [self.startVirtualMachine, self.stopVirtualMachine,
+                      self.startVirtualMachine, self.stopVirtualMachine]
+        threads = []
+        for operation in operations:
+            thread = Thread(target=operation, args=(vm,))
+            threads.append(thread)
+            thread.start()
+            time.sleep(1)
+        for thread in threads:
+            thread.join()
+
+        self.assertEqual(
+            len(self.failures),
+            0,
+            "Failed to run the VM operations: %s" % self.failures)
+
+        jobs = self.dbclient.execute(
+            "select j.job_cmd, j.removed from async_job j, vm_work_job w, "
+            "vm_instance v where w.id = j.id and w.vm_instance_id = v.id "
+            "and v.uuid = '%s' order by j.id;" % vm.id)
+        self.assertEqual(
+            [job[0].split(".")[-1] for job in jobs],
+            ["VmWorkStart", "VmWorkStop", "VmWorkStart", "VmWorkStop"],
+            "Unexpected work jobs for the VM: %s" % jobs)
+        completions = [job[1] for job in jobs]
+        self.assertEqual(
+            completions,
+            sorted(completions),
+            "Work jobs of the VM did not complete in queue order: %s" % jobs)
+        return
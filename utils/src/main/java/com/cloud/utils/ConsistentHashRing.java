@@ -0,0 +1,90 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * ConsistentHashRing assigns keys to a set of nodes.  Every node is put on
+ * the ring a number of times (its virtual nodes) so that the keys spread
+ * evenly, and a key belongs to the node following it on the ring.  When a node
+ * joins or leaves only the keys it gets or had move, about 1/N of them.
+ */
+public class ConsistentHashRing {
+    private final TreeMap<Long, Long> _ring = new TreeMap<Long, Long>();
+    private final Set<Long> _nodes;
+
+    public ConsistentHashRing(final Collection<Long> nodes, final int virtualNodes) {
+        _nodes = Collections.unmodifiableSet(new TreeSet<Long>(nodes));
+        for (final Long node : _nodes) {
+            for (int i = 0; i < Math.max(virtualNodes, 1); i++) {
+                final long point = hash(node + "-" + i);
+                final Long previous = _ring.get(point);
+                // keep the ring the same whatever the order the nodes are added in
+                if (previous == null || previous > node) {
+                    _ring.put(point, node);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the node the key belongs to, null if the ring has no node.
+     */
+    public Long getNode(final long key) {
+        if (_ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, Long> entry = _ring.ceilingEntry(hash(Long.toString(key)));
+        if (entry == null) {
+            entry = _ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    public Set<Long> getNodes() {
+        return _nodes;
+    }
+
+    private static long hash(final String value) {
+        final MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new CloudRuntimeException("Unable to get MD5 MessageDigest", e);
+        }
+        final byte[] digest = md5.digest(value.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
@@ -22,10 +22,16 @@ package com.cloud.utils;
 import org.apache.log4j.Logger;
 
 import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 public class HttpUtils {
 
@@ -63,22 +69,26 @@ public class HttpUtils {
         resp.addHeader("content-security-policy","style-src=self");
     }
 
+    private static void setResponseHeaders(final HttpServletResponse resp, final Integer responseCode, final String responseType, final String jsonContentType) {
+        if (RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            if (jsonContentType != null && !jsonContentType.isEmpty()) {
+                resp.setContentType(jsonContentType);
+            } else {
+                resp.setContentType(JSON_CONTENT_TYPE);
+            }
+        } else if (RESPONSE_TYPE_XML.equalsIgnoreCase(responseType)){
+            resp.setContentType(XML_CONTENT_TYPE);
+        }
+        if (responseCode != null) {
+            resp.setStatus(responseCode);
+        }
+        addSecurityHeaders(resp);
+    }
+
     public static void writeHttpResponse(final HttpServletResponse resp, final String response,
                                          final Integer responseCode, final String responseType, final String jsonContentType) {
         try {
-            if (RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                if (jsonContentType != null && !jsonContentType.isEmpty()) {
-                    resp.setContentType(jsonContentType);
-                } else {
-                    resp.setContentType(JSON_CONTENT_TYPE);
-                }
-            } else if (RESPONSE_TYPE_XML.equalsIgnoreCase(responseType)){
-                resp.setContentType(XML_CONTENT_TYPE);
-            }
-            if (responseCode != null) {
-                resp.setStatus(responseCode);
-            }
-            addSecurityHeaders(resp);
+            setResponseHeaders(resp, responseCode, responseType, jsonContentType);
             resp.getWriter().print(response);
         } catch (final IOException ioex) {
             if (s_logger.isTraceEnabled()) {
@@ -91,6 +101,27 @@ public class HttpUtils {
         }
     }
 
+    /**
+     * Sets the same headers as writeHttpResponse() and returns a writer on the
+     * response body, gzip compressed when gzip is set. The caller must close the
+     * writer once the whole response has been written.
+     */
+    public static Writer openHttpResponseWriter(final HttpServletResponse resp, final Integer responseCode, final String responseType,
+                                                final String jsonContentType, final boolean gzip) throws IOException {
+        setResponseHeaders(resp, responseCode, responseType, jsonContentType);
+        if (!gzip) {
+            return resp.getWriter();
+        }
+        resp.setHeader("Content-Encoding", "gzip");
+        resp.addHeader("Vary", "Accept-Encoding");
+        return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(resp.getOutputStream(), 8192), StandardCharsets.UTF_8));
+    }
+
+    public static boolean acceptsGzip(final HttpServletRequest req) {
+        final String acceptEncoding = req.getHeader("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
+
     public static String findCookie(final Cookie[] cookies, final String key) {
         if (cookies == null || key == null || key.isEmpty()) {
             return null;
@@ -0,0 +1,124 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ByteBufferPool hands out direct buffers in power of two size classes and
+ * keeps a bounded number of released buffers per class for reuse.  Requests
+ * larger than the biggest class get a heap buffer which is never pooled.
+ */
+public class ByteBufferPool {
+    private final int _minSize;
+    private final int _maxSize;
+    private final int _maxPooledPerClass;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> _classes = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+    private final List<AtomicInteger> _pooled = new ArrayList<AtomicInteger>();
+
+    private final AtomicLong _allocated = new AtomicLong();
+    private final AtomicLong _reused = new AtomicLong();
+
+    /**
+     * @param minSize size of the smallest class, rounded up to a power of two.
+     * @param maxSize size of the biggest class, rounded up to a power of two.
+     * @param maxPooledPerClass number of released buffers kept per class.
+     */
+    public ByteBufferPool(final int minSize, final int maxSize, final int maxPooledPerClass) {
+        _minSize = roundUp(minSize);
+        _maxSize = roundUp(maxSize);
+        _maxPooledPerClass = maxPooledPerClass;
+        for (int size = _minSize; size <= _maxSize; size <<= 1) {
+            _classes.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            _pooled.add(new AtomicInteger());
+        }
+    }
+
+    /**
+     * @return a cleared buffer with at least size bytes remaining.
+     */
+    public ByteBuffer acquire(final int size) {
+        if (size > _maxSize) {
+            return ByteBuffer.allocate(size);
+        }
+        final int index = classIndex(size);
+        final ByteBuffer buffer = _classes.get(index).poll();
+        if (buffer == null) {
+            _allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(_minSize << index);
+        }
+        _pooled.get(index).decrementAndGet();
+        _reused.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained by acquire() to the pool, the caller must not use it anymore.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() > _maxSize) {
+            return;
+        }
+        final int index = classIndex(buffer.capacity());
+        if ((_minSize << index) != buffer.capacity()) {
+            return;
+        }
+        if (_pooled.get(index).incrementAndGet() > _maxPooledPerClass) {
+            _pooled.get(index).decrementAndGet();
+            return;
+        }
+        _classes.get(index).offer(buffer);
+    }
+
+    public long getAllocatedCount() {
+        return _allocated.get();
+    }
+
+    public long getReusedCount() {
+        return _reused.get();
+    }
+
+    public int getPooledCount() {
+        int count = 0;
+        for (final AtomicInteger pooled : _pooled) {
+            count += pooled.get();
+        }
+        return count;
+    }
+
+    private int classIndex(final int size) {
+        int index = 0;
+        for (int classSize = _minSize; classSize < size; classSize <<= 1) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int roundUp(final int size) {
+        final int highest = Integer.highestOneBit(Math.max(size, 1));
+        return highest == size ? size : highest << 1;
+    }
+}
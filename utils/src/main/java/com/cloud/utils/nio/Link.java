@@ -58,6 +58,12 @@ import com.cloud.utils.exception.CloudRuntimeException;
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
 
+    /* Packet and application buffers used while wrapping/unwrapping are borrowed from here instead of allocated per packet */
+    private static final ByteBufferPool s_bufferPool = new ByteBufferPool(4096, 65536, 256);
+    /* Plain text buffers up to this size are kept by the link for the next message */
+    private static final int MAX_RETAINED_PLAINTEXT_SIZE = 4096;
+    private static final ByteBuffer[] CLOSE_REQUEST = new ByteBuffer[0];
+
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
     private SelectionKey _key;
@@ -105,55 +111,47 @@ public class Link {
 
     private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        // The first 4 bytes hold the header so header and packet go out with a single write
+        ByteBuffer pkgBuf = s_bufferPool.acquire(sslSession.getPacketBufferSize() + 40 + 4);
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-
         int totalLen = 0;
         for (ByteBuffer buffer : buffers) {
             totalLen += buffer.limit();
         }
 
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-
-            processedLen = 0;
-            for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
-            }
+        try {
+            int processedLen = 0;
+            while (processedLen < totalLen) {
+                pkgBuf.clear();
+                pkgBuf.position(4);
+                engResult = sslEngine.wrap(buffers, pkgBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
-                header = header | HEADER_FLAG_FOLLOWING;
-            }
-            headBuf.putInt(header);
-            headBuf.flip();
+                processedLen = 0;
+                for (ByteBuffer buffer : buffers) {
+                    processedLen += buffer.position();
+                }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
+                int header = pkgBuf.position() - 4;
+                if (processedLen < totalLen) {
+                    header = header | HEADER_FLAG_FOLLOWING;
                 }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+                pkgBuf.putInt(0, header);
+                pkgBuf.flip();
+
+                while (pkgBuf.hasRemaining()) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Writing Data " + pkgBuf.remaining());
+                    }
+                    ch.write(pkgBuf);
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
             }
+        } finally {
+            s_bufferPool.release(pkgBuf);
         }
     }
 
@@ -202,7 +200,11 @@ public class Link {
             }
 
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                if (_plaintextBuffer == null || _plaintextBuffer.capacity() > MAX_RETAINED_PLAINTEXT_SIZE) {
+                    _plaintextBuffer = ByteBuffer.allocate(2000);
+                } else {
+                    _plaintextBuffer.clear();
+                }
             }
 
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -236,36 +238,39 @@ public class Link {
 
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
         int remaining = 0;
 
-        while (_readBuffer.hasRemaining()) {
-            remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-            if (remaining == _readBuffer.remaining()) {
-                throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
-            }
+        ByteBuffer appBuf = s_bufferPool.acquire(sslSession.getApplicationBufferSize() + 40);
+        try {
+            while (_readBuffer.hasRemaining()) {
+                remaining = _readBuffer.remaining();
+                appBuf.clear();
+                engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
+                if (remaining == _readBuffer.remaining()) {
+                    throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
+                }
 
-            appBuf.flip();
-            if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-                _plaintextBuffer.flip();
-                newBuffer.put(_plaintextBuffer);
-                _plaintextBuffer = newBuffer;
-            }
-            _plaintextBuffer.put(appBuf);
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Done with packet: " + appBuf.limit());
+                appBuf.flip();
+                if (_plaintextBuffer.remaining() < appBuf.limit()) {
+                    // We need to expand _plaintextBuffer for more data
+                    ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
+                    _plaintextBuffer.flip();
+                    newBuffer.put(_plaintextBuffer);
+                    _plaintextBuffer = newBuffer;
+                }
+                _plaintextBuffer.put(appBuf);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Done with packet: " + appBuf.limit());
+                }
             }
+        } finally {
+            s_bufferPool.release(appBuf);
         }
 
         _readBuffer.clear();
@@ -293,24 +298,18 @@ public class Link {
     }
 
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
 
-        _writeQueue.add(item);
+        // the buffers are queued as they are, the packet headers are written by doWrite()
+        _writeQueue.add(data);
         if (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_REQUEST);
         }
         synchronized (this) {
             if (_key == null) {
@@ -333,17 +332,14 @@ public class Link {
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_REQUEST) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine);
         }
         return false;
     }
@@ -41,9 +41,14 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.StandardMBean;
 import javax.net.ssl.SSLEngine;
 
 import org.apache.cloudstack.framework.ca.CAService;
@@ -52,12 +57,18 @@ import org.apache.log4j.Logger;
 
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.NioConnectionException;
+import com.cloud.utils.mgmt.JmxUtil;
 
 /**
  * NioConnection abstracts the NIO socket operations.  The Java implementation
  * provides that.
+ *
+ * The connection always selects on its own selector.  When it is created with
+ * event loops, accepted channels are handed out to the loops in a round-robin
+ * fashion and their reads and writes are serviced by the loop threads while
+ * the connection's own thread only accepts.
  */
-public abstract class NioConnection implements Callable<Boolean> {
+public abstract class NioConnection implements Callable<Boolean>, NioConnectionMBean {
     private static final Logger s_logger = Logger.getLogger(NioConnection.class);;
 
     protected Selector _selector;
@@ -71,17 +82,47 @@ public abstract class NioConnection implements Callable<Boolean> {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
-    protected ExecutorService _sslHandshakeExecutor;
+    protected ThreadPoolExecutor _sslHandshakeExecutor;
     protected CAService caService;
 
+    protected int _eventLoopCount;
+    protected volatile NioEventLoop[] _eventLoops = new NioEventLoop[0];
+    protected ExecutorService _eventLoopExecutor;
+    private final AtomicInteger _nextEventLoop = new AtomicInteger();
+
+    private final AtomicLong _sslHandshakeCount = new AtomicLong();
+    private final AtomicLong _sslHandshakeTotalMillis = new AtomicLong();
+    private final AtomicLong _sslHandshakeMaxMillis = new AtomicLong();
+    private final AtomicLong _sslHandshakeRejected = new AtomicLong();
+
     public NioConnection(final String name, final int port, final int workers, final HandlerFactory factory) {
+        this(name, port, workers, 0, factory);
+        _sslHandshakeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new NamedThreadFactory(name + "-SSLHandshakeHandler"));
+    }
+
+    /**
+     * @param eventLoops number of event loops servicing reads and writes, 0 keeps everything on the connection's thread.
+     * @param sslHandshakeWorkers maximum number of concurrent SSL handshakes.
+     * @param sslHandshakeQueueSize number of accepted connections allowed to wait for a handshake worker, beyond
+     *        that new connections are closed right away so the peers retry later.
+     */
+    public NioConnection(final String name, final int port, final int workers, final int eventLoops, final int sslHandshakeWorkers, final int sslHandshakeQueueSize,
+            final HandlerFactory factory) {
+        this(name, port, workers, eventLoops, factory);
+        _sslHandshakeExecutor = new ThreadPoolExecutor(sslHandshakeWorkers, sslHandshakeWorkers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(sslHandshakeQueueSize), new NamedThreadFactory(name + "-SSLHandshakeHandler"));
+        _sslHandshakeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private NioConnection(final String name, final int port, final int workers, final int eventLoops, final HandlerFactory factory) {
         _name = name;
         _isRunning = false;
         _selector = null;
         _port = port;
         _factory = factory;
+        _eventLoopCount = eventLoops;
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
-        _sslHandshakeExecutor = Executors.newCachedThreadPool(new NamedThreadFactory(name + "-SSLHandshakeHandler"));
     }
 
     public void setCAService(final CAService caService) {
@@ -92,6 +133,7 @@ public abstract class NioConnection implements Callable<Boolean> {
         _todos = new ArrayList<ChangeRequest>();
 
         try {
+            initEventLoops();
             init();
         } catch (final ConnectException e) {
             s_logger.warn("Unable to connect to remote: is there a server running on port " + _port);
@@ -105,9 +147,16 @@ public abstract class NioConnection implements Callable<Boolean> {
         }
         _isStartup = true;
 
+        if (_eventLoops.length > 0) {
+            _eventLoopExecutor = Executors.newFixedThreadPool(_eventLoops.length, new NamedThreadFactory(this._name + "-NioEventLoop"));
+            for (final NioEventLoop eventLoop : _eventLoops) {
+                _eventLoopExecutor.submit(eventLoop);
+            }
+        }
         _threadExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory(this._name + "-NioConnectionHandler"));
         _isRunning = true;
         _futureTask = _threadExecutor.submit(this);
+        registerMBeans();
     }
 
     public void stop() {
@@ -117,6 +166,53 @@ public abstract class NioConnection implements Callable<Boolean> {
             _futureTask.cancel(false);
             _threadExecutor.shutdown();
         }
+        for (final NioEventLoop eventLoop : _eventLoops) {
+            eventLoop.stop();
+        }
+        if (_eventLoopExecutor != null) {
+            _eventLoopExecutor.shutdown();
+        }
+        _sslHandshakeExecutor.shutdown();
+        unregisterMBeans();
+    }
+
+    /**
+     * Opens the selectors of the event loops, called by start() before init().
+     */
+    protected void initEventLoops() throws IOException {
+        _eventLoops = new NioEventLoop[_eventLoopCount];
+        for (int i = 0; i < _eventLoopCount; i++) {
+            _eventLoops[i] = NioEventLoop.create(this, _name + "-EventLoop-" + i);
+        }
+    }
+
+    protected NioEventLoop nextEventLoop() {
+        if (_eventLoops.length == 0) {
+            return null;
+        }
+        return _eventLoops[Math.abs(_nextEventLoop.getAndIncrement() % _eventLoops.length)];
+    }
+
+    protected void registerMBeans() {
+        try {
+            JmxUtil.registerMBean("NioConnection", _name, new StandardMBean(this, NioConnectionMBean.class, false));
+            for (final NioEventLoop eventLoop : _eventLoops) {
+                JmxUtil.registerMBean("NioEventLoop", eventLoop.getName(), eventLoop);
+            }
+        } catch (final Exception e) {
+            s_logger.warn("Unable to register the JMX beans of " + _name, e);
+        }
+    }
+
+    protected void unregisterMBeans() {
+        try {
+            JmxUtil.unregisterMBean("NioConnection", _name);
+            for (final NioEventLoop eventLoop : _eventLoops) {
+                JmxUtil.unregisterMBean("NioEventLoop", eventLoop.getName());
+            }
+        } catch (final Exception e) {
+            s_logger.debug("Unable to unregister the JMX beans of " + _name + ": " + e.getMessage());
+        }
     }
 
     public boolean isRunning() {
@@ -207,10 +303,13 @@ public abstract class NioConnection implements Callable<Boolean> {
             sslEngine.setUseClientMode(false);
             sslEngine.setEnabledProtocols(SSLUtils.getSupportedProtocols(sslEngine.getEnabledProtocols()));
             final NioConnection nioConnection = this;
+            final NioEventLoop eventLoop = nextEventLoop();
+            final Selector selector = eventLoop != null ? eventLoop.getSelector() : key.selector();
+            final long acceptedAt = System.currentTimeMillis();
             _sslHandshakeExecutor.submit(new Runnable() {
                 @Override
                 public void run() {
-                    _selector.wakeup();
+                    selector.wakeup();
                     try {
                         sslEngine.beginHandshake();
                         if (!Link.doHandshake(socketChannel, sslEngine)) {
@@ -219,10 +318,11 @@ public abstract class NioConnection implements Callable<Boolean> {
                         if (s_logger.isTraceEnabled()) {
                             s_logger.trace("SSL: Handshake done");
                         }
+                        recordSslHandshake(System.currentTimeMillis() - acceptedAt);
                         final InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
                         final Link link = new Link(saddr, nioConnection);
                         link.setSSLEngine(sslEngine);
-                        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
+                        link.setKey(socketChannel.register(selector, SelectionKey.OP_READ, link));
                         final Task task = _factory.create(Task.Type.CONNECT, link, null);
                         registerLink(saddr, link);
                         _executor.submit(task);
@@ -233,10 +333,15 @@ public abstract class NioConnection implements Callable<Boolean> {
                         closeAutoCloseable(socket, "accepting socket");
                         closeAutoCloseable(socketChannel, "accepting socketChannel");
                     } finally {
-                        _selector.wakeup();
+                        selector.wakeup();
                     }
                 }
             });
+        } catch (final RejectedExecutionException e) {
+            _sslHandshakeRejected.incrementAndGet();
+            s_logger.warn("Too many pending SSL handshakes, closing connection from " + socket.getRemoteSocketAddress());
+            closeAutoCloseable(socket, "accepting socket");
+            closeAutoCloseable(socketChannel, "accepting socketChannel");
         } catch (final Exception e) {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Connection closed due to failure: " + e.getMessage());
@@ -319,6 +424,15 @@ public abstract class NioConnection implements Callable<Boolean> {
         }
     }
 
+    protected void recordSslHandshake(final long millis) {
+        _sslHandshakeCount.incrementAndGet();
+        _sslHandshakeTotalMillis.addAndGet(millis);
+        long max = _sslHandshakeMaxMillis.get();
+        while (millis > max && !_sslHandshakeMaxMillis.compareAndSet(max, millis)) {
+            max = _sslHandshakeMaxMillis.get();
+        }
+    }
+
     protected void processTodos() {
         List<ChangeRequest> todos;
         if (_todos.size() == 0) {
@@ -330,6 +444,10 @@ public abstract class NioConnection implements Callable<Boolean> {
             _todos = new ArrayList<ChangeRequest>();
         }
 
+        processTodos(todos, _selector);
+    }
+
+    protected void processTodos(final List<ChangeRequest> todos, final Selector selector) {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Todos Processing: " + todos.size());
         }
@@ -353,7 +471,7 @@ public abstract class NioConnection implements Callable<Boolean> {
                 break;
             case ChangeRequest.REGISTER:
                 try {
-                    key = ((SocketChannel)todo.key).register(_selector, todo.ops, todo.att);
+                    key = ((SocketChannel)todo.key).register(selector, todo.ops, todo.att);
                     if (todo.att != null) {
                         final Link link = (Link)todo.att;
                         link.setKey(key);
@@ -473,15 +591,25 @@ public abstract class NioConnection implements Callable<Boolean> {
     }
 
     public void change(final int ops, final SelectionKey key, final Object att) {
-        final ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
-        _selector.wakeup();
+        addTodo(key, new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att));
     }
 
     public void close(final SelectionKey key) {
-        final ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CLOSE, 0, null);
+        addTodo(key, new ChangeRequest(key, ChangeRequest.CLOSE, 0, null));
+    }
+
+    /**
+     * Change requests have to be processed by the thread selecting on the key's selector.
+     */
+    protected void addTodo(final SelectionKey key, final ChangeRequest todo) {
+        if (key != null) {
+            for (final NioEventLoop eventLoop : _eventLoops) {
+                if (eventLoop.getSelector() == key.selector()) {
+                    eventLoop.addTodo(todo);
+                    return;
+                }
+            }
+        }
         synchronized (this) {
             _todos.add(todo);
         }
@@ -493,6 +621,45 @@ public abstract class NioConnection implements Callable<Boolean> {
         if (_selector != null) {
             _selector.close();
         }
+        for (final NioEventLoop eventLoop : _eventLoops) {
+            eventLoop.cleanUp();
+        }
+    }
+
+    @Override
+    public int getEventLoopCount() {
+        return _eventLoops.length;
+    }
+
+    @Override
+    public int getSslHandshakeActiveCount() {
+        return _sslHandshakeExecutor.getActiveCount();
+    }
+
+    @Override
+    public int getSslHandshakeQueueSize() {
+        return _sslHandshakeExecutor.getQueue().size();
+    }
+
+    @Override
+    public long getSslHandshakeCount() {
+        return _sslHandshakeCount.get();
+    }
+
+    @Override
+    public long getSslHandshakeRejectedCount() {
+        return _sslHandshakeRejected.get();
+    }
+
+    @Override
+    public long getSslHandshakeAverageMillis() {
+        final long count = _sslHandshakeCount.get();
+        return count == 0 ? 0 : _sslHandshakeTotalMillis.get() / count;
+    }
+
+    @Override
+    public long getSslHandshakeMaxMillis() {
+        return _sslHandshakeMaxMillis.get();
     }
 
     public class ChangeRequest {
@@ -0,0 +1,181 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.NioConnection.ChangeRequest;
+
+/**
+ * NioEventLoop owns a selector and the thread that services it.  NioConnection
+ * keeps accepting on its own selector and spreads the accepted channels over
+ * its event loops, so reads and writes of different links no longer queue up
+ * behind each other on a single thread.
+ */
+public class NioEventLoop extends StandardMBean implements NioEventLoopMBean, Runnable {
+    private static final Logger s_logger = Logger.getLogger(NioEventLoop.class);
+
+    private final NioConnection _connection;
+    private final String _name;
+    private final Selector _selector;
+    private List<ChangeRequest> _todos = new ArrayList<ChangeRequest>();
+    private volatile boolean _isRunning;
+
+    private volatile int _lastReadyKeys;
+    private final AtomicLong _totalReadyKeys = new AtomicLong();
+    private final AtomicLong _selectCount = new AtomicLong();
+
+    protected NioEventLoop(final NioConnection connection, final String name) throws IOException, NotCompliantMBeanException {
+        super(NioEventLoopMBean.class, false);
+        _connection = connection;
+        _name = name;
+        _selector = Selector.open();
+        _isRunning = true;
+    }
+
+    public static NioEventLoop create(final NioConnection connection, final String name) throws IOException {
+        try {
+            return new NioEventLoop(connection, name);
+        } catch (final NotCompliantMBeanException e) {
+            throw new IOException("Unable to create event loop " + name, e);
+        }
+    }
+
+    public Selector getSelector() {
+        return _selector;
+    }
+
+    public void addTodo(final ChangeRequest todo) {
+        synchronized (this) {
+            _todos.add(todo);
+        }
+        _selector.wakeup();
+    }
+
+    public void stop() {
+        _isRunning = false;
+        _selector.wakeup();
+    }
+
+    public void cleanUp() throws IOException {
+        _selector.close();
+    }
+
+    @Override
+    public void run() {
+        while (_isRunning) {
+            try {
+                _selector.select(50);
+                _selectCount.incrementAndGet();
+
+                final Set<SelectionKey> readyKeys = _selector.selectedKeys();
+                _lastReadyKeys = readyKeys.size();
+                _totalReadyKeys.addAndGet(_lastReadyKeys);
+
+                final Iterator<SelectionKey> i = readyKeys.iterator();
+                while (i.hasNext()) {
+                    final SelectionKey sk = i.next();
+                    i.remove();
+
+                    if (!sk.isValid()) {
+                        final Link link = (Link)sk.attachment();
+                        if (link != null) {
+                            link.terminated();
+                        } else {
+                            _connection.closeConnection(sk);
+                        }
+                    } else if (sk.isReadable()) {
+                        _connection.read(sk);
+                    } else if (sk.isWritable()) {
+                        _connection.write(sk);
+                    }
+                }
+
+                processTodos();
+            } catch (final ClosedSelectorException e) {
+                break;
+            } catch (final IOException e) {
+                s_logger.warn("Caught exception while processing keys in " + _name, e);
+            } catch (final Throwable e) {
+                // e.g. a key cancelled concurrently, losing the loop would stop serving every link on it
+                s_logger.error("Unexpected exception while processing keys in " + _name, e);
+            }
+        }
+    }
+
+    protected void processTodos() {
+        final List<ChangeRequest> todos;
+        synchronized (this) {
+            if (_todos.isEmpty()) {
+                return;
+            }
+            todos = _todos;
+            _todos = new ArrayList<ChangeRequest>();
+        }
+        _connection.processTodos(todos, _selector);
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public int getRegisteredKeys() {
+        try {
+            return _selector.keys().size();
+        } catch (final ClosedSelectorException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int getLastReadyKeys() {
+        return _lastReadyKeys;
+    }
+
+    @Override
+    public long getTotalReadyKeys() {
+        return _totalReadyKeys.get();
+    }
+
+    @Override
+    public long getSelectCount() {
+        return _selectCount.get();
+    }
+
+    @Override
+    public synchronized int getPendingChangeRequests() {
+        return _todos.size();
+    }
+}
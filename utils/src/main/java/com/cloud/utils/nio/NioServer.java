@@ -25,6 +25,8 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Map;
 import java.util.WeakHashMap;
 
 import org.apache.cloudstack.framework.ca.CAService;
@@ -36,13 +38,21 @@ public class NioServer extends NioConnection {
     protected InetSocketAddress _localAddr;
     private ServerSocketChannel _serverSocket;
 
-    protected WeakHashMap<InetSocketAddress, Link> _links;
+    protected Map<InetSocketAddress, Link> _links;
 
     public NioServer(final String name, final int port, final int workers, final HandlerFactory factory, final CAService caService) {
         super(name, port, workers, factory);
         setCAService(caService);
         _localAddr = null;
-        _links = new WeakHashMap<InetSocketAddress, Link>(1024);
+        _links = Collections.synchronizedMap(new WeakHashMap<InetSocketAddress, Link>(1024));
+    }
+
+    public NioServer(final String name, final int port, final int workers, final int eventLoops, final int sslHandshakeWorkers, final int sslHandshakeQueueSize,
+            final HandlerFactory factory, final CAService caService) {
+        super(name, port, workers, eventLoops, sslHandshakeWorkers, sslHandshakeQueueSize, factory);
+        setCAService(caService);
+        _localAddr = null;
+        _links = Collections.synchronizedMap(new WeakHashMap<InetSocketAddress, Link>(1024));
     }
 
     public int getPort() {
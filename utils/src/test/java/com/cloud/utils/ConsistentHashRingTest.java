@@ -0,0 +1,76 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void emptyRing() {
+        assertNull(new ConsistentHashRing(Arrays.<Long>asList(), 16).getNode(1));
+    }
+
+    @Test
+    public void sameRingWhateverTheOrder() {
+        final ConsistentHashRing ring1 = new ConsistentHashRing(Arrays.asList(1L, 2L, 3L), 64);
+        final ConsistentHashRing ring2 = new ConsistentHashRing(Arrays.asList(3L, 1L, 2L), 64);
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(ring1.getNode(key), ring2.getNode(key));
+        }
+    }
+
+    @Test
+    public void keysAreSpreadEvenly() {
+        final ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(1L, 2L, 3L, 4L), 128);
+        final Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        for (long key = 0; key < 10000; key++) {
+            final Long node = ring.getNode(key);
+            counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+        }
+        assertEquals(4, counts.size());
+        for (final int count : counts.values()) {
+            assertTrue("unbalanced ring: " + counts, count > 1500 && count < 3500);
+        }
+    }
+
+    @Test
+    public void joiningNodeOnlyTakesItsShare() {
+        final ConsistentHashRing before = new ConsistentHashRing(Arrays.asList(1L, 2L, 3L), 128);
+        final ConsistentHashRing after = new ConsistentHashRing(Arrays.asList(1L, 2L, 3L, 4L), 128);
+        int moved = 0;
+        for (long key = 0; key < 10000; key++) {
+            if (!before.getNode(key).equals(after.getNode(key))) {
+                // keys only move to the node that joined
+                assertEquals(Long.valueOf(4L), after.getNode(key));
+                moved++;
+            }
+        }
+        assertTrue("too many keys moved: " + moved, moved > 1500 && moved < 3500);
+    }
+}
@@ -20,6 +20,7 @@
 package com.cloud.utils;
 
 import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpSession;
 
 import javax.servlet.http.Cookie;
@@ -34,6 +35,18 @@ import static org.junit.Assert.assertTrue;
 
 public class HttpUtilsTest {
 
+    @Test
+    public void acceptsGzipTest() {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        assertFalse(HttpUtils.acceptsGzip(request));
+        request.addHeader("Accept-Encoding", "deflate");
+        assertFalse(HttpUtils.acceptsGzip(request));
+
+        final MockHttpServletRequest gzipRequest = new MockHttpServletRequest();
+        gzipRequest.addHeader("Accept-Encoding", "GZIP, deflate");
+        assertTrue(HttpUtils.acceptsGzip(gzipRequest));
+    }
+
     @Test
     public void findCookieTest() {
         Cookie[] cookies = null;
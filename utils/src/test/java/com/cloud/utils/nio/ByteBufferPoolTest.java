@@ -0,0 +1,75 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ByteBufferPoolTest {
+
+    @Test
+    public void acquireRoundsUpToSizeClass() {
+        final ByteBufferPool pool = new ByteBufferPool(4096, 65536, 2);
+        assertEquals(4096, pool.acquire(100).capacity());
+        assertEquals(8192, pool.acquire(4097).capacity());
+        assertEquals(32768, pool.acquire(16749).capacity());
+        assertTrue(pool.acquire(100).isDirect());
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        final ByteBufferPool pool = new ByteBufferPool(4096, 65536, 2);
+        final ByteBuffer buffer = pool.acquire(5000);
+        buffer.put((byte)1);
+        pool.release(buffer);
+
+        final ByteBuffer reused = pool.acquire(6000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(1, pool.getReusedCount());
+    }
+
+    @Test
+    public void poolIsBounded() {
+        final ByteBufferPool pool = new ByteBufferPool(4096, 65536, 2);
+        final ByteBuffer[] buffers = {pool.acquire(4096), pool.acquire(4096), pool.acquire(4096)};
+        for (final ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    @Test
+    public void oversizedBuffersAreNotPooled() {
+        final ByteBufferPool pool = new ByteBufferPool(4096, 65536, 2);
+        final ByteBuffer buffer = pool.acquire(100000);
+        assertFalse(buffer.isDirect());
+        pool.release(buffer);
+        pool.release(ByteBuffer.allocateDirect(5000));
+        assertEquals(0, pool.getPooledCount());
+    }
+}